@@ -101,7 +101,11 @@ void loop()
     TIMER4_BASE->CCR3 = servo_r_pulse;
     TIMER4_BASE->CNT = 5000;
 
+    // Send controller state to the app
+    serial_write_telemetry();
+
     // Check loop time
+    loop_busy_time = micros() - loop_timer;
     while (micros() - loop_timer < LOOP_PERIOD);
     loop_timer = micros();
 }
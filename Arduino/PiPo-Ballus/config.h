@@ -45,6 +45,9 @@ const uint8_t SERIAL_SUFFIX_2 PROGMEM = 0xEF;
 // If there is no packet within 125loops * 4ms = 500ms, the connection is considered lost
 const uint16_t WATCHDOG_LOST_CYCLES PROGMEM = 125;
 
+// Send telemetry (protocol v2 only) every 5loops * 4ms = 20ms (50Hz)
+const uint8_t TELEMETRY_PERIOD_CYCLES PROGMEM = 5;
+
 
 /**************************************/
 /*            Servo motors            */
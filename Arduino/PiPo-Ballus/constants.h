@@ -33,6 +33,21 @@
 const uint32_t LOOP_PERIOD PROGMEM = 4000;
 const uint32_t MAX_ALLOWED_LOOP_PERIOD PROGMEM = 4050;
 
+// Serial protocol v2 (COBS frames terminated by 0x00, see PacketEncoder.java in the app)
+const uint8_t SERIAL_VERSION_2 PROGMEM = 2;
+const uint8_t SERIAL_TYPE_HELLO PROGMEM = 0x01;
+const uint8_t SERIAL_TYPE_POSITION PROGMEM = 0x02;
+const uint8_t SERIAL_TYPE_HELLO_ACK PROGMEM = 0x81;
+const uint8_t SERIAL_TYPE_TELEMETRY PROGMEM = 0x82;
+const uint8_t SERIAL_HELLO_PAYLOAD_LENGTH PROGMEM = 6;
+const uint8_t SERIAL_POSITION_PAYLOAD_LENGTH PROGMEM = 27;
+
+// Protocol v2 positions are sent as 1000 + (value - 1000) * serial_position_scale
+// to transfer fractional part of the ball position. The scale is requested by the app in HELLO
+const uint8_t SERIAL_POSITION_SCALE_MAX PROGMEM = 64;
+const uint8_t SERIAL_TELEMETRY_PAYLOAD_LENGTH PROGMEM = 27;
+const uint8_t SERIAL_FRAME_SIZE PROGMEM = 40;
+
 // Cartesian to delta conversion
 const uint16_t X_MIN_P PROGMEM = 1500;
 const uint16_t X_MIN_Q PROGMEM = 1933; // 1500 + 250 * sqrt(3)
@@ -30,7 +30,7 @@
 #define DATATYPES_H
 
 // Common variables
-uint32_t loop_timer;
+uint32_t loop_timer, loop_busy_time;
 
 // Serial communication
 uint8_t serial_buffer[16];
@@ -40,6 +40,18 @@ uint16_t serial_watchdog = WATCHDOG_LOST_CYCLES;
 float serial_x_last, serial_y_last, serial_z_last;
 float delta_x, delta_y, delta_z;
 
+// Serial protocol v2
+uint8_t serial_protocol = 1, serial_position_scale = 1;
+uint8_t serial_frame[SERIAL_FRAME_SIZE], serial_payload[SERIAL_FRAME_SIZE];
+uint8_t serial_frame_position, serial_payload_length;
+bool serial_frame_overflow, serial_sequence_valid;
+uint16_t serial_sequence_last, serial_capture_age;
+uint32_t serial_lost_packets, serial_sequence_time;
+
+// Telemetry (protocol v2)
+uint8_t serial_tx_payload[SERIAL_FRAME_SIZE], serial_tx_frame[SERIAL_FRAME_SIZE];
+uint8_t telemetry_counter;
+
 // PID controller variables
 float pid_input_x, pid_input_y, pid_input_z;
 float pid_x_setpoint, pid_y_setpoint, pid_z_setpoint;
@@ -28,68 +28,206 @@
 
 void serial_read(void) {
     // Count watchdog cycles
-    if (serial_watchdog <= WATCHDOG_LOST_CYCLES)
+    if (serial_watchdog <= WATCHDOG_LOST_CYCLES) {
         serial_watchdog++;
 
+        // Accept legacy packets again after the connection is lost
+        if (serial_watchdog == WATCHDOG_LOST_CYCLES)
+            serial_protocol = 1;
+    }
+
     // Continue loop until all bytes are read
     while (COMMUNICATION_SERIAL.available()) {
         // Read current byte
-        serial_buffer[serial_buffer_position] = COMMUNICATION_SERIAL.read();
-
-        if (serial_byte_previous == SERIAL_SUFFIX_1 && serial_buffer[serial_buffer_position] == SERIAL_SUFFIX_2) {
-            // If data suffix appears
-            // Reset buffer position
-            serial_buffer_position = 0;
+        serial_temp_byte = COMMUNICATION_SERIAL.read();
 
-            // Reset check sum
-            serial_check_byte = 0;
-
-            // Calculate check sum
-            for (serial_temp_byte = 0; serial_temp_byte <= 12; serial_temp_byte++)
-                serial_check_byte ^= serial_buffer[serial_temp_byte];
-
-            // Check if the check sums are equal
-            if (serial_check_byte == serial_buffer[13]) {
-                // Parse X data
-                pid_input_x = (uint16_t)serial_buffer[1] | (uint16_t)serial_buffer[0] << 8;
-                delta_x = pid_input_x - serial_x_last;
-                serial_x_last = pid_input_x;
-
-                // Parse Y data
-                pid_input_y = (uint16_t)serial_buffer[3] | (uint16_t)serial_buffer[2] << 8;
-                delta_y = pid_input_y - serial_y_last;
-                serial_y_last = pid_input_y;
-
-                // Parse Z data
-                pid_input_z = (uint16_t)serial_buffer[5] | (uint16_t)serial_buffer[4] << 8;
-                delta_z = pid_input_z - serial_z_last;
-                serial_z_last = pid_input_z;
-
-                // Parse setpoints
-                pid_x_setpoint = (uint16_t)serial_buffer[7] | (uint16_t)serial_buffer[6] << 8;
-                pid_y_setpoint = (uint16_t)serial_buffer[9] | (uint16_t)serial_buffer[8] << 8;
-                pid_z_setpoint = (uint16_t)serial_buffer[11] | (uint16_t)serial_buffer[10] << 8;
-
-                // Currently not used
-                system_info_byte = serial_buffer[12];
-
-                // Calculate the increment in one cycle
-                delta_x /= (float)serial_watchdog;
-                delta_y /= (float)serial_watchdog;
-                delta_z /= (float)serial_watchdog;
-
-                // Reset watchdog
-                serial_watchdog = 0;
-            }
+        // Protocol v2 frames are terminated by 0x00
+        if (serial_temp_byte == 0) {
+            if (serial_frame_position > 0 && !serial_frame_overflow)
+                serial_read_frame();
+            serial_frame_position = 0;
+            serial_frame_overflow = false;
         }
-        else {
-            // Store data bytes
-            serial_byte_previous = serial_buffer[serial_buffer_position];
-            serial_buffer_position++;
-
-            // Reset buffer on overflow
-            if (serial_buffer_position >= 16)
-                serial_buffer_position = 0;
+        else if (serial_frame_position < SERIAL_FRAME_SIZE)
+            serial_frame[serial_frame_position++] = serial_temp_byte;
+        else
+            serial_frame_overflow = true;
+
+        // Legacy protocol v1 (ignored after switching to v2 to prevent false suffix matches)
+        if (serial_protocol == 1)
+            serial_read_legacy(serial_temp_byte);
+    }
+}
+
+/// <summary>
+/// Parses legacy protocol v1 packets (16 bytes with XOR check byte and two suffix bytes)
+/// </summary>
+/// <param name="serial_byte">Received byte</param>
+void serial_read_legacy(uint8_t serial_byte) {
+    serial_buffer[serial_buffer_position] = serial_byte;
+
+    if (serial_byte_previous == SERIAL_SUFFIX_1 && serial_buffer[serial_buffer_position] == SERIAL_SUFFIX_2) {
+        // If data suffix appears
+        // Reset buffer position
+        serial_buffer_position = 0;
+
+        // Reset check sum
+        serial_check_byte = 0;
+
+        // Calculate check sum
+        for (uint8_t i = 0; i <= 12; i++)
+            serial_check_byte ^= serial_buffer[i];
+
+        // Check if the check sums are equal
+        if (serial_check_byte == serial_buffer[13]) {
+            // Parse X data
+            pid_input_x = serial_parse_position(serial_buffer, 0, 1);
+            delta_x = pid_input_x - serial_x_last;
+            serial_x_last = pid_input_x;
+
+            // Parse Y data
+            pid_input_y = serial_parse_position(serial_buffer, 2, 1);
+            delta_y = pid_input_y - serial_y_last;
+            serial_y_last = pid_input_y;
+
+            // Parse Z data
+            pid_input_z = serial_parse_position(serial_buffer, 4, 1);
+            delta_z = pid_input_z - serial_z_last;
+            serial_z_last = pid_input_z;
+
+            // Parse setpoints
+            pid_x_setpoint = serial_parse_position(serial_buffer, 6, 1);
+            pid_y_setpoint = serial_parse_position(serial_buffer, 8, 1);
+            pid_z_setpoint = serial_parse_position(serial_buffer, 10, 1);
+
+            // Currently not used
+            system_info_byte = serial_buffer[12];
+
+            // Calculate the increment in one cycle
+            delta_x /= (float)serial_watchdog;
+            delta_y /= (float)serial_watchdog;
+            delta_z /= (float)serial_watchdog;
+
+            // Reset watchdog
+            serial_watchdog = 0;
         }
     }
+    else {
+        // Store data bytes
+        serial_byte_previous = serial_buffer[serial_buffer_position];
+        serial_buffer_position++;
+
+        // Reset buffer on overflow
+        if (serial_buffer_position >= 16)
+            serial_buffer_position = 0;
+    }
+}
+
+/// <summary>
+/// Decodes protocol v2 frame from serial_frame and handles HELLO and POSITION frames
+/// </summary>
+void serial_read_frame(void) {
+    // Decode COBS
+    serial_payload_length = 0;
+    for (uint8_t index = 0; index < serial_frame_position;) {
+        uint8_t code = serial_frame[index++];
+        if (index + code - 1 > serial_frame_position)
+            return;
+        for (uint8_t i = 1; i < code; i++)
+            serial_payload[serial_payload_length++] = serial_frame[index++];
+        if (code < 0xFF && index < serial_frame_position)
+            serial_payload[serial_payload_length++] = 0;
+    }
+
+    // Check version and CRC
+    if (serial_payload_length < 4 || serial_payload[0] != SERIAL_VERSION_2)
+        return;
+    if (serial_crc16(serial_payload, serial_payload_length - 2) != serial_parse_uint16(serial_payload, serial_payload_length - 2))
+        return;
+
+    // Answer to protocol negotiation
+    if (serial_payload[1] == SERIAL_TYPE_HELLO && serial_payload[2] >= SERIAL_VERSION_2) {
+        serial_protocol = 2;
+
+        // The app restarts the sequence numbers after HELLO (don't count the gap as lost)
+        serial_sequence_valid = false;
+        serial_position_scale = serial_payload_length >= SERIAL_HELLO_PAYLOAD_LENGTH ? constrain(serial_payload[3], 1, SERIAL_POSITION_SCALE_MAX) : 1;
+        serial_write_hello_ack();
+    }
+
+    // New position
+    else if (serial_payload[1] == SERIAL_TYPE_POSITION && serial_payload_length == SERIAL_POSITION_PAYLOAD_LENGTH) {
+        // Count lost packets using sequence number
+        uint16_t sequence = serial_parse_uint16(serial_payload, 2);
+        if (serial_protocol == 2 && serial_sequence_valid && serial_watchdog < WATCHDOG_LOST_CYCLES)
+            serial_lost_packets += (uint16_t)(sequence - serial_sequence_last - 1);
+        serial_sequence_last = sequence;
+        serial_sequence_valid = true;
+        serial_sequence_time = micros();
+        serial_protocol = 2;
+
+        // Time since the capture of the camera frame (0.1 ms)
+        serial_capture_age = serial_parse_uint16(serial_payload, 4);
+
+        // Parse positions
+        pid_input_x = serial_parse_position(serial_payload, 6, serial_position_scale);
+        pid_input_y = serial_parse_position(serial_payload, 8, serial_position_scale);
+        pid_input_z = serial_parse_position(serial_payload, 10, serial_position_scale);
+        serial_x_last = pid_input_x;
+        serial_y_last = pid_input_y;
+        serial_z_last = pid_input_z;
+
+        // Parse setpoints
+        pid_x_setpoint = serial_parse_position(serial_payload, 12, serial_position_scale);
+        pid_y_setpoint = serial_parse_position(serial_payload, 14, serial_position_scale);
+        pid_z_setpoint = serial_parse_position(serial_payload, 16, serial_position_scale);
+
+        // Calculate the increment in one cycle from the velocity (units per second)
+        delta_x = (float)(int16_t)serial_parse_uint16(serial_payload, 18) * (float)LOOP_PERIOD / 1000000.f;
+        delta_y = (float)(int16_t)serial_parse_uint16(serial_payload, 20) * (float)LOOP_PERIOD / 1000000.f;
+        delta_z = (float)(int16_t)serial_parse_uint16(serial_payload, 22) * (float)LOOP_PERIOD / 1000000.f;
+
+        // Flags
+        system_info_byte = serial_payload[24];
+
+        // Reset watchdog
+        serial_watchdog = 0;
+    }
+}
+
+/// <summary>
+/// Calculates CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF)
+/// </summary>
+/// <param name="data">Data buffer</param>
+/// <param name="length">Number of bytes</param>
+/// <returns>CRC</returns>
+uint16_t serial_crc16(const uint8_t *data, uint8_t length) {
+    uint16_t crc = 0xFFFF;
+    for (uint8_t i = 0; i < length; i++) {
+        crc ^= (uint16_t)data[i] << 8;
+        for (uint8_t bit = 0; bit < 8; bit++)
+            crc = (crc & 0x8000) ? (crc << 1) ^ 0x1021 : crc << 1;
+    }
+    return crc;
+}
+
+/// <summary>
+/// Parses big-endian uint16
+/// </summary>
+/// <param name="buffer">Data buffer</param>
+/// <param name="index">Index of the high byte</param>
+/// <returns>Value</returns>
+uint16_t serial_parse_uint16(const uint8_t *buffer, uint8_t index) {
+    return (uint16_t)buffer[index + 1] | (uint16_t)buffer[index] << 8;
+}
+
+/// <summary>
+/// Parses scaled position from the buffer
+/// </summary>
+/// <param name="buffer">Data buffer</param>
+/// <param name="index">Index of the high byte</param>
+/// <param name="scale">Position scale (1 for protocol v1)</param>
+/// <returns>Position in 1000-2000 range (with fractional part)</returns>
+float serial_parse_position(const uint8_t *buffer, uint8_t index, uint8_t scale) {
+    return 1000.f + ((float)serial_parse_uint16(buffer, index) - 1000.f) / (float)scale;
 }
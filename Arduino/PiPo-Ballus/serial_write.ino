@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Table controller
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+/// <summary>
+/// Sends TELEMETRY frame every TELEMETRY_PERIOD_CYCLES loops (protocol v2 only).
+/// The frame echoes the last received sequence number, so the app can measure round trip time
+/// </summary>
+void serial_write_telemetry(void) {
+    if (serial_protocol != 2 || ++telemetry_counter < TELEMETRY_PERIOD_CYCLES)
+        return;
+    telemetry_counter = 0;
+
+    serial_tx_payload[0] = SERIAL_VERSION_2;
+    serial_tx_payload[1] = SERIAL_TYPE_TELEMETRY;
+
+    // Echoed sequence and the time since its reception (us)
+    serial_put_uint16(2, serial_sequence_last);
+    serial_put_uint16(4, min(micros() - serial_sequence_time, (uint32_t)0xFFFF));
+
+    // Loop and connection state
+    serial_put_uint16(6, min(loop_busy_time, (uint32_t)0xFFFF));
+    serial_put_uint16(8, serial_watchdog);
+
+    // Servo pulses
+    serial_put_uint16(10, servo_p_pulse);
+    serial_put_uint16(12, servo_q_pulse);
+    serial_put_uint16(14, servo_r_pulse);
+
+    // PID outputs
+    serial_put_uint16(16, (uint16_t)(int16_t)pid_output_x);
+    serial_put_uint16(18, (uint16_t)(int16_t)pid_output_y);
+    serial_put_uint16(20, (uint16_t)(int16_t)pid_output_z);
+
+    // Lost packets and flags
+    serial_put_uint16(22, (uint16_t)serial_lost_packets);
+    serial_tx_payload[24] = (serial_watchdog >= WATCHDOG_LOST_CYCLES ? 0x01 : 0) | 0x02;
+
+    serial_write_frame(SERIAL_TELEMETRY_PAYLOAD_LENGTH);
+}
+
+/// <summary>
+/// Sends HELLO_ACK frame (protocol v2 is accepted)
+/// </summary>
+void serial_write_hello_ack(void) {
+    serial_tx_payload[0] = SERIAL_VERSION_2;
+    serial_tx_payload[1] = SERIAL_TYPE_HELLO_ACK;
+    serial_tx_payload[2] = SERIAL_VERSION_2;
+    serial_tx_payload[3] = serial_position_scale;
+    serial_write_frame(SERIAL_HELLO_PAYLOAD_LENGTH);
+}
+
+/// <summary>
+/// Calculates CRC of serial_tx_payload, encodes it with COBS and sends the frame
+/// </summary>
+/// <param name="length">Length of the payload including 2 bytes of CRC</param>
+void serial_write_frame(uint8_t length) {
+    serial_put_uint16(length - 2, serial_crc16(serial_tx_payload, length - 2));
+
+    // Encode COBS
+    uint8_t code_index = 0, code = 1, frame_index = 1;
+    for (uint8_t i = 0; i < length; i++) {
+        if (serial_tx_payload[i] == 0) {
+            serial_tx_frame[code_index] = code;
+            code_index = frame_index++;
+            code = 1;
+        }
+        else {
+            serial_tx_frame[frame_index++] = serial_tx_payload[i];
+            code++;
+        }
+    }
+    serial_tx_frame[code_index] = code;
+    serial_tx_frame[frame_index++] = 0;
+    COMMUNICATION_SERIAL.write(serial_tx_frame, frame_index);
+}
+
+/// <summary>
+/// Writes big-endian uint16 into serial_tx_payload
+/// </summary>
+/// <param name="index">Index of the high byte</param>
+/// <param name="value">Value</param>
+void serial_put_uint16(uint8_t index, uint16_t value) {
+    serial_tx_payload[index] = value >> 8;
+    serial_tx_payload[index + 1] = value & 0xFF;
+}
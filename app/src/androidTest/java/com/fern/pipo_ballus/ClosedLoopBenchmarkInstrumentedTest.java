@@ -0,0 +1,44 @@
+package com.fern.pipo_ballus;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Closed-loop benchmark with the vision pipeline (synthetic frames processed by OpenCVHandler).
+ * Results are printed to the log (ClosedLoopBenchmark tag)
+ */
+@RunWith(AndroidJUnit4.class)
+public class ClosedLoopBenchmarkInstrumentedTest {
+    private static final String TAG = "ClosedLoopBenchmark";
+
+    @Test
+    public void vision_settlesWithNoiseAndPerspective() throws Exception {
+        assertTrue(OpenCVLoader.initDebug());
+
+        // Single run (frame budget without competing runs)
+        ClosedLoopBenchmark closedLoopBenchmark = new ClosedLoopBenchmark(true);
+        closedLoopBenchmark.setRendering(640, 480, 0.2, 0.3, 6, 3);
+        BenchmarkContainer single = closedLoopBenchmark.run(0);
+        Log.i(TAG, single.toString());
+
+        // Seed sweep on all cores
+        List<BenchmarkContainer> results = closedLoopBenchmark.runSweep(1, 16, 0);
+        for (BenchmarkContainer benchmarkContainer : results)
+            Log.i(TAG, benchmarkContainer.toString());
+        String summary = ClosedLoopBenchmark.summarize(results);
+        Log.i(TAG, summary);
+
+        assertTrue(single.toString(), single.isSettled());
+        for (BenchmarkContainer benchmarkContainer : results)
+            assertTrue(summary, benchmarkContainer.isSettled());
+    }
+}
@@ -0,0 +1,149 @@
+package com.fern.pipo_ballus;
+
+import android.content.Context;
+import android.view.Surface;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records synthetic frames as PNG images and replays them paced and as fast as possible.
+ * Both replays must give the same ball positions. The staged pipeline must publish positions
+ */
+@RunWith(AndroidJUnit4.class)
+public class FrameSourceInstrumentedTest {
+    private static final int FRAMES = 60;
+    private static final long FRAME_PERIOD = 33333333L;
+
+    @Test
+    public void replay_isDeterministic() throws Exception {
+        assertTrue(OpenCVLoader.initDebug());
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File directory = new File(context.getCacheDir(), "replay");
+        recordSyntheticFrames(directory);
+
+        List<Double> paced = replay(new ImageSequenceFrameSource(directory,
+                Surface.ROTATION_90, true));
+        List<Double> fast = replay(new ImageSequenceFrameSource(directory,
+                Surface.ROTATION_90, false));
+        assertEquals(FRAMES, paced.size());
+        assertEquals(paced, fast);
+    }
+
+    @Test
+    public void pipeline_publishesPositions() throws Exception {
+        assertTrue(OpenCVLoader.initDebug());
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        File directory = new File(context.getCacheDir(), "pipeline");
+        recordSyntheticFrames(directory);
+
+        // Replay paced frames through the staged pipeline
+        PositionMailbox positionMailbox = new PositionMailbox();
+        OpenCVHandler openCVHandler = new OpenCVHandler(positionMailbox, new LatencyTracer(64),
+                null);
+        openCVHandler.initView();
+        openCVHandler.setResolutionGovernor(false, 0);
+        FramePipeline framePipeline = new FramePipeline(openCVHandler);
+        ImageSequenceFrameSource imageSequenceFrameSource = new ImageSequenceFrameSource(
+                directory, Surface.ROTATION_90, true);
+        imageSequenceFrameSource.setFrameListener(framePipeline);
+        imageSequenceFrameSource.start();
+        assertTrue(imageSequenceFrameSource.waitForEnd(60000));
+
+        assertEquals(FRAMES, framePipeline.getCapturedFrames());
+        assertTrue(framePipeline.getDetectedFrames() > 0);
+        assertTrue(framePipeline.getComposedFrames() > 0);
+        assertTrue(positionMailbox.getPublishedCounter() > 0);
+    }
+
+    /**
+     * Saves frames of SyntheticFrameSource and their timestamps
+     */
+    private static void recordSyntheticFrames(File directory) throws Exception {
+        assertTrue(directory.isDirectory() || directory.mkdirs());
+        SyntheticFrameRenderer renderer = new SyntheticFrameRenderer(640, 480);
+        renderer.setNoise(4);
+        SyntheticFrameSource syntheticFrameSource = new SyntheticFrameSource(renderer, 1,
+                FRAME_PERIOD, FRAMES, false);
+        Mat frameBGR = new Mat();
+        try (FileWriter timestamps = new FileWriter(
+                new File(directory, ImageSequenceFrameSource.TIMESTAMPS_FILE))) {
+            int[] index = {0};
+            syntheticFrameSource.setFrameListener(new FrameListener() {
+                @Override
+                public void frameSourceStarted(int width, int height) { }
+
+                @Override
+                public void frameSourceStopped() { }
+
+                @Override
+                public Mat frameReceived(CameraBridgeViewBase.CvCameraViewFrame frame,
+                                         int rotation, long captureTime) {
+                    Imgproc.cvtColor(frame.rgba(), frameBGR, Imgproc.COLOR_RGBA2BGR);
+                    Imgcodecs.imwrite(new File(directory,
+                            String.format("%06d.png", index[0]++)).getAbsolutePath(), frameBGR);
+                    try {
+                        timestamps.write(captureTime + "\n");
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return frame.rgba();
+                }
+            });
+            syntheticFrameSource.start();
+            assertTrue(syntheticFrameSource.waitForEnd(60000));
+        }
+        frameBGR.release();
+        renderer.release();
+    }
+
+    /**
+     * Replays frames through OpenCVHandler
+     * @return X position of the ball in every frame
+     */
+    private static List<Double> replay(ImageSequenceFrameSource imageSequenceFrameSource)
+            throws InterruptedException {
+        OpenCVHandler openCVHandler = new OpenCVHandler(null, new LatencyTracer(64), null);
+        openCVHandler.initView();
+        openCVHandler.setResolutionGovernor(false, 0);
+        List<Double> positions = new ArrayList<>();
+        imageSequenceFrameSource.setFrameListener(new FrameListener() {
+            @Override
+            public void frameSourceStarted(int width, int height) {
+                openCVHandler.frameSourceStarted(width, height);
+            }
+
+            @Override
+            public void frameSourceStopped() {
+                openCVHandler.frameSourceStopped();
+            }
+
+            @Override
+            public Mat frameReceived(CameraBridgeViewBase.CvCameraViewFrame frame,
+                                     int rotation, long captureTime) {
+                Mat outputRGBA = openCVHandler.frameReceived(frame, rotation, captureTime);
+                positions.add(openCVHandler.getPositionContainer().ballVSTableX);
+                return outputRGBA;
+            }
+        });
+        imageSequenceFrameSource.start();
+        assertTrue(imageSequenceFrameSource.waitForEnd(60000));
+        return positions;
+    }
+}
@@ -0,0 +1,142 @@
+package com.fern.pipo_ballus;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Classifies a synthetic frame as RGBA and as camera-like YUV planes (padded rows,
+ * interleaved chroma). Masks must be the same except for colors on the quantization boundaries
+ */
+@RunWith(AndroidJUnit4.class)
+public class YUVFrameInstrumentedTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int ROW_PADDING = 32;
+
+    @Test
+    public void yuvClassification_matchesRGBA() {
+        assertTrue(OpenCVLoader.initDebug());
+        SyntheticFrameRenderer renderer = new SyntheticFrameRenderer(WIDTH, HEIGHT);
+        renderer.setNoise(4);
+        renderer.render(new BallPlateSimulator(1));
+
+        YUVFrame yuvFrame = toYUVFrame(renderer.rgba());
+        ColorClassifier colorClassifier = new ColorClassifier();
+        colorClassifier.update(SettingsContainer.tableColorLower, SettingsContainer.tableColorUpper,
+                SettingsContainer.ballColorLower, SettingsContainer.ballColorUpper);
+
+        // Classify the planes and a region with odd origin (must be the same as the whole frame)
+        Mat maskTableYUV = new Mat(), maskBallYUV = new Mat();
+        colorClassifier.classify(yuvFrame, maskTableYUV, maskBallYUV);
+        Rect region = new Rect(101, 51, 333, 277);
+        colorClassifier.classify(yuvFrame, region.x, region.y, region.width, region.height);
+        assertEquals(0, countDifferent(maskTableYUV, maskBallYUV, colorClassifier, region));
+
+        // Compact copy must give the same frame
+        YUVFrame yuvCopy = new YUVFrame();
+        yuvFrame.copyTo(yuvCopy);
+
+        // Both classifiers must see the same colors, so RGBA is converted back from YUV
+        Mat rgba = yuvFrame.rgba();
+        assertEquals(WIDTH, rgba.cols());
+        assertEquals(HEIGHT, rgba.rows());
+        Mat maskTableRGBA = new Mat(), maskBallRGBA = new Mat();
+        colorClassifier.classify(rgba, maskTableRGBA, maskBallRGBA);
+        int tablePixels = Core.countNonZero(maskTableRGBA);
+        int ballPixels = Core.countNonZero(maskBallRGBA);
+        assertTrue(tablePixels > 0);
+        assertTrue(ballPixels > 0);
+        assertTrue(countDifferent(maskTableRGBA, maskTableYUV) < tablePixels / 50);
+        assertTrue(countDifferent(maskBallRGBA, maskBallYUV) < ballPixels / 20);
+
+        // Region of the RGBA frame is read row by row
+        colorClassifier.classify(rgba, region.x, region.y, region.width, region.height);
+        assertEquals(0, countDifferent(maskTableRGBA, maskBallRGBA, colorClassifier, region));
+
+        assertEquals(0, countDifferent(yuvFrame.gray(), yuvCopy.gray()));
+        Mat difference = new Mat();
+        Core.absdiff(rgba, yuvCopy.rgba(), difference);
+        assertEquals(0, Core.countNonZero(difference.reshape(1)));
+
+        yuvFrame.release();
+        yuvCopy.release();
+        renderer.release();
+    }
+
+    /**
+     * Converts RGBA frame into YUV planes laid out as a camera does (NV21 with padded rows)
+     */
+    private static YUVFrame toYUVFrame(Mat rgba) {
+        Mat i420 = new Mat();
+        Imgproc.cvtColor(rgba, i420, Imgproc.COLOR_RGBA2YUV_I420);
+        byte[] i420Buffer = new byte[(int) i420.total()];
+        i420.get(0, 0, i420Buffer);
+        i420.release();
+
+        int rowStride = WIDTH + ROW_PADDING;
+        int chromaSize = (WIDTH / 2) * (HEIGHT / 2);
+        ByteBuffer yPlane = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        ByteBuffer chromaPlanes = ByteBuffer.allocateDirect(rowStride * HEIGHT / 2);
+        for (int row = 0; row < HEIGHT; row++) {
+            yPlane.position(row * rowStride);
+            yPlane.put(i420Buffer, row * WIDTH, WIDTH);
+        }
+        for (int row = 0; row < HEIGHT / 2; row++) {
+            for (int col = 0; col < WIDTH / 2; col++) {
+                int i = WIDTH * HEIGHT + row * (WIDTH / 2) + col;
+                chromaPlanes.put(row * rowStride + col * 2, i420Buffer[i + chromaSize]);
+                chromaPlanes.put(row * rowStride + col * 2 + 1, i420Buffer[i]);
+            }
+        }
+        yPlane.clear();
+        chromaPlanes.clear();
+        ByteBuffer vPlane = chromaPlanes.slice();
+        chromaPlanes.position(1);
+        ByteBuffer uPlane = chromaPlanes.slice();
+
+        YUVFrame yuvFrame = new YUVFrame();
+        yuvFrame.set(WIDTH, HEIGHT, yPlane, rowStride, uPlane, vPlane, rowStride, 2, 0);
+        return yuvFrame;
+    }
+
+    /**
+     * @return number of pixels of the region classified differently from the masks
+     */
+    private static int countDifferent(Mat maskTable, Mat maskBall,
+                                      ColorClassifier colorClassifier, Rect region) {
+        int count = 0;
+        for (int y = region.y; y < region.y + region.height; y++) {
+            for (int x = region.x; x < region.x + region.width; x++) {
+                byte colorClass = colorClassifier.getColorClass(x, y);
+                if ((maskTable.get(y, x)[0] != 0)
+                        != ((colorClass & ColorClassifier.CLASS_TABLE) != 0)
+                        || (maskBall.get(y, x)[0] != 0)
+                        != ((colorClass & ColorClassifier.CLASS_BALL) != 0))
+                    count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of different pixels of two masks
+     */
+    private static int countDifferent(Mat mask1, Mat mask2) {
+        Mat difference = new Mat();
+        Core.compare(mask1, mask2, difference, Core.CMP_NE);
+        int count = Core.countNonZero(difference);
+        difference.release();
+        return count;
+    }
+}
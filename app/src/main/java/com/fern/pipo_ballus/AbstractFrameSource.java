@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.util.Log;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Mat;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class delivers frames of a recording or a simulation on a separate thread.
+ * Frames are delivered either paced to their timestamps (as the camera would)
+ * or as fast as the listener processes them. In both cases the capture time of the frame is
+ * the start time plus the frame's timestamp, so the tracker sees the recorded timeline
+ * and the results are the same at any replay speed
+ */
+public abstract class AbstractFrameSource implements FrameSource, Runnable {
+    private final String TAG = this.getClass().getName();
+
+    private final boolean paced;
+    private final int rotation;
+    private volatile FrameListener frameListener;
+    private volatile boolean running;
+    private Thread thread;
+    private volatile long deliveredFrames;
+    private volatile long replayTime;
+
+    /**
+     * @param paced true to deliver frames at their timestamps, false - as fast as possible
+     * @param rotation screen rotation of the frames (Surface.ROTATION_)
+     */
+    AbstractFrameSource(boolean paced, int rotation) {
+        this.paced = paced;
+        this.rotation = rotation;
+    }
+
+    @Override
+    public void setFrameListener(FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        deliveredFrames = 0;
+        thread = new Thread(this);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    @Override
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = this.thread;
+            this.thread = null;
+        }
+        try {
+            if (thread != null && thread != Thread.currentThread())
+                thread.join();
+        } catch (InterruptedException ignored) { }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isLive() {
+        return false;
+    }
+
+    /**
+     * Waits until all frames are delivered (or the source is stopped)
+     * @param timeoutMillis max waiting time
+     * @return true if the source is finished
+     */
+    public boolean waitForEnd(long timeoutMillis) throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+        }
+        if (thread != null)
+            thread.join(timeoutMillis);
+        return !running;
+    }
+
+    /**
+     * @return number of frames delivered since start()
+     */
+    public long getDeliveredFrames() {
+        return deliveredFrames;
+    }
+
+    /**
+     * @return real time of the last replay in nanoseconds
+     */
+    public long getReplayTime() {
+        return replayTime;
+    }
+
+    @Override
+    public void run() {
+        long startTime = System.nanoTime();
+        boolean started = false;
+        long firstFrameTime = 0;
+        try {
+            if (!openSource()) {
+                Log.e(TAG, "Error opening " + getName());
+                return;
+            }
+
+            while (running && nextFrame()) {
+                CameraBridgeViewBase.CvCameraViewFrame frame = getFrame();
+                long frameTime = getFrameTime();
+                FrameListener frameListener = this.frameListener;
+
+                // Notify the listener with the size of the first frame
+                if (!started) {
+                    started = true;
+                    firstFrameTime = frameTime;
+                    Mat rgba = frame.rgba();
+                    if (frameListener != null)
+                        frameListener.frameSourceStarted(rgba.cols(), rgba.rows());
+                }
+
+                // Wait for the frame's timestamp
+                long captureTime = startTime + frameTime - firstFrameTime;
+                if (paced) {
+                    long remaining;
+                    while (running && (remaining = captureTime - System.nanoTime()) > 0)
+                        LockSupport.parkNanos(this, remaining);
+                }
+
+                if (frameListener != null)
+                    frameListener.frameReceived(frame, rotation, captureTime);
+                deliveredFrames++;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading " + getName(), e);
+        } finally {
+            closeSource();
+            FrameListener frameListener = this.frameListener;
+            if (started && frameListener != null)
+                frameListener.frameSourceStopped();
+            replayTime = System.nanoTime() - startTime;
+            Log.i(TAG, getName() + ": " + deliveredFrames + " frames in "
+                    + replayTime / 1000000 + " ms");
+            running = false;
+        }
+    }
+
+    /**
+     * Opens the recording (called from the thread of the source)
+     * @return false on error
+     */
+    protected abstract boolean openSource();
+
+    /**
+     * Releases the recording (called from the thread of the source)
+     */
+    protected abstract void closeSource();
+
+    /**
+     * Reads the next frame (see getFrame() and getFrameTime())
+     * @return false if there are no more frames
+     */
+    protected abstract boolean nextFrame() throws Exception;
+
+    /**
+     * @return current frame
+     */
+    protected abstract CameraBridgeViewBase.CvCameraViewFrame getFrame();
+
+    /**
+     * @return timestamp of the current frame in nanoseconds (any origin)
+     */
+    protected abstract long getFrameTime();
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+/**
+ * This class provides statistics and write completion reporting for Transport implementations
+ */
+public abstract class AbstractTransport implements Transport {
+    protected final TransportStats stats = new TransportStats();
+    private volatile WriteCompletionListener writeCompletionListener;
+
+    @Override
+    public void setWriteCompletionListener(WriteCompletionListener writeCompletionListener) {
+        this.writeCompletionListener = writeCompletionListener;
+    }
+
+    @Override
+    public TransportStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Counts the write and sends it to WriteCompletionListener
+     * @param tag tag of the write() call
+     * @param length number of bytes
+     * @param startTime System.nanoTime() of the write() call
+     * @param success true if the data is sent
+     */
+    protected void writeCompleted(long tag, int length, long startTime, boolean success) {
+        long completedTime = System.nanoTime();
+        if (success)
+            stats.countWrite(length);
+        else
+            stats.countWriteError();
+        WriteCompletionListener writeCompletionListener = this.writeCompletionListener;
+        if (writeCompletionListener != null)
+            writeCompletionListener.writeCompleted(tag, startTime, completedTime, success);
+    }
+
+    /**
+     * Counts the packet dropped because the link is congested (superseded by a newer one).
+     * It is not reported to WriteCompletionListener: the link still works and the newer
+     * packet will be reported instead
+     */
+    protected void writeDropped() {
+        stats.countDropped();
+    }
+}
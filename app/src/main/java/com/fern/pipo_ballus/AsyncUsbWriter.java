@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class writes packets to the bulk OUT endpoint of the USB serial adapter
+ * with a small pool of queued UsbRequests, so the serial thread never waits for the adapter.
+ * Completions are collected by a separate thread (UsbDeviceConnection.requestWait())
+ * and reported to UsbTransport with the real completion time.
+ * If all requests are in flight (adapter stalled), only the newest packet is kept
+ * and superseded packets are dropped. Requests that are not completed in
+ * STALL_TIMEOUT_NS are cancelled. Write completions are reported outside the lock, so
+ * WriteCompletionListener never blocks write() or the completion thread.
+ * NOTE: requestWait() returns any request of the connection, so the port must be read
+ * with a non-zero timeout (usb-serial-for-android uses bulkTransfer() in this case)
+ */
+public class AsyncUsbWriter implements Runnable {
+    private final String TAG = this.getClass().getName();
+
+    // Number of requests in flight (4 packets is about 20 ms at 57600 baud)
+    private static final int POOL_SIZE = 4;
+
+    // Max size of one packet (protocol frames are much smaller)
+    private static final int BUFFER_SIZE = 256;
+
+    // Cancel requests that are not completed in this time
+    private static final long STALL_TIMEOUT_NS = 50000000L;
+
+    private final UsbTransport usbTransport;
+    private final UsbDeviceConnection connection;
+    private final UsbEndpoint endpoint;
+
+    private final UsbRequest[] requests = new UsbRequest[POOL_SIZE];
+    private final ByteBuffer[] buffers = new ByteBuffer[POOL_SIZE];
+    private final int[] lengths = new int[POOL_SIZE];
+    private final long[] tags = new long[POOL_SIZE];
+    private final long[] startTimes = new long[POOL_SIZE];
+    private final boolean[] inFlight = new boolean[POOL_SIZE];
+    private final boolean[] cancelled = new boolean[POOL_SIZE];
+    private int inFlightCount;
+
+    // Newest packet waiting for a free request
+    private final byte[] pendingBuffer = new byte[BUFFER_SIZE];
+    private int pendingLength;
+    private long pendingTag, pendingStartTime;
+    private boolean hasPending;
+
+    private volatile boolean running, failed;
+    private Thread completionThread;
+
+    AsyncUsbWriter(UsbTransport usbTransport, UsbDeviceConnection connection,
+                   UsbEndpoint endpoint) {
+        this.usbTransport = usbTransport;
+        this.connection = connection;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Initializes requests and starts completion thread
+     * @return false if the requests can't be initialized (use synchronous writes)
+     */
+    public boolean open() {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            UsbRequest usbRequest = new UsbRequest();
+            if (!usbRequest.initialize(connection, endpoint)) {
+                usbRequest.close();
+                releaseRequests();
+                return false;
+            }
+            usbRequest.setClientData(i);
+            requests[i] = usbRequest;
+            buffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        running = true;
+        failed = false;
+        completionThread = new Thread(this);
+        completionThread.setPriority(Thread.MAX_PRIORITY);
+        completionThread.start();
+        return true;
+    }
+
+    /**
+     * Stops completion thread and cancels requests in flight.
+     * Must be called before the connection is closed
+     */
+    public void close() {
+        synchronized (this) {
+            running = false;
+            for (int i = 0; i < POOL_SIZE; i++)
+                if (inFlight[i] && requests[i] != null) {
+                    cancelled[i] = true;
+                    requests[i].cancel();
+                }
+            hasPending = false;
+            notifyAll();
+        }
+        try {
+            if (completionThread != null)
+                completionThread.join(100);
+        } catch (InterruptedException ignored) { }
+    }
+
+    /**
+     * Queues the packet (copies the data)
+     * @param buffer data to send
+     * @param length number of bytes
+     * @param tag tag for the write completion
+     * @param startTime System.nanoTime() of the write() call
+     * @return false if the request can't be queued (use synchronous writes)
+     */
+    public boolean write(byte[] buffer, int length, long tag, long startTime) {
+        synchronized (this) {
+            if (!running || failed || length > BUFFER_SIZE)
+                return false;
+
+            // Find free request and cancel stalled ones
+            int free = -1;
+            for (int i = 0; i < POOL_SIZE; i++) {
+                if (!inFlight[i]) {
+                    if (free < 0)
+                        free = i;
+                } else if (!cancelled[i] && startTime - startTimes[i] > STALL_TIMEOUT_NS) {
+                    cancelled[i] = true;
+                    requests[i].cancel();
+                }
+            }
+
+            if (free >= 0)
+                return queue(free, buffer, length, tag, startTime);
+
+            // All requests are in flight. Keep only the newest packet
+            if (hasPending)
+                usbTransport.writeDropped();
+            System.arraycopy(buffer, 0, pendingBuffer, 0, length);
+            pendingLength = length;
+            pendingTag = tag;
+            pendingStartTime = startTime;
+            hasPending = true;
+            return true;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                // Wait for queued requests
+                synchronized (this) {
+                    while (running && inFlightCount == 0)
+                        wait();
+                }
+                if (!running)
+                    break;
+
+                // Wait for any completed request
+                UsbRequest usbRequest = connection.requestWait();
+                if (usbRequest == null || !(usbRequest.getClientData() instanceof Integer)) {
+                    if (running)
+                        Log.e(TAG, "Error waiting for USB request!");
+                    failed = true;
+                    break;
+                }
+
+                // Release the request and send the pending packet
+                int index = (Integer) usbRequest.getClientData();
+                long tag, startTime;
+                int length;
+                boolean success, failedPending = false;
+                long failedTag = 0, failedStartTime = 0;
+                int failedLength = 0;
+                synchronized (this) {
+                    if (!inFlight[index])
+                        continue;
+                    tag = tags[index];
+                    startTime = startTimes[index];
+                    length = lengths[index];
+                    success = !cancelled[index];
+                    inFlight[index] = false;
+                    inFlightCount--;
+                    if (hasPending && running) {
+                        hasPending = false;
+                        if (!queue(index, pendingBuffer, pendingLength,
+                                pendingTag, pendingStartTime)) {
+                            failedPending = true;
+                            failedTag = pendingTag;
+                            failedLength = pendingLength;
+                            failedStartTime = pendingStartTime;
+                        }
+                    }
+                }
+
+                // Report results outside the lock
+                usbTransport.writeCompleted(tag, length, startTime, success);
+                if (failedPending)
+                    usbTransport.writeCompleted(failedTag, failedLength, failedStartTime, false);
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            synchronized (this) {
+                // Count packet that will never be sent
+                if (hasPending)
+                    usbTransport.writeDropped();
+                hasPending = false;
+                releaseRequests();
+            }
+        }
+    }
+
+    /**
+     * Copies the packet to the request buffer and queues the request
+     * NOTE: must be called under the lock
+     */
+    private boolean queue(int index, byte[] buffer, int length, long tag, long startTime) {
+        ByteBuffer byteBuffer = buffers[index];
+        byteBuffer.clear();
+        byteBuffer.put(buffer, 0, length);
+        byteBuffer.flip();
+        lengths[index] = length;
+        tags[index] = tag;
+        startTimes[index] = startTime;
+        cancelled[index] = false;
+
+        // queue(ByteBuffer) is available only since API 26
+        //noinspection deprecation
+        if (!requests[index].queue(byteBuffer, length)) {
+            Log.e(TAG, "Error queuing USB request!");
+            failed = true;
+            return false;
+        }
+        inFlight[index] = true;
+        inFlightCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Closes all requests
+     */
+    private void releaseRequests() {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (requests[i] != null) {
+                requests[i].close();
+                requests[i] = null;
+            }
+            inFlight[i] = false;
+        }
+        inFlightCount = 0;
+    }
+}
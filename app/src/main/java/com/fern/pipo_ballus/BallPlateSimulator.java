@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import java.util.Random;
+
+/**
+ * This class simulates a ball rolling on the plate that is tilted by three servos
+ * (P, Q and R outputs of servo_mapper.ino). Servo pulses are converted to the heights
+ * of the plate joints (with the servo speed limit), the plate is the plane through these
+ * three points and the ball is a thin-walled sphere (ping-pong ball) rolling without
+ * slipping (a = 3/5 * g * slope) with rolling resistance. The ball bounces off the plate's rim.
+ * Plate coordinates are in millimeters with the X axis to the right and the Y axis down
+ * (as in the camera frame). P joint is at the top, Q at the bottom right, R at the bottom left
+ */
+public class BallPlateSimulator {
+    // Plate geometry (mm)
+    private static final double PLATE_RADIUS = 120.;
+    private static final double JOINT_RADIUS = 70.;
+    private static final double BALL_RADIUS = 20.;
+
+    // Servos: arm length (mm), angle of the pulse (1000-2000 us is about 90 degrees),
+    // pulse of the lowest arm position (see SERVO_P_LOWEST in config.h)
+    // and max speed (0.1 s / 60 degrees)
+    private static final double ARM_LENGTH = 40.;
+    private static final double RADIANS_PER_US = Math.toRadians(90.) / 1000.;
+    private static final int SERVO_LOWEST = 1900;
+    private static final double SERVO_SPEED_US_PER_S = Math.toRadians(600.) / RADIANS_PER_US;
+
+    // Ball dynamics
+    private static final double GRAVITY = 9810.;
+    private static final double ROLLING_FACTOR = 3. / 5.;
+    private static final double ROLLING_DAMPING = 0.4;
+    private static final double RIM_RESTITUTION = 0.5;
+
+    private final double[] jointX = {0., JOINT_RADIUS * Math.cos(Math.toRadians(30.)),
+            -JOINT_RADIUS * Math.cos(Math.toRadians(30.))};
+    private final double[] jointY = {-JOINT_RADIUS, JOINT_RADIUS / 2., JOINT_RADIUS / 2.};
+    private final double[] servoPulses = new double[3];
+    private final double[] jointHeights = new double[3];
+
+    private double ballX, ballY, velocityX, velocityY;
+    private double slopeX, slopeY;
+    private long rimHits;
+
+    /**
+     * Creates new simulator with the ball at the random position on the level plate
+     * @param seed seed of the initial position and velocity
+     */
+    BallPlateSimulator(long seed) {
+        Random random = new Random(seed);
+        double angle = random.nextDouble() * 2. * Math.PI;
+        double distance = (0.3 + 0.4 * random.nextDouble()) * getMaxDistance();
+        ballX = Math.cos(angle) * distance;
+        ballY = Math.sin(angle) * distance;
+        velocityX = (random.nextDouble() - 0.5) * 100.;
+        velocityY = (random.nextDouble() - 0.5) * 100.;
+
+        // Servos at the middle position (no PID output)
+        for (int i = 0; i < 3; i++)
+            servoPulses[i] = 1600;
+    }
+
+    /**
+     * Moves the servos to the new pulses and the ball for the time step
+     * @param servoP servo P pulse (1000-2000)
+     * @param servoQ servo Q pulse (1000-2000)
+     * @param servoR servo R pulse (1000-2000)
+     * @param deltaMicros time step in microseconds
+     */
+    public void step(int servoP, int servoQ, int servoR, long deltaMicros) {
+        double deltaTime = deltaMicros / 1e6;
+
+        // Move servos with the speed limit and calculate heights of the joints
+        moveServo(0, servoP, deltaTime);
+        moveServo(1, servoQ, deltaTime);
+        moveServo(2, servoR, deltaTime);
+
+        // Plane through the joints: z = slopeX * x + slopeY * y + c
+        slopeX = (jointHeights[1] - jointHeights[2]) / (jointX[1] - jointX[2]);
+        slopeY = ((jointHeights[1] + jointHeights[2]) / 2. - jointHeights[0])
+                / (jointY[1] - jointY[0]);
+
+        // Rolling ball (semi-implicit Euler)
+        double slopeLength = Math.sqrt(1. + slopeX * slopeX + slopeY * slopeY);
+        double accelerationX = -ROLLING_FACTOR * GRAVITY * slopeX / slopeLength
+                - ROLLING_DAMPING * velocityX;
+        double accelerationY = -ROLLING_FACTOR * GRAVITY * slopeY / slopeLength
+                - ROLLING_DAMPING * velocityY;
+        velocityX += accelerationX * deltaTime;
+        velocityY += accelerationY * deltaTime;
+        ballX += velocityX * deltaTime;
+        ballY += velocityY * deltaTime;
+
+        // Bounce off the rim (reflect radial velocity)
+        double distance = Math.sqrt(ballX * ballX + ballY * ballY);
+        if (distance > getMaxDistance()) {
+            double normalX = ballX / distance;
+            double normalY = ballY / distance;
+            ballX = normalX * getMaxDistance();
+            ballY = normalY * getMaxDistance();
+            double radialVelocity = velocityX * normalX + velocityY * normalY;
+            if (radialVelocity > 0) {
+                velocityX -= (1. + RIM_RESTITUTION) * radialVelocity * normalX;
+                velocityY -= (1. + RIM_RESTITUTION) * radialVelocity * normalY;
+            }
+            rimHits++;
+        }
+    }
+
+    /**
+     * @return ball X position relative to the plate (1000-2000, same as OpenCVHandler)
+     */
+    public double getBallVSTableX() {
+        return 1500. + ballX / PLATE_RADIUS * 500.;
+    }
+
+    /**
+     * @return ball Y position relative to the plate (1000-2000, same as OpenCVHandler)
+     */
+    public double getBallVSTableY() {
+        return 1500. + ballY / PLATE_RADIUS * 500.;
+    }
+
+    /**
+     * @return ball X position in mm from the plate's center
+     */
+    public double getBallX() {
+        return ballX;
+    }
+
+    /**
+     * @return ball Y position in mm from the plate's center
+     */
+    public double getBallY() {
+        return ballY;
+    }
+
+    /**
+     * @return plate tilt in the X direction (dz / dx)
+     */
+    public double getSlopeX() {
+        return slopeX;
+    }
+
+    /**
+     * @return plate tilt in the Y direction (dz / dy)
+     */
+    public double getSlopeY() {
+        return slopeY;
+    }
+
+    /**
+     * @return number of steps when the ball touched the rim
+     */
+    public long getRimHits() {
+        return rimHits;
+    }
+
+    /**
+     * @return plate radius in mm
+     */
+    public static double getPlateRadius() {
+        return PLATE_RADIUS;
+    }
+
+    /**
+     * @return ball radius in mm
+     */
+    public static double getBallRadius() {
+        return BALL_RADIUS;
+    }
+
+    /**
+     * Moves the servo towards the pulse and updates the height of its joint
+     */
+    private void moveServo(int index, int pulse, double deltaTime) {
+        double maxChange = SERVO_SPEED_US_PER_S * deltaTime;
+        double change = pulse - servoPulses[index];
+        if (change > maxChange)
+            change = maxChange;
+        else if (change < -maxChange)
+            change = -maxChange;
+        servoPulses[index] += change;
+        jointHeights[index] = ARM_LENGTH * Math.sin((SERVO_LOWEST - servoPulses[index])
+                * RADIANS_PER_US);
+    }
+
+    /**
+     * @return max distance from the center to the ball's center
+     */
+    private static double getMaxDistance() {
+        return PLATE_RADIUS - BALL_RADIUS;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import org.opencv.core.Rect;
+
+/**
+ * This class predicts the region of interest (ROI) where the ball should be found
+ * in the next frame, using the last detected position, radius and velocity (in pixels per frame).
+ * The window grows with the velocity and with the number of frames since the last detection.
+ * Also counts ROI hits to calculate hit rate
+ */
+public class BallSearchWindow {
+    // Half size of the window is RADIUS_FACTOR * radius + velocity * frames + MARGIN
+    private static final double RADIUS_FACTOR = 2.;
+    private static final int MARGIN = 10;
+
+    // Don't use ROI if it covers more than this part of the frame
+    private static final double MAX_FRAME_PART = 0.5;
+
+    private boolean hasPosition, hasVelocity;
+    private double x, y, radius;
+    private double velocityX, velocityY;
+    private long lastFrame;
+
+    private long searches, hits;
+
+    /**
+     * Updates window with the new detected ball position
+     * @param x ball center X in pixels
+     * @param y ball center Y in pixels
+     * @param radius ball radius in pixels
+     * @param frame sequence number of the frame
+     */
+    public void update(double x, double y, double radius, long frame) {
+        if (hasPosition && frame > lastFrame) {
+            velocityX = (x - this.x) / (frame - lastFrame);
+            velocityY = (y - this.y) / (frame - lastFrame);
+            hasVelocity = true;
+        }
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+        this.lastFrame = frame;
+        hasPosition = true;
+    }
+
+    /**
+     * Calculates ROI for the frame
+     * @param frame sequence number of the frame
+     * @param frameWidth width of the frame
+     * @param frameHeight height of the frame
+     * @param roi output Rect (inside the frame)
+     * @return true if ROI is available and small enough to be used
+     */
+    public boolean predict(long frame, int frameWidth, int frameHeight, Rect roi) {
+        if (!hasPosition)
+            return false;
+
+        // Predict the center with constant velocity
+        long frames = Math.max(frame - lastFrame, 1);
+        double centerX = x, centerY = y;
+        double halfWidth = radius * RADIUS_FACTOR + MARGIN;
+        double halfHeight = halfWidth;
+        if (hasVelocity) {
+            centerX += velocityX * frames;
+            centerY += velocityY * frames;
+            halfWidth += Math.abs(velocityX) * frames;
+            halfHeight += Math.abs(velocityY) * frames;
+        }
+
+        // Clip to the frame
+        int left = Math.max((int) (centerX - halfWidth), 0);
+        int top = Math.max((int) (centerY - halfHeight), 0);
+        int right = Math.min((int) Math.ceil(centerX + halfWidth), frameWidth);
+        int bottom = Math.min((int) Math.ceil(centerY + halfHeight), frameHeight);
+        if (right <= left || bottom <= top)
+            return false;
+
+        roi.x = left;
+        roi.y = top;
+        roi.width = right - left;
+        roi.height = bottom - top;
+        return roi.area() < frameWidth * frameHeight * MAX_FRAME_PART;
+    }
+
+    /**
+     * Counts search in the ROI
+     * @param hit true if the ball was found inside the ROI
+     */
+    public void countSearch(boolean hit) {
+        searches++;
+        if (hit)
+            hits++;
+    }
+
+    /**
+     * Forgets the ball (on lost ball)
+     */
+    public void reset() {
+        hasPosition = false;
+        hasVelocity = false;
+    }
+
+    /**
+     * @return number of searches in the ROI
+     */
+    public long getSearches() {
+        return searches;
+    }
+
+    /**
+     * @return part of the ROI searches that found the ball (0 - 1)
+     */
+    public double getHitRate() {
+        return searches > 0 ? (double) hits / searches : 0;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+/**
+ * This class provides constant-velocity Kalman filter for the ball position (X and Y axes
+ * are filtered independently, in table units 1000-2000).
+ * Detections are gated by the Mahalanobis distance of the innovation, so single outliers
+ * (reflections, wrong contours) are rejected. Between detections the state is predicted
+ * (coasting) for up to maxCoastNanos.
+ * NOTE: All methods must be called from the camera thread
+ */
+public class BallTracker {
+    // White noise acceleration (units^2 / s^3). 1000 units is the table width,
+    // so this allows accelerations of about 3000 units / s^2
+    private static final double PROCESS_NOISE = 9e6;
+
+    // Measurement noise (units^2)
+    private static final double MEASUREMENT_NOISE = 4.;
+
+    // Initial velocity variance ((units / s)^2)
+    private static final double INITIAL_VELOCITY_VARIANCE = 1e6;
+
+    // Chi-square 99.9% for 2 degrees of freedom
+    private static final double GATE_THRESHOLD = 13.8;
+
+    // Reinitialize the filter after this number of consecutive rejected detections
+    private static final int MAX_REJECTED_DETECTIONS = 3;
+
+    private final long maxCoastNanos;
+    private final double[] stateX, stateY;
+    private final double[] covarianceX, covarianceY;
+
+    private boolean initialized;
+    private long stateTime, lastUpdateTime;
+    private int rejectedInRow;
+    private long acceptedDetections, rejectedDetections;
+
+    /**
+     * Creates new tracker
+     * @param maxCoastNanos max time to predict the ball position without detections
+     */
+    BallTracker(long maxCoastNanos) {
+        this.maxCoastNanos = maxCoastNanos;
+        this.stateX = new double[2];
+        this.stateY = new double[2];
+        this.covarianceX = new double[3];
+        this.covarianceY = new double[3];
+        reset();
+    }
+
+    /**
+     * Forgets the ball
+     */
+    public void reset() {
+        initialized = false;
+        rejectedInRow = 0;
+    }
+
+    /**
+     * Predicts the state to the time of the new frame (must be called before update())
+     * @param time System.nanoTime() of the frame
+     */
+    public void predict(long time) {
+        if (!initialized || time <= stateTime)
+            return;
+        double deltaTime = (time - stateTime) / 1e9;
+        predictAxis(stateX, covarianceX, deltaTime);
+        predictAxis(stateY, covarianceY, deltaTime);
+        stateTime = time;
+    }
+
+    /**
+     * Fuses new detection into the state
+     * @param x detected X position (1000-2000)
+     * @param y detected Y position (1000-2000)
+     * @param time System.nanoTime() of the frame
+     * @return true if the detection is accepted or false if it is rejected as an outlier
+     */
+    public boolean update(double x, double y, long time) {
+        predict(time);
+
+        // First detection
+        if (!initialized) {
+            initialize(x, y, time);
+            return true;
+        }
+
+        // Gate the detection
+        double innovationX = x - stateX[0];
+        double innovationY = y - stateY[0];
+        double distance = innovationX * innovationX / (covarianceX[0] + MEASUREMENT_NOISE)
+                + innovationY * innovationY / (covarianceY[0] + MEASUREMENT_NOISE);
+        if (distance > GATE_THRESHOLD) {
+            rejectedDetections++;
+
+            // The ball was probably moved by hand. Start again from the new position
+            if (++rejectedInRow >= MAX_REJECTED_DETECTIONS) {
+                initialize(x, y, time);
+                return true;
+            }
+            return false;
+        }
+
+        // Correct the state
+        updateAxis(stateX, covarianceX, innovationX);
+        updateAxis(stateY, covarianceY, innovationY);
+        rejectedInRow = 0;
+        lastUpdateTime = time;
+        acceptedDetections++;
+        return true;
+    }
+
+    /**
+     * @param time System.nanoTime() of the current frame
+     * @return true if the ball was detected recently enough to predict its position
+     */
+    public boolean isTracking(long time) {
+        return initialized && time - lastUpdateTime <= maxCoastNanos;
+    }
+
+    /**
+     * @return filtered X position (1000-2000)
+     */
+    public double getX() {
+        return stateX[0];
+    }
+
+    /**
+     * @return filtered Y position (1000-2000)
+     */
+    public double getY() {
+        return stateY[0];
+    }
+
+    /**
+     * @return X velocity in units per second
+     */
+    public double getVelocityX() {
+        return stateX[1];
+    }
+
+    /**
+     * @return Y velocity in units per second
+     */
+    public double getVelocityY() {
+        return stateY[1];
+    }
+
+    /**
+     * @return number of accepted detections
+     */
+    public long getAcceptedDetections() {
+        return acceptedDetections;
+    }
+
+    /**
+     * @return number of detections rejected as outliers
+     */
+    public long getRejectedDetections() {
+        return rejectedDetections;
+    }
+
+    private void initialize(double x, double y, long time) {
+        initializeAxis(stateX, covarianceX, x);
+        initializeAxis(stateY, covarianceY, y);
+        initialized = true;
+        rejectedInRow = 0;
+        stateTime = time;
+        lastUpdateTime = time;
+        acceptedDetections++;
+    }
+
+    /**
+     * Resets the axis to the measured position with unknown velocity
+     */
+    private static void initializeAxis(double[] state, double[] covariance, double position) {
+        state[0] = position;
+        state[1] = 0;
+        covariance[0] = MEASUREMENT_NOISE;
+        covariance[1] = 0;
+        covariance[2] = INITIAL_VELOCITY_VARIANCE;
+    }
+
+    /**
+     * Constant velocity prediction. Covariance is stored as {P00, P01, P11}
+     */
+    private static void predictAxis(double[] state, double[] covariance, double deltaTime) {
+        state[0] += state[1] * deltaTime;
+        covariance[0] += deltaTime * (2 * covariance[1] + deltaTime * covariance[2])
+                + PROCESS_NOISE * deltaTime * deltaTime * deltaTime / 3;
+        covariance[1] += deltaTime * covariance[2]
+                + PROCESS_NOISE * deltaTime * deltaTime / 2;
+        covariance[2] += PROCESS_NOISE * deltaTime;
+    }
+
+    /**
+     * Position measurement update
+     */
+    private static void updateAxis(double[] state, double[] covariance, double innovation) {
+        double innovationVariance = covariance[0] + MEASUREMENT_NOISE;
+        double gainPosition = covariance[0] / innovationVariance;
+        double gainVelocity = covariance[1] / innovationVariance;
+        state[0] += gainPosition * innovation;
+        state[1] += gainVelocity * innovation;
+        covariance[2] -= gainVelocity * covariance[1];
+        covariance[0] *= 1 - gainPosition;
+        covariance[1] *= 1 - gainPosition;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import java.util.Locale;
+
+/**
+ * This class provides a container for the result of one closed-loop run of ClosedLoopBenchmark.
+ * Errors are distances between the simulated ball and the setpoint (1000-2000 units).
+ * Settling time is the time after which the error stays inside the settling band
+ * (-1 if the ball didn't settle). Frame budget is the processing time of the frame
+ * relative to the camera frame period
+ */
+public class BenchmarkContainer {
+    public long seed;
+    public long settlingTime;
+    public double rmsError, finalError;
+    public long frames, detectedFrames;
+    public long rimHits, lostPackets;
+    public double budgetP50, budgetP99, budgetMax;
+    public double speedup;
+
+    /**
+     * @return true if the ball settled at the setpoint
+     */
+    public boolean isSettled() {
+        return settlingTime >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "seed %d: settling %s, RMS error %.1f, final error %.1f, "
+                        + "detected %d / %d frames, rim hits %d, lost packets %d, "
+                        + "frame budget p50 %.0f%% p99 %.0f%% max %.0f%%, %.1fx real time",
+                seed, isSettled() ? settlingTime / 1000 + " ms" : "failed", rmsError,
+                finalError, detectedFrames, frames, rimHits, lostPackets,
+                budgetP50 * 100, budgetP99 * 100, budgetMax * 100, speedup);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import org.opencv.core.Rect;
+
+/**
+ * This class finds connected blobs (8-connectivity) of ball pixels in the last classified
+ * region of ColorClassifier, limited to the search rectangle and the table's circle.
+ * Blobs are labeled by runs of pixels (one union-find node per run), only area, sum of
+ * coordinates and bounding box of each blob are kept. Works in Java memory without
+ * allocations (buffers only grow), so no Mats or contours are created every frame
+ */
+public class BlobFinder {
+    private int[] runLeft, runRight, runRow, runParent;
+    private int[] blobArea, blobLeft, blobTop, blobRight, blobBottom, blobIndex;
+    private long[] blobSumX, blobSumY;
+    private int runs, blobs;
+
+    BlobFinder() {
+        allocateRuns(256);
+        allocateBlobs(64);
+    }
+
+    /**
+     * Finds ball blobs
+     * @param colorClassifier ColorClassifier with the classified region
+     * @param searchRect region of the frame to search in
+     * @param tableGeometry table's geometry (only pixels inside the circle are used)
+     * @return number of blobs found
+     */
+    public int find(ColorClassifier colorClassifier, Rect searchRect,
+                    TableGeometry tableGeometry) {
+        byte[] mask = colorClassifier.getBallMask();
+        int originX = colorClassifier.getOriginX();
+        int originY = colorClassifier.getOriginY();
+        int width = colorClassifier.getWidth();
+        int top = Math.max(searchRect.y, originY);
+        int bottom = Math.min(searchRect.y + searchRect.height,
+                originY + colorClassifier.getHeight());
+        runs = 0;
+        blobs = 0;
+
+        // Extract runs of every row and merge them with overlapping runs of the previous row
+        int previousFirst = 0, previousEnd = 0;
+        for (int y = top; y < bottom; y++) {
+            int left = Math.max(Math.max(searchRect.x, originX), tableGeometry.getCircleLeft(y));
+            int right = Math.min(Math.min(searchRect.x + searchRect.width, originX + width),
+                    tableGeometry.getCircleRight(y));
+            int rowOffset = (y - originY) * width - originX;
+            int first = runs;
+            int previous = previousFirst;
+            int x = left;
+            while (x < right) {
+                // Skip background
+                while (x < right && mask[rowOffset + x] == 0)
+                    x++;
+                if (x >= right)
+                    break;
+                int runStart = x;
+                while (x < right && mask[rowOffset + x] != 0)
+                    x++;
+
+                // New run
+                if (runs == runLeft.length)
+                    allocateRuns(runs * 2);
+                int run = runs++;
+                runLeft[run] = runStart;
+                runRight[run] = x;
+                runRow[run] = y;
+                runParent[run] = run;
+
+                // Merge with runs of the previous row that touch this one (incl. diagonals)
+                if (previousEnd > previousFirst && runRow[previousFirst] == y - 1) {
+                    while (previous < previousEnd && runRight[previous] < runStart)
+                        previous++;
+                    for (int p = previous; p < previousEnd && runLeft[p] <= x; p++)
+                        union(run, p);
+                }
+            }
+            previousFirst = first;
+            previousEnd = runs;
+        }
+
+        // Accumulate statistics of runs into their roots
+        for (int run = 0; run < runs; run++) {
+            int root = findRoot(run);
+            if (root == run) {
+                if (blobs == blobArea.length)
+                    allocateBlobs(blobs * 2);
+                int blob = blobs++;
+                blobIndex[run] = blob;
+                blobArea[blob] = 0;
+                blobSumX[blob] = 0;
+                blobSumY[blob] = 0;
+                blobLeft[blob] = Integer.MAX_VALUE;
+                blobTop[blob] = Integer.MAX_VALUE;
+                blobRight[blob] = Integer.MIN_VALUE;
+                blobBottom[blob] = Integer.MIN_VALUE;
+            }
+        }
+        for (int run = 0; run < runs; run++) {
+            int blob = blobIndex[findRoot(run)];
+            int length = runRight[run] - runLeft[run];
+            blobArea[blob] += length;
+            blobSumX[blob] += (long) (runLeft[run] + runRight[run] - 1) * length / 2;
+            blobSumY[blob] += (long) runRow[run] * length;
+            blobLeft[blob] = Math.min(blobLeft[blob], runLeft[run]);
+            blobRight[blob] = Math.max(blobRight[blob], runRight[run]);
+            blobTop[blob] = Math.min(blobTop[blob], runRow[run]);
+            blobBottom[blob] = Math.max(blobBottom[blob], runRow[run] + 1);
+        }
+        return blobs;
+    }
+
+    /**
+     * @param minArea area of the blob must be greater than this
+     * @param maxArea area of the blob must be less than this
+     * @return index of the largest blob inside the range or -1 if there is no such blob
+     */
+    public int findLargest(int minArea, int maxArea) {
+        int largest = -1;
+        for (int blob = 0; blob < blobs; blob++) {
+            if (blobArea[blob] > minArea && blobArea[blob] < maxArea) {
+                minArea = blobArea[blob];
+                largest = blob;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * @return number of blobs found by the last find()
+     */
+    public int getCount() {
+        return blobs;
+    }
+
+    /**
+     * @param blob index of the blob
+     * @return number of pixels of the blob
+     */
+    public int getArea(int blob) {
+        return blobArea[blob];
+    }
+
+    /**
+     * @param blob index of the blob
+     * @return X coordinate of the centroid (sub-pixel)
+     */
+    public double getCentroidX(int blob) {
+        return (double) blobSumX[blob] / blobArea[blob];
+    }
+
+    /**
+     * @param blob index of the blob
+     * @return Y coordinate of the centroid (sub-pixel)
+     */
+    public double getCentroidY(int blob) {
+        return (double) blobSumY[blob] / blobArea[blob];
+    }
+
+    /**
+     * @param blob index of the blob
+     * @return radius of the circle with the same area
+     */
+    public double getEquivalentRadius(int blob) {
+        return Math.sqrt(blobArea[blob] / Math.PI);
+    }
+
+    /**
+     * Copies bounding box of the blob
+     * @param blob index of the blob
+     * @param boundingRect output Rect
+     */
+    public void getBoundingRect(int blob, Rect boundingRect) {
+        boundingRect.x = blobLeft[blob];
+        boundingRect.y = blobTop[blob];
+        boundingRect.width = blobRight[blob] - blobLeft[blob];
+        boundingRect.height = blobBottom[blob] - blobTop[blob];
+    }
+
+    private int findRoot(int run) {
+        while (runParent[run] != run) {
+            runParent[run] = runParent[runParent[run]];
+            run = runParent[run];
+        }
+        return run;
+    }
+
+    private void union(int first, int second) {
+        int firstRoot = findRoot(first), secondRoot = findRoot(second);
+        if (firstRoot < secondRoot)
+            runParent[secondRoot] = firstRoot;
+        else if (secondRoot < firstRoot)
+            runParent[firstRoot] = secondRoot;
+    }
+
+    private void allocateRuns(int capacity) {
+        runLeft = grow(runLeft, capacity);
+        runRight = grow(runRight, capacity);
+        runRow = grow(runRow, capacity);
+        runParent = grow(runParent, capacity);
+        blobIndex = grow(blobIndex, capacity);
+    }
+
+    private void allocateBlobs(int capacity) {
+        blobArea = grow(blobArea, capacity);
+        blobLeft = grow(blobLeft, capacity);
+        blobTop = grow(blobTop, capacity);
+        blobRight = grow(blobRight, capacity);
+        blobBottom = grow(blobBottom, capacity);
+        long[] sumX = new long[capacity], sumY = new long[capacity];
+        if (blobSumX != null) {
+            System.arraycopy(blobSumX, 0, sumX, 0, blobSumX.length);
+            System.arraycopy(blobSumY, 0, sumY, 0, blobSumY.length);
+        }
+        blobSumX = sumX;
+        blobSumY = sumY;
+    }
+
+    private static int[] grow(int[] array, int capacity) {
+        int[] grown = new int[capacity];
+        if (array != null)
+            System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class provides Transport over bluetooth RFCOMM (serial port profile).
+ * write() only stores the packet. A sender thread writes the newest position packet
+ * (superseded ones are dropped) together with pending service frames in one call
+ * to the cached output stream, not more often than SettingsContainer.bluetoothPacing ms.
+ * Even writes give the radio a regular schedule and avoid bursts at the HC-05 / HC-06 module.
+ * Duration of the blocking write calls is recorded in TransportStats (link congestion)
+ */
+public class BluetoothTransport extends AbstractTransport implements Runnable {
+    private final String TAG = this.getClass().getName();
+    private static final UUID BT_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    // Max size of the pending data
+    private static final int BUFFER_SIZE = 256;
+
+    private final BluetoothDevice bluetoothDevice;
+
+    private volatile BluetoothSocket bluetoothSocket;
+    private volatile OutputStream outputStream;
+    private volatile boolean running;
+    private Thread senderThread;
+    private long pacingNanos;
+
+    // Newest position packet (tag >= 0)
+    private final byte[] positionBuffer = new byte[BUFFER_SIZE];
+    private int positionLength;
+    private long positionTag, positionStartTime;
+    private boolean hasPosition;
+
+    // Service frames (tag < 0) are never dropped in favor of the newer ones
+    private final byte[] serviceBuffer = new byte[BUFFER_SIZE];
+    private int serviceLength;
+    private long serviceStartTime;
+
+    // Data of one write call (sender thread)
+    private final byte[] sendBuffer = new byte[BUFFER_SIZE * 2];
+
+    BluetoothTransport(BluetoothDevice bluetoothDevice) {
+        this.bluetoothDevice = bluetoothDevice;
+    }
+
+    @Override
+    public boolean open() {
+        try {
+            BluetoothSocket bluetoothSocket = bluetoothDevice
+                    .createInsecureRfcommSocketToServiceRecord(BT_UUID);
+            bluetoothSocket.connect();
+
+            // Check if socket is opened
+            if (bluetoothSocket.isConnected()) {
+                stats.reset();
+                outputStream = bluetoothSocket.getOutputStream();
+                this.bluetoothSocket = bluetoothSocket;
+
+                // Start sender thread
+                synchronized (this) {
+                    hasPosition = false;
+                    serviceLength = 0;
+                }
+                pacingNanos = Math.max(SettingsContainer.bluetoothPacing, 0) * 1000000L;
+                running = true;
+                senderThread = new Thread(this);
+                senderThread.setPriority(Thread.MAX_PRIORITY);
+                senderThread.start();
+                return true;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error opening bluetooth device!", e);
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        BluetoothSocket bluetoothSocket = this.bluetoothSocket;
+        this.bluetoothSocket = null;
+
+        // Stop sender thread
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+
+        try {
+            if (bluetoothSocket != null)
+                bluetoothSocket.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Error closing bluetooth device!", e);
+        }
+
+        try {
+            if (senderThread != null)
+                senderThread.join(100);
+        } catch (InterruptedException ignored) { }
+        outputStream = null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        BluetoothSocket bluetoothSocket = this.bluetoothSocket;
+        return bluetoothSocket != null && bluetoothSocket.isConnected();
+    }
+
+    @Override
+    public boolean write(byte[] buffer, int length, long tag) {
+        BluetoothSocket bluetoothSocket = this.bluetoothSocket;
+        if (bluetoothSocket == null || !bluetoothSocket.isConnected() || length > BUFFER_SIZE)
+            return false;
+
+        long startTime = System.nanoTime();
+        boolean overflow = false;
+        synchronized (this) {
+            // Append service frame (it is lost if the buffer is full)
+            if (tag < 0) {
+                if (serviceLength + length > BUFFER_SIZE)
+                    overflow = true;
+                else {
+                    if (serviceLength == 0)
+                        serviceStartTime = startTime;
+                    System.arraycopy(buffer, 0, serviceBuffer, serviceLength, length);
+                    serviceLength += length;
+                }
+            }
+
+            // Replace position packet that was not sent yet
+            else {
+                if (hasPosition)
+                    writeDropped();
+                System.arraycopy(buffer, 0, positionBuffer, 0, length);
+                positionLength = length;
+                positionTag = tag;
+                positionStartTime = startTime;
+                hasPosition = true;
+            }
+            notifyAll();
+        }
+
+        // Report the lost service frame outside the lock
+        if (overflow)
+            writeCompleted(tag, length, startTime, false);
+        return true;
+    }
+
+    @Override
+    public void run() {
+        long nextWriteTime = System.nanoTime();
+        while (running) {
+            // Wait for new data
+            synchronized (this) {
+                try {
+                    while (running && !hasPosition && serviceLength == 0)
+                        wait();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            // Wait for the next pacing slot (newer packets may replace the pending one)
+            long time = System.nanoTime();
+            while (running && time < nextWriteTime) {
+                LockSupport.parkNanos(this, nextWriteTime - time);
+                time = System.nanoTime();
+            }
+            if (!running)
+                break;
+            nextWriteTime = time + pacingNanos;
+
+            // Take pending data
+            int sendLength, serviceBytes, positionBytes;
+            long serviceStartTime, positionTag, positionStartTime;
+            synchronized (this) {
+                serviceBytes = serviceLength;
+                serviceStartTime = this.serviceStartTime;
+                System.arraycopy(serviceBuffer, 0, sendBuffer, 0, serviceBytes);
+                sendLength = serviceBytes;
+                serviceLength = 0;
+
+                positionBytes = hasPosition ? positionLength : 0;
+                positionTag = this.positionTag;
+                positionStartTime = this.positionStartTime;
+                System.arraycopy(positionBuffer, 0, sendBuffer, sendLength, positionBytes);
+                sendLength += positionBytes;
+                hasPosition = false;
+            }
+
+            // Write everything with a single call
+            boolean success = false;
+            OutputStream outputStream = this.outputStream;
+            if (outputStream != null) {
+                try {
+                    long writeStartTime = System.nanoTime();
+                    outputStream.write(sendBuffer, 0, sendLength);
+                    outputStream.flush();
+                    stats.countWriteBlocking(System.nanoTime() - writeStartTime);
+                    success = true;
+                } catch (Exception e) {
+                    if (running)
+                        Log.e(TAG, "Error sending data over bluetooth serial!", e);
+                }
+            }
+
+            if (serviceBytes > 0)
+                writeCompleted(-1, serviceBytes, serviceStartTime, success);
+            if (positionBytes > 0)
+                writeCompleted(positionTag, positionBytes, positionStartTime, success);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer) {
+        BluetoothSocket bluetoothSocket = this.bluetoothSocket;
+        if (bluetoothSocket == null || !bluetoothSocket.isConnected())
+            return -1;
+        try {
+            // Blocks until data is available or the socket is closed
+            int length = bluetoothSocket.getInputStream().read(buffer);
+            if (length > 0)
+                stats.countRead(length);
+            return length;
+        } catch (Exception e) {
+            // Socket is closed while reading
+            if (this.bluetoothSocket != null) {
+                stats.countReadError();
+                Log.e(TAG, "Error reading data from bluetooth serial!", e);
+            }
+            return -1;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return bluetoothDevice.getName();
+    }
+}
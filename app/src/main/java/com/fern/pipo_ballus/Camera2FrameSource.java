@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.annotation.SuppressLint;
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+
+import java.util.Collections;
+
+/**
+ * This class provides frames of the live camera with Camera2 API as YUVFrame
+ * (YUV_420_888 planes are handed over to the FrameListener without copying or converting).
+ * The camera runs at the highest fixed frame rate. Exposure is measured by auto-exposure
+ * for the first frames and then locked. If SettingsContainer.cameraExposure is set and the camera
+ * supports manual sensor control, the short shutter is used instead and the sensitivity
+ * is raised to keep the measured brightness (less motion blur of the ball).
+ * Frames are timestamped by the sensor, so the latency is measured from the exposure.
+ * Output frames of the FrameListener are drawn on the SurfaceView
+ * (CameraBridgeViewBase is used only as a surface, it's never enabled)
+ */
+public class Camera2FrameSource implements FrameSource, ImageReader.OnImageAvailableListener {
+    private final String TAG = this.getClass().getName();
+
+    // Max frame size (same as CameraFrameSource)
+    private static final int MAX_WIDTH = 640;
+    private static final int MAX_HEIGHT = 480;
+
+    // Number of frames to wait for auto-exposure before locking it
+    private static final int EXPOSURE_LOCK_FRAMES = 30;
+
+    // Timestamps older than this are not trusted (unknown time base)
+    private static final long MAX_TIMESTAMP_AGE_NS = 1000000000L;
+
+    private final SurfaceView surfaceView;
+    private final Activity activity;
+    private final CameraManager cameraManager;
+    private final YUVFrame yuvFrame;
+
+    private volatile FrameListener frameListener;
+    private volatile boolean running;
+    private HandlerThread cameraThread;
+    private Handler cameraHandler;
+    private CameraDevice cameraDevice;
+    private CameraCaptureSession captureSession;
+    private ImageReader imageReader;
+    private CaptureRequest.Builder requestBuilder;
+    private CameraCharacteristics cameraCharacteristics;
+
+    private Range<Integer> fpsRange;
+    private boolean realtimeTimestamps, manualSensor, exposureLocked, started;
+    private int exposureFrames, rotationLast;
+    private Bitmap bitmap;
+    private final Rect bitmapRect, surfaceRect;
+
+    Camera2FrameSource(SurfaceView surfaceView, Activity activity) {
+        this.surfaceView = surfaceView;
+        this.activity = activity;
+        this.cameraManager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        this.yuvFrame = new YUVFrame();
+        this.bitmapRect = new Rect();
+        this.surfaceRect = new Rect();
+    }
+
+    @Override
+    public void setFrameListener(FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * Opens the camera (SettingsContainer.cameraID) on a separate thread
+     */
+    @Override
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        started = false;
+        exposureLocked = false;
+        exposureFrames = 0;
+        rotationLast = -1;
+        surfaceView.setVisibility(SurfaceView.VISIBLE);
+
+        cameraThread = new HandlerThread("Camera2FrameSource");
+        cameraThread.start();
+        cameraThread.setPriority(Thread.MAX_PRIORITY);
+        cameraHandler = new Handler(cameraThread.getLooper());
+        cameraHandler.post(this::openCamera);
+    }
+
+    /**
+     * Closes the camera and waits for the current frame
+     */
+    @Override
+    public void stop() {
+        HandlerThread cameraThread;
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            cameraThread = this.cameraThread;
+            this.cameraThread = null;
+        }
+        cameraHandler.post(this::closeCamera);
+        cameraThread.quitSafely();
+        try {
+            cameraThread.join();
+        } catch (InterruptedException ignored) { }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isLive() {
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return "Camera2 " + SettingsContainer.cameraID;
+    }
+
+    /**
+     * @return current frame rate range (lower and upper bounds are equal if it's fixed)
+     * or null if the camera is not opened
+     */
+    public Range<Integer> getFpsRange() {
+        return fpsRange;
+    }
+
+    /**
+     * Processes new frame (called from the camera thread)
+     */
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null)
+            return;
+        try {
+            if (!running)
+                return;
+            FrameListener frameListener = this.frameListener;
+            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+
+            // Notify the listener with the size of the first frame
+            if (!started) {
+                started = true;
+                if (frameListener != null)
+                    frameListener.frameSourceStarted(image.getWidth(), image.getHeight());
+            }
+
+            // Wrap the planes (valid until the image is closed)
+            Image.Plane[] planes = image.getPlanes();
+            yuvFrame.set(image.getWidth(), image.getHeight(),
+                    planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[2].getBuffer(),
+                    planes[1].getRowStride(), planes[1].getPixelStride(),
+                    toCaptureTime(image.getTimestamp()));
+
+            Mat outputRGBA = frameListener != null
+                    ? frameListener.frameReceived(yuvFrame, rotation, yuvFrame.getTimestamp())
+                    : null;
+            if (outputRGBA != null)
+                drawFrame(outputRGBA, rotation);
+        } catch (Exception e) {
+            Log.e(TAG, "Error processing frame!", e);
+        } finally {
+            image.close();
+        }
+    }
+
+    /**
+     * Finds the camera, selects the frame size and frame rate and opens the camera
+     */
+    @SuppressLint("MissingPermission")
+    private void openCamera() {
+        try {
+            String cameraId = findCamera();
+            if (cameraId == null) {
+                Log.e(TAG, "No camera found for camera ID " + SettingsContainer.cameraID);
+                return;
+            }
+            cameraCharacteristics = cameraManager.getCameraCharacteristics(cameraId);
+
+            // Largest YUV size that fits into MAX_WIDTH x MAX_HEIGHT
+            StreamConfigurationMap configurationMap = cameraCharacteristics.get(
+                    CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            Size frameSize = null;
+            for (Size size : configurationMap.getOutputSizes(ImageFormat.YUV_420_888)) {
+                if (size.getWidth() <= MAX_WIDTH && size.getHeight() <= MAX_HEIGHT
+                        && (frameSize == null || size.getWidth() * size.getHeight()
+                        > frameSize.getWidth() * frameSize.getHeight()))
+                    frameSize = size;
+            }
+            if (frameSize == null) {
+                Log.e(TAG, "No YUV frame size fits " + MAX_WIDTH + "x" + MAX_HEIGHT);
+                return;
+            }
+
+            // Highest fixed frame rate (or the range with the highest lower bound)
+            fpsRange = null;
+            for (Range<Integer> range : cameraCharacteristics.get(
+                    CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES)) {
+                boolean fixed = range.getLower().equals(range.getUpper());
+                boolean fixedLast = fpsRange != null
+                        && fpsRange.getLower().equals(fpsRange.getUpper());
+                if (fpsRange == null || (fixed && !fixedLast)
+                        || (fixed == fixedLast && range.getLower() > fpsRange.getLower()))
+                    fpsRange = range;
+            }
+
+            // Sensor timestamps can be compared with System.nanoTime()
+            // (through SystemClock.elapsedRealtimeNanos()) only if their source is realtime.
+            // The source is reported only since API 23 (treated as unknown before)
+            realtimeTimestamps = false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                Integer timestampSource = cameraCharacteristics.get(
+                        CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+                realtimeTimestamps = timestampSource != null && timestampSource
+                        == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+            }
+
+            manualSensor = false;
+            int[] capabilities = cameraCharacteristics.get(
+                    CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+            if (capabilities != null)
+                for (int capability : capabilities)
+                    if (capability
+                            == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR)
+                        manualSensor = true;
+
+            Log.i(TAG, "Opening camera " + cameraId + ": " + frameSize + " at " + fpsRange
+                    + " FPS, manual sensor: " + manualSensor
+                    + ", realtime timestamps: " + realtimeTimestamps);
+
+            imageReader = ImageReader.newInstance(frameSize.getWidth(), frameSize.getHeight(),
+                    ImageFormat.YUV_420_888, 2);
+            imageReader.setOnImageAvailableListener(this, cameraHandler);
+            cameraManager.openCamera(cameraId, stateCallback, cameraHandler);
+        } catch (CameraAccessException | SecurityException e) {
+            Log.e(TAG, "Error opening camera!", e);
+        }
+    }
+
+    /**
+     * Closes the camera and notifies the listener (called from the camera thread)
+     */
+    private void closeCamera() {
+        if (captureSession != null) {
+            captureSession.close();
+            captureSession = null;
+        }
+        if (cameraDevice != null) {
+            cameraDevice.close();
+            cameraDevice = null;
+        }
+        if (imageReader != null) {
+            imageReader.close();
+            imageReader = null;
+        }
+        FrameListener frameListener = this.frameListener;
+        if (started && frameListener != null)
+            frameListener.frameSourceStopped();
+        started = false;
+        yuvFrame.release();
+    }
+
+    /**
+     * @return Camera2 ID of the camera with the facing of SettingsContainer.cameraID
+     * (the first back camera for CAMERA_ID_ANY) or null if there is no such camera
+     */
+    private String findCamera() throws CameraAccessException {
+        int facing = SettingsContainer.cameraID == CameraBridgeViewBase.CAMERA_ID_FRONT
+                ? CameraMetadata.LENS_FACING_FRONT : CameraMetadata.LENS_FACING_BACK;
+        String[] cameraIds = cameraManager.getCameraIdList();
+        for (String cameraId : cameraIds) {
+            Integer lensFacing = cameraManager.getCameraCharacteristics(cameraId)
+                    .get(CameraCharacteristics.LENS_FACING);
+            if (lensFacing != null && lensFacing == facing)
+                return cameraId;
+        }
+        if (SettingsContainer.cameraID == CameraBridgeViewBase.CAMERA_ID_ANY
+                && cameraIds.length > 0)
+            return cameraIds[0];
+        return null;
+    }
+
+    private final CameraDevice.StateCallback stateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice camera) {
+            cameraDevice = camera;
+            if (!running) {
+                closeCamera();
+                return;
+            }
+            try {
+                requestBuilder = camera.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+                requestBuilder.addTarget(imageReader.getSurface());
+                requestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+                camera.createCaptureSession(Collections.singletonList(imageReader.getSurface()),
+                        sessionCallback, cameraHandler);
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Error creating capture session!", e);
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            Log.e(TAG, "Camera disconnected");
+            cameraDevice = camera;
+            closeCamera();
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            Log.e(TAG, "Camera error: " + error);
+            cameraDevice = camera;
+            closeCamera();
+        }
+    };
+
+    private final CameraCaptureSession.StateCallback sessionCallback =
+            new CameraCaptureSession.StateCallback() {
+        @Override
+        public void onConfigured(CameraCaptureSession session) {
+            captureSession = session;
+            if (!running)
+                return;
+            try {
+                session.setRepeatingRequest(requestBuilder.build(), captureCallback,
+                        cameraHandler);
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Error starting capture!", e);
+            }
+        }
+
+        @Override
+        public void onConfigureFailed(CameraCaptureSession session) {
+            Log.e(TAG, "Error configuring capture session!");
+        }
+    };
+
+    private final CameraCaptureSession.CaptureCallback captureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                                       TotalCaptureResult result) {
+            // Wait for auto-exposure to converge and lock it
+            if (exposureLocked || !running)
+                return;
+            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+            exposureFrames++;
+            if (exposureFrames < EXPOSURE_LOCK_FRAMES && (aeState == null
+                    || aeState != CaptureResult.CONTROL_AE_STATE_CONVERGED))
+                return;
+            exposureLocked = true;
+            try {
+                lockExposure(result);
+                session.setRepeatingRequest(requestBuilder.build(), this, cameraHandler);
+            } catch (CameraAccessException e) {
+                Log.e(TAG, "Error locking exposure!", e);
+            }
+        }
+    };
+
+    /**
+     * Locks auto-exposure and white balance or switches to the manual short shutter
+     * with the same brightness as measured by auto-exposure
+     * @param result result of the last auto-exposed frame
+     */
+    private void lockExposure(CaptureResult result) {
+        Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        Range<Long> exposureRange = cameraCharacteristics.get(
+                CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+        Range<Integer> sensitivityRange = cameraCharacteristics.get(
+                CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+        requestBuilder.set(CaptureRequest.CONTROL_AWB_LOCK, true);
+
+        if (SettingsContainer.cameraExposure > 0 && manualSensor && exposureTime != null
+                && sensitivity != null && exposureRange != null && sensitivityRange != null) {
+            long shortExposure = exposureRange.clamp(SettingsContainer.cameraExposure * 1000L);
+            if (shortExposure < exposureTime) {
+                int shortSensitivity = sensitivityRange.clamp(
+                        (int) (sensitivity * exposureTime / shortExposure));
+                requestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
+                        CameraMetadata.CONTROL_AE_MODE_OFF);
+                requestBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, shortExposure);
+                requestBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, shortSensitivity);
+                requestBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION,
+                        1000000000L / fpsRange.getUpper());
+                Log.i(TAG, "Exposure: " + shortExposure / 1000 + " us (auto "
+                        + exposureTime / 1000 + " us), ISO " + shortSensitivity
+                        + " (auto " + sensitivity + ")");
+                return;
+            }
+        }
+        requestBuilder.set(CaptureRequest.CONTROL_AE_LOCK, true);
+        Log.i(TAG, "Exposure locked: " + (exposureTime != null ? exposureTime / 1000 : "-")
+                + " us, ISO " + sensitivity);
+    }
+
+    /**
+     * Converts sensor timestamp to System.nanoTime() time base
+     * @param timestamp Image.getTimestamp()
+     * @return capture time or 0 if the timestamp can't be trusted
+     */
+    private long toCaptureTime(long timestamp) {
+        long now = System.nanoTime();
+        long captureTime = realtimeTimestamps
+                ? timestamp - SystemClock.elapsedRealtimeNanos() + now : timestamp;
+        return captureTime <= now && now - captureTime < MAX_TIMESTAMP_AGE_NS ? captureTime : 0;
+    }
+
+    /**
+     * Draws the frame on the surface (scaled to fit, same as CameraBridgeViewBase)
+     * @param outputRGBA RGBA frame
+     * @param rotation current screen rotation (Surface.ROTATION_)
+     */
+    private void drawFrame(Mat outputRGBA, int rotation) {
+        if (bitmap == null || bitmap.getWidth() != outputRGBA.cols()
+                || bitmap.getHeight() != outputRGBA.rows())
+            bitmap = Bitmap.createBitmap(outputRGBA.cols(), outputRGBA.rows(),
+                    Bitmap.Config.ARGB_8888);
+        Utils.matToBitmap(outputRGBA, bitmap);
+
+        // Stretch the view vertically on rotation changed (see CameraFrameSource)
+        if (rotation != rotationLast) {
+            float scaleY = rotation == Surface.ROTATION_0 || rotation == Surface.ROTATION_180
+                    ? (float) (((double) bitmap.getWidth() * bitmap.getWidth())
+                    / ((double) bitmap.getHeight() * bitmap.getHeight())) : 1;
+            surfaceView.post(() -> surfaceView.setScaleY(scaleY));
+            rotationLast = rotation;
+        }
+
+        SurfaceHolder surfaceHolder = surfaceView.getHolder();
+        if (!surfaceHolder.getSurface().isValid())
+            return;
+        Canvas canvas = surfaceHolder.lockCanvas();
+        if (canvas == null)
+            return;
+        float scale = Math.min((float) canvas.getWidth() / bitmap.getWidth(),
+                (float) canvas.getHeight() / bitmap.getHeight());
+        int width = (int) (bitmap.getWidth() * scale);
+        int height = (int) (bitmap.getHeight() * scale);
+        bitmapRect.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        surfaceRect.set((canvas.getWidth() - width) / 2, (canvas.getHeight() - height) / 2,
+                (canvas.getWidth() + width) / 2, (canvas.getHeight() + height) / 2);
+        canvas.drawColor(Color.BLACK);
+        canvas.drawBitmap(bitmap, bitmapRect, surfaceRect, null);
+        surfaceHolder.unlockCanvasAndPost(canvas);
+    }
+}
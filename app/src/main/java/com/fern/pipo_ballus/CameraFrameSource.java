@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.app.Activity;
+import android.view.Surface;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * This class provides frames of the live camera (CameraBridgeViewBase) with the current
+ * screen rotation and displays the output frames of the FrameListener
+ */
+public class CameraFrameSource implements FrameSource,
+        CameraBridgeViewBase.CvCameraViewListener2 {
+    private final CameraBridgeViewBase cameraBridgeViewBase;
+    private final Activity activity;
+
+    private volatile FrameListener frameListener;
+    private volatile boolean running;
+    private int rotationLast;
+
+    CameraFrameSource(CameraBridgeViewBase cameraBridgeViewBase, Activity activity) {
+        this.cameraBridgeViewBase = cameraBridgeViewBase;
+        this.activity = activity;
+    }
+
+    /**
+     * @return CameraBridgeViewBase class
+     */
+    public CameraBridgeViewBase getCameraBridgeViewBase() {
+        return cameraBridgeViewBase;
+    }
+
+    @Override
+    public void setFrameListener(FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * Initializes the camera view and enables it
+     * NOTE: Must be called from the main (UI) thread after OpenCV is loaded
+     */
+    @Override
+    public void start() {
+        rotationLast = -1;
+        cameraBridgeViewBase.setCvCameraViewListener(this);
+        cameraBridgeViewBase.setCameraIndex(SettingsContainer.cameraID);
+        cameraBridgeViewBase.setVisibility(CameraBridgeViewBase.VISIBLE);
+        cameraBridgeViewBase.setMaxFrameSize(640, 480);
+        cameraBridgeViewBase.enableView();
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        cameraBridgeViewBase.disableView();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isLive() {
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return "Camera " + SettingsContainer.cameraID;
+    }
+
+    @Override
+    public void onCameraViewStarted(int width, int height) {
+        FrameListener frameListener = this.frameListener;
+        if (frameListener != null)
+            frameListener.frameSourceStarted(width, height);
+    }
+
+    @Override
+    public void onCameraViewStopped() {
+        FrameListener frameListener = this.frameListener;
+        if (frameListener != null)
+            frameListener.frameSourceStopped();
+    }
+
+    @Override
+    public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+        // Get current screen rotation angle
+        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+
+        FrameListener frameListener = this.frameListener;
+        Mat outputRGBA = frameListener != null
+                ? frameListener.frameReceived(inputFrame, rotation, 0) : inputFrame.rgba();
+
+        // On rotation changed
+        if (rotation != rotationLast) {
+            // Set MAX_PRIORITY
+            Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
+
+            // Set new scaling factor
+            Size frameSize = inputFrame.rgba().size();
+            if (rotation == Surface.ROTATION_0 || rotation == Surface.ROTATION_180)
+                cameraBridgeViewBase.setScaleY((float)
+                        ((frameSize.width * frameSize.width)
+                                / (frameSize.height * frameSize.height)));
+            else
+                cameraBridgeViewBase.setScaleY(1);
+        }
+
+        // Remember new rotation
+        rotationLast = rotation;
+
+        return outputRGBA;
+    }
+}
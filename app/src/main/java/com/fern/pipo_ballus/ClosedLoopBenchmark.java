@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.view.Surface;
+
+import org.opencv.core.Core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class runs the whole control loop without the table: BallPlateSimulator is rendered
+ * by SyntheticFrameRenderer, frames are processed by OpenCVHandler (without a camera), positions
+ * are sent over LoopbackTransport to SimulatedController and its servo outputs tilt the
+ * simulated plate. Time is simulated, so runs are faster than real time. Positions are sent
+ * once per frame and delivered after the measured frame processing time.
+ * In the ideal sensor mode (vision is disabled) the simulated position is sent directly,
+ * which measures the controller and the plate only (and doesn't need OpenCV).
+ * NOTE: OpenCV must be loaded before the run with vision
+ */
+public class ClosedLoopBenchmark {
+    // Settling band around the setpoint (1000-2000 units)
+    private static final double SETTLING_BAND = 25.;
+
+    private static final int TRANSPORT_CAPACITY = 16 * 1024;
+    private static final int TRACER_CAPACITY = 64;
+
+    private final boolean vision;
+    private long duration = 10000000L;
+    private long framePeriod = 33333L;
+    private int frameWidth = 640, frameHeight = 480;
+    private double perspective, lighting, noiseSigma;
+    private int blurSize;
+
+    /**
+     * Creates new benchmark
+     * @param vision true to process rendered frames with OpenCVHandler, false for ideal sensor
+     */
+    ClosedLoopBenchmark(boolean vision) {
+        this.vision = vision;
+    }
+
+    /**
+     * @param duration simulated time of one run in microseconds
+     */
+    public void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * @param framePeriod camera frame period in microseconds
+     */
+    public void setFramePeriod(long framePeriod) {
+        this.framePeriod = framePeriod;
+    }
+
+    /**
+     * Sets rendering options (see SyntheticFrameRenderer)
+     * @param frameWidth frame width
+     * @param frameHeight frame height
+     * @param perspective perspective distortion (0 - top view)
+     * @param lighting brightness loss (0 - even lighting)
+     * @param noiseSigma standard deviation of the noise (0 - no noise)
+     * @param blurSize blur kernel size (0 - no blur)
+     */
+    public void setRendering(int frameWidth, int frameHeight, double perspective,
+                             double lighting, double noiseSigma, int blurSize) {
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        this.perspective = perspective;
+        this.lighting = lighting;
+        this.noiseSigma = noiseSigma;
+        this.blurSize = blurSize;
+    }
+
+    /**
+     * Runs one closed-loop simulation. Can be called from multiple threads at once
+     * @param seed seed of the initial ball state and of the noise
+     * @return result of the run
+     */
+    public BenchmarkContainer run(long seed) {
+        long startTime = System.nanoTime();
+        BenchmarkContainer benchmarkContainer = new BenchmarkContainer();
+        benchmarkContainer.seed = seed;
+
+        // Controller connected over loopback
+        LoopbackTransport[] pair = LoopbackTransport.createPair(TRANSPORT_CAPACITY);
+        LoopbackTransport phone = pair[0];
+        phone.open();
+        pair[1].open();
+        SimulatedController simulatedController = new SimulatedController(pair[1]);
+        PacketEncoder packetEncoder = new PacketEncoder();
+        byte[] hello = packetEncoder.encodeHello(1);
+        phone.write(hello, hello.length, -1);
+        byte[] receiveBuffer = new byte[1024];
+
+        BallPlateSimulator ballPlateSimulator = new BallPlateSimulator(seed);
+        PositionContainer sensorPosition = new PositionContainer();
+        LatencyHistogram frameHistogram = new LatencyHistogram();
+
+        // Vision pipeline
+        SyntheticFrameRenderer renderer = null;
+        OpenCVHandler openCVHandler = null;
+        if (vision) {
+            Core.setRNGSeed((int) seed);
+            renderer = new SyntheticFrameRenderer(frameWidth, frameHeight);
+            renderer.setPerspective(perspective);
+            renderer.setLighting(lighting);
+            renderer.setNoise(noiseSigma);
+            renderer.setBlur(blurSize);
+            openCVHandler = new OpenCVHandler(null, new LatencyTracer(TRACER_CAPACITY), null);
+            openCVHandler.initView();
+            openCVHandler.setResolutionGovernor(false, 0);
+            openCVHandler.frameSourceStarted(frameWidth, frameHeight);
+        }
+
+        byte[] pendingFrame = null;
+        long pendingDeliveryTime = 0;
+        long nextFrameTime = 0;
+        double errorSum = 0, error = 0;
+        long errorSamples = 0, lastOutsideTime = 0;
+        for (long micros = 0; micros < duration; micros += SimulatedController.LOOP_PERIOD) {
+            // Capture and process the camera frame
+            if (micros >= nextFrameTime) {
+                nextFrameTime += framePeriod;
+                PositionContainer measuredPosition = null;
+                long processingTime = 0;
+                if (vision) {
+                    renderer.render(ballPlateSimulator);
+                    long frameStart = System.nanoTime();
+                    openCVHandler.frameReceived(renderer, Surface.ROTATION_90,
+                            startTime + micros * 1000);
+                    processingTime = System.nanoTime() - frameStart;
+                    frameHistogram.record(processingTime);
+                    if (openCVHandler.getPositionContainer().ballDetected)
+                        measuredPosition = openCVHandler.getPositionContainer();
+                } else {
+                    sensorPosition.ballVSTableX = ballPlateSimulator.getBallVSTableX();
+                    sensorPosition.ballVSTableY = ballPlateSimulator.getBallVSTableY();
+                    sensorPosition.ballDetected = true;
+                    measuredPosition = sensorPosition;
+                }
+                benchmarkContainer.frames++;
+
+                // The newest position replaces the one that is not delivered yet
+                if (measuredPosition != null) {
+                    benchmarkContainer.detectedFrames++;
+                    pendingFrame = packetEncoder.encodePositionV2(measuredPosition, 0, 1);
+                    pendingDeliveryTime = micros + processingTime / 1000;
+                }
+            }
+
+            // Deliver the position to the controller
+            if (pendingFrame != null && micros >= pendingDeliveryTime) {
+                phone.write(pendingFrame, pendingFrame.length, packetEncoder.getSequence());
+                pendingFrame = null;
+            }
+
+            // Controller loop and plate
+            simulatedController.loop(micros);
+            ballPlateSimulator.step(simulatedController.getServoP(),
+                    simulatedController.getServoQ(), simulatedController.getServoR(),
+                    SimulatedController.LOOP_PERIOD);
+
+            // Discard telemetry
+            while (phone.available() > 0)
+                phone.read(receiveBuffer);
+
+            // Error of the real ball position
+            double errorX = ballPlateSimulator.getBallVSTableX() - sensorPosition.ballSetpointX;
+            double errorY = ballPlateSimulator.getBallVSTableY() - sensorPosition.ballSetpointY;
+            error = Math.sqrt(errorX * errorX + errorY * errorY);
+            errorSum += error * error;
+            errorSamples++;
+            if (error > SETTLING_BAND)
+                lastOutsideTime = micros + SimulatedController.LOOP_PERIOD;
+        }
+
+        // Release everything
+        phone.close();
+        pair[1].close();
+        if (vision) {
+            openCVHandler.frameSourceStopped();
+            renderer.release();
+        }
+
+        benchmarkContainer.settlingTime = error <= SETTLING_BAND ? lastOutsideTime : -1;
+        benchmarkContainer.rmsError = Math.sqrt(errorSum / Math.max(errorSamples, 1));
+        benchmarkContainer.finalError = error;
+        benchmarkContainer.rimHits = ballPlateSimulator.getRimHits();
+        benchmarkContainer.lostPackets = simulatedController.getLostPackets();
+        double framePeriodNanos = framePeriod * 1000.;
+        benchmarkContainer.budgetP50 = frameHistogram.getPercentile(50) / framePeriodNanos;
+        benchmarkContainer.budgetP99 = frameHistogram.getPercentile(99) / framePeriodNanos;
+        benchmarkContainer.budgetMax = frameHistogram.getMax() / framePeriodNanos;
+        benchmarkContainer.speedup = duration * 1000. / (System.nanoTime() - startTime);
+        return benchmarkContainer;
+    }
+
+    /**
+     * Runs seeds firstSeed, firstSeed + 1, ... in parallel on all cores.
+     * NOTE: Parallel runs compete for the CPU, so the frame budget is higher than in single runs
+     * @param firstSeed first seed
+     * @param seeds number of runs
+     * @param threads number of threads (0 - number of cores)
+     * @return results in the order of seeds
+     */
+    public List<BenchmarkContainer> runSweep(long firstSeed, int seeds, int threads)
+            throws InterruptedException, ExecutionException {
+        if (threads <= 0)
+            threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<BenchmarkContainer>> futures = new ArrayList<>();
+            for (int i = 0; i < seeds; i++) {
+                long seed = firstSeed + i;
+                futures.add(executorService.submit(() -> run(seed)));
+            }
+            List<BenchmarkContainer> results = new ArrayList<>();
+            for (Future<BenchmarkContainer> future : futures)
+                results.add(future.get());
+            return results;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * @param results results of the sweep
+     * @return number of settled runs, mean settling time, mean RMS error and worst frame budget
+     */
+    public static String summarize(List<BenchmarkContainer> results) {
+        int settled = 0;
+        double settlingTimeSum = 0, rmsErrorSum = 0, budgetP99 = 0;
+        for (BenchmarkContainer benchmarkContainer : results) {
+            if (benchmarkContainer.isSettled()) {
+                settled++;
+                settlingTimeSum += benchmarkContainer.settlingTime;
+            }
+            rmsErrorSum += benchmarkContainer.rmsError;
+            budgetP99 = Math.max(budgetP99, benchmarkContainer.budgetP99);
+        }
+        return String.format(Locale.US, "Settled %d / %d, mean settling %.0f ms, "
+                        + "mean RMS error %.1f, worst frame budget p99 %.0f%%",
+                settled, results.size(), settled > 0 ? settlingTimeSum / settled / 1000 : 0,
+                results.isEmpty() ? 0 : rmsErrorSum / results.size(), budgetP99 * 100);
+    }
+}
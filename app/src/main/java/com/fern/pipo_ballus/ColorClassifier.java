@@ -0,0 +1,517 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.util.Log;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class builds table and ball masks from the RGBA frame in a single pass.
+ * Every color is classified once (when the color ranges change) into a quantized
+ * RGB lookup table, so the frame loop only does one table lookup per pixel instead of
+ * BGR / HSV conversions, inversion, channel merging and two inRange calls.
+ * Classification follows OpenCV 8-bit HSV (hue 0-179) including inverted hue
+ * (hue of the inverted BGR color) for ranges that wrap past red.
+ * YUV frames (YUVFrame) are classified directly from the planes with a second lookup table
+ * of quantized YUV colors (built on the first YUV frame), the chroma of each 2x2 block
+ * is shared by its pixels.
+ * A region of the frame is classified into Java buffers only (see getColorClass() and
+ * getBallMask()), the frame is read row by row, so no submats are created
+ */
+public class ColorClassifier {
+    private final String TAG = this.getClass().getName();
+
+    public static final byte CLASS_TABLE = 0b01;
+    public static final byte CLASS_BALL = 0b10;
+
+    // 6 bits per channel (64 levels, 4 values per level)
+    private static final int QUANTIZATION_BITS = 6;
+    private static final int LEVELS = 1 << QUANTIZATION_BITS;
+    private static final int QUANTIZATION_SHIFT = 8 - QUANTIZATION_BITS;
+
+    // Range array: hue, saturation, value lower, hue, saturation, value upper, inverted flag
+    private static final int RANGE_SIZE = 7;
+    private static final int RANGE_INVERTED = 6;
+
+    private final byte[] lookupTable, lookupTableYUV;
+    private final int[] tableRange, ballRange;
+
+    private boolean built, builtYUV;
+    private int tableColorLower, tableColorUpper, ballColorLower, ballColorUpper;
+
+    private byte[] frameBuffer, rowBuffer, tableBuffer, ballBuffer, uRowBuffer, vRowBuffer;
+    private final byte[] pixelBuffer = new byte[4];
+    private int originX, originY, width, height;
+
+    ColorClassifier() {
+        this.lookupTable = new byte[LEVELS * LEVELS * LEVELS];
+        this.lookupTableYUV = new byte[LEVELS * LEVELS * LEVELS];
+        this.tableRange = new int[RANGE_SIZE];
+        this.ballRange = new int[RANGE_SIZE];
+        this.built = false;
+    }
+
+    /**
+     * Rebuilds the lookup table if color ranges have changed
+     * @param tableColorLower lower color of the table as Integer
+     * @param tableColorUpper upper color of the table as Integer
+     * @param ballColorLower lower color of the ball as Integer
+     * @param ballColorUpper upper color of the ball as Integer
+     * @return true if the lookup table was rebuilt
+     */
+    public boolean update(int tableColorLower, int tableColorUpper,
+                          int ballColorLower, int ballColorUpper) {
+        // Nothing changed
+        if (built && tableColorLower == this.tableColorLower
+                && tableColorUpper == this.tableColorUpper
+                && ballColorLower == this.ballColorLower
+                && ballColorUpper == this.ballColorUpper)
+            return false;
+
+        long startTime = System.nanoTime();
+
+        // Convert table and ball ranges (table's hue must be equal to select all hues)
+        toRange(new HSVColor(tableColorLower), new HSVColor(tableColorUpper), 0, tableRange);
+        toRange(new HSVColor(ballColorLower), new HSVColor(ballColorUpper), 5, ballRange);
+
+        // Classify the center of every quantization level (YUV table is built on demand)
+        buildLookupTable(lookupTable, false);
+        builtYUV = false;
+
+        // Remember colors
+        this.tableColorLower = tableColorLower;
+        this.tableColorUpper = tableColorUpper;
+        this.ballColorLower = ballColorLower;
+        this.ballColorUpper = ballColorUpper;
+        built = true;
+
+        Log.i(TAG, "Color lookup table built in "
+                + (System.nanoTime() - startTime) / 1000000 + " ms");
+        return true;
+    }
+
+    /**
+     * Calculates table and ball masks in one pass over the frame
+     * @param rgba input RGBA frame (CV_8UC4)
+     * @param maskTable output table mask (CV_8UC1, 255 - table color) or null
+     * @param maskBall output ball mask (CV_8UC1, 255 - ball color) or null
+     */
+    public void classify(Mat rgba, Mat maskTable, Mat maskBall) {
+        classify(rgba, 0, 0, rgba.cols(), rgba.rows());
+        putMasks(maskTable, maskBall);
+    }
+
+    /**
+     * Classifies the region of the frame in one pass (masks stay in Java memory)
+     * @param rgba input RGBA frame (CV_8UC4, continuous)
+     * @param originX X coordinate of the region in the frame
+     * @param originY Y coordinate of the region in the frame
+     * @param cols width of the region
+     * @param rows height of the region
+     */
+    public void classify(Mat rgba, int originX, int originY, int cols, int rows) {
+        allocateBuffers(originX, originY, cols, rows);
+
+        // Copy the frame into Java memory: all rows at once if the region has the frame's
+        // width (buffer can be larger than the region), otherwise row by row
+        int rowLength = rgba.cols() * 4;
+        boolean fullRows = cols == rgba.cols();
+        if (fullRows) {
+            if (frameBuffer == null || frameBuffer.length < rows * rowLength)
+                frameBuffer = new byte[rows * rowLength];
+            rgba.get(originY, 0, frameBuffer);
+        } else if (rowBuffer == null || rowBuffer.length != rowLength)
+            rowBuffer = new byte[rowLength];
+
+        // Classify every pixel
+        final byte[] lookupTable = this.lookupTable;
+        final byte[] tableBuffer = this.tableBuffer;
+        final byte[] ballBuffer = this.ballBuffer;
+        final byte[] pixels = fullRows ? this.frameBuffer : this.rowBuffer;
+        for (int row = 0, i = 0; row < rows; row++) {
+            int j = fullRows ? row * rowLength : originX * 4;
+            if (!fullRows)
+                rgba.get(originY + row, 0, pixels);
+            for (int col = 0; col < cols; col++, i++, j += 4) {
+                int index = (((pixels[j] & 0xFF) >> QUANTIZATION_SHIFT)
+                        << (QUANTIZATION_BITS * 2))
+                        | (((pixels[j + 1] & 0xFF) >> QUANTIZATION_SHIFT) << QUANTIZATION_BITS)
+                        | ((pixels[j + 2] & 0xFF) >> QUANTIZATION_SHIFT);
+                byte colorClass = lookupTable[index];
+                tableBuffer[i] = (colorClass & CLASS_TABLE) != 0 ? (byte) 255 : 0;
+                ballBuffer[i] = (colorClass & CLASS_BALL) != 0 ? (byte) 255 : 0;
+            }
+        }
+    }
+
+    /**
+     * Calculates table and ball masks in one pass over the YUV frame
+     * @param yuvFrame input frame
+     * @param maskTable output table mask (CV_8UC1, 255 - table color) or null
+     * @param maskBall output ball mask (CV_8UC1, 255 - ball color) or null
+     */
+    public void classify(YUVFrame yuvFrame, Mat maskTable, Mat maskBall) {
+        classify(yuvFrame, 0, 0, yuvFrame.getWidth(), yuvFrame.getHeight());
+        putMasks(maskTable, maskBall);
+    }
+
+    /**
+     * Classifies the region of the YUV frame in one pass (masks stay in Java memory).
+     * Planes are read directly (row by row), without converting the frame
+     * @param yuvFrame input frame
+     * @param originX X coordinate of the region in the frame
+     * @param originY Y coordinate of the region in the frame
+     * @param cols width of the region
+     * @param rows height of the region
+     */
+    public void classify(YUVFrame yuvFrame, int originX, int originY, int cols, int rows) {
+        if (!builtYUV) {
+            buildLookupTable(lookupTableYUV, true);
+            builtYUV = true;
+        }
+        allocateBuffers(originX, originY, cols, rows);
+
+        // Row buffers (luma row is stored in frameBuffer)
+        int uvPixelStride = yuvFrame.getUVPixelStride();
+        int chromaStart = originX / 2;
+        int chromaLength = ((originX + cols - 1) / 2 - chromaStart) * uvPixelStride + 1;
+        if (frameBuffer == null || frameBuffer.length < cols)
+            frameBuffer = new byte[cols * 4];
+        if (uRowBuffer == null || uRowBuffer.length < chromaLength) {
+            uRowBuffer = new byte[chromaLength];
+            vRowBuffer = new byte[chromaLength];
+        }
+
+        // Classify every pixel
+        final byte[] lookupTable = this.lookupTableYUV;
+        final byte[] yRow = this.frameBuffer;
+        final byte[] uRow = this.uRowBuffer;
+        final byte[] vRow = this.vRowBuffer;
+        final byte[] tableBuffer = this.tableBuffer;
+        final byte[] ballBuffer = this.ballBuffer;
+        ByteBuffer yPlane = yuvFrame.getYPlane();
+        ByteBuffer uPlane = yuvFrame.getUPlane();
+        ByteBuffer vPlane = yuvFrame.getVPlane();
+        int yRowStride = yuvFrame.getYRowStride();
+        int uvRowStride = yuvFrame.getUVRowStride();
+        for (int row = 0, i = 0; row < rows; row++) {
+            int y = originY + row;
+            yPlane.position(y * yRowStride + originX);
+            yPlane.get(yRow, 0, cols);
+
+            // Chroma rows are shared by two luma rows
+            if (row == 0 || (y & 1) == 0) {
+                int chromaOffset = (y / 2) * uvRowStride + chromaStart * uvPixelStride;
+                uPlane.position(chromaOffset);
+                uPlane.get(uRow, 0, chromaLength);
+                vPlane.position(chromaOffset);
+                vPlane.get(vRow, 0, chromaLength);
+            }
+
+            for (int col = 0; col < cols; col++, i++) {
+                int j = ((originX + col) / 2 - chromaStart) * uvPixelStride;
+                int index = (((yRow[col] & 0xFF) >> QUANTIZATION_SHIFT)
+                        << (QUANTIZATION_BITS * 2))
+                        | (((uRow[j] & 0xFF) >> QUANTIZATION_SHIFT) << QUANTIZATION_BITS)
+                        | ((vRow[j] & 0xFF) >> QUANTIZATION_SHIFT);
+                byte colorClass = lookupTable[index];
+                tableBuffer[i] = (colorClass & CLASS_TABLE) != 0 ? (byte) 255 : 0;
+                ballBuffer[i] = (colorClass & CLASS_BALL) != 0 ? (byte) 255 : 0;
+            }
+        }
+    }
+
+    /**
+     * Classifies one pixel straight from the frame (without touching the classified region)
+     * @param yuvFrame YUV frame or null
+     * @param rgba RGBA frame (CV_8UC4, used if yuvFrame is null)
+     * @param x X coordinate in the frame
+     * @param y Y coordinate in the frame
+     * @return CLASS_ bits
+     */
+    public byte classifyPixel(YUVFrame yuvFrame, Mat rgba, int x, int y) {
+        int first, second, third;
+        if (yuvFrame != null) {
+            if (!builtYUV) {
+                buildLookupTable(lookupTableYUV, true);
+                builtYUV = true;
+            }
+            int chromaOffset = (y / 2) * yuvFrame.getUVRowStride()
+                    + (x / 2) * yuvFrame.getUVPixelStride();
+            first = yuvFrame.getYPlane().get(y * yuvFrame.getYRowStride() + x) & 0xFF;
+            second = yuvFrame.getUPlane().get(chromaOffset) & 0xFF;
+            third = yuvFrame.getVPlane().get(chromaOffset) & 0xFF;
+        } else {
+            rgba.get(y, x, pixelBuffer);
+            first = pixelBuffer[0] & 0xFF;
+            second = pixelBuffer[1] & 0xFF;
+            third = pixelBuffer[2] & 0xFF;
+        }
+        int index = ((first >> QUANTIZATION_SHIFT) << (QUANTIZATION_BITS * 2))
+                | ((second >> QUANTIZATION_SHIFT) << QUANTIZATION_BITS)
+                | (third >> QUANTIZATION_SHIFT);
+        return (yuvFrame != null ? lookupTableYUV : lookupTable)[index];
+    }
+
+    /**
+     * Returns class of the pixel from the last classify() call
+     * @param x X coordinate in the frame
+     * @param y Y coordinate in the frame
+     * @return CLASS_ bits or 0 if the pixel was outside the classified region
+     */
+    public byte getColorClass(int x, int y) {
+        x -= originX;
+        y -= originY;
+        if (tableBuffer == null || x < 0 || y < 0 || x >= width || y >= height)
+            return 0;
+        int i = y * width + x;
+        return (byte) ((tableBuffer[i] != 0 ? CLASS_TABLE : 0)
+                | (ballBuffer[i] != 0 ? CLASS_BALL : 0));
+    }
+
+    /**
+     * @return ball mask of the last classified region (255 - ball color, row by row,
+     *         getWidth() pixels per row)
+     */
+    public byte[] getBallMask() {
+        return ballBuffer;
+    }
+
+    /**
+     * @return X coordinate of the last classified region in the frame
+     */
+    public int getOriginX() {
+        return originX;
+    }
+
+    /**
+     * @return Y coordinate of the last classified region in the frame
+     */
+    public int getOriginY() {
+        return originY;
+    }
+
+    /**
+     * @return width of the last classified region
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height of the last classified region
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Classifies the center of every quantization level with the current ranges
+     * @param lookupTable output lookup table
+     * @param yuv true if levels are YUV (same conversion as Imgproc.COLOR_YUV2RGB_I420),
+     *            false - RGB
+     */
+    private void buildLookupTable(byte[] lookupTable, boolean yuv) {
+        int[] rgb = new int[3];
+        int[] hsv = new int[3];
+        int[] hsvInverted = new int[3];
+        int index = 0;
+        for (int first = 0; first < LEVELS; first++) {
+            for (int second = 0; second < LEVELS; second++) {
+                for (int third = 0; third < LEVELS; third++) {
+                    if (yuv)
+                        yuvToRGB(levelToValue(first), levelToValue(second), levelToValue(third),
+                                rgb);
+                    else {
+                        rgb[0] = levelToValue(first);
+                        rgb[1] = levelToValue(second);
+                        rgb[2] = levelToValue(third);
+                    }
+                    rgbToHSV(rgb[0], rgb[1], rgb[2], hsv);
+                    rgbToHSV(255 - rgb[0], 255 - rgb[1], 255 - rgb[2], hsvInverted);
+
+                    byte colorClass = 0;
+                    if (inRange(hsv, hsvInverted, tableRange))
+                        colorClass |= CLASS_TABLE;
+                    if (inRange(hsv, hsvInverted, ballRange))
+                        colorClass |= CLASS_BALL;
+                    lookupTable[index++] = colorClass;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remembers the classified region and reallocates mask buffers
+     * only if the region is larger than before
+     * @param originX X coordinate of the region in the frame
+     * @param originY Y coordinate of the region in the frame
+     * @param cols width of the region
+     * @param rows height of the region
+     */
+    private void allocateBuffers(int originX, int originY, int cols, int rows) {
+        int pixels = rows * cols;
+        this.originX = originX;
+        this.originY = originY;
+        this.width = cols;
+        this.height = rows;
+        if (tableBuffer == null || tableBuffer.length < pixels) {
+            tableBuffer = new byte[pixels];
+            ballBuffer = new byte[pixels];
+        }
+    }
+
+    /**
+     * Copies masks of the classified region to native memory
+     * @param maskTable output table mask or null
+     * @param maskBall output ball mask or null
+     */
+    private void putMasks(Mat maskTable, Mat maskBall) {
+        if (maskTable != null) {
+            maskTable.create(height, width, CvType.CV_8UC1);
+            maskTable.put(0, 0, tableBuffer, 0, width * height);
+        }
+        if (maskBall != null) {
+            maskBall.create(height, width, CvType.CV_8UC1);
+            maskBall.put(0, 0, ballBuffer, 0, width * height);
+        }
+    }
+
+    /**
+     * Converts BT.601 YUV color to RGB the same way as Imgproc.COLOR_YUV2RGB_I420 does
+     * (video range, fixed-point with 20 fractional bits)
+     * @param y luma (0-255)
+     * @param u U (Cb) component (0-255)
+     * @param v V (Cr) component (0-255)
+     * @param rgb output array (red, green, blue 0-255)
+     */
+    private static void yuvToRGB(int y, int u, int v, int[] rgb) {
+        int luma = Math.max(0, y - 16) * 1220542;
+        u -= 128;
+        v -= 128;
+        rgb[0] = clamp((luma + 1673527 * v + (1 << 19)) >> 20);
+        rgb[1] = clamp((luma - 852492 * v - 409993 * u + (1 << 19)) >> 20);
+        rgb[2] = clamp((luma + 2116026 * u + (1 << 19)) >> 20);
+    }
+
+    /**
+     * @return value clamped to 0-255
+     */
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * Converts HSV colors to OpenCV range (hue 0-179, saturation and value 0-255).
+     * If lower hue is greater than upper, the range is converted to inverted hue
+     * @param lower lower HSV color
+     * @param upper upper HSV color
+     * @param sameHueThreshold if the difference of hues is less, all hues are selected
+     * @param range output range array
+     */
+    private static void toRange(HSVColor lower, HSVColor upper, float sameHueThreshold,
+                                int[] range) {
+        if (lower.getHue() == upper.getHue()
+                || Math.abs(lower.getHue() - upper.getHue()) < sameHueThreshold) {
+            range[0] = 0;
+            range[3] = 179;
+            range[RANGE_INVERTED] = 0;
+        } else if (lower.getHue() > upper.getHue()) {
+            range[0] = (int) (lower.getHue() / 2) - 90;
+            range[3] = (int) (upper.getHue() / 2) + 90;
+            range[RANGE_INVERTED] = 1;
+        } else {
+            range[0] = (int) (lower.getHue() / 2);
+            range[3] = (int) (upper.getHue() / 2);
+            range[RANGE_INVERTED] = 0;
+        }
+        range[1] = lower.getSaturationInt();
+        range[2] = lower.getValueInt();
+        range[4] = upper.getSaturationInt();
+        range[5] = upper.getValueInt();
+    }
+
+    /**
+     * Checks if the color is inside the range (same as Core.inRange())
+     * @param hsv HSV color
+     * @param hsvInverted HSV of the inverted color (only hue is used)
+     * @param range range array
+     * @return true if all components are inside the range
+     */
+    private static boolean inRange(int[] hsv, int[] hsvInverted, int[] range) {
+        int hue = range[RANGE_INVERTED] != 0 ? hsvInverted[0] : hsv[0];
+        return hue >= range[0] && hue <= range[3]
+                && hsv[1] >= range[1] && hsv[1] <= range[4]
+                && hsv[2] >= range[2] && hsv[2] <= range[5];
+    }
+
+    /**
+     * Converts RGB color to HSV the same way as Imgproc.COLOR_BGR2HSV does for 8-bit images
+     * (fixed-point with 12 fractional bits)
+     * @param red red component (0-255)
+     * @param green green component (0-255)
+     * @param blue blue component (0-255)
+     * @param hsv output array (hue 0-179, saturation 0-255, value 0-255)
+     */
+    private static void rgbToHSV(int red, int green, int blue, int[] hsv) {
+        int value = Math.max(red, Math.max(green, blue));
+        int min = Math.min(red, Math.min(green, blue));
+        int difference = value - min;
+
+        int hue;
+        if (value == red)
+            hue = green - blue;
+        else if (value == green)
+            hue = blue - red + 2 * difference;
+        else
+            hue = red - green + 4 * difference;
+        int hueDivider = difference == 0 ? 0 : (int) Math.round((180 << 12) / (6. * difference));
+        hue = (hue * hueDivider + (1 << 11)) >> 12;
+        if (hue < 0)
+            hue += 180;
+
+        int saturationDivider = value == 0 ? 0 : (int) Math.round((255 << 12) / (double) value);
+
+        hsv[0] = hue;
+        hsv[1] = (difference * saturationDivider + (1 << 11)) >> 12;
+        hsv[2] = value;
+    }
+
+    /**
+     * @param level quantization level (0 - LEVELS-1)
+     * @return color component value that represents the level (0-255)
+     */
+    private static int levelToValue(int level) {
+        return (level * 255 + (LEVELS - 1) / 2) / (LEVELS - 1);
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.util.Log;
+
+/**
+ * This class opens the selected device and restores the link in background
+ * if it is lost (see DeviceLostListener). The last device (SerialDevice of SerialHandler)
+ * is reopened with exponential backoff (RECONNECT_BACKOFF_INITIAL_NS - RECONNECT_BACKOFF_MAX_NS).
+ * SerialHandler swaps the Transport without stopping the serial thread, so the vision
+ * pipeline keeps running. After MAX_RECONNECT_ATTEMPTS failed attempts
+ * ConnectionListener.connectionFailed(true) is called (device selection is required).
+ * NOTE: openDevice() blocks, so all connection attempts are made on the ConnectionManager thread
+ */
+public class ConnectionManager implements Runnable, DeviceLostListener {
+    private final String TAG = this.getClass().getName();
+
+    // Reconnection backoff: 250 ms, 500 ms, 1 s, 2 s, then 4 s
+    private static final long RECONNECT_BACKOFF_INITIAL_NS = 250000000L;
+    private static final long RECONNECT_BACKOFF_MAX_NS = 4000000000L;
+
+    // Give up after this number of failed attempts (about 20 seconds)
+    private static final int MAX_RECONNECT_ATTEMPTS = 8;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_CONNECTED = 2;
+    private static final int STATE_RECONNECTING = 3;
+
+    private final SerialHandler serialHandler;
+    private volatile ConnectionListener connectionListener;
+
+    private int state = STATE_IDLE;
+    private volatile boolean running;
+
+    // Metrics
+    private volatile long connectionsLost, reconnects, failedReconnects, failedAttempts;
+    private volatile long lostTime, totalDowntime, maxDowntime;
+
+    /**
+     * Creates new ConnectionManager
+     * @param serialHandler SerialHandler with the selected SerialDevice
+     */
+    ConnectionManager(SerialHandler serialHandler) {
+        this.serialHandler = serialHandler;
+    }
+
+    /**
+     * Sets listener of the connection state
+     * @param connectionListener ConnectionListener or null
+     */
+    public void setConnectionListener(ConnectionListener connectionListener) {
+        this.connectionListener = connectionListener;
+    }
+
+    /**
+     * Opens the device selected in SerialHandler's SerialDevice (asynchronously).
+     * Result is reported to ConnectionListener
+     */
+    public synchronized void connect() {
+        state = STATE_CONNECTING;
+        notifyAll();
+    }
+
+    /**
+     * Starts background reconnection if the device is connected
+     * (called by SerialHandler after too many lost packets)
+     */
+    @Override
+    public synchronized void deviceLost() {
+        if (state != STATE_CONNECTED)
+            return;
+        state = STATE_RECONNECTING;
+        lostTime = System.nanoTime();
+        connectionsLost++;
+        notifyAll();
+    }
+
+    /**
+     * Stops ConnectionManager thread
+     */
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+    }
+
+    /**
+     * @return true if the link is restored in background right now
+     */
+    public synchronized boolean isReconnecting() {
+        return state == STATE_RECONNECTING;
+    }
+
+    /**
+     * @return number of times the link was lost
+     */
+    public long getConnectionsLost() {
+        return connectionsLost;
+    }
+
+    /**
+     * @return number of successful background reconnections
+     */
+    public long getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * @return number of failed reconnection attempts
+     */
+    public long getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    /**
+     * @return total time without the link in nanoseconds (including current downtime)
+     */
+    public long getTotalDowntime() {
+        long downtime = totalDowntime;
+        if (isReconnecting())
+            downtime += System.nanoTime() - lostTime;
+        return downtime;
+    }
+
+    /**
+     * @return longest downtime in nanoseconds
+     */
+    public long getMaxDowntime() {
+        return maxDowntime;
+    }
+
+    @Override
+    public String toString() {
+        return "lost: " + connectionsLost + ", reconnected: " + reconnects
+                + ", given up: " + failedReconnects + ", failed attempts: " + failedAttempts
+                + ", downtime: " + getTotalDowntime() / 1000000 + " ms (max: "
+                + maxDowntime / 1000000 + " ms)";
+    }
+
+    @Override
+    public void run() {
+        running = true;
+        while (running) {
+            // Wait for connect() or deviceLost()
+            int state;
+            synchronized (this) {
+                try {
+                    while (running && (this.state == STATE_IDLE || this.state == STATE_CONNECTED))
+                        wait();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                state = this.state;
+            }
+            if (!running)
+                break;
+
+            if (state == STATE_CONNECTING)
+                openSelectedDevice();
+            else
+                reconnect();
+        }
+    }
+
+    /**
+     * Opens the device selected by user
+     */
+    private void openSelectedDevice() {
+        boolean opened = serialHandler.openDevice();
+        synchronized (this) {
+            // Another device was selected while opening
+            if (state != STATE_CONNECTING || !running)
+                return;
+            state = opened ? STATE_CONNECTED : STATE_IDLE;
+        }
+
+        ConnectionListener connectionListener = this.connectionListener;
+        if (connectionListener != null) {
+            if (opened)
+                connectionListener.connected(false);
+            else
+                connectionListener.connectionFailed(false);
+        }
+    }
+
+    /**
+     * Reopens the last device with exponential backoff
+     */
+    private void reconnect() {
+        // Stop writing to the dead link
+        serialHandler.closeTransport();
+        Log.w(TAG, "Connection lost. Reconnecting");
+        ConnectionListener connectionListener = this.connectionListener;
+        if (connectionListener != null)
+            connectionListener.connectionLost();
+
+        long backoff = RECONNECT_BACKOFF_INITIAL_NS;
+        for (int attempt = 0; attempt < MAX_RECONNECT_ATTEMPTS; attempt++) {
+            if (!waitBackoff(backoff))
+                return;
+
+            boolean opened = serialHandler.openDevice();
+            synchronized (this) {
+                // Another device was selected or ConnectionManager is stopped
+                if (state != STATE_RECONNECTING || !running)
+                    return;
+
+                if (opened) {
+                    state = STATE_CONNECTED;
+                    countDowntime();
+                    reconnects++;
+                }
+            }
+
+            if (opened) {
+                Log.i(TAG, "Reconnected after " + (attempt + 1) + " attempt(s). " + this);
+                connectionListener = this.connectionListener;
+                if (connectionListener != null)
+                    connectionListener.connected(true);
+                return;
+            }
+
+            failedAttempts++;
+            backoff = Math.min(backoff * 2, RECONNECT_BACKOFF_MAX_NS);
+        }
+
+        // Give up
+        synchronized (this) {
+            if (state != STATE_RECONNECTING || !running)
+                return;
+            state = STATE_IDLE;
+            countDowntime();
+            failedReconnects++;
+        }
+        Log.e(TAG, "Reconnection failed. " + this);
+        connectionListener = this.connectionListener;
+        if (connectionListener != null)
+            connectionListener.connectionFailed(true);
+    }
+
+    /**
+     * Waits before the next reconnection attempt
+     * @param nanos time to wait
+     * @return false if the reconnection is canceled (new device is selected or stopped)
+     */
+    private synchronized boolean waitBackoff(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        try {
+            long remaining;
+            while (running && state == STATE_RECONNECTING
+                    && (remaining = deadline - System.nanoTime()) > 0)
+                wait(remaining / 1000000, (int) (remaining % 1000000));
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return running && state == STATE_RECONNECTING;
+    }
+
+    /**
+     * Adds current downtime to the metrics (must be called under the lock)
+     */
+    private void countDowntime() {
+        long downtime = System.nanoTime() - lostTime;
+        totalDowntime += downtime;
+        if (downtime > maxDowntime)
+            maxDowntime = downtime;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialProber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class finds USB serial and bonded bluetooth devices on a background executor.
+ * The last known lists are cached (also between activities), so DevicesDialog shows them
+ * instantly while the full refresh is running. USB attach / detach and bluetooth bond
+ * broadcasts update the lists incrementally (only the changed device is probed)
+ */
+public class DeviceDiscovery {
+    private final String TAG = this.getClass().getName();
+
+    // Last known devices (immutable lists)
+    private static volatile List<UsbSerialDriver> cachedUsbSerialDrivers = Collections.emptyList();
+    private static volatile List<BluetoothDevice> cachedBluetoothDevices = Collections.emptyList();
+
+    private final Context context;
+    private final UsbManager usbManager;
+    private final BluetoothAdapter bluetoothAdapter;
+    private final Handler mainHandler;
+
+    private ExecutorService executorService;
+    private DiscoveryListener discoveryListener;
+
+    // Accessed only from the main thread
+    private boolean refreshing = false;
+
+    DeviceDiscovery(Context context, UsbManager usbManager, BluetoothAdapter bluetoothAdapter) {
+        this.context = context;
+        this.usbManager = usbManager;
+        this.bluetoothAdapter = bluetoothAdapter;
+        this.mainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Sets DiscoveryListener interface
+     * @param discoveryListener DiscoveryListener interface or null
+     */
+    public void setDiscoveryListener(DiscoveryListener discoveryListener) {
+        this.discoveryListener = discoveryListener;
+    }
+
+    /**
+     * Starts the executor and listening for device broadcasts (UI thread)
+     */
+    public void start() {
+        if (executorService != null)
+            return;
+        executorService = Executors.newSingleThreadExecutor();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        context.registerReceiver(deviceReceiver, filter);
+    }
+
+    /**
+     * Stops listening for broadcasts and the executor (UI thread)
+     */
+    public void stop() {
+        if (executorService == null)
+            return;
+        context.unregisterReceiver(deviceReceiver);
+        executorService.shutdownNow();
+        executorService = null;
+        discoveryListener = null;
+        refreshing = false;
+    }
+
+    /**
+     * Starts full discovery (UI thread). USB devices are reported first,
+     * then bonded bluetooth devices (DiscoveryListener.devicesUpdated(true))
+     */
+    public void refresh() {
+        if (executorService == null || refreshing)
+            return;
+        refreshing = true;
+        executorService.execute(() -> {
+            probeUsbDevices();
+            postUpdate(false);
+            queryBluetoothDevices();
+            postUpdate(true);
+        });
+    }
+
+    /**
+     * @return true if full discovery is in progress
+     */
+    public boolean isRefreshing() {
+        return refreshing;
+    }
+
+    /**
+     * @return last known USB serial drivers (unmodifiable)
+     */
+    public List<UsbSerialDriver> getUsbSerialDrivers() {
+        return cachedUsbSerialDrivers;
+    }
+
+    /**
+     * @return last known bonded bluetooth devices (unmodifiable)
+     */
+    public List<BluetoothDevice> getBluetoothDevices() {
+        return cachedBluetoothDevices;
+    }
+
+    /**
+     * Handles USB attach / detach and bluetooth bond broadcasts
+     */
+    private final BroadcastReceiver deviceReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            ExecutorService executorService = DeviceDiscovery.this.executorService;
+            if (action == null || executorService == null)
+                return;
+
+            if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+                UsbDevice usbDevice = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (usbDevice != null)
+                    executorService.execute(() -> {
+                        if (usbDeviceAttached(usbDevice))
+                            postUpdate(false);
+                    });
+            }
+            else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+                UsbDevice usbDevice = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (usbDevice != null)
+                    executorService.execute(() -> {
+                        if (usbDeviceDetached(usbDevice))
+                            postUpdate(false);
+                    });
+            }
+            else if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+                executorService.execute(() -> {
+                    queryBluetoothDevices();
+                    postUpdate(false);
+                });
+            }
+        }
+    };
+
+    /**
+     * Probes all connected USB devices (executor thread)
+     */
+    private void probeUsbDevices() {
+        if (usbManager == null)
+            return;
+        try {
+            List<UsbSerialDriver> usbSerialDrivers =
+                    UsbSerialProber.getDefaultProber().findAllDrivers(usbManager);
+            cachedUsbSerialDrivers = usbSerialDrivers != null
+                    ? Collections.unmodifiableList(new ArrayList<>(usbSerialDrivers))
+                    : Collections.emptyList();
+        } catch (Exception e) {
+            Log.e(TAG, "Error probing USB devices!", e);
+        }
+    }
+
+    /**
+     * Probes newly attached USB device (executor thread)
+     * @return true if the list is changed
+     */
+    private boolean usbDeviceAttached(UsbDevice usbDevice) {
+        List<UsbSerialDriver> usbSerialDrivers = cachedUsbSerialDrivers;
+        for (UsbSerialDriver usbSerialDriver : usbSerialDrivers)
+            if (usbSerialDriver.getDevice().equals(usbDevice))
+                return false;
+
+        UsbSerialDriver usbSerialDriver = UsbSerialProber.getDefaultProber()
+                .probeDevice(usbDevice);
+        if (usbSerialDriver == null)
+            return false;
+
+        List<UsbSerialDriver> updated = new ArrayList<>(usbSerialDrivers);
+        updated.add(usbSerialDriver);
+        cachedUsbSerialDrivers = Collections.unmodifiableList(updated);
+        return true;
+    }
+
+    /**
+     * Removes detached USB device (executor thread)
+     * @return true if the list is changed
+     */
+    private boolean usbDeviceDetached(UsbDevice usbDevice) {
+        List<UsbSerialDriver> updated = new ArrayList<>(cachedUsbSerialDrivers);
+        boolean removed = false;
+        for (int i = updated.size() - 1; i >= 0; i--) {
+            if (updated.get(i).getDevice().equals(usbDevice)) {
+                updated.remove(i);
+                removed = true;
+            }
+        }
+        if (removed)
+            cachedUsbSerialDrivers = Collections.unmodifiableList(updated);
+        return removed;
+    }
+
+    /**
+     * Reads bonded bluetooth devices (executor thread)
+     */
+    private void queryBluetoothDevices() {
+        if (bluetoothAdapter == null)
+            return;
+        try {
+            Set<BluetoothDevice> bluetoothDevices = bluetoothAdapter.getBondedDevices();
+            cachedBluetoothDevices = bluetoothDevices != null
+                    ? Collections.unmodifiableList(new ArrayList<>(bluetoothDevices))
+                    : Collections.emptyList();
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading bonded bluetooth devices!", e);
+        }
+    }
+
+    /**
+     * Sends update to DiscoveryListener on the main thread
+     * @param refreshFinished true if the full discovery is finished
+     */
+    private void postUpdate(boolean refreshFinished) {
+        mainHandler.post(() -> {
+            if (refreshFinished)
+                refreshing = false;
+            DiscoveryListener discoveryListener = this.discoveryListener;
+            if (discoveryListener != null)
+                discoveryListener.devicesUpdated(!refreshing);
+        });
+    }
+}
@@ -31,7 +31,6 @@ package com.fern.pipo_ballus;
 import android.annotation.SuppressLint;
 import android.app.Dialog;
 import android.app.PendingIntent;
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -40,6 +39,7 @@ import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.os.Bundle;
+import android.view.View;
 import android.view.Window;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
@@ -48,14 +48,14 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
-import com.hoho.android.usbserial.driver.UsbSerialProber;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
 
 /**
- * This class opens a dialog allowing you to select a main serial device
+ * This class opens a dialog allowing you to select a main serial device.
+ * The last known devices are shown immediately and updated by DeviceDiscovery in background
  */
 public class DevicesDialog extends Dialog {
     private static final String ACTION_USB_PERMISSION = "com.android.usb.USB_PERMISSION";
@@ -63,17 +63,20 @@ public class DevicesDialog extends Dialog {
     private final Context context;
 
     private ListView devicesList;
+    private View refreshButton;
 
     private final UsbManager usbManager;
-    private final BluetoothAdapter bluetoothAdapter;
+    private final DeviceDiscovery deviceDiscovery;
 
     private final List<String> availableDevices;
 
-    private List<UsbSerialDriver> usbSerialDrivers;
-    private final List<String> bluetoothMACs;
+    // Devices displayed in the list
+    private List<UsbSerialDriver> usbSerialDrivers = Collections.emptyList();
+    private List<BluetoothDevice> bluetoothDevices = Collections.emptyList();
 
     private boolean hasUSB = false;
     private boolean hasBluetooth = false;
+    private boolean hasNetwork = false;
 
     private boolean dialogResultReturned = false;
 
@@ -81,14 +84,12 @@ public class DevicesDialog extends Dialog {
 
     public DevicesDialog(@NonNull Context context,
                          UsbManager usbManager,
-                         BluetoothAdapter bluetoothAdapter) {
+                         DeviceDiscovery deviceDiscovery) {
         super(context);
 
         this.context = context;
         this.usbManager = usbManager;
-        this.bluetoothAdapter = bluetoothAdapter;
-
-        this.bluetoothMACs = new ArrayList<>();
+        this.deviceDiscovery = deviceDiscovery;
 
         this.availableDevices = new ArrayList<>();
     }
@@ -116,13 +117,17 @@ public class DevicesDialog extends Dialog {
         devicesList.setOnItemClickListener((adapterView, view, i, l) -> selectDevice(i));
 
         // Refresh device list on click
-        findViewById(R.id.devicesRefreshBtn).setOnClickListener(view -> refreshDevices());
+        refreshButton = findViewById(R.id.devicesRefreshBtn);
+        refreshButton.setOnClickListener(view -> refreshDevices());
     }
 
     @Override
     protected void onStop() {
         super.onStop();
 
+        // Stop receiving device list updates
+        deviceDiscovery.setDiscoveryListener(null);
+
         if (!dialogResultReturned)
             devicesListener.canceled();
     }
@@ -134,46 +139,53 @@ public class DevicesDialog extends Dialog {
         // Clear dialogResultReturned flag
         dialogResultReturned = false;
 
-        // Refresh device list
+        // Show last known devices and refresh them in background
+        deviceDiscovery.setDiscoveryListener(this::showDevices);
+        showDevices(!deviceDiscovery.isRefreshing());
         refreshDevices();
     }
 
     /**
-     * Updates usbSerialDrivers, bluetoothMACs and availableDevices
+     * Starts background discovery of the devices
      */
     private void refreshDevices() {
-        // Remove adapter
-        devicesList.setAdapter(null);
+        deviceDiscovery.refresh();
+        refreshButton.setEnabled(false);
+    }
+
+    /**
+     * Updates usbSerialDrivers, bluetoothDevices and availableDevices from DeviceDiscovery
+     * @param finished false if the discovery is still in progress
+     */
+    private void showDevices(boolean finished) {
+        // Enable refresh button after the discovery
+        refreshButton.setEnabled(finished);
 
         // Clear available devices
         availableDevices.clear();
 
         // Add USB devices
-        if (usbManager != null) {
-            usbSerialDrivers = UsbSerialProber.getDefaultProber().findAllDrivers(usbManager);
-            if (usbSerialDrivers != null && usbSerialDrivers.size() > 0) {
-                hasUSB = true;
-                for (UsbSerialDriver usbSerialDriver : usbSerialDrivers) {
-                    UsbDevice usbDevice = usbSerialDriver.getDevice();
-                    availableDevices.add(usbDevice.getProductName()
-                            + "\n(" + usbDevice.getDeviceName() + ")");
-                }
-            }
+        usbSerialDrivers = deviceDiscovery.getUsbSerialDrivers();
+        hasUSB = usbSerialDrivers.size() > 0;
+        for (UsbSerialDriver usbSerialDriver : usbSerialDrivers) {
+            UsbDevice usbDevice = usbSerialDriver.getDevice();
+            availableDevices.add(usbDevice.getProductName()
+                    + "\n(" + usbDevice.getDeviceName() + ")");
         }
 
         // Add Bluetooth devices
-        if (bluetoothAdapter != null) {
-            Set<BluetoothDevice> bluetoothDevices = bluetoothAdapter.getBondedDevices();
-            if (bluetoothDevices != null && bluetoothDevices.size() > 0) {
-                hasBluetooth = true;
-                bluetoothMACs.clear();
-                for (BluetoothDevice bluetoothDevice : bluetoothDevices) {
-                    bluetoothMACs.add(bluetoothDevice.getAddress());
-                    availableDevices.add(bluetoothDevice.getName()
-                            + "\n(" + bluetoothDevice.getAddress() + ")");
-                }
-            }
-        }
+        bluetoothDevices = deviceDiscovery.getBluetoothDevices();
+        hasBluetooth = bluetoothDevices.size() > 0;
+        for (BluetoothDevice bluetoothDevice : bluetoothDevices)
+            availableDevices.add(bluetoothDevice.getName()
+                    + "\n(" + bluetoothDevice.getAddress() + ")");
+
+        // Add network bridge (the last item)
+        hasNetwork = SettingsContainer.networkHost.length() > 0;
+        if (hasNetwork)
+            availableDevices.add(context.getString(R.string.network_bridge) + "\n("
+                    + (SettingsContainer.networkTcp ? "tcp://" : "udp://")
+                    + SettingsContainer.networkHost + ":" + SettingsContainer.networkPort + ")");
 
         // Set listView adapter
         devicesList.setAdapter(new ArrayAdapter<>(context,
@@ -185,15 +197,24 @@ public class DevicesDialog extends Dialog {
      * @param index Integer index in ListView
      */
     private void selectDevice(int index) {
-        if (index >= 0) {
+        // Return network bridge
+        if (hasNetwork && index == availableDevices.size() - 1) {
+            devicesListener.deviceSelected(new SerialDevice(SettingsContainer.networkHost,
+                    SettingsContainer.networkPort, SettingsContainer.networkTcp));
+
+            // Exit from DevicesDialog
+            dialogResultReturned = true;
+            dismiss();
+        }
+        else if (index >= 0) {
             int usbIndex = -1;
             int bluetoothIndex = -1;
-            if (hasUSB && usbSerialDrivers != null) {
+            if (hasUSB) {
                 if (index < usbSerialDrivers.size())
                     usbIndex = index;
                 else if (hasBluetooth)
                     bluetoothIndex = index - usbSerialDrivers.size();
-            } else if (hasBluetooth && bluetoothAdapter != null)
+            } else if (hasBluetooth)
                 bluetoothIndex = index;
 
             if (usbIndex >= 0) {
@@ -222,8 +243,7 @@ public class DevicesDialog extends Dialog {
             else if (bluetoothIndex >= 0) {
                 // Return bluetooth device
                 devicesListener.deviceSelected(
-                        new SerialDevice(bluetoothAdapter.getRemoteDevice(
-                                bluetoothMACs.get(bluetoothIndex))));
+                        new SerialDevice(bluetoothDevices.get(bluetoothIndex)));
 
                 // Exit from DevicesDialog
                 dialogResultReturned = true;
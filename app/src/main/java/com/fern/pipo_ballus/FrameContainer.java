@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import org.opencv.core.Mat;
+
+/**
+ * This class provides a container for one frame of FramePipeline: the image in the sensor
+ * orientation (RGBA or YUV if yuv is true), its capture time and rotation,
+ * the size of the camera frame (the display size) and the overlay that is drawn over it.
+ * rgba and yuvFrame are recycled buffers, they are swapped between the stages instead of copying
+ */
+public class FrameContainer {
+    public Mat rgba;
+    public YUVFrame yuvFrame;
+    public boolean yuv;
+    public final OverlayContainer overlayContainer;
+    public long sequence;
+    public long captureTime;
+    public int rotation;
+    public int cameraWidth, cameraHeight;
+
+    FrameContainer() {
+        rgba = new Mat();
+        yuvFrame = new YUVFrame();
+        overlayContainer = new OverlayContainer();
+    }
+
+    /**
+     * Moves the image and the frame info into another container and takes its image buffer
+     * (the overlay is not moved)
+     * @param frameContainer container of the next stage
+     */
+    public void swapInto(FrameContainer frameContainer) {
+        Mat buffer = frameContainer.rgba;
+        frameContainer.rgba = rgba;
+        rgba = buffer;
+        YUVFrame yuvBuffer = frameContainer.yuvFrame;
+        frameContainer.yuvFrame = yuvFrame;
+        yuvFrame = yuvBuffer;
+        frameContainer.yuv = yuv;
+        frameContainer.sequence = sequence;
+        frameContainer.captureTime = captureTime;
+        frameContainer.rotation = rotation;
+        frameContainer.cameraWidth = cameraWidth;
+        frameContainer.cameraHeight = cameraHeight;
+    }
+}
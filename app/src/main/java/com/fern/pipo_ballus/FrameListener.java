@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Mat;
+
+/**
+ * This interface is used to transmit frames from a FrameSource to the vision pipeline
+ * NOTE: Methods are called from the thread of the FrameSource
+ */
+public interface FrameListener {
+    /**
+     * Frame source is started
+     * @param width width of the frames
+     * @param height height of the frames
+     */
+    void frameSourceStarted(int width, int height);
+
+    /**
+     * Frame source is stopped (camera closed or the end of the recording)
+     */
+    void frameSourceStopped();
+
+    /**
+     * New frame is received
+     * @param frame RGBA frame (valid only during this call)
+     * @param rotation screen rotation (Surface.ROTATION_)
+     * @param captureTime System.nanoTime() based capture time of the frame
+     *                    or 0 to use the current time
+     * @return output frame to display or null to keep displaying the previous one
+     */
+    Mat frameReceived(CameraBridgeViewBase.CvCameraViewFrame frame, int rotation,
+                      long captureTime);
+}
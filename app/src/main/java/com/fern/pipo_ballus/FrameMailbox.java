@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class provides a single-producer / single-consumer "latest wins" mailbox
+ * between two stages of FramePipeline (lock-free triple buffer, same as PositionMailbox).
+ * Frames are not copied: the producer fills its own FrameContainer in place
+ * and publishes it, the previous unread frame is dropped and its buffer is recycled
+ */
+public class FrameMailbox {
+    private static final int INDEX_MASK = 0b011;
+    private static final int DIRTY_FLAG = 0b100;
+
+    // Three preallocated frames. One is owned by the producer, one by the consumer
+    // and one is shared (its index is stored in sharedIndex)
+    private final FrameContainer[] frames = new FrameContainer[3];
+    private final AtomicInteger sharedIndex;
+    private int producerIndex;
+    private int consumerIndex;
+
+    private final AtomicLong publishedCounter = new AtomicLong();
+    private final AtomicLong droppedCounter = new AtomicLong();
+
+    private volatile Thread consumerThread;
+
+    FrameMailbox() {
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = new FrameContainer();
+        this.producerIndex = 0;
+        this.sharedIndex = new AtomicInteger(1);
+        this.consumerIndex = 2;
+    }
+
+    /**
+     * Returns the frame to fill before publish()
+     * NOTE: Must be called from the producer thread only
+     * @return FrameContainer owned by the producer
+     */
+    public FrameContainer getProducerFrame() {
+        return frames[producerIndex];
+    }
+
+    /**
+     * Publishes the producer's frame. Never blocks.
+     * NOTE: Must be called from the producer thread only
+     */
+    public void publish() {
+        // Swap producer's frame with the shared one and mark it as new
+        int previous = sharedIndex.getAndSet(producerIndex | DIRTY_FLAG);
+        producerIndex = previous & INDEX_MASK;
+
+        // Previous frame was never read by consumer
+        if ((previous & DIRTY_FLAG) != 0)
+            droppedCounter.incrementAndGet();
+        publishedCounter.incrementAndGet();
+
+        // Wake up consumer
+        Thread consumer = consumerThread;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Returns the newest frame if there is one. Returned object is owned by consumer
+     * until the next poll() / take() call.
+     * NOTE: Must be called from the consumer thread only
+     * @return newest FrameContainer or null
+     */
+    public FrameContainer poll() {
+        // Nothing new
+        if ((sharedIndex.get() & DIRTY_FLAG) == 0)
+            return null;
+
+        // Swap consumer's frame with the shared one
+        consumerIndex = sharedIndex.getAndSet(consumerIndex) & INDEX_MASK;
+        return frames[consumerIndex];
+    }
+
+    /**
+     * Waits for the new frame (see poll())
+     * NOTE: Must be called from the consumer thread only
+     * @param timeoutNanos max waiting time
+     * @return newest FrameContainer or null on timeout / interrupt
+     */
+    public FrameContainer take(long timeoutNanos) {
+        consumerThread = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            FrameContainer frameContainer = poll();
+            if (frameContainer != null)
+                return frameContainer;
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted())
+                return null;
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    /**
+     * @return number of frames waiting for the consumer (0 or 1)
+     */
+    public int getDepth() {
+        return (sharedIndex.get() & DIRTY_FLAG) != 0 ? 1 : 0;
+    }
+
+    /**
+     * @return total number of published frames
+     */
+    public long getPublishedCounter() {
+        return publishedCounter.get();
+    }
+
+    /**
+     * @return number of frames that were dropped before the consumer read them
+     */
+    public long getDroppedCounter() {
+        return droppedCounter.get();
+    }
+
+    /**
+     * Releases native memory of all frames.
+     * NOTE: Must be called only when both producer and consumer are stopped
+     */
+    public void release() {
+        for (FrameContainer frameContainer : frames) {
+            frameContainer.rgba.release();
+            frameContainer.yuvFrame.release();
+        }
+        sharedIndex.set(sharedIndex.get() & INDEX_MASK);
+    }
+}
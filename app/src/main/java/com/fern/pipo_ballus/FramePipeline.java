@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.util.Log;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class runs OpenCVHandler as a staged pipeline on three threads:
+ * 1. Capture (the thread of the FrameSource): copies the frame (RGBA or YUV planes)
+ * into a recycled buffer and returns the newest composed frame for display
+ * 2. Detection: detects the ball and publishes its position as soon as it's found.
+ * It runs one frame ahead of the overlay with the max priority
+ * 3. Overlay: converts YUV frame to RGBA, rotates it upright, draws the overlay and HUD
+ * and resizes the frame for display.
+ * It has the normal priority and drops frames under load
+ * Stages are connected with FrameMailbox (latest wins), so a slow stage never delays
+ * the previous one. Frame buffers are swapped between the stages instead of copying.
+ * In reduced and headless render modes the overlay stage receives only some frames or none
+ */
+public class FramePipeline implements FrameListener {
+    private final String TAG = this.getClass().getName();
+
+    private static final long TAKE_TIMEOUT_NS = 100000000L;
+    private static final long WINDOW_NS = 1000000000L;
+
+    private final OpenCVHandler openCVHandler;
+    private final StageProfiler stageProfiler;
+    private final OverlayRenderer overlayRenderer;
+    private final FrameMailbox captureMailbox, overlayMailbox, displayMailbox;
+    private final List<String> hudLines;
+    private final Size displaySize;
+    private final Mat uprightRGBA;
+
+    private volatile boolean running;
+    private Thread detectionThread, overlayThread;
+
+    private volatile long capturedFrames, detectedFrames, composedFrames;
+    private long windowStart, windowCaptured, windowDetected, windowComposed;
+    private double captureFps, detectionFps, overlayFps;
+
+    /**
+     * Creates new pipeline
+     * @param openCVHandler initialized OpenCVHandler (see initView())
+     */
+    FramePipeline(OpenCVHandler openCVHandler) {
+        this.openCVHandler = openCVHandler;
+        this.stageProfiler = openCVHandler.getStageProfiler();
+        this.overlayRenderer = new OverlayRenderer();
+        this.captureMailbox = new FrameMailbox();
+        this.overlayMailbox = new FrameMailbox();
+        this.displayMailbox = new FrameMailbox();
+        this.hudLines = new ArrayList<>();
+        this.displaySize = new Size();
+        this.uprightRGBA = new Mat();
+    }
+
+    @Override
+    public synchronized void frameSourceStarted(int width, int height) {
+        openCVHandler.frameSourceStarted(width, height);
+        if (running)
+            return;
+        running = true;
+        capturedFrames = 0;
+        detectedFrames = 0;
+        composedFrames = 0;
+        windowStart = 0;
+        windowCaptured = 0;
+        windowDetected = 0;
+        windowComposed = 0;
+
+        // Detection thread should be scheduled on a big core
+        detectionThread = new Thread(this::detectionLoop);
+        detectionThread.setPriority(Thread.MAX_PRIORITY);
+        detectionThread.start();
+
+        // Overlay thread gives way to detection and capture
+        overlayThread = new Thread(this::overlayLoop);
+        overlayThread.setPriority(Thread.NORM_PRIORITY);
+        overlayThread.start();
+    }
+
+    @Override
+    public synchronized void frameSourceStopped() {
+        // Stop and wait for the stages
+        running = false;
+        try {
+            if (detectionThread != null) {
+                detectionThread.interrupt();
+                detectionThread.join();
+            }
+            if (overlayThread != null) {
+                overlayThread.interrupt();
+                overlayThread.join();
+            }
+        } catch (InterruptedException ignored) { }
+        detectionThread = null;
+        overlayThread = null;
+
+        Log.i(TAG, "Pipeline frames: captured " + capturedFrames
+                + ", detected " + detectedFrames
+                + " (dropped " + captureMailbox.getDroppedCounter()
+                + "), composed " + composedFrames
+                + " (dropped " + overlayMailbox.getDroppedCounter() + ")");
+        openCVHandler.frameSourceStopped();
+
+        // Free native memory while the camera is stopped
+        captureMailbox.release();
+        overlayMailbox.release();
+        displayMailbox.release();
+        uprightRGBA.release();
+    }
+
+    /**
+     * Capture stage: hands the frame over to the detection
+     * @return newest composed frame, raw thumbnail (headless mode) or null if there is
+     * no new frame to display
+     */
+    @Override
+    public Mat frameReceived(CameraBridgeViewBase.CvCameraViewFrame inputFrame, int rotation,
+                             long captureTime) {
+        if (!running)
+            return inputFrame.rgba();
+        long captureStart = System.nanoTime();
+
+        // Copy the frame into the recycled buffer, because the camera reuses its own buffer
+        // for the next frame (detection runs in the sensor orientation).
+        // YUV frames are copied as compact planes without converting them to RGBA
+        FrameContainer capturedFrame = captureMailbox.getProducerFrame();
+        capturedFrame.yuv = inputFrame instanceof YUVFrame;
+        if (capturedFrame.yuv) {
+            YUVFrame cameraYUV = (YUVFrame) inputFrame;
+            cameraYUV.copyTo(capturedFrame.yuvFrame);
+            capturedFrame.cameraWidth = cameraYUV.getWidth();
+            capturedFrame.cameraHeight = cameraYUV.getHeight();
+        } else {
+            Mat cameraRGBA = inputFrame.rgba();
+            cameraRGBA.copyTo(capturedFrame.rgba);
+            capturedFrame.cameraWidth = cameraRGBA.cols();
+            capturedFrame.cameraHeight = cameraRGBA.rows();
+        }
+        capturedFrame.sequence = capturedFrames + 1;
+        capturedFrame.captureTime = captureTime != 0 ? captureTime : captureStart;
+        capturedFrame.rotation = rotation;
+        captureMailbox.publish();
+        capturedFrames++;
+        stageProfiler.recordStage(StageProfiler.STAGE_CAPTURE, System.nanoTime() - captureStart);
+
+        // Display the raw frame on every Nth frame in headless mode
+        int renderMode = openCVHandler.getRenderMode();
+        if (renderMode == OverlayRenderer.RENDER_MODE_HEADLESS)
+            return OverlayRenderer.isThumbnailFrame(renderMode, capturedFrames)
+                    ? inputFrame.rgba() : null;
+
+        // Display the newest composed frame (it's owned by this thread until the next poll)
+        FrameContainer composedFrame = displayMailbox.poll();
+        return composedFrame != null ? composedFrame.rgba : null;
+    }
+
+    /**
+     * @return number of frames received since the start
+     */
+    public long getCapturedFrames() {
+        return capturedFrames;
+    }
+
+    /**
+     * @return number of frames processed by the detection since the start
+     */
+    public long getDetectedFrames() {
+        return detectedFrames;
+    }
+
+    /**
+     * @return number of frames composed for display since the start
+     */
+    public long getComposedFrames() {
+        return composedFrames;
+    }
+
+    /**
+     * Detection stage: processes the newest captured frame and passes its buffer
+     * and overlay to the overlay stage
+     */
+    private void detectionLoop() {
+        while (running) {
+            FrameContainer capturedFrame = captureMailbox.take(TAKE_TIMEOUT_NS);
+            if (capturedFrame == null)
+                continue;
+
+            stageProfiler.beginFrame();
+            FrameContainer detectedFrame = overlayMailbox.getProducerFrame();
+            if (!(capturedFrame.yuv
+                    ? openCVHandler.detect(capturedFrame.yuvFrame, capturedFrame.rotation,
+                    capturedFrame.captureTime, detectedFrame.overlayContainer)
+                    : openCVHandler.detect(capturedFrame.rgba, capturedFrame.rotation,
+                    capturedFrame.captureTime, detectedFrame.overlayContainer)))
+                continue;
+            int renderMode = openCVHandler.getRenderMode();
+            stageProfiler.setRenderMode(renderMode);
+            stageProfiler.endFrame();
+            detectedFrames++;
+
+            // Pass the frame to the overlay stage only if it's drawn in the current mode
+            if (OverlayRenderer.isOverlayFrame(renderMode, capturedFrame.sequence)) {
+                capturedFrame.swapInto(detectedFrame);
+                overlayMailbox.publish();
+            }
+        }
+    }
+
+    /**
+     * Overlay stage: draws the overlay over the newest detected frame and resizes it
+     * into the display buffer
+     */
+    private void overlayLoop() {
+        while (running) {
+            FrameContainer detectedFrame = overlayMailbox.take(TAKE_TIMEOUT_NS);
+            if (detectedFrame == null)
+                continue;
+
+            try {
+                // Convert YUV frame and rotate the frame upright and decimate it as it was
+                // for detection (the frame is drawn directly if it's already upright)
+                long stageStart = System.nanoTime();
+                OverlayContainer overlayContainer = detectedFrame.overlayContainer;
+                Mat outputRGBA = detectedFrame.yuv
+                        ? detectedFrame.yuvFrame.rgba() : detectedFrame.rgba;
+                if (OverlayRenderer.isOrientRequired(outputRGBA,
+                        overlayContainer.orientationTransform)) {
+                    overlayRenderer.orient(outputRGBA,
+                            overlayContainer.orientationTransform, uprightRGBA);
+                    outputRGBA = uprightRGBA;
+                }
+                long now = System.nanoTime();
+                stageProfiler.recordStage(StageProfiler.STAGE_ROTATE, now - stageStart);
+                stageStart = now;
+
+                overlayRenderer.render(outputRGBA, overlayContainer);
+
+                // Draw profiler's HUD with the pipeline statistics
+                updateThroughput(stageStart);
+                if (openCVHandler.isProfilerHudEnabled()) {
+                    openCVHandler.getHudLines(hudLines);
+                    hudLines.add(String.format(Locale.US,
+                            "Pipeline FPS: capture %.1f, detect %.1f, overlay %.1f",
+                            captureFps, detectionFps, overlayFps));
+                    hudLines.add("Queues: detect " + captureMailbox.getDepth()
+                            + ", overlay " + overlayMailbox.getDepth()
+                            + ", display " + displayMailbox.getDepth()
+                            + ", dropped " + captureMailbox.getDroppedCounter()
+                            + " / " + overlayMailbox.getDroppedCounter());
+                    overlayRenderer.renderHud(outputRGBA, hudLines);
+                }
+                now = System.nanoTime();
+                stageProfiler.recordStage(StageProfiler.STAGE_OVERLAY, now - stageStart);
+                stageStart = now;
+
+                // Resize to original size
+                FrameContainer composedFrame = displayMailbox.getProducerFrame();
+                displaySize.width = detectedFrame.cameraWidth;
+                displaySize.height = detectedFrame.cameraHeight;
+                Imgproc.resize(outputRGBA, composedFrame.rgba, displaySize);
+                stageProfiler.recordStage(StageProfiler.STAGE_RESIZE,
+                        System.nanoTime() - stageStart);
+
+                displayMailbox.publish();
+                composedFrames++;
+            } catch (Exception e) {
+                Log.e(TAG, "Error drawing frame!", e);
+            }
+        }
+    }
+
+    /**
+     * Calculates frames per second of each stage once per window
+     * @param now current System.nanoTime()
+     */
+    private void updateThroughput(long now) {
+        if (windowStart == 0) {
+            windowStart = now;
+            return;
+        }
+        if (now - windowStart < WINDOW_NS)
+            return;
+        double windowTime = (now - windowStart) / 1e9;
+        captureFps = (capturedFrames - windowCaptured) / windowTime;
+        detectionFps = (detectedFrames - windowDetected) / windowTime;
+        overlayFps = (composedFrames - windowComposed) / windowTime;
+        windowCaptured = capturedFrames;
+        windowDetected = detectedFrames;
+        windowComposed = composedFrames;
+        windowStart = now;
+    }
+}
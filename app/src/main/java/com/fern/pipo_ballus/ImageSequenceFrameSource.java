@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.util.Log;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class replays recorded frames: a directory of PNG / JPEG images (in the order
+ * of file names) or an MJPEG file (concatenated JPEG images, for example
+ * "ffmpeg -i video.mp4 -c:v mjpeg -f mjpeg frames.mjpeg").
+ * Frame timestamps are read from timestamps.txt next to the frames (one capture time
+ * in nanoseconds per line, any origin). Without it, frames are DEFAULT_FRAME_PERIOD apart
+ */
+public class ImageSequenceFrameSource extends AbstractFrameSource
+        implements CameraBridgeViewBase.CvCameraViewFrame {
+    private final String TAG = this.getClass().getName();
+
+    public static final String TIMESTAMPS_FILE = "timestamps.txt";
+    private static final long DEFAULT_FRAME_PERIOD = 33333333L;
+
+    private final File path;
+    private final Mat frameRGBA, frameGray;
+
+    private File[] imageFiles;
+    private RandomAccessFile mjpegFile;
+    private long[] mjpegOffsets;
+    private int[] mjpegLengths;
+    private long[] timestamps;
+    private int frameCount, frameIndex;
+
+    /**
+     * Creates new replay source
+     * @param path directory with images or MJPEG file
+     * @param rotation screen rotation of the recording (Surface.ROTATION_)
+     * @param paced true to replay at the recorded timestamps, false - as fast as possible
+     */
+    ImageSequenceFrameSource(File path, int rotation, boolean paced) {
+        super(paced, rotation);
+        this.path = path;
+        this.frameRGBA = new Mat();
+        this.frameGray = new Mat();
+    }
+
+    @Override
+    public String getName() {
+        return path.getName();
+    }
+
+    /**
+     * @return number of frames in the recording (after the source is started)
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    protected boolean openSource() {
+        try {
+            File timestampsFile;
+            if (path.isDirectory()) {
+                // Sorted images
+                imageFiles = path.listFiles(file -> {
+                    String name = file.getName().toLowerCase();
+                    return name.endsWith(".png") || name.endsWith(".jpg")
+                            || name.endsWith(".jpeg");
+                });
+                if (imageFiles == null)
+                    return false;
+                Arrays.sort(imageFiles);
+                frameCount = imageFiles.length;
+                timestampsFile = new File(path, TIMESTAMPS_FILE);
+            } else {
+                indexMjpeg();
+                frameCount = mjpegOffsets.length;
+                mjpegFile = new RandomAccessFile(path, "r");
+                timestampsFile = new File(path.getParentFile(), TIMESTAMPS_FILE);
+            }
+            readTimestamps(timestampsFile);
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Error indexing " + path, e);
+            return false;
+        }
+        frameIndex = -1;
+        return frameCount > 0;
+    }
+
+    @Override
+    protected void closeSource() {
+        try {
+            if (mjpegFile != null)
+                mjpegFile.close();
+        } catch (IOException ignored) { }
+        mjpegFile = null;
+        frameRGBA.release();
+        frameGray.release();
+    }
+
+    @Override
+    protected boolean nextFrame() throws IOException {
+        if (++frameIndex >= frameCount)
+            return false;
+
+        // Decode the image (OpenCV decodes to BGR)
+        Mat frameBGR;
+        if (imageFiles != null) {
+            frameBGR = Imgcodecs.imread(imageFiles[frameIndex].getAbsolutePath(),
+                    Imgcodecs.IMREAD_COLOR);
+        } else {
+            int length = mjpegLengths[frameIndex];
+            byte[] jpeg = new byte[length];
+            mjpegFile.seek(mjpegOffsets[frameIndex]);
+            mjpegFile.readFully(jpeg);
+            MatOfByte encoded = new MatOfByte(jpeg);
+            frameBGR = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_COLOR);
+            encoded.release();
+        }
+        try {
+            if (frameBGR.empty())
+                throw new IOException("Can't decode frame " + frameIndex);
+            Imgproc.cvtColor(frameBGR, frameRGBA, Imgproc.COLOR_BGR2RGBA);
+        } finally {
+            frameBGR.release();
+        }
+        return true;
+    }
+
+    @Override
+    protected CameraBridgeViewBase.CvCameraViewFrame getFrame() {
+        return this;
+    }
+
+    @Override
+    protected long getFrameTime() {
+        return timestamps != null ? timestamps[frameIndex] : frameIndex * DEFAULT_FRAME_PERIOD;
+    }
+
+    @Override
+    public Mat rgba() {
+        return frameRGBA;
+    }
+
+    @Override
+    public Mat gray() {
+        Imgproc.cvtColor(frameRGBA, frameGray, Imgproc.COLOR_RGBA2GRAY);
+        return frameGray;
+    }
+
+    /**
+     * Finds JPEG images (SOI 0xFFD8 ... EOI 0xFFD9 markers) in the MJPEG file
+     */
+    private void indexMjpeg() throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(path))) {
+            long position = 0, frameStart = -1;
+            int previous = -1, current;
+            while ((current = inputStream.read()) >= 0) {
+                if (previous == 0xFF) {
+                    if (current == 0xD8 && frameStart < 0)
+                        frameStart = position - 1;
+                    else if (current == 0xD9 && frameStart >= 0) {
+                        offsets.add(frameStart);
+                        lengths.add((int) (position + 1 - frameStart));
+                        frameStart = -1;
+                    }
+                }
+                previous = current;
+                position++;
+            }
+        }
+        mjpegOffsets = new long[offsets.size()];
+        mjpegLengths = new int[lengths.size()];
+        for (int i = 0; i < mjpegOffsets.length; i++) {
+            mjpegOffsets[i] = offsets.get(i);
+            mjpegLengths[i] = lengths.get(i);
+        }
+    }
+
+    /**
+     * Reads frame timestamps (only if there is a timestamp for every frame)
+     */
+    private void readTimestamps(File timestampsFile) throws IOException {
+        timestamps = null;
+        if (!timestampsFile.isFile())
+            return;
+        long[] values = new long[frameCount];
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(timestampsFile))) {
+            String line;
+            while (count < frameCount && (line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty())
+                    values[count++] = Long.parseLong(line);
+            }
+        }
+        if (count == frameCount)
+            timestamps = values;
+        else
+            Log.w(TAG, "Only " + count + " timestamps for " + frameCount + " frames");
+    }
+}
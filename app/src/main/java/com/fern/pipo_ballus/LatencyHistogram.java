@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import java.util.Arrays;
+
+/**
+ * This class provides an allocation-free histogram of time intervals with fixed
+ * log-linear buckets (16 buckets per power of two, 1 us resolution, ~6% max error)
+ * NOTE: record() must be called from a single thread.
+ * Other threads may read the statistics, but the values can be slightly inconsistent
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = 32 * SUB_BUCKETS;
+
+    private final long[] buckets = new long[BUCKETS];
+    private volatile long count;
+    private long sumMicros;
+    private long maxMicros;
+
+    /**
+     * Adds new value to the histogram
+     * @param nanos interval in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        if (micros < 0)
+            micros = 0;
+        buckets[bucketIndex(micros)]++;
+        sumMicros += micros;
+        if (micros > maxMicros)
+            maxMicros = micros;
+        count++;
+    }
+
+    /**
+     * Clears all recorded values
+     */
+    public void reset() {
+        Arrays.fill(buckets, 0);
+        sumMicros = 0;
+        maxMicros = 0;
+        count = 0;
+    }
+
+    /**
+     * Copies all recorded values from another histogram (without allocation)
+     * @param histogram source LatencyHistogram
+     */
+    public void copyFrom(LatencyHistogram histogram) {
+        System.arraycopy(histogram.buckets, 0, buckets, 0, BUCKETS);
+        sumMicros = histogram.sumMicros;
+        maxMicros = histogram.maxMicros;
+        count = histogram.count;
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return max recorded value in nanoseconds
+     */
+    public long getMax() {
+        return maxMicros * 1000;
+    }
+
+    /**
+     * @return mean value in nanoseconds
+     */
+    public long getMean() {
+        long count = this.count;
+        return count > 0 ? sumMicros * 1000 / count : 0;
+    }
+
+    /**
+     * Calculates percentile of recorded values
+     * @param percentile percentile (0 - 100)
+     * @return value in nanoseconds (upper bound of the bucket) or 0 if empty
+     */
+    public long getPercentile(double percentile) {
+        long count = this.count;
+        if (count == 0)
+            return 0;
+
+        // Find bucket where the cumulative count reaches the target
+        long target = (long) Math.ceil(count * percentile / 100.);
+        if (target < 1)
+            target = 1;
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += buckets[i];
+            if (cumulative >= target)
+                return Math.min(bucketUpperBound(i), maxMicros) * 1000;
+        }
+        return maxMicros * 1000;
+    }
+
+    /**
+     * Calculates bucket index of the value
+     * @param micros value in microseconds (>= 0)
+     * @return index in buckets array
+     */
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        int index = (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    /**
+     * @param index bucket index
+     * @return max value in microseconds that falls into the bucket
+     */
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class traces every camera frame (by its sequence number) from the frame arrival
+ * to the moment the packet was written to the serial port.
+ * Timestamps are stored in a preallocated ring buffer, so tracing doesn't allocate memory.
+ * The slot is published by writing its sequence number after the arrival time
+ * and invalidated (-1) before it's cleared, so any thread can read the slot
+ * by reading the sequence number before and after the timestamps (see exportChromeTrace())
+ * NOTE: Camera points must be marked from the camera thread, serial points from the serial thread
+ * (write completions may come from the completion thread of the Transport)
+ */
+public class LatencyTracer {
+    // Camera thread points
+    public static final int POINT_FRAME_ARRIVAL = 0;
+    public static final int POINT_PREPROCESSED = 1;
+    public static final int POINT_TABLE_DETECTED = 2;
+    public static final int POINT_BALL_DETECTED = 3;
+    public static final int POINT_ENQUEUED = 4;
+
+    // Serial thread points
+    public static final int POINT_DEQUEUED = 5;
+    public static final int POINT_WRITE_STARTED = 6;
+    public static final int POINT_WRITE_COMPLETED = 7;
+
+    private static final int POINTS = 8;
+    private static final String[] SEGMENT_NAMES = {
+            "Preprocessing", "Table detection", "Ball detection", "Publish",
+            "Mailbox", "Transmit wait", "Serial write"
+    };
+
+    private final int capacity;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray timestamps;
+
+    private final LatencyHistogram visionHistogram;
+    private final LatencyHistogram writeHistogram;
+    private final LatencyHistogram glassToWireHistogram;
+
+    /**
+     * Creates new tracer
+     * @param capacity number of frames to keep in the ring buffer
+     */
+    LatencyTracer(int capacity) {
+        this.capacity = capacity;
+        this.sequences = new AtomicLongArray(capacity);
+        this.timestamps = new AtomicLongArray(capacity * POINTS);
+        this.visionHistogram = new LatencyHistogram();
+        this.writeHistogram = new LatencyHistogram();
+        this.glassToWireHistogram = new LatencyHistogram();
+        for (int slot = 0; slot < capacity; slot++)
+            sequences.set(slot, -1);
+    }
+
+    /**
+     * Starts tracing of the new frame (camera thread)
+     * @param sequence frame sequence number
+     * @param time System.nanoTime() of the frame arrival
+     */
+    public void frameArrived(long sequence, long time) {
+        int slot = (int) (sequence % capacity);
+        sequences.set(slot, -1);
+        for (int point = 0; point < POINTS; point++)
+            timestamps.set(slot * POINTS + point, 0);
+        timestamps.set(slot * POINTS + POINT_FRAME_ARRIVAL, time);
+        sequences.set(slot, sequence);
+    }
+
+    /**
+     * Marks the moment the frame passed the point. Only the first mark of each point is stored
+     * @param sequence frame sequence number
+     * @param point one of POINT_ constants
+     * @param time System.nanoTime() of the moment
+     * @return true if this is the first mark of the point
+     */
+    public boolean mark(long sequence, int point, long time) {
+        int slot = (int) (sequence % capacity);
+        if (sequences.get(slot) != sequence
+                || !timestamps.compareAndSet(slot * POINTS + point, 0, time))
+            return false;
+
+        // Vision latency (camera thread)
+        if (point == POINT_ENQUEUED)
+            visionHistogram.record(time - timestamps.get(slot * POINTS + POINT_FRAME_ARRIVAL));
+        return true;
+    }
+
+    /**
+     * Records completed serial write (serial thread).
+     * The same frame can be sent several times (fixed transmit rate),
+     * so glass-to-wire latency is recorded only for the first write of the frame
+     * @param sequence sequence number of the frame the packet was calculated from
+     * @param captureTime System.nanoTime() of the frame arrival
+     * @param writeStartTime System.nanoTime() before the write call
+     * @param writeCompletedTime System.nanoTime() after the write call
+     */
+    public void packetWritten(long sequence, long captureTime,
+                              long writeStartTime, long writeCompletedTime) {
+        mark(sequence, POINT_WRITE_STARTED, writeStartTime);
+        writeHistogram.record(writeCompletedTime - writeStartTime);
+        if (mark(sequence, POINT_WRITE_COMPLETED, writeCompletedTime))
+            glassToWireHistogram.record(writeCompletedTime - captureTime);
+    }
+
+    /**
+     * @param sequence frame sequence number
+     * @return System.nanoTime() of the frame arrival or 0 if the frame is not traced anymore
+     */
+    public long getFrameArrivalTime(long sequence) {
+        int slot = (int) (sequence % capacity);
+        if (sequences.get(slot) != sequence)
+            return 0;
+        long time = timestamps.get(slot * POINTS + POINT_FRAME_ARRIVAL);
+        return sequences.get(slot) == sequence ? time : 0;
+    }
+
+    /**
+     * @return histogram of frame arrival to mailbox time
+     */
+    public LatencyHistogram getVisionHistogram() {
+        return visionHistogram;
+    }
+
+    /**
+     * @return histogram of serial write call durations
+     */
+    public LatencyHistogram getWriteHistogram() {
+        return writeHistogram;
+    }
+
+    /**
+     * @return histogram of frame arrival to the first serial write completion time
+     */
+    public LatencyHistogram getGlassToWireHistogram() {
+        return glassToWireHistogram;
+    }
+
+    /**
+     * Writes all traced frames in Chrome Trace Event JSON format
+     * (can be opened in chrome://tracing or https://ui.perfetto.dev)
+     * @param writer Writer to write JSON to
+     * @throws IOException on write error
+     */
+    public void exportChromeTrace(Writer writer) throws IOException {
+        exportChromeTrace(writer, null);
+    }
+
+    /**
+     * Writes all traced frames and controller telemetry in Chrome Trace Event JSON format.
+     * Can be called from any thread (frames overwritten during export are skipped),
+     * but writing takes time, so it should not be called from the UI thread
+     * @param writer Writer to write JSON to
+     * @param telemetryBuffer TelemetryBuffer to write counters from or null
+     * @throws IOException on write error
+     */
+    public void exportChromeTrace(Writer writer, TelemetryBuffer telemetryBuffer)
+            throws IOException {
+        // Find first timestamp to make trace start from 0
+        long origin = Long.MAX_VALUE;
+        for (int slot = 0; slot < capacity; slot++) {
+            long sequence = sequences.get(slot);
+            long arrival = timestamps.get(slot * POINTS + POINT_FRAME_ARRIVAL);
+            if (sequence >= 0 && sequences.get(slot) == sequence)
+                origin = Math.min(origin, arrival);
+        }
+
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":1,"
+                + "\"args\":{\"name\":\"Camera\"}},");
+        writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":2,"
+                + "\"args\":{\"name\":\"Serial\"}}");
+
+        long[] slotTimestamps = new long[POINTS];
+        for (int slot = 0; slot < capacity; slot++) {
+            // Copy the slot and skip it if it was overwritten while copying
+            long sequence = sequences.get(slot);
+            if (sequence < 0)
+                continue;
+            int base = slot * POINTS;
+            for (int point = 0; point < POINTS; point++)
+                slotTimestamps[point] = timestamps.get(base + point);
+            if (sequences.get(slot) != sequence)
+                continue;
+
+            // Write every segment between two marked points
+            long previous = slotTimestamps[POINT_FRAME_ARRIVAL];
+            for (int point = POINT_PREPROCESSED; point < POINTS; point++) {
+                long current = slotTimestamps[point];
+                if (current == 0)
+                    continue;
+                writer.write(",{\"name\":\"" + SEGMENT_NAMES[point - 1]
+                        + "\",\"ph\":\"X\",\"pid\":1,\"tid\":"
+                        + (point <= POINT_ENQUEUED ? 1 : 2)
+                        + ",\"ts\":" + (previous - origin) / 1000.
+                        + ",\"dur\":" + Math.max(current - previous, 0) / 1000.
+                        + ",\"args\":{\"seq\":" + sequence + "}}");
+                previous = current;
+            }
+        }
+
+        // Controller telemetry counters
+        if (telemetryBuffer != null && origin != Long.MAX_VALUE)
+            telemetryBuffer.exportChromeCounters(writer, origin);
+
+        writer.write("]}");
+        writer.flush();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+/**
+ * This class provides in-memory Transport. Two connected endpoints are created by createPair():
+ * bytes written to one endpoint are read from the other one.
+ * It is used to test the whole send path (and the simulated controller) without hardware.
+ * Bytes are stored in a preallocated ring buffer. Packets that don't fit are dropped
+ */
+public class LoopbackTransport extends AbstractTransport {
+    private static final long READ_TIMEOUT_MS = 100;
+
+    private final String name;
+    private final byte[] ring;
+    private int head, size;
+    private boolean open;
+    private LoopbackTransport peer;
+
+    private LoopbackTransport(String name, int capacity) {
+        this.name = name;
+        this.ring = new byte[capacity];
+    }
+
+    /**
+     * Creates two connected endpoints
+     * @param capacity size of the receive buffer of each endpoint in bytes
+     * @return array of two endpoints
+     */
+    public static LoopbackTransport[] createPair(int capacity) {
+        LoopbackTransport first = new LoopbackTransport("loopback-a", capacity);
+        LoopbackTransport second = new LoopbackTransport("loopback-b", capacity);
+        first.peer = second;
+        second.peer = first;
+        return new LoopbackTransport[]{first, second};
+    }
+
+    @Override
+    public synchronized boolean open() {
+        head = 0;
+        size = 0;
+        open = true;
+        stats.reset();
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        notifyAll();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean write(byte[] buffer, int length, long tag) {
+        if (!isOpen())
+            return false;
+        long startTime = System.nanoTime();
+        if (!peer.receive(buffer, length)) {
+            writeDropped();
+            return false;
+        }
+        writeCompleted(tag, length, startTime, true);
+        return true;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer) {
+        if (!open)
+            return -1;
+
+        // Wait for the data
+        if (size == 0) {
+            try {
+                wait(READ_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            if (!open)
+                return -1;
+        }
+
+        // Copy bytes from the ring buffer
+        int length = Math.min(size, buffer.length);
+        for (int i = 0; i < length; i++)
+            buffer[i] = ring[(head + i) % ring.length];
+        head = (head + length) % ring.length;
+        size -= length;
+        stats.countRead(length);
+        return length;
+    }
+
+    /**
+     * @return number of received bytes that can be read without waiting (as Serial.available())
+     */
+    public synchronized int available() {
+        return size;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Stores bytes written by the peer
+     * @return false if the endpoint is closed or the buffer is full
+     */
+    private synchronized boolean receive(byte[] buffer, int length) {
+        if (!open || size + length > ring.length)
+            return false;
+        int tail = (head + size) % ring.length;
+        int firstPart = Math.min(length, ring.length - tail);
+        System.arraycopy(buffer, 0, ring, tail, firstPart);
+        System.arraycopy(buffer, firstPart, ring, 0, length - firstPart);
+        size += length;
+        notifyAll();
+        return true;
+    }
+}
@@ -45,10 +45,13 @@ import androidx.core.app.ActivityCompat;
 import com.google.android.material.bottomnavigation.BottomNavigationView;
 
 import org.opencv.android.BaseLoaderCallback;
+import org.opencv.android.CameraBridgeViewBase;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
 
 public class MainActivity extends AppCompatActivity {
     private final String TAG = this.getClass().getName();
@@ -59,9 +62,14 @@ public class MainActivity extends AppCompatActivity {
     private static final int PERMISSION_REQUEST_CODE = 1;
 
     private OpenCVHandler openCVHandler;
+    private FrameSource frameSource;
     private SerialDevice serialDevice;
     private SerialHandler serialHandler;
-    private LinkedBlockingQueue<PositionContainer> positionContainers;
+    private ConnectionManager connectionManager;
+    private DeviceDiscovery deviceDiscovery;
+    private PositionMailbox positionMailbox;
+    private LatencyTracer latencyTracer;
+    private TelemetryBuffer telemetryBuffer;
 
     /**
      * Checks if OpenCV library is loaded and asks for permissions
@@ -77,7 +85,7 @@ public class MainActivity extends AppCompatActivity {
                     Log.i(TAG, "Permissions granted");
 
                     // Initialize OpenCVHandler class
-                    openCVHandler.initView();
+                    initOpenCVHandler();
                 } else {
                     // Grant permissions
                     Log.w(TAG, "Not all permissions granted");
@@ -154,6 +162,12 @@ public class MainActivity extends AppCompatActivity {
             actionsDialog.show();
         });
 
+        // Export latency trace on actions button long click
+        findViewById(R.id.actionsBtn).setOnLongClickListener(view -> {
+            exportLatencyTrace();
+            return true;
+        });
+
         // Initialize UsbManager
         UsbManager usbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
 
@@ -163,56 +177,74 @@ public class MainActivity extends AppCompatActivity {
             Toast.makeText(this, R.string.bluetooth_disabled,
                     Toast.LENGTH_SHORT).show();
 
-        // Initialize LinkedBlockingQueue
-        positionContainers = new LinkedBlockingQueue<>(10);
+        // Start discovering devices in background (the list is ready when the dialog opens)
+        deviceDiscovery = new DeviceDiscovery(this, usbManager, bluetoothAdapter);
+        deviceDiscovery.start();
+        deviceDiscovery.refresh();
+
+        // Initialize PositionMailbox
+        positionMailbox = new PositionMailbox();
+
+        // Initialize LatencyTracer (keep ~30 seconds of frames)
+        latencyTracer = new LatencyTracer(1024);
+
+        // Initialize TelemetryBuffer (keep ~20 seconds of controller feedback at 50 Hz)
+        telemetryBuffer = new TelemetryBuffer(1024);
 
         // Initialize OpenCVHandler class
-        openCVHandler = new OpenCVHandler(findViewById(R.id.javaCameraView),
-                this, positionContainers);
+        openCVHandler = new OpenCVHandler(positionMailbox, latencyTracer, telemetryBuffer);
+
+        // Initialize live camera (frames are processed by the staged pipeline).
+        // Camera2 source uses the camera view only as a surface for drawing
+        CameraBridgeViewBase cameraBridgeViewBase = findViewById(R.id.javaCameraView);
+        if (SettingsContainer.camera2)
+            frameSource = new Camera2FrameSource(cameraBridgeViewBase, this);
+        else
+            frameSource = new CameraFrameSource(cameraBridgeViewBase, this);
+        frameSource.setFrameListener(new FramePipeline(openCVHandler));
+
+        // Show / hide profiler's HUD on camera view click
+        cameraBridgeViewBase.setOnClickListener(view ->
+                openCVHandler.setProfilerHudEnabled(!openCVHandler.isProfilerHudEnabled()));
+
+        // Switch render mode (full, reduced, headless) on camera view long click
+        cameraBridgeViewBase.setOnLongClickListener(view -> {
+            int renderMode = (openCVHandler.getRenderMode() + 1) % OverlayRenderer.RENDER_MODES;
+            openCVHandler.setRenderMode(renderMode);
+            SettingsContainer.renderMode = renderMode;
+            Toast.makeText(this, getResources().getStringArray(R.array.render_modes)[renderMode],
+                    Toast.LENGTH_SHORT).show();
+            return true;
+        });
 
         // Initialize SerialHandler class
         serialDevice = new SerialDevice();
         serialHandler =
-                new SerialHandler(usbManager, bluetoothAdapter, serialDevice, positionContainers);
+                new SerialHandler(usbManager, serialDevice, positionMailbox,
+                        latencyTracer, telemetryBuffer);
 
         // Create and start SerialHandler thread
         Thread serialThread = new Thread(serialHandler);
         serialThread.setPriority(Thread.NORM_PRIORITY);
         serialThread.start();
 
+        // Create and start ConnectionManager thread (opens and reconnects the device)
+        connectionManager = new ConnectionManager(serialHandler);
+        serialHandler.setDeviceLostListener(connectionManager);
+        Thread connectionThread = new Thread(connectionManager);
+        connectionThread.setPriority(Thread.NORM_PRIORITY);
+        connectionThread.start();
+
         // Create DevicesDialog
-        DevicesDialog devicesDialog = new DevicesDialog(this, usbManager, bluetoothAdapter);
+        DevicesDialog devicesDialog = new DevicesDialog(this, usbManager, deviceDiscovery);
         devicesDialog.setDevicesListener(new DevicesListener() {
             @Override
             public void deviceSelected(SerialDevice serialDevice) {
                 // Copy serialDevice from dialog to MainActivity
-                MainActivity.this.serialDevice
-                        .setUsbSerialDriver(serialDevice.getUsbSerialDriver());
-                MainActivity.this.serialDevice
-                        .setBluetoothDevice(serialDevice.getBluetoothDevice());
-
-                // Open serial device
-                if (serialHandler.openDevice()) {
-                    // Clear LinkedBlockingQueue
-                    positionContainers.clear();
-
-                    // Start SerialThread
-                    if (!serialThread.isAlive())
-                        serialThread.start();
-
-                    // Display info message
-                    Toast.makeText(getApplicationContext(), getString(R.string.opened_) +
-                                    serialDevice.getDeviceName(),
-                            Toast.LENGTH_SHORT).show();
-                }
-                else {
-                    // Display error message
-                    Toast.makeText(getApplicationContext(), getString(R.string.error_opening) +
-                            serialDevice.getDeviceName(), Toast.LENGTH_SHORT).show();
+                MainActivity.this.serialDevice.copyFrom(serialDevice);
 
-                    // Exit back to home screen
-                    switchToHomeActivity();
-                }
+                // Open serial device (network and bluetooth connections block)
+                connectionManager.connect();
             }
 
             @Override
@@ -226,11 +258,53 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        // Create DeviceLostListener
-        serialHandler.setDeviceLostListener(() -> runOnUiThread(() -> {
-            if (!devicesDialog.isShowing())
-                devicesDialog.show();
-        }));
+        // Create ConnectionListener
+        connectionManager.setConnectionListener(new ConnectionListener() {
+            @Override
+            public void connected(boolean reconnected) {
+                runOnUiThread(() -> {
+                    if (!reconnected) {
+                        // Clear PositionMailbox
+                        positionMailbox.clear();
+
+                        // Start SerialThread
+                        if (!serialThread.isAlive())
+                            serialThread.start();
+                    }
+
+                    // Display info message
+                    Toast.makeText(getApplicationContext(), getString(reconnected
+                                    ? R.string.reconnected_ : R.string.opened_)
+                                    + serialDevice.getDeviceName(), Toast.LENGTH_SHORT).show();
+                });
+            }
+
+            @Override
+            public void connectionLost() {
+                runOnUiThread(() -> Toast.makeText(getApplicationContext(),
+                        getString(R.string.connection_lost_) + serialDevice.getDeviceName(),
+                        Toast.LENGTH_SHORT).show());
+            }
+
+            @Override
+            public void connectionFailed(boolean reconnecting) {
+                runOnUiThread(() -> {
+                    // Display error message
+                    Toast.makeText(getApplicationContext(), getString(R.string.error_opening) +
+                            serialDevice.getDeviceName(), Toast.LENGTH_SHORT).show();
+
+                    // Select device again
+                    if (reconnecting) {
+                        if (!devicesDialog.isShowing())
+                            devicesDialog.show();
+                    }
+
+                    // Exit back to home screen
+                    else
+                        switchToHomeActivity();
+                });
+            }
+        });
 
         // Show device selection dialog
         devicesDialog.show();
@@ -251,27 +325,37 @@ public class MainActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
 
-        // Enable OpenCV view
+        // Start camera
         if (openCVHandler != null && openCVHandler.isInitialized())
-            openCVHandler.getCameraBridgeViewBase().enableView();
+            frameSource.start();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
 
-        // Disable OpenCV view
-        if (openCVHandler != null && openCVHandler.isInitialized())
-            openCVHandler.getCameraBridgeViewBase().disableView();
+        // Stop camera
+        if (frameSource != null && frameSource.isRunning())
+            frameSource.stop();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
 
-        // Disable OpenCV view
-        if (openCVHandler != null && openCVHandler.isInitialized())
-            openCVHandler.getCameraBridgeViewBase().disableView();
+        // Stop camera
+        if (frameSource != null && frameSource.isRunning())
+            frameSource.stop();
+
+        // Stop device discovery
+        if (deviceDiscovery != null)
+            deviceDiscovery.stop();
+
+        // Stop reconnecting
+        if (connectionManager != null) {
+            connectionManager.stop();
+            Log.i(TAG, "Connection " + connectionManager);
+        }
 
         // Close bluetooth and usb device
         if (serialHandler != null)
@@ -311,7 +395,7 @@ public class MainActivity extends AppCompatActivity {
             Log.i(TAG, "Permissions granted");
 
             // Initialize OpenCVHandler class
-            openCVHandler.initView();
+            initOpenCVHandler();
         }
         else {
             Toast.makeText(this, getString(R.string.permissions_not_granted),
@@ -321,7 +405,41 @@ public class MainActivity extends AppCompatActivity {
             switchToHomeActivity();
         }
     }
-    
+
+    /**
+     * Initializes OpenCVHandler. The resolution governor runs only for the live camera
+     */
+    private void initOpenCVHandler() {
+        openCVHandler.initView();
+        openCVHandler.setResolutionGovernor(SettingsContainer.resolutionGovernor
+                && frameSource != null && frameSource.isLive(), SettingsContainer.resolutionLevel);
+    }
+
+    /**
+     * Saves latency trace (Chrome Trace Event JSON) to the app's external files directory
+     * (in a separate thread, so the UI thread is not blocked by writing)
+     */
+    private void exportLatencyTrace() {
+        File traceFile = new File(getExternalFilesDir(null),
+                "trace_" + System.currentTimeMillis() + ".json");
+        Thread exportThread = new Thread(() -> {
+            try {
+                BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(traceFile));
+                latencyTracer.exportChromeTrace(bufferedWriter, telemetryBuffer);
+                bufferedWriter.close();
+                runOnUiThread(() -> Toast.makeText(getApplicationContext(),
+                        getString(R.string.trace_saved_) + traceFile.getAbsolutePath(),
+                        Toast.LENGTH_LONG).show());
+            } catch (Exception e) {
+                Log.e(TAG, "Error saving latency trace!", e);
+                runOnUiThread(() -> Toast.makeText(getApplicationContext(),
+                        R.string.error_saving_trace, Toast.LENGTH_SHORT).show());
+            }
+        });
+        exportThread.setPriority(Thread.MIN_PRIORITY);
+        exportThread.start();
+    }
+
     private void switchToHomeActivity() {
         startActivity(new Intent(getApplicationContext(), HomeActivity.class));
         System.gc();
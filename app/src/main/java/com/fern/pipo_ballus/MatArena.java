@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class owns all Mats of the vision pipeline. Mats are created only through the arena
+ * (in initView()) and reused every frame. The frame loop must not create any Mat headers
+ * (no submat(), no Imgproc.findContours() or other Java APIs that return new Mats),
+ * so nothing is left for the finalizers.
+ * If accounting is enabled, the arena measures real native allocations per frame:
+ * Mats created through the arena and reallocations of the pixel data of the registered Mats
+ * (data address changed since beginFrame()). In the steady state both must be zero
+ */
+public class MatArena {
+    private final String TAG = this.getClass().getName();
+
+    private final boolean accounting;
+    private final List<Mat> mats;
+    private long[] dataAddresses;
+
+    private boolean frameStarted;
+    private int frameAllocations, frameReallocations;
+    private long totalReallocations;
+    private long allocatingFrames;
+
+    /**
+     * Creates new arena
+     * @param accounting true to measure allocations (debug mode)
+     */
+    MatArena(boolean accounting) {
+        this.accounting = accounting;
+        this.mats = new ArrayList<>();
+        this.dataAddresses = new long[0];
+    }
+
+    /**
+     * Registers new Mat in the arena. Counted as an allocation of the current frame
+     * if called between beginFrame() and endFrame()
+     * @param mat new Mat (or any subclass)
+     * @return the same Mat
+     */
+    public <T extends Mat> T register(T mat) {
+        mats.add(mat);
+        if (accounting && frameStarted)
+            frameAllocations++;
+        return mat;
+    }
+
+    /**
+     * @return new empty Mat registered in the arena
+     */
+    public Mat newMat() {
+        return register(new Mat());
+    }
+
+    /**
+     * Starts new frame (remembers data addresses of all registered Mats)
+     */
+    public void beginFrame() {
+        frameStarted = true;
+        frameAllocations = 0;
+        frameReallocations = 0;
+        if (!accounting)
+            return;
+        if (dataAddresses.length < mats.size())
+            dataAddresses = new long[mats.size() * 2];
+        for (int i = 0; i < mats.size(); i++)
+            dataAddresses[i] = mats.get(i).dataAddr();
+    }
+
+    /**
+     * Finishes the frame. Counts and reports the frame if it allocated native memory
+     */
+    public void endFrame() {
+        frameStarted = false;
+        if (!accounting)
+            return;
+
+        // Mats registered in this frame are counted as allocations already
+        int registered = Math.min(mats.size() - frameAllocations, dataAddresses.length);
+        for (int i = 0; i < registered; i++)
+            if (mats.get(i).dataAddr() != dataAddresses[i])
+                frameReallocations++;
+        totalReallocations += frameReallocations;
+
+        if (frameAllocations > 0 || frameReallocations > 0) {
+            allocatingFrames++;
+            Log.w(TAG, "Native Mats allocated: " + frameAllocations
+                    + ", reallocated: " + frameReallocations + " in one frame!");
+        }
+    }
+
+    /**
+     * Releases native memory of all registered Mats.
+     * Mats stay registered and will be reallocated by OpenCV on the next use
+     */
+    public void releaseAll() {
+        for (Mat mat : mats)
+            mat.release();
+    }
+
+    /**
+     * @return true if debug accounting is enabled
+     */
+    public boolean isAccounting() {
+        return accounting;
+    }
+
+    /**
+     * @return number of Mats created in the last frame
+     */
+    public int getFrameAllocations() {
+        return frameAllocations;
+    }
+
+    /**
+     * @return number of registered Mats whose pixel data was reallocated in the last frame
+     */
+    public int getFrameReallocations() {
+        return frameReallocations;
+    }
+
+    /**
+     * @return number of Mats owned by the arena
+     */
+    public int getLiveMats() {
+        return mats.size();
+    }
+
+    /**
+     * @return number of pixel data reallocations since the start
+     */
+    public long getTotalReallocations() {
+        return totalReallocations;
+    }
+
+    /**
+     * @return number of frames that allocated or reallocated native memory
+     */
+    public long getAllocatingFrames() {
+        return allocatingFrames;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.util.Log;
+
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * This class provides Transport over UDP or TCP (for controllers behind a Wi-Fi bridge,
+ * for example ESP32 forwarding bytes to the controller's serial port).
+ * Channels are non-blocking: a UDP datagram is sent or dropped immediately,
+ * TCP bytes that don't fit the socket buffer are kept and sent before the next packet
+ * (new packets are dropped until they are sent). The TCP packet is reported
+ * to WriteCompletionListener once all its bytes are sent
+ */
+public class NetworkTransport extends AbstractTransport {
+    private final String TAG = this.getClass().getName();
+
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int READ_TIMEOUT_MS = 100;
+    private static final int BUFFER_SIZE = 1024;
+
+    private final String host;
+    private final int port;
+    private final boolean tcp;
+
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    // Packet in sendBuffer (TCP bytes that didn't fit the socket buffer)
+    private long pendingTag, pendingStartTime;
+    private int pendingLength;
+
+    private volatile ByteChannel channel;
+    private volatile Selector selector;
+
+    /**
+     * Creates new transport
+     * @param host IP address or host name of the bridge
+     * @param port UDP or TCP port of the bridge
+     * @param tcp true to use TCP, false to use UDP
+     */
+    NetworkTransport(String host, int port, boolean tcp) {
+        this.host = host;
+        this.port = port;
+        this.tcp = tcp;
+    }
+
+    @Override
+    public boolean open() {
+        try {
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            SelectableChannel selectableChannel;
+            if (tcp) {
+                SocketChannel socketChannel = SocketChannel.open();
+                socketChannel.socket().connect(address, CONNECT_TIMEOUT_MS);
+                socketChannel.socket().setTcpNoDelay(true);
+                selectableChannel = socketChannel;
+            } else {
+                DatagramChannel datagramChannel = DatagramChannel.open();
+                datagramChannel.connect(address);
+                selectableChannel = datagramChannel;
+            }
+            selectableChannel.configureBlocking(false);
+            Selector selector = Selector.open();
+            selectableChannel.register(selector, SelectionKey.OP_READ);
+
+            sendBuffer.clear();
+            sendBuffer.flip();
+            stats.reset();
+            this.selector = selector;
+            this.channel = (ByteChannel) selectableChannel;
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Error opening " + getName() + "!", e);
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        ByteChannel channel = this.channel;
+        Selector selector = this.selector;
+        this.channel = null;
+        this.selector = null;
+        try {
+            if (channel != null)
+                channel.close();
+            if (selector != null)
+                selector.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Error closing " + getName() + "!", e);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        ByteChannel channel = this.channel;
+        return channel != null && channel.isOpen();
+    }
+
+    @Override
+    public boolean write(byte[] buffer, int length, long tag) {
+        ByteChannel channel = this.channel;
+        if (channel == null || !channel.isOpen())
+            return false;
+
+        long startTime = System.nanoTime();
+        boolean accepted = false;
+        try {
+            // Send remaining bytes of the previous TCP packet first
+            if (sendBuffer.hasRemaining()) {
+                channel.write(sendBuffer);
+                if (sendBuffer.hasRemaining()) {
+                    writeDropped();
+                    return false;
+                }
+                writeCompleted(pendingTag, pendingLength, pendingStartTime, true);
+            }
+
+            // Send new packet
+            pendingTag = tag;
+            pendingLength = length;
+            pendingStartTime = startTime;
+            accepted = true;
+            sendBuffer.clear();
+            sendBuffer.put(buffer, 0, Math.min(length, BUFFER_SIZE));
+            sendBuffer.flip();
+            int written = channel.write(sendBuffer);
+
+            // UDP socket buffer is full
+            if (!tcp && written == 0) {
+                sendBuffer.clear();
+                sendBuffer.flip();
+                writeDropped();
+                return false;
+            }
+
+            // Report the TCP packet when the rest of it is sent
+            if (!sendBuffer.hasRemaining())
+                writeCompleted(tag, length, startTime, true);
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending data to " + getName() + "!", e);
+            sendBuffer.clear();
+            sendBuffer.flip();
+            writeCompleted(pendingTag, pendingLength, pendingStartTime, false);
+            return accepted;
+        }
+        return true;
+    }
+
+    @Override
+    public int read(byte[] buffer) {
+        ByteChannel channel = this.channel;
+        Selector selector = this.selector;
+        if (channel == null || selector == null || !channel.isOpen())
+            return -1;
+        try {
+            // Wait for incoming data
+            if (selector.select(READ_TIMEOUT_MS) == 0)
+                return 0;
+            selector.selectedKeys().clear();
+
+            receiveBuffer.clear();
+            receiveBuffer.limit(Math.min(buffer.length, BUFFER_SIZE));
+            int length = channel.read(receiveBuffer);
+
+            // TCP connection is closed by the bridge
+            if (length < 0) {
+                close();
+                return -1;
+            }
+            receiveBuffer.flip();
+            receiveBuffer.get(buffer, 0, length);
+            stats.countRead(length);
+            return length;
+        } catch (PortUnreachableException e) {
+            // Nothing listens on the UDP port yet
+            return 0;
+        } catch (Exception e) {
+            // Channel is closed while reading
+            if (this.channel != null) {
+                stats.countReadError();
+                Log.e(TAG, "Error reading data from " + getName() + "!", e);
+            }
+            return -1;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return (tcp ? "tcp://" : "udp://") + host + ":" + port;
+    }
+}
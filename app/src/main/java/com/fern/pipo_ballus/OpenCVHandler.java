@@ -28,174 +28,192 @@
 
 package com.fern.pipo_ballus;
 
-import android.app.Activity;
 import android.util.Log;
 import android.view.Surface;
 
 import org.opencv.android.CameraBridgeViewBase;
-import org.opencv.core.Core;
-import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint;
-import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.RotatedRect;
-import org.opencv.core.Scalar;
+import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * This class provides the main algorithm for this application.
- * Namely, it calculates the position of the ball on the table using computer vision
+ * Namely, it calculates the position of the ball on the table using computer vision.
+ * Frames are received from a FrameSource (live camera, recording or synthetic frames)
  *
  * TODO: Add ball altitude detection (ballVSTableZ, ballSetpointZ)
  */
-public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2 {
+public class OpenCVHandler implements FrameListener {
     private final String TAG = this.getClass().getName();
 
-    private final static int ALLOWED_LOST_FRAMES = 5;
+    // Predict the ball position without detections for up to 150 ms
+    private final static long MAX_COAST_NS = 150000000L;
+    private final static int TABLE_REDETECT_FRAMES = 30;
 
     private final PositionContainer positionContainer;
     private final ActionContainer actionContainer;
 
-    private final CameraBridgeViewBase cameraBridgeViewBase;
-    private final Activity activity;
-    private final LinkedBlockingQueue<PositionContainer> positionContainers;
-
-    private Mat inputRGBA, outputRGBA, matRGBAt, matBGR, matBGRInverted, matHSV, matHSVInverted;
-    private Mat matHue, matSaturation, matValue;
-    private List<Mat> channels;
-    private Mat maskTable, maskBall, hierarchy;
-    private Scalar colorTableLower, colorTableUpper;
-    private Scalar colorBallLower, colorBallUpper;
-    private boolean tableRangeInverted, ballRangeInverted;
-    private Scalar tableEllipseColor, tableMarksColor, tableTextColor, ballColor, ballSetpointColor;
-    private Scalar redColor, orangeColor, limeColor, singleWhiteColor;
-
-    private int rotationLast;
-    private boolean initialized;
-    private int lostFrames, centeredFrames;
+    private final PositionMailbox positionMailbox;
+    private final LatencyTracer latencyTracer;
+    private final TelemetryBuffer telemetryBuffer;
+    private final TelemetryContainer hudTelemetry;
+    private final StageProfiler stageProfiler;
+    private final ColorClassifier colorClassifier;
+    private final BallSearchWindow ballSearchWindow;
+    private final BallTracker ballTracker;
+    private final OrientationTransform orientationTransform;
+    private final YUVFrame scaledYUV;
+
+    private final OverlayContainer overlayContainer;
+    private final OverlayRenderer overlayRenderer;
+    private final List<String> hudLines;
+
+    private Mat outputRGBA, scaledRGBA;
+    private Mat maskTable;
+    private Size scaledSize;
+    private TableGeometry tableGeometry;
+    private ResolutionGovernor resolutionGovernor;
+    private MatArena matArena;
+    private TableComponents tableComponents;
+    private BlobFinder blobFinder;
+    private Point ballCenter;
+    private Rect ballSearchRect, ballBoundingRect, detectedTableRect;
 
-    OpenCVHandler(CameraBridgeViewBase cameraBridgeViewBase,
-                  Activity activity,
-                  LinkedBlockingQueue<PositionContainer> positionContainers) {
-        this.cameraBridgeViewBase = cameraBridgeViewBase;
-        this.activity = activity;
-        this.positionContainers = positionContainers;
+    private boolean initialized;
+    private int centeredFrames;
+    private long frameSequence;
+    private double areaScale;
+    private int lastRotation = -1, lastCameraWidth, lastCameraHeight;
+    private boolean lastFrontCamera;
+    private volatile boolean profilerHudEnabled;
+    private volatile int renderMode;
+
+    OpenCVHandler(PositionMailbox positionMailbox,
+                  LatencyTracer latencyTracer,
+                  TelemetryBuffer telemetryBuffer) {
+        this.positionMailbox = positionMailbox;
+        this.latencyTracer = latencyTracer;
+        this.telemetryBuffer = telemetryBuffer;
+        this.hudTelemetry = new TelemetryContainer();
+        this.stageProfiler = new StageProfiler();
+        this.colorClassifier = new ColorClassifier();
+        this.ballSearchWindow = new BallSearchWindow();
+        this.ballTracker = new BallTracker(MAX_COAST_NS);
+        this.orientationTransform = new OrientationTransform();
+        this.scaledYUV = new YUVFrame();
 
         this.positionContainer = new PositionContainer();
         this.actionContainer = new ActionContainer();
+        this.overlayContainer = new OverlayContainer();
+        this.overlayRenderer = new OverlayRenderer();
+        this.hudLines = new ArrayList<>();
 
         this.initialized = false;
     }
 
-    /**
-     * @return CameraBridgeViewBase class
-     */
-    public CameraBridgeViewBase getCameraBridgeViewBase() {
-        return cameraBridgeViewBase;
-    }
-
     /**
      * Initializes the components of the class.
      * NOTE: Make sure the method is called no more than once to prevent memory leaks
      */
     public void initView() {
-        // Initialize CameraBridgeViewBase object
-        cameraBridgeViewBase.setCvCameraViewListener(this);
-        cameraBridgeViewBase.setCameraIndex(SettingsContainer.cameraID);
-        cameraBridgeViewBase.setVisibility(CameraBridgeViewBase.VISIBLE);
-        cameraBridgeViewBase.setMaxFrameSize(640, 480);
-
         // Initialize variables
-        rotationLast = -1;
         centeredFrames = 0;
+        renderMode = SettingsContainer.renderMode;
 
-        inputRGBA = new Mat();
-        outputRGBA = new Mat();
-        matRGBAt = new Mat();
-        matBGR = new Mat();
-        matBGRInverted = new Mat();
-        matHSV = new Mat();
-        matHSVInverted = new Mat();
-
-        matHue = new Mat();
-        matSaturation = new Mat();
-        matValue = new Mat();
-        channels = new ArrayList<>();
-
-        maskTable = new Mat();
-        maskBall = new Mat();
-        hierarchy = new Mat();
-
-        // Initialize HSVColor class for color conversion
-        HSVColor hsvTableLower = new HSVColor(SettingsContainer.tableColorLower);
-        HSVColor hsvTableUpper = new HSVColor(SettingsContainer.tableColorUpper);
-        HSVColor hsvBallLower = new HSVColor(SettingsContainer.ballColorLower);
-        HSVColor hsvBallUpper = new HSVColor(SettingsContainer.ballColorUpper);
-
-        // Convert table range to Scalar
-        if (hsvTableLower.getHue() == hsvTableUpper.getHue()) {
-            tableRangeInverted = false;
-            colorTableLower = new Scalar(0,
-                    hsvTableLower.getSaturationInt(), hsvTableLower.getValueInt());
-            colorTableUpper = new Scalar(179,
-                    hsvTableUpper.getSaturationInt(), hsvTableUpper.getValueInt());
-        } else if (hsvTableLower.getHue() > hsvTableUpper.getHue()) {
-            tableRangeInverted = true;
-            colorTableLower = new Scalar((int) (hsvTableLower.getHue() / 2) - 90,
-                    hsvTableLower.getSaturationInt(), hsvTableLower.getValueInt());
-            colorTableUpper = new Scalar((int) (hsvTableUpper.getHue() / 2) + 90,
-                    hsvTableUpper.getSaturationInt(), hsvTableUpper.getValueInt());
-        } else {
-            tableRangeInverted = false;
-            colorTableLower = new Scalar((int) (hsvTableLower.getHue() / 2),
-                    hsvTableLower.getSaturationInt(), hsvTableLower.getValueInt());
-            colorTableUpper = new Scalar((int) (hsvTableUpper.getHue() / 2),
-                    hsvTableUpper.getSaturationInt(), hsvTableUpper.getValueInt());
-        }
+        // Preallocate all Mats, blob buffers and points of the pipeline
+        matArena = new MatArena(SettingsContainer.matAccounting);
 
-        // Convert ball range to Scalar
-        if (Math.abs(hsvBallLower.getHue() - hsvBallUpper.getHue()) < 5) {
-            ballRangeInverted = false;
-            colorBallLower = new Scalar(0,
-                    hsvBallLower.getSaturationInt(), hsvBallLower.getValueInt());
-            colorBallUpper = new Scalar(179,
-                    hsvBallUpper.getSaturationInt(), hsvBallUpper.getValueInt());
-        } else if (hsvBallLower.getHue() > hsvBallUpper.getHue()) {
-            ballRangeInverted = true;
-            colorBallLower = new Scalar((int) (hsvBallLower.getHue() / 2) - 90,
-                    hsvBallLower.getSaturationInt(), hsvBallLower.getValueInt());
-            colorBallUpper = new Scalar((int) (hsvBallUpper.getHue() / 2) + 90,
-                    hsvBallUpper.getSaturationInt(), hsvBallUpper.getValueInt());
-        } else {
-            ballRangeInverted = false;
-            colorBallLower = new Scalar((int) (hsvBallLower.getHue() / 2),
-                    hsvBallLower.getSaturationInt(), hsvBallLower.getValueInt());
-            colorBallUpper = new Scalar((int) (hsvBallUpper.getHue() / 2),
-                    hsvBallUpper.getSaturationInt(), hsvBallUpper.getValueInt());
-        }
+        outputRGBA = matArena.newMat();
+        scaledRGBA = matArena.newMat();
+        scaledSize = new Size();
 
-        // Initialize basic colors
-        tableEllipseColor = new Scalar(0, 255, 255);
-        tableMarksColor = new Scalar(255, 0, 255);
-        tableTextColor = new Scalar(255, 255, 0);
-        ballColor = new Scalar(255, 255, 0);
-        ballSetpointColor = new Scalar(0, 255, 0);
+        maskTable = matArena.newMat();
+        tableGeometry = new TableGeometry(TABLE_REDETECT_FRAMES, orientationTransform);
+        tableComponents = new TableComponents(matArena);
+        blobFinder = new BlobFinder();
 
-        redColor = new Scalar(255, 0, 0);
-        orangeColor = new Scalar(255, 127, 0);
-        limeColor = new Scalar(0, 255, 0);
-        singleWhiteColor = new Scalar(255);
+        ballCenter = new Point();
+        ballSearchRect = new Rect();
+        ballBoundingRect = new Rect();
+        detectedTableRect = new Rect();
+
+        // Start with the processing resolution from settings
+        setResolutionGovernor(SettingsContainer.resolutionGovernor,
+                SettingsContainer.resolutionLevel);
+
+        // Build color lookup table (only if colors have changed)
+        colorClassifier.update(SettingsContainer.tableColorLower, SettingsContainer.tableColorUpper,
+                SettingsContainer.ballColorLower, SettingsContainer.ballColorUpper);
 
         // Set initialized flag
         initialized = true;
     }
 
+    /**
+     * Enables or disables the resolution governor. Recorded and synthetic frame sources,
+     * benchmarks and tests must pin the level, because the governor reacts to the measured
+     * frame time and would make their results depend on the device.
+     * NOTE: must be called after initView() and before the first frame
+     * @param enabled false to keep the level
+     * @param level initial processing resolution level (see ResolutionGovernor)
+     */
+    public void setResolutionGovernor(boolean enabled, int level) {
+        resolutionGovernor = new ResolutionGovernor(enabled, level);
+    }
+
+    /**
+     * Shows or hides profiler's HUD (p50 / p99 time of each stage and FPS)
+     * @param profilerHudEnabled true to draw HUD over the frame
+     */
+    public void setProfilerHudEnabled(boolean profilerHudEnabled) {
+        this.profilerHudEnabled = profilerHudEnabled;
+        stageProfiler.setHudEnabled(profilerHudEnabled);
+    }
+
+    /**
+     * @return true if profiler's HUD is shown
+     */
+    public boolean isProfilerHudEnabled() {
+        return profilerHudEnabled;
+    }
+
+    /**
+     * Switches the render mode. Headless and reduced modes skip the debug copy,
+     * the overlay and the resize (the display keeps the last composed frame)
+     * @param renderMode one of OverlayRenderer.RENDER_MODE_ constants
+     */
+    public void setRenderMode(int renderMode) {
+        this.renderMode = renderMode;
+    }
+
+    /**
+     * @return current render mode (OverlayRenderer.RENDER_MODE_)
+     */
+    public int getRenderMode() {
+        return renderMode;
+    }
+
+    /**
+     * @return StageProfiler with the time of each stage of the pipeline
+     */
+    public StageProfiler getStageProfiler() {
+        return stageProfiler;
+    }
+
+    /**
+     * @return position of the last processed frame (for the pipeline without PositionMailbox)
+     */
+    public PositionContainer getPositionContainer() {
+        return positionContainer;
+    }
+
     /**
      * @return true if initView() was called
      */
@@ -204,261 +222,329 @@ public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2
     }
 
     @Override
-    public void onCameraViewStarted(int width, int height) {
+    public void frameSourceStarted(int width, int height) {
 
     }
 
     @Override
-    public void onCameraViewStopped() {
-
+    public void frameSourceStopped() {
+        Log.i(TAG, "Ball ROI searches: " + ballSearchWindow.getSearches()
+                + ", hit rate: " + ballSearchWindow.getHitRate());
+        Log.i(TAG, "Tracker accepted detections: " + ballTracker.getAcceptedDetections()
+                + ", rejected: " + ballTracker.getRejectedDetections());
+        if (tableGeometry != null)
+            Log.i(TAG, "Table detections: " + tableGeometry.getDetections()
+                    + ", mask rasterizations: " + tableGeometry.getRasterizations()
+                    + ", drift failures: " + tableGeometry.getDriftFailures());
+        if (resolutionGovernor != null)
+            Log.i(TAG, "Processing resolution level: " + resolutionGovernor.getLevel()
+                    + ", changes: " + resolutionGovernor.getChanges());
+
+        // Free native memory while the camera is stopped
+        if (matArena != null)
+            matArena.releaseAll();
+        scaledYUV.release();
     }
 
+    /**
+     * Processes one frame on the calling thread: detects the table and the ball, publishes
+     * the position and draws the output frame (see FramePipeline for the staged version)
+     */
     @Override
-    public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+    public Mat frameReceived(CameraBridgeViewBase.CvCameraViewFrame inputFrame, int rotation,
+                             long captureTime) {
         try {
-            long timeStart = System.currentTimeMillis();
+            long frameStart = stageProfiler.beginFrame();
+
+            // Detect the ball in the sensor orientation and publish its position
+            // (YUV frames are converted to RGBA only for display)
+            long frameTimestamp = captureTime != 0 ? captureTime : frameStart;
+            if (inputFrame instanceof YUVFrame
+                    ? detect((YUVFrame) inputFrame, rotation, frameTimestamp, overlayContainer)
+                    : detect(inputFrame.rgba(), rotation, frameTimestamp, overlayContainer)) {
+                int renderMode = this.renderMode;
+                stageProfiler.setRenderMode(renderMode);
+
+                // Skip all debug work (headless mode shows a raw thumbnail on every Nth frame)
+                if (!OverlayRenderer.isOverlayFrame(renderMode, frameSequence)) {
+                    stageProfiler.endFrame();
+                    return OverlayRenderer.isThumbnailFrame(renderMode, frameSequence)
+                            ? inputFrame.rgba() : null;
+                }
+                long stageStart = System.nanoTime();
+
+                // Rotate (or clone) the frame upright for debug frame
+                Mat inputRGBA = inputFrame.rgba();
+                overlayRenderer.orient(inputRGBA, overlayContainer.orientationTransform,
+                        outputRGBA);
+                stageStart = stageProfiler.lap(StageProfiler.STAGE_ROTATE, stageStart);
+
+                // Draw the overlay
+                overlayRenderer.render(outputRGBA, overlayContainer);
+
+                // Draw profiler's HUD
+                if (profilerHudEnabled) {
+                    getHudLines(hudLines);
+                    overlayRenderer.renderHud(outputRGBA, hudLines);
+                }
+                stageStart = stageProfiler.lap(StageProfiler.STAGE_OVERLAY, stageStart);
+
+                // Resize to original size
+                Imgproc.resize(outputRGBA, outputRGBA, inputRGBA.size());
+                stageProfiler.lap(StageProfiler.STAGE_RESIZE, stageStart);
+
+                // Record stages time
+                stageProfiler.endFrame();
+                return outputRGBA;
+            }
+        } catch (Exception e) {
+            // Show error message
+            Log.e(TAG, "Error drawing frame!", e);
+        }
 
-            // Read input RGBA image
-            inputRGBA = inputFrame.rgba();
+        // Return raw frame if error occurs
+        return inputFrame.rgba();
+    }
 
-            // Get current screen rotation angle
-            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+    /**
+     * Detects the table and the ball, publishes the position and fills the overlay.
+     * Detection runs in the sensor orientation, only the results are transformed
+     * to the upright frame (see OrientationTransform). The frame is decimated
+     * to the processing resolution of ResolutionGovernor first, so the overlay
+     * is in the coordinates of the decimated frame. Nothing is drawn here,
+     * so the position is published as soon as the ball is found.
+     * NOTE: Must be called between StageProfiler.beginFrame() and endFrame()
+     * @param inputRGBA RGBA frame in the sensor orientation
+     * @param rotation screen rotation of the frame (Surface.ROTATION_)
+     * @param frameTimestamp capture time of the frame (System.nanoTime())
+     * @param overlayContainer overlay to fill
+     * @return false if error occurs
+     */
+    public boolean detect(Mat inputRGBA, int rotation, long frameTimestamp,
+                          OverlayContainer overlayContainer) {
+        return detect(inputRGBA, null, rotation, frameTimestamp, overlayContainer);
+    }
 
-            // Rotate frame on different orientations
-            if (rotation == Surface.ROTATION_0) {
-                Core.transpose(inputRGBA, matRGBAt);
-                if (SettingsContainer.cameraID == CameraBridgeViewBase.CAMERA_ID_FRONT)
-                    Core.flip(matRGBAt, inputRGBA, 0);
+    /**
+     * Same as detect() for the YUV frame. Planes are classified directly,
+     * the frame is never converted to RGBA here
+     * @param yuvFrame YUV frame in the sensor orientation
+     * @param rotation screen rotation of the frame (Surface.ROTATION_)
+     * @param frameTimestamp capture time of the frame (System.nanoTime())
+     * @param overlayContainer overlay to fill
+     * @return false if error occurs
+     */
+    public boolean detect(YUVFrame yuvFrame, int rotation, long frameTimestamp,
+                          OverlayContainer overlayContainer) {
+        return detect(null, yuvFrame, rotation, frameTimestamp, overlayContainer);
+    }
+
+    /**
+     * Detects the table and the ball in RGBA or YUV frame (see detect())
+     */
+    private boolean detect(Mat inputRGBA, YUVFrame yuvFrame, int rotation, long frameTimestamp,
+                           OverlayContainer overlayContainer) {
+        try {
+            long stageStart = System.nanoTime();
+            matArena.beginFrame();
+            frameSequence++;
+            latencyTracer.frameArrived(frameSequence, frameTimestamp);
+            overlayContainer.clear();
+
+            // Predict the ball state to the time of this frame
+            ballTracker.predict(frameTimestamp);
+
+            // Decimate the frame to the processing resolution of the governor
+            int cameraWidth = yuvFrame != null ? yuvFrame.getWidth() : inputRGBA.cols();
+            int cameraHeight = yuvFrame != null ? yuvFrame.getHeight() : inputRGBA.rows();
+            int frameWidth = resolutionGovernor.getProcessingSize(cameraWidth);
+            int frameHeight = resolutionGovernor.getProcessingSize(cameraHeight);
+            if (frameWidth != cameraWidth || frameHeight != cameraHeight) {
+                if (yuvFrame != null) {
+                    yuvFrame.resizeTo(scaledYUV, frameWidth, frameHeight);
+                    yuvFrame = scaledYUV;
+                } else {
+                    scaledSize.width = frameWidth;
+                    scaledSize.height = frameHeight;
+                    Imgproc.resize(inputRGBA, scaledRGBA, scaledSize, 0, 0,
+                            Imgproc.INTER_NEAREST);
+                    inputRGBA = scaledRGBA;
+                }
+            }
+            areaScale = (double) frameWidth * frameHeight / ((double) cameraWidth * cameraHeight);
+
+            // Recalculate the transform and reset the search window after rotation or resolution
+            // change. If only the processing resolution has changed, table's geometry is scaled,
+            // otherwise it's invalidated
+            boolean frontCamera = SettingsContainer.cameraID == CameraBridgeViewBase.CAMERA_ID_FRONT;
+            boolean sameView = rotation == lastRotation && frontCamera == lastFrontCamera
+                    && cameraWidth == lastCameraWidth && cameraHeight == lastCameraHeight;
+            lastRotation = rotation;
+            lastFrontCamera = frontCamera;
+            lastCameraWidth = cameraWidth;
+            lastCameraHeight = cameraHeight;
+            if (orientationTransform.update(rotation, frontCamera, frameWidth, frameHeight)) {
+                if (sameView)
+                    tableGeometry.rescale(frameWidth, frameHeight);
                 else
-                    Core.flip(matRGBAt, inputRGBA, 1);
-            } else if (rotation == Surface.ROTATION_270) {
-                Core.flip(inputRGBA, inputRGBA, 0);
-                Core.flip(inputRGBA, inputRGBA, 1);
-            } else if (rotation == Surface.ROTATION_180) {
-                Core.transpose(inputRGBA, matRGBAt);
-                if (SettingsContainer.cameraID == CameraBridgeViewBase.CAMERA_ID_FRONT)
-                    Core.flip(matRGBAt, inputRGBA, 1);
+                    tableGeometry.invalidate();
+                ballSearchWindow.reset();
+            }
+            overlayContainer.orientationTransform.copyFrom(orientationTransform);
+
+            // Classify colors. If table's geometry is locked, only a few pixels around
+            // the table are checked for drift (the ball's region is classified later).
+            // Otherwise, the whole frame is classified and the table mask is copied
+            // to native memory for detection
+            boolean detectTable = tableGeometry.isDetectionRequired(frameSequence);
+            if (!detectTable)
+                detectTable = !tableGeometry.checkDrift(colorClassifier, yuvFrame, inputRGBA);
+            if (detectTable) {
+                if (yuvFrame != null)
+                    colorClassifier.classify(yuvFrame, maskTable, null);
                 else
-                    Core.flip(matRGBAt, inputRGBA, 0);
+                    colorClassifier.classify(inputRGBA, maskTable, null);
             }
+            stageStart = stageProfiler.lap(StageProfiler.STAGE_CLASSIFY, stageStart);
+
+            latencyTracer.mark(frameSequence, LatencyTracer.POINT_PREPROCESSED, stageStart);
 
-            // Clone object for debug frame
-            inputRGBA.copyTo(outputRGBA);
-
-            // Convert to BGR
-            Imgproc.cvtColor(inputRGBA, matBGR, Imgproc.COLOR_RGBA2BGR, 3);
-
-            // Invert BGR
-            Mat invertColorMatrix = new Mat(matBGR.rows(), matBGR.cols(), matBGR.type(),
-                    new Scalar(255, 255, 255));
-            Core.subtract(invertColorMatrix, matBGR, matBGRInverted);
-            invertColorMatrix.release();
-
-            // Convert to HSV
-            Imgproc.cvtColor(matBGR, matHSV, Imgproc.COLOR_BGR2HSV, 3);
-            Imgproc.cvtColor(matBGRInverted, matHSVInverted, Imgproc.COLOR_BGR2HSV, 3);
-
-            // Extract channels with inverted Hue from HSV
-            Core.extractChannel(matHSVInverted, matHue, 0);
-            Core.extractChannel(matHSV, matSaturation, 1);
-            Core.extractChannel(matHSV, matValue, 2);
-
-            // Make inverted HSV mat
-            channels.clear();
-            channels.add(matHue);
-            channels.add(matSaturation);
-            channels.add(matValue);
-            Core.merge(channels, matHSVInverted);
-
-            // Get table mask
-            if (tableRangeInverted)
-                Core.inRange(matHSVInverted, colorTableLower, colorTableUpper, maskTable);
-            else
-                Core.inRange(matHSV, colorTableLower, colorTableUpper, maskTable);
-
-            // Get ball mask
-            if (ballRangeInverted)
-                Core.inRange(matHSVInverted, colorBallLower, colorBallUpper, maskBall);
-            else
-                Core.inRange(matHSV, colorBallLower, colorBallUpper, maskBall);
-
-            // Find table contours
-            List<MatOfPoint> contours = new ArrayList<>();
-            Imgproc.findContours(maskTable, contours, hierarchy, Imgproc.RETR_EXTERNAL,
-                    Imgproc.CHAIN_APPROX_SIMPLE);
-
-            // Check if there is at least one contour
-            if (contours.size() > 0) {
-                // Find largest contour (table)
-                int maxContourArea = 0;
-                int tableContourIndex = 0;
-                for (int i = 0; i < contours.size(); i++) {
-                    int contourArea = (int) Imgproc.contourArea(contours.get(i));
-                    if (contourArea > maxContourArea) {
-                        maxContourArea = contourArea;
-                        tableContourIndex = i;
+            // Detect the table (only if it's not locked or it's time for re-detection)
+            String tableMessage = null;
+            if (detectTable) {
+                tableMessage = detectTable();
+                stageStart = stageProfiler.lap(StageProfiler.STAGE_TABLE, stageStart);
+            }
+
+            // Check if the table is detected
+            if (tableGeometry.isValid()) {
+                latencyTracer.mark(frameSequence, LatencyTracer.POINT_TABLE_DETECTED,
+                        stageStart);
+
+                RotatedRect tableRotatedRect = tableGeometry.getEllipse();
+                Rect tableBoundingRect = tableGeometry.getBoundingRect();
+
+                // Table's ellipse, center and reference marks
+                overlayContainer.tableValid = true;
+                overlayContainer.tableEllipse.center.x = tableRotatedRect.center.x;
+                overlayContainer.tableEllipse.center.y = tableRotatedRect.center.y;
+                overlayContainer.tableEllipse.size.width = tableRotatedRect.size.width;
+                overlayContainer.tableEllipse.size.height = tableRotatedRect.size.height;
+                overlayContainer.tableEllipse.angle = tableRotatedRect.angle;
+                copyPoint(tableGeometry.getPointP(), overlayContainer.tablePointP);
+                copyPoint(tableGeometry.getPointQ(), overlayContainer.tablePointQ);
+                copyPoint(tableGeometry.getPointR(), overlayContainer.tablePointR);
+                overlayContainer.tableRadius = tableGeometry.getRadius();
+
+                // Search the ball around the predicted position if it was recently found
+                // (only the window is classified). A ball cut by the window's edge is rejected
+                int ballIndex = -1;
+                if (ballTracker.isTracking(frameTimestamp) && ballSearchWindow.predict(frameSequence,
+                        frameWidth, frameHeight, ballSearchRect)) {
+                    if (!detectTable) {
+                        classifyRegion(yuvFrame, inputRGBA, ballSearchRect);
+                        stageStart = stageProfiler.lap(StageProfiler.STAGE_CLASSIFY, stageStart);
+                    }
+                    ballIndex = findBall(ballSearchRect);
+                    if (ballIndex >= 0 && touchesWindowEdge(ballIndex, ballSearchRect,
+                            frameWidth, frameHeight))
+                        ballIndex = -1;
+                    ballSearchWindow.countSearch(ballIndex >= 0);
+
+                    // Show search window in debug mode
+                    if (profilerHudEnabled) {
+                        overlayContainer.searchRectValid = true;
+                        overlayContainer.searchRect.x = ballSearchRect.x;
+                        overlayContainer.searchRect.y = ballSearchRect.y;
+                        overlayContainer.searchRect.width = ballSearchRect.width;
+                        overlayContainer.searchRect.height = ballSearchRect.height;
                     }
+                    stageStart = stageProfiler.lap(StageProfiler.STAGE_BALL_CONTOURS,
+                            stageStart);
                 }
 
-                // Check table's area
-                if (maxContourArea > 1000) {
-
-                    // Extract table's bounding rectangle and ellipse
-                    Rect tableBoundingRect = Imgproc.boundingRect(contours.get(tableContourIndex));
-                    RotatedRect tableRotatedRect = Imgproc.fitEllipse(
-                            new MatOfPoint2f(contours.get(tableContourIndex).toArray()));
-
-                    // Reduce size of the table's ellipse to remove border
-                    tableRotatedRect.size.width -= 10;
-                    tableRotatedRect.size.height -= 10;
-
-                    // Calculate table's radius
-                    int tableCircleR = (tableBoundingRect.height + tableBoundingRect.width) / 4;
-
-                    // Draw table's ellipse
-                    Imgproc.ellipse(outputRGBA, tableRotatedRect, tableEllipseColor, 2);
-
-                    // Draw table's center
-                    Imgproc.circle(outputRGBA, tableRotatedRect.center, 5,
-                            tableMarksColor, 1);
-
-                    // Calculate frame reference points
-                    int pqXK = (int) (tableBoundingRect.width / 4 * Math.sqrt(3.));
-                    int pqYK = tableBoundingRect.height / 4;
-                    Point p = new Point(tableRotatedRect.center.x,
-                            (int) (tableRotatedRect.center.y - tableBoundingRect.height / 2));
-                    Point q = new Point(tableRotatedRect.center.x + pqXK,
-                            tableRotatedRect.center.y + pqYK);
-                    Point r = new Point(tableRotatedRect.center.x - pqXK,
-                            tableRotatedRect.center.y + pqYK);
-
-                    // Draw reference marks
-                    Imgproc.line(outputRGBA, p,
-                            new Point(p.x, (int) (p.y + tableCircleR / 4)),
-                            tableMarksColor, 1);
-                    Imgproc.circle(outputRGBA, p, 10, tableMarksColor, 1);
-                    Imgproc.putText(outputRGBA, "P", new Point(p.x - 5, p.y + 5),
-                            Core.FONT_HERSHEY_PLAIN, 1, tableTextColor, 1);
-                    Imgproc.circle(outputRGBA, q, 10, tableMarksColor, 1);
-                    Imgproc.putText(outputRGBA, "Q", new Point(q.x - 5, q.y + 5),
-                            Core.FONT_HERSHEY_PLAIN, 1, tableTextColor, 1);
-                    Imgproc.circle(outputRGBA, r, 10, tableMarksColor, 1);
-                    Imgproc.putText(outputRGBA, "R", new Point(r.x - 5, r.y + 5),
-                            Core.FONT_HERSHEY_PLAIN, 1, tableTextColor, 1);
-
-                    // Draw ball's setpoint
-                    Imgproc.circle(outputRGBA,
-                            new Point(map((int) positionContainer.ballSetpointX,
-                                    1000, 2000,
-                                    (int) (tableRotatedRect.center.x -
-                                            tableBoundingRect.width / 2),
-                                    (int) (tableRotatedRect.center.x +
-                                            tableBoundingRect.width / 2)),
-                                    map((int) positionContainer.ballSetpointY,
-                                            1000, 2000,
-                                            (int) (tableRotatedRect.center.y
-                                                    - tableBoundingRect.height / 2),
-                                            (int) (tableRotatedRect.center.y
-                                                    + tableBoundingRect.height / 2))),
-                            map((int) positionContainer.ballSetpointZ, 1000, 2000,
-                                    5, 50), ballSetpointColor, 2);
-
-                    // Initialize maskTableCircle
-                    Mat maskTableCircle =
-                            Mat.zeros(maskTable.rows(), maskTable.cols(), maskTable.type());
-
-                    // Create circle mask of the table
-                    Imgproc.ellipse(maskTableCircle, tableRotatedRect,
-                            singleWhiteColor, -1);
-
-                    // Calculate ball mask
-                    Core.bitwise_and(maskBall, maskTableCircle, maskBall);
-
-                    // Remove maskTableCircle from memory
-                    maskTableCircle.release();
-
-                    // Find ball contour
-                    List<MatOfPoint> ballContours = new ArrayList<>();
-                    Imgproc.findContours(maskBall, ballContours, hierarchy, Imgproc.RETR_EXTERNAL,
-                            Imgproc.CHAIN_APPROX_SIMPLE);
-
-                    // Check if there is at least one contour
-                    if (ballContours.size() > 0) {
-                        // Find largest contour (ball)
-                        int maxBallArea = 100;
-                        int ballContourIndex = -1;
-                        for (int i = 0; i < ballContours.size(); i++) {
-                            int contourArea = (int) Imgproc.contourArea(ballContours.get(i));
-                            if (contourArea > maxBallArea && contourArea < maxContourArea / 4) {
-                                maxBallArea = contourArea;
-                                ballContourIndex = i;
+                // Fall back to the search on the entire table
+                if (ballIndex < 0) {
+                    if (!detectTable) {
+                        classifyRegion(yuvFrame, inputRGBA, tableBoundingRect);
+                        stageStart = stageProfiler.lap(StageProfiler.STAGE_CLASSIFY, stageStart);
+                    }
+                    ballIndex = findBall(tableBoundingRect);
+                    stageStart = stageProfiler.lap(StageProfiler.STAGE_BALL_CONTOURS,
+                            stageStart);
+                }
+
+                // Check if there is at least one blob
+                if (blobFinder.getCount() > 0) {
+                    // Check if correct size found
+                    if (ballIndex >= 0) {
+                        // Find ball position (sub-pixel centroid of the blob)
+                        ballCenter.x = blobFinder.getCentroidX(ballIndex);
+                        ballCenter.y = blobFinder.getCentroidY(ballIndex);
+                        double ballRadius = blobFinder.getEquivalentRadius(ballIndex);
+                        ballSearchWindow.update(ballCenter.x, ballCenter.y, ballRadius,
+                                frameSequence);
+                        stageStart = stageProfiler.lap(StageProfiler.STAGE_CENTROID,
+                                stageStart);
+
+                        // Calculate ball position relative to table's center (1000-2000)
+                        // in the upright frame
+                        double offsetX = ballCenter.x - tableRotatedRect.center.x;
+                        double offsetY = ballCenter.y - tableRotatedRect.center.y;
+                        double uprightWidth = getUprightWidth(tableBoundingRect);
+                        double uprightHeight = getUprightHeight(tableBoundingRect);
+                        double ballVSTableX = mapDouble(
+                                orientationTransform.vectorToUprightX(offsetX, offsetY),
+                                -uprightWidth / 2., uprightWidth / 2., 1000, 2000);
+                        double ballVSTableY = mapDouble(
+                                orientationTransform.vectorToUprightY(offsetX, offsetY),
+                                -uprightHeight / 2., uprightHeight / 2., 1000, 2000);
+
+                        // Check ball position
+                        if (ballVSTableX >= 1000 && ballVSTableX <= 2000
+                                && ballVSTableY >= 1000 && ballVSTableY <= 2000) {
+
+                            // Fuse new coordinates into the tracker (outliers are rejected)
+                            if (ballTracker.update(ballVSTableX, ballVSTableY,
+                                    frameTimestamp)) {
+                                latencyTracer.mark(frameSequence,
+                                        LatencyTracer.POINT_BALL_DETECTED, System.nanoTime());
+
+                                // Ball's position
+                                overlayContainer.ballValid = true;
+                                overlayContainer.ballCenter.x = ballCenter.x;
+                                overlayContainer.ballCenter.y = ballCenter.y;
+                                overlayContainer.ballRadius = (int) ballRadius;
+                                overlayContainer.ballX = ballTracker.getX();
+                                overlayContainer.ballY = ballTracker.getY();
+                            } else {
+                                overlayContainer.message = "Outlier rejected!";
+                                overlayContainer.messageLevel = OverlayContainer.LEVEL_WARNING;
                             }
-                        }
-
-                        // Check if correct size found
-                        if (ballContourIndex >= 0) {
-                            // Find ball position
-                            MatOfPoint2f ballContour = new MatOfPoint2f();
-                            ballContours.get(ballContourIndex).convertTo(ballContour,
-                                    CvType.CV_32F);
-                            Point ballCenter = new Point();
-                            float[] radius = new float[1];
-                            Imgproc.minEnclosingCircle(ballContour, ballCenter, radius);
-
-                            // Calculate ball position relative to table's center (1000-2000)
-                            int ballVSTableX = map((int) (ballCenter.x - tableRotatedRect.center.x),
-                                    -tableBoundingRect.width / 2,
-                                    tableBoundingRect.width / 2, 1000, 2000);
-                            int ballVSTableY = map((int) (ballCenter.y - tableRotatedRect.center.y),
-                                    -tableBoundingRect.height / 2,
-                                    tableBoundingRect.height / 2, 1000, 2000);
-
-                            // Check ball position
-                            if (ballVSTableX >= 1000 && ballVSTableX <= 2000
-                                    && ballVSTableY >= 1000 && ballVSTableY <= 2000) {
-
-                                // Set new coordinates
-                                positionContainer.ballVSTableX = ballVSTableX;
-                                positionContainer.ballVSTableY = ballVSTableY;
-                                positionContainer.ballVSTableZ = 1500;
-                                positionContainer.ballDetected = true;
-
-                                // Update lost counter
-                                lostFrames = ALLOWED_LOST_FRAMES;
-
-                                // Print ball's position
-                                Imgproc.putText(outputRGBA,
-                                        "X: " + (int) (positionContainer.ballVSTableX - 1500)
-                                                + "  Y: "
-                                                + (int) (positionContainer.ballVSTableY - 1500),
-                                        new Point(30, 50), Core.FONT_HERSHEY_PLAIN,
-                                        2, ballColor, 2);
-
-                                // Draw ball's position
-                                Imgproc.circle(outputRGBA, ballCenter,
-                                        (int) radius[0], ballColor, 2);
-                            } else
-                                Imgproc.putText(outputRGBA, "Wrong ball position!", new Point(30, 50),
-                                        Core.FONT_HERSHEY_PLAIN, 2, redColor, 2);
                         } else
-                            Imgproc.putText(outputRGBA, "Wrong ball size!", new Point(30, 50),
-                                    Core.FONT_HERSHEY_PLAIN, 2, redColor, 2);
+                            overlayContainer.message = "Wrong ball position!";
                     } else
-                        Imgproc.putText(outputRGBA, "Ball not found!", new Point(30, 50),
-                                Core.FONT_HERSHEY_PLAIN, 2, redColor, 2);
+                        overlayContainer.message = "Wrong ball size!";
                 } else
-                    Imgproc.putText(outputRGBA, "Table too small!", new Point(30, 50),
-                            Core.FONT_HERSHEY_PLAIN, 2, redColor, 2);
+                    overlayContainer.message = "Ball not found!";
             } else
-                Imgproc.putText(outputRGBA, "Table not found!", new Point(30, 50),
-                        Core.FONT_HERSHEY_PLAIN, 2, redColor, 2);
-
-            // Decrement lostFrames counter every frame
-            if (lostFrames > 0)
-                lostFrames--;
-            // Clear ballDetected flag if more frames lost than threshold
-            else
-                positionContainer.ballDetected = false;
+                overlayContainer.message = tableMessage;
+
+            // Set filtered (or predicted) coordinates and velocity while the ball is tracked
+            positionContainer.ballDetected = ballTracker.isTracking(frameTimestamp);
+            if (positionContainer.ballDetected) {
+                positionContainer.ballVSTableX = ballTracker.getX();
+                positionContainer.ballVSTableY = ballTracker.getY();
+                positionContainer.ballVSTableZ = 1500;
+                positionContainer.velocityX = ballTracker.getVelocityX();
+                positionContainer.velocityY = ballTracker.getVelocityY();
+                positionContainer.velocityZ = 0;
+            }
+            // Forget the ball if it was lost for longer than MAX_COAST_NS
+            else {
+                ballTracker.reset();
+                ballSearchWindow.reset();
+            }
 
             // Clear number of centered frames and action frames if ball not detected
             if (!positionContainer.ballDetected) {
@@ -468,65 +554,201 @@ public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2
 
             // Proceed actions
             actionHandler();
-
-            // Print current action
-            if (actionContainer.action == ActionContainer.ACTION_ROTATE_CW)
-                Imgproc.putText(outputRGBA, "Rotate CW", new Point(30, 100),
-                        Core.FONT_HERSHEY_PLAIN, 2, limeColor, 2);
-            else if (actionContainer.action == ActionContainer.ACTION_ROTATE_CCW)
-                Imgproc.putText(outputRGBA, "Rotate CCW", new Point(30, 100),
-                        Core.FONT_HERSHEY_PLAIN, 2, limeColor, 2);
-            else if (actionContainer.action == ActionContainer.ACTION_JUMP)
-                Imgproc.putText(outputRGBA, "Jump", new Point(30, 100),
-                        Core.FONT_HERSHEY_PLAIN, 2, limeColor, 2);
-
-            // Send new ball's position or clear the LinkedBlockingQueue
-            try {
-                if (positionContainers != null) {
-                    if (positionContainer.ballDetected && positionContainers.size() < 10)
-                        positionContainers.put(positionContainer);
-                    else
-                        positionContainers.clear();
+            overlayContainer.action = actionContainer.action;
+
+            // Send new ball's position or clear the PositionMailbox
+            if (positionMailbox != null) {
+                positionContainer.timestamp = frameTimestamp;
+                positionContainer.sequence = frameSequence;
+                if (positionContainer.ballDetected) {
+                    latencyTracer.mark(frameSequence, LatencyTracer.POINT_ENQUEUED,
+                            System.nanoTime());
+                    positionMailbox.put(positionContainer);
                 }
-
-            } catch (Exception e) {
-                Log.e(TAG, "Error putting new position to LinkedBlockingQueue!", e);
+                else
+                    positionMailbox.clear();
             }
 
-            // Display a message about low performance if the frame time is more than 33 ms (30 fps)
-            if (System.currentTimeMillis() - timeStart > 33)
-                Imgproc.putText(outputRGBA, "WARNING! Low performance!",
-                        new Point(30, 150),
-                        Core.FONT_HERSHEY_PLAIN, 2, orangeColor, 2);
-
-            // Resize to original size
-            Imgproc.resize(outputRGBA, outputRGBA, inputFrame.rgba().size());
-
-            // On rotation changed
-            if (rotation != rotationLast) {
-                // Set MAX_PRIORITY
-                Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-
-                // Set new scaling factor
-                if (rotation == Surface.ROTATION_0 || rotation == Surface.ROTATION_180)
-                    cameraBridgeViewBase.setScaleY((float)
-                            ((inputRGBA.size().width * inputRGBA.size().width)
-                                    / (inputRGBA.size().height * inputRGBA.size().height)));
-                else
-                    cameraBridgeViewBase.setScaleY(1);
+            // Ball's setpoint (after the action has changed it)
+            if (overlayContainer.tableValid) {
+                RotatedRect tableRotatedRect = tableGeometry.getEllipse();
+                Rect tableBoundingRect = tableGeometry.getBoundingRect();
+                int uprightWidth = getUprightWidth(tableBoundingRect);
+                int uprightHeight = getUprightHeight(tableBoundingRect);
+                int offsetX = map((int) positionContainer.ballSetpointX, 1000, 2000,
+                        -(uprightWidth / 2), uprightWidth / 2);
+                int offsetY = map((int) positionContainer.ballSetpointY, 1000, 2000,
+                        -(uprightHeight / 2), uprightHeight / 2);
+                overlayContainer.setpoint.x = tableRotatedRect.center.x
+                        + orientationTransform.vectorToSensorX(offsetX, offsetY);
+                overlayContainer.setpoint.y = tableRotatedRect.center.y
+                        + orientationTransform.vectorToSensorY(offsetX, offsetY);
+                overlayContainer.setpointRadius = map((int) positionContainer.ballSetpointZ,
+                        1000, 2000, 5, 50);
             }
 
-            // Remember new rotation
-            rotationLast = rotation;
+            // Show a message about low performance if the frame time is more than the budget
+            // and let the governor adjust the processing resolution
+            long frameTime = System.nanoTime() - stageProfiler.getFrameStart();
+            overlayContainer.lowPerformance = frameTime > ResolutionGovernor.FRAME_BUDGET_NS;
+            resolutionGovernor.frameProcessed(frameTime, cameraWidth, cameraHeight);
 
-            return outputRGBA;
+            // Check native allocations
+            matArena.endFrame();
+            return true;
         } catch (Exception e) {
             // Show error message
             Log.e(TAG, "Error processing frame!", e);
+            matArena.endFrame();
         }
+        return false;
+    }
 
-        // Return raw frame if error occurs
-        return inputFrame.rgba();
+    /**
+     * Fills HUD lines: FPS and p50 / p99 time (ms) of each stage, ROI hit rate, tracker,
+     * table's geometry cache, controller feedback and native Mat allocations.
+     * Can be called from another thread (the statistics may be one frame behind)
+     * @param hudLines list to fill (cleared first)
+     */
+    public void getHudLines(List<String> hudLines) {
+        hudLines.clear();
+        Collections.addAll(hudLines, stageProfiler.getHudLines());
+
+        // ROI hit rate
+        hudLines.add("ROI hits: " + (int) (ballSearchWindow.getHitRate() * 100)
+                + "% of " + ballSearchWindow.getSearches());
+
+        // Tracker statistics
+        hudLines.add("Tracker: accepted " + ballTracker.getAcceptedDetections()
+                + ", rejected " + ballTracker.getRejectedDetections());
+
+        // Processing resolution
+        hudLines.add("Resolution: " + (int) (resolutionGovernor.getScale() * 100)
+                + "%, level " + resolutionGovernor.getLevel()
+                + ", changes " + resolutionGovernor.getChanges());
+
+        // Table's geometry cache state
+        hudLines.add("Table: " + (tableGeometry.isLocked() ? "locked" : "unlocked")
+                + ", detections " + tableGeometry.getDetections()
+                + ", drift " + tableGeometry.getDriftFailures());
+
+        // Controller feedback (protocol v2 only)
+        if (telemetryBuffer != null && telemetryBuffer.getLatest(hudTelemetry)) {
+            LatencyHistogram roundTrip = telemetryBuffer.getRoundTripHistogram();
+            hudLines.add("Ctrl: loop " + hudTelemetry.loopTime
+                    + " us, RTT p50 " + roundTrip.getPercentile(50) / 1000000
+                    + " ms, p99 " + roundTrip.getPercentile(99) / 1000000
+                    + " ms, lost " + hudTelemetry.lostPackets);
+            hudLines.add("Servos: " + hudTelemetry.servoP
+                    + " " + hudTelemetry.servoQ + " " + hudTelemetry.servoR
+                    + ((hudTelemetry.flags & TelemetryContainer.FLAG_CONNECTION_LOST) != 0
+                    ? " (watchdog)" : ""));
+        }
+
+        // Native Mat allocations in debug mode
+        if (matArena.isAccounting())
+            hudLines.add("Mats: +" + matArena.getFrameAllocations()
+                    + " realloc " + matArena.getFrameReallocations()
+                    + " live " + matArena.getLiveMats()
+                    + ", allocating frames " + matArena.getAllocatingFrames());
+    }
+
+    /**
+     * Finds the largest component of the table mask and updates TableGeometry
+     * @return null if the table is detected or error message
+     */
+    private String detectTable() {
+        // Find the largest component (table)
+        if (!tableComponents.findLargest(maskTable)) {
+            tableGeometry.invalidate();
+            return "Table not found!";
+        }
+
+        // Check table's area
+        int tableArea = tableComponents.getArea();
+        if (tableArea <= 1000 * areaScale) {
+            tableGeometry.invalidate();
+            return "Table too small!";
+        }
+
+        // Extract table's bounding rectangle and ellipse
+        tableComponents.getBoundingRect(detectedTableRect);
+        RotatedRect tableRotatedRect = tableComponents.fitEllipse();
+
+        // Update cached geometry (circle is rasterized only if the table has moved)
+        tableGeometry.update(detectedTableRect, tableRotatedRect, tableArea,
+                maskTable.cols(), maskTable.rows(), frameSequence);
+        return null;
+    }
+
+    /**
+     * Finds the largest ball blob inside the search rectangle and the table's circle
+     * (in the last classified region)
+     * @param searchRect region of the frame to search in
+     * @return index of the ball blob in blobFinder or -1 if no blob of correct size found
+     */
+    private int findBall(Rect searchRect) {
+        blobFinder.find(colorClassifier, searchRect, tableGeometry);
+        return blobFinder.findLargest((int) (100 * areaScale), tableGeometry.getArea() / 4);
+    }
+
+    /**
+     * Classifies the region of the current frame (YUV frame if available, otherwise RGBA)
+     * @param yuvFrame YUV frame or null
+     * @param rgba RGBA frame
+     * @param region region of the frame
+     */
+    private void classifyRegion(YUVFrame yuvFrame, Mat rgba, Rect region) {
+        if (yuvFrame != null)
+            colorClassifier.classify(yuvFrame, region.x, region.y, region.width, region.height);
+        else
+            colorClassifier.classify(rgba, region.x, region.y, region.width, region.height);
+    }
+
+    /**
+     * Checks if the blob touches an edge of the search window that is not an edge of the frame
+     * (part of the ball may be outside the window, so the centroid would be shifted)
+     * @param ballIndex index of the ball blob in blobFinder
+     * @param window search window
+     * @param frameWidth width of the frame
+     * @param frameHeight height of the frame
+     * @return true if the blob is cut by the window
+     */
+    private boolean touchesWindowEdge(int ballIndex, Rect window, int frameWidth,
+                                      int frameHeight) {
+        blobFinder.getBoundingRect(ballIndex, ballBoundingRect);
+        return (ballBoundingRect.x <= window.x && window.x > 0)
+                || (ballBoundingRect.y <= window.y && window.y > 0)
+                || (ballBoundingRect.x + ballBoundingRect.width >= window.x + window.width
+                && window.x + window.width < frameWidth)
+                || (ballBoundingRect.y + ballBoundingRect.height >= window.y + window.height
+                && window.y + window.height < frameHeight);
+    }
+
+    /**
+     * @param boundingRect table's bounding rectangle in the sensor frame
+     * @return width of the table in the upright frame
+     */
+    private int getUprightWidth(Rect boundingRect) {
+        return orientationTransform.isTransposed() ? boundingRect.height : boundingRect.width;
+    }
+
+    /**
+     * @param boundingRect table's bounding rectangle in the sensor frame
+     * @return height of the table in the upright frame
+     */
+    private int getUprightHeight(Rect boundingRect) {
+        return orientationTransform.isTransposed() ? boundingRect.width : boundingRect.height;
+    }
+
+    /**
+     * Copies point's coordinates (without allocation)
+     * @param source source point
+     * @param destination destination point
+     */
+    private static void copyPoint(Point source, Point destination) {
+        destination.x = source.x;
+        destination.y = source.y;
     }
 
     /**
@@ -640,4 +862,18 @@ public class OpenCVHandler implements CameraBridgeViewBase.CvCameraViewListener2
     private int map(int value, int in_min, int in_max, int out_min, int out_max) {
         return (value - in_min) * (out_max - out_min) / (in_max - in_min) + out_min;
     }
+
+    /**
+     * Re-maps a floating-point number from one range to another (without rounding)
+     * @param value the number to map
+     * @param in_min the lower bound of the value’s current range
+     * @param in_max the upper bound of the value’s current range
+     * @param out_min the lower bound of the value’s target range
+     * @param out_max the upper bound of the value’s target range
+     * @return the mapped value
+     */
+    private double mapDouble(double value, double in_min, double in_max,
+                             double out_min, double out_max) {
+        return (value - in_min) * (out_max - out_min) / (in_max - in_min) + out_min;
+    }
 }
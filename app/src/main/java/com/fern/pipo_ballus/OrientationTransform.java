@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.view.Surface;
+
+import org.opencv.core.Core;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+
+/**
+ * This class provides the constant 2x3 transform from the sensor (camera frame) coordinates
+ * to the upright coordinates of the table (P at the top), which depend on the screen rotation
+ * and the camera (front or back).
+ * upright = [a b; c d] * sensor + [tx; ty]. The linear part is a rotation by a multiple
+ * of 90 degrees, so vectors are transformed back with its transpose.
+ * Detection runs on the sensor frame and only the results are transformed
+ * (the transform is recalculated only when the rotation changes)
+ */
+public class OrientationTransform {
+    private double a, b, c, d, tx, ty;
+    private int rotateCode;
+    private int rotation, width, height;
+    private boolean frontCamera;
+
+    OrientationTransform() {
+        a = 1;
+        d = 1;
+        rotateCode = -1;
+        rotation = -1;
+    }
+
+    /**
+     * Recalculates the transform if the rotation, the camera or the frame size has changed
+     * @param rotation screen rotation (Surface.ROTATION_)
+     * @param frontCamera true for the front camera
+     * @param width width of the sensor frame
+     * @param height height of the sensor frame
+     * @return true if the transform has changed
+     */
+    public boolean update(int rotation, boolean frontCamera, int width, int height) {
+        if (rotation == this.rotation && frontCamera == this.frontCamera
+                && width == this.width && height == this.height)
+            return false;
+        this.rotation = rotation;
+        this.frontCamera = frontCamera;
+        this.width = width;
+        this.height = height;
+
+        // Same orientation as Core.rotate() with getRotateCode()
+        if (rotation == Surface.ROTATION_0)
+            rotateCode = frontCamera ? Core.ROTATE_90_COUNTERCLOCKWISE : Core.ROTATE_90_CLOCKWISE;
+        else if (rotation == Surface.ROTATION_270)
+            rotateCode = Core.ROTATE_180;
+        else if (rotation == Surface.ROTATION_180)
+            rotateCode = frontCamera ? Core.ROTATE_90_CLOCKWISE : Core.ROTATE_90_COUNTERCLOCKWISE;
+        else
+            rotateCode = -1;
+
+        if (rotateCode == Core.ROTATE_90_CLOCKWISE)
+            set(0, -1, height - 1, 1, 0, 0);
+        else if (rotateCode == Core.ROTATE_90_COUNTERCLOCKWISE)
+            set(0, 1, 0, -1, 0, width - 1);
+        else if (rotateCode == Core.ROTATE_180)
+            set(-1, 0, width - 1, 0, -1, height - 1);
+        else
+            set(1, 0, 0, 0, 1, 0);
+        return true;
+    }
+
+    /**
+     * Copies the transform from another OrientationTransform
+     * @param orientationTransform source transform
+     */
+    public void copyFrom(OrientationTransform orientationTransform) {
+        a = orientationTransform.a;
+        b = orientationTransform.b;
+        c = orientationTransform.c;
+        d = orientationTransform.d;
+        tx = orientationTransform.tx;
+        ty = orientationTransform.ty;
+        rotateCode = orientationTransform.rotateCode;
+        rotation = orientationTransform.rotation;
+        frontCamera = orientationTransform.frontCamera;
+        width = orientationTransform.width;
+        height = orientationTransform.height;
+    }
+
+    /**
+     * @return Core.ROTATE_ code to rotate the sensor frame upright or -1 if it's already upright
+     */
+    public int getRotateCode() {
+        return rotateCode;
+    }
+
+    /**
+     * @return width of the sensor frame
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height of the sensor frame
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true if X and Y axes are swapped (90 degrees rotation)
+     */
+    public boolean isTransposed() {
+        return b != 0;
+    }
+
+    /**
+     * @return X coordinate of the sensor point in the upright frame
+     */
+    public double toUprightX(double x, double y) {
+        return a * x + b * y + tx;
+    }
+
+    /**
+     * @return Y coordinate of the sensor point in the upright frame
+     */
+    public double toUprightY(double x, double y) {
+        return c * x + d * y + ty;
+    }
+
+    /**
+     * @return X component of the sensor vector in the upright frame
+     */
+    public double vectorToUprightX(double x, double y) {
+        return a * x + b * y;
+    }
+
+    /**
+     * @return Y component of the sensor vector in the upright frame
+     */
+    public double vectorToUprightY(double x, double y) {
+        return c * x + d * y;
+    }
+
+    /**
+     * @return X component of the upright vector in the sensor frame
+     */
+    public double vectorToSensorX(double x, double y) {
+        return a * x + c * y;
+    }
+
+    /**
+     * @return Y component of the upright vector in the sensor frame
+     */
+    public double vectorToSensorY(double x, double y) {
+        return b * x + d * y;
+    }
+
+    /**
+     * Transforms the sensor point into the upright frame
+     * @param source point in the sensor frame
+     * @param destination point in the upright frame (can't be source)
+     */
+    public void toUpright(Point source, Point destination) {
+        destination.x = toUprightX(source.x, source.y);
+        destination.y = toUprightY(source.x, source.y);
+    }
+
+    /**
+     * Transforms the sensor rectangle into the upright frame
+     * @param source rectangle in the sensor frame
+     * @param destination rectangle in the upright frame (can't be source)
+     */
+    public void toUpright(Rect source, Rect destination) {
+        double x1 = toUprightX(source.x, source.y);
+        double y1 = toUprightY(source.x, source.y);
+        double x2 = toUprightX(source.x + source.width - 1, source.y + source.height - 1);
+        double y2 = toUprightY(source.x + source.width - 1, source.y + source.height - 1);
+        destination.x = (int) Math.min(x1, x2);
+        destination.y = (int) Math.min(y1, y2);
+        destination.width = (int) Math.abs(x2 - x1) + 1;
+        destination.height = (int) Math.abs(y2 - y1) + 1;
+    }
+
+    /**
+     * Transforms the sensor ellipse into the upright frame
+     * (the size is kept, the angle is rotated / mirrored with the axes)
+     * @param source ellipse in the sensor frame
+     * @param destination ellipse in the upright frame (can't be source)
+     */
+    public void toUpright(RotatedRect source, RotatedRect destination) {
+        toUpright(source.center, destination.center);
+        destination.size.width = source.size.width;
+        destination.size.height = source.size.height;
+        double angle = Math.toRadians(source.angle);
+        destination.angle = Math.toDegrees(Math.atan2(
+                vectorToUprightY(Math.cos(angle), Math.sin(angle)),
+                vectorToUprightX(Math.cos(angle), Math.sin(angle))));
+    }
+
+    /**
+     * Sets the matrix
+     */
+    private void set(double a, double b, double tx, double c, double d, double ty) {
+        this.a = a;
+        this.b = b;
+        this.tx = tx;
+        this.c = c;
+        this.d = d;
+        this.ty = ty;
+    }
+}
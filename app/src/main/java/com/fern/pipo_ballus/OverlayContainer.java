@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+
+/**
+ * This class provides a container for everything that is drawn over the frame
+ * (the table, the ball, messages). It is filled by OpenCVHandler during detection
+ * and drawn by OverlayRenderer, possibly on another thread.
+ * Coordinates are in the sensor frame, OverlayRenderer transforms them to the upright frame
+ * with orientationTransform (a copy of the transform of this frame).
+ * message is one of the constant strings (or null if the ball position is printed)
+ */
+public class OverlayContainer {
+    public static final int LEVEL_ERROR = 0;
+    public static final int LEVEL_WARNING = 1;
+
+    public boolean tableValid;
+    public final RotatedRect tableEllipse;
+    public final Point tablePointP, tablePointQ, tablePointR;
+    public double tableRadius;
+    public final Point setpoint;
+    public int setpointRadius;
+
+    public boolean searchRectValid;
+    public final Rect searchRect;
+
+    public boolean ballValid;
+    public final Point ballCenter;
+    public int ballRadius;
+    public double ballX, ballY;
+
+    public String message;
+    public int messageLevel;
+    public int action;
+    public boolean lowPerformance;
+    public final OrientationTransform orientationTransform;
+
+    OverlayContainer() {
+        tableEllipse = new RotatedRect();
+        tablePointP = new Point();
+        tablePointQ = new Point();
+        tablePointR = new Point();
+        setpoint = new Point();
+        searchRect = new Rect();
+        ballCenter = new Point();
+        orientationTransform = new OrientationTransform();
+        action = ActionContainer.ACTION_NONE;
+    }
+
+    /**
+     * Resets the flags before the new frame
+     */
+    public void clear() {
+        tableValid = false;
+        searchRectValid = false;
+        ballValid = false;
+        message = null;
+        messageLevel = LEVEL_ERROR;
+        lowPerformance = false;
+    }
+}
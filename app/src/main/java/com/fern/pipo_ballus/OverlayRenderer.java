@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.List;
+
+/**
+ * This class draws OverlayContainer (the table, the ball, messages) and HUD lines over the frame.
+ * It has its own scratch points, so it can draw on another thread than the detection.
+ * Overlay coordinates are transformed from the sensor frame to the upright frame here.
+ * NOTE: One instance must be used from one thread at a time
+ */
+public class OverlayRenderer {
+    // Render modes: overlay on every frame, overlay on every Nth frame
+    // (SettingsContainer.renderInterval) and no overlay (raw thumbnail on every Nth frame)
+    public static final int RENDER_MODE_FULL = 0;
+    public static final int RENDER_MODE_REDUCED = 1;
+    public static final int RENDER_MODE_HEADLESS = 2;
+    public static final int RENDER_MODES = 3;
+
+    private final Scalar tableEllipseColor, tableMarksColor, tableTextColor, ballColor;
+    private final Scalar ballSetpointColor, redColor, orangeColor, limeColor;
+    private final Point messagePoint, actionPoint, warningPoint;
+    private final Point pointMarkEnd, pointLabel, searchRectEnd, hudTextPoint, uprightPoint;
+    private final RotatedRect tableEllipse;
+    private final Rect searchRect;
+    private final Size uprightSize;
+
+    OverlayRenderer() {
+        // Initialize basic colors
+        tableEllipseColor = new Scalar(0, 255, 255);
+        tableMarksColor = new Scalar(255, 0, 255);
+        tableTextColor = new Scalar(255, 255, 0);
+        ballColor = new Scalar(255, 255, 0);
+        ballSetpointColor = new Scalar(0, 255, 0);
+
+        redColor = new Scalar(255, 0, 0);
+        orangeColor = new Scalar(255, 127, 0);
+        limeColor = new Scalar(0, 255, 0);
+
+        messagePoint = new Point(30, 50);
+        actionPoint = new Point(30, 100);
+        warningPoint = new Point(30, 150);
+        pointMarkEnd = new Point();
+        pointLabel = new Point();
+        searchRectEnd = new Point();
+        hudTextPoint = new Point();
+        uprightPoint = new Point();
+        tableEllipse = new RotatedRect();
+        searchRect = new Rect();
+        uprightSize = new Size();
+    }
+
+    /**
+     * Rotates (or copies) the sensor frame to the upright orientation for display.
+     * If the frame was decimated for detection, it's decimated the same way
+     * (to the size of the transform), so the overlay matches the frame
+     * @param sensorRGBA frame in the sensor orientation
+     * @param orientationTransform transform of the frame
+     * @param uprightRGBA upright frame (can't be sensorRGBA)
+     */
+    public void orient(Mat sensorRGBA, OrientationTransform orientationTransform,
+                       Mat uprightRGBA) {
+        boolean transposed = orientationTransform.isTransposed();
+        uprightSize.width = transposed
+                ? orientationTransform.getHeight() : orientationTransform.getWidth();
+        uprightSize.height = transposed
+                ? orientationTransform.getWidth() : orientationTransform.getHeight();
+        boolean scaled = sensorRGBA.cols() != orientationTransform.getWidth()
+                || sensorRGBA.rows() != orientationTransform.getHeight();
+
+        if (orientationTransform.getRotateCode() >= 0) {
+            Core.rotate(sensorRGBA, uprightRGBA, orientationTransform.getRotateCode());
+            if (scaled)
+                Imgproc.resize(uprightRGBA, uprightRGBA, uprightSize, 0, 0,
+                        Imgproc.INTER_NEAREST);
+        } else if (scaled)
+            Imgproc.resize(sensorRGBA, uprightRGBA, uprightSize, 0, 0, Imgproc.INTER_NEAREST);
+        else
+            sensorRGBA.copyTo(uprightRGBA);
+    }
+
+    /**
+     * @param sensorRGBA frame in the sensor orientation
+     * @param orientationTransform transform of the frame
+     * @return false if the overlay can be drawn directly over the frame
+     * (it's upright and not decimated), true if orient() is required
+     */
+    public static boolean isOrientRequired(Mat sensorRGBA,
+                                           OrientationTransform orientationTransform) {
+        return orientationTransform.getRotateCode() >= 0
+                || sensorRGBA.cols() != orientationTransform.getWidth()
+                || sensorRGBA.rows() != orientationTransform.getHeight();
+    }
+
+    /**
+     * Draws the overlay over the frame. Primitives are transformed from the sensor frame
+     * with the overlay's OrientationTransform
+     * @param outputRGBA upright RGBA frame
+     * @param overlayContainer overlay of this frame
+     */
+    public void render(Mat outputRGBA, OverlayContainer overlayContainer) {
+        OrientationTransform orientationTransform = overlayContainer.orientationTransform;
+        if (overlayContainer.tableValid) {
+            // Draw table's ellipse
+            orientationTransform.toUpright(overlayContainer.tableEllipse, tableEllipse);
+            Imgproc.ellipse(outputRGBA, tableEllipse, tableEllipseColor, 2);
+
+            // Draw table's center
+            Imgproc.circle(outputRGBA, tableEllipse.center, 5, tableMarksColor, 1);
+
+            // Draw reference marks
+            orientationTransform.toUpright(overlayContainer.tablePointP, uprightPoint);
+            pointMarkEnd.x = uprightPoint.x;
+            pointMarkEnd.y = (int) (uprightPoint.y + overlayContainer.tableRadius / 4);
+            Imgproc.line(outputRGBA, uprightPoint, pointMarkEnd, tableMarksColor, 1);
+            drawReferenceMark(outputRGBA, uprightPoint, "P");
+            orientationTransform.toUpright(overlayContainer.tablePointQ, uprightPoint);
+            drawReferenceMark(outputRGBA, uprightPoint, "Q");
+            orientationTransform.toUpright(overlayContainer.tablePointR, uprightPoint);
+            drawReferenceMark(outputRGBA, uprightPoint, "R");
+
+            // Draw ball's setpoint
+            orientationTransform.toUpright(overlayContainer.setpoint, uprightPoint);
+            Imgproc.circle(outputRGBA, uprightPoint, overlayContainer.setpointRadius,
+                    ballSetpointColor, 2);
+        }
+
+        // Draw search window (debug mode only)
+        if (overlayContainer.searchRectValid) {
+            orientationTransform.toUpright(overlayContainer.searchRect, searchRect);
+            searchRectEnd.x = searchRect.x + searchRect.width;
+            searchRectEnd.y = searchRect.y + searchRect.height;
+            Imgproc.rectangle(outputRGBA, searchRect.tl(), searchRectEnd,
+                    ballSetpointColor, 1);
+        }
+
+        // Print and draw ball's position or print the message
+        if (overlayContainer.ballValid) {
+            Imgproc.putText(outputRGBA,
+                    "X: " + (int) (overlayContainer.ballX - 1500)
+                            + "  Y: " + (int) (overlayContainer.ballY - 1500),
+                    messagePoint, Core.FONT_HERSHEY_PLAIN, 2, ballColor, 2);
+            orientationTransform.toUpright(overlayContainer.ballCenter, uprightPoint);
+            Imgproc.circle(outputRGBA, uprightPoint, overlayContainer.ballRadius, ballColor, 2);
+        } else if (overlayContainer.message != null)
+            Imgproc.putText(outputRGBA, overlayContainer.message, messagePoint,
+                    Core.FONT_HERSHEY_PLAIN, 2,
+                    overlayContainer.messageLevel == OverlayContainer.LEVEL_WARNING
+                            ? orangeColor : redColor, 2);
+
+        // Print current action
+        if (overlayContainer.action == ActionContainer.ACTION_ROTATE_CW)
+            Imgproc.putText(outputRGBA, "Rotate CW", actionPoint,
+                    Core.FONT_HERSHEY_PLAIN, 2, limeColor, 2);
+        else if (overlayContainer.action == ActionContainer.ACTION_ROTATE_CCW)
+            Imgproc.putText(outputRGBA, "Rotate CCW", actionPoint,
+                    Core.FONT_HERSHEY_PLAIN, 2, limeColor, 2);
+        else if (overlayContainer.action == ActionContainer.ACTION_JUMP)
+            Imgproc.putText(outputRGBA, "Jump", actionPoint,
+                    Core.FONT_HERSHEY_PLAIN, 2, limeColor, 2);
+
+        // Display a message about low performance
+        if (overlayContainer.lowPerformance)
+            Imgproc.putText(outputRGBA, "WARNING! Low performance!", warningPoint,
+                    Core.FONT_HERSHEY_PLAIN, 2, orangeColor, 2);
+    }
+
+    /**
+     * Draws HUD lines in the bottom left corner of the frame
+     * @param outputRGBA RGBA frame
+     * @param hudLines lines to draw
+     */
+    public void renderHud(Mat outputRGBA, List<String> hudLines) {
+        hudTextPoint.x = 10;
+        hudTextPoint.y = outputRGBA.rows() - 15 * (hudLines.size() + 1);
+        for (int i = 0; i < hudLines.size(); i++) {
+            Imgproc.putText(outputRGBA, hudLines.get(i), hudTextPoint,
+                    Core.FONT_HERSHEY_PLAIN, 1, tableTextColor, 1);
+            hudTextPoint.y += 15;
+        }
+    }
+
+    /**
+     * @param renderMode one of RENDER_MODE_ constants
+     * @param frameIndex number of the frame
+     * @return true if the overlay is drawn over this frame
+     */
+    public static boolean isOverlayFrame(int renderMode, long frameIndex) {
+        return renderMode == RENDER_MODE_FULL || (renderMode == RENDER_MODE_REDUCED
+                && frameIndex % Math.max(SettingsContainer.renderInterval, 1) == 0);
+    }
+
+    /**
+     * @param renderMode one of RENDER_MODE_ constants
+     * @param frameIndex number of the frame
+     * @return true if the raw frame is displayed as a thumbnail (headless mode only)
+     */
+    public static boolean isThumbnailFrame(int renderMode, long frameIndex) {
+        return renderMode == RENDER_MODE_HEADLESS
+                && frameIndex % Math.max(SettingsContainer.renderInterval, 1) == 0;
+    }
+
+    /**
+     * Draws reference mark (circle with the letter) of the table
+     * @param outputRGBA RGBA frame
+     * @param point center of the mark
+     * @param label letter of the mark
+     */
+    private void drawReferenceMark(Mat outputRGBA, Point point, String label) {
+        Imgproc.circle(outputRGBA, point, 10, tableMarksColor, 1);
+        pointLabel.x = point.x - 5;
+        pointLabel.y = point.y + 5;
+        Imgproc.putText(outputRGBA, label, pointLabel,
+                Core.FONT_HERSHEY_PLAIN, 1, tableTextColor, 1);
+    }
+}
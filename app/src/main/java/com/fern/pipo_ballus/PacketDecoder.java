@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+/**
+ * This class decodes protocol v2 frames (see PacketEncoder) from the stream of received bytes
+ * without allocations. Corrupted frames are dropped and decoding resumes on the next 0x00 byte
+ */
+public class PacketDecoder {
+    private static final int MAX_FRAME_LENGTH = 64;
+
+    private final byte[] frame = new byte[MAX_FRAME_LENGTH];
+    private final byte[] payload = new byte[MAX_FRAME_LENGTH];
+    private int frameLength, payloadLength;
+    private boolean overflow;
+    private long corruptedFrames;
+
+    /**
+     * Adds received byte
+     * @param value received byte
+     * @return true if a valid frame is completed (see getType(), getPayload())
+     */
+    public boolean feed(byte value) {
+        // Collect frame bytes until the delimiter
+        if (value != 0) {
+            if (frameLength < MAX_FRAME_LENGTH)
+                frame[frameLength++] = value;
+            else
+                overflow = true;
+            return false;
+        }
+
+        // Empty frame (padding or repeated delimiter)
+        if (frameLength == 0 && !overflow)
+            return false;
+
+        boolean valid = !overflow && decode();
+        frameLength = 0;
+        overflow = false;
+        if (!valid)
+            corruptedFrames++;
+        return valid;
+    }
+
+    /**
+     * @return type of the last valid frame (PacketEncoder.TYPE_...)
+     */
+    public int getType() {
+        return payload[1] & 0xFF;
+    }
+
+    /**
+     * @return decoded payload of the last valid frame (version, type, data, CRC)
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return length of the decoded payload including CRC
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * Reads big-endian uint16 from the payload
+     * @param index index of the high byte
+     * @return value (0 - 0xFFFF)
+     */
+    public int getUInt16(int index) {
+        return ((payload[index] & 0xFF) << 8) | (payload[index + 1] & 0xFF);
+    }
+
+    /**
+     * @return number of frames dropped because of COBS or CRC errors
+     */
+    public long getCorruptedFrames() {
+        return corruptedFrames;
+    }
+
+    /**
+     * Decodes COBS frame into payload and checks version and CRC
+     * @return true if the frame is valid
+     */
+    private boolean decode() {
+        payloadLength = 0;
+        int index = 0;
+        while (index < frameLength) {
+            int code = frame[index++] & 0xFF;
+            if (index + code - 1 > frameLength)
+                return false;
+            for (int i = 1; i < code; i++)
+                payload[payloadLength++] = frame[index++];
+            if (code < 0xFF && index < frameLength)
+                payload[payloadLength++] = 0;
+        }
+
+        // Version, type and CRC
+        if (payloadLength < 4 || payload[0] != PacketEncoder.VERSION_2)
+            return false;
+        return PacketEncoder.crc16(payload, 0, payloadLength - 2) == getUInt16(payloadLength - 2);
+    }
+}
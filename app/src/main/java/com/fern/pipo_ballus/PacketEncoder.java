@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import androidx.annotation.NonNull;
+
+/**
+ * This class builds serial packets into reusable buffers (without allocations).
+ *
+ * Protocol v1 (legacy, 16 bytes): six big-endian uint16 positions, system info byte,
+ * XOR check byte and two suffix bytes (SettingsContainer.suffix1, suffix2).
+ *
+ * Protocol v2: COBS-encoded frames terminated by 0x00 (so the receiver resyncs on the next zero).
+ * Frame payload: version (2), type, type specific data, CRC-16/CCITT-FALSE (big-endian)
+ * over all previous bytes. TYPE_HELLO and TYPE_HELLO_ACK data: version (2) and position scale
+ * (requested by the app, accepted by the controller). TYPE_POSITION data:
+ * sequence (uint16), capture age (uint16, 0.1 ms), six positions (uint16, scaled as in v1),
+ * three velocities (int16, units per second) and flags (FLAG_BALL_DETECTED).
+ * TYPE_TELEMETRY data (from the controller, see TelemetryReader):
+ * echoed sequence (uint16), echo hold time (uint16, us), loop time (uint16, us),
+ * watchdog (uint16), servo P, Q, R pulses (uint16), PID outputs X, Y, Z (int16),
+ * lost packets (uint16) and flags (TelemetryContainer.FLAG_...)
+ */
+public class PacketEncoder {
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+
+    public static final int TYPE_HELLO = 0x01;
+    public static final int TYPE_POSITION = 0x02;
+    public static final int TYPE_HELLO_ACK = 0x81;
+    public static final int TYPE_TELEMETRY = 0x82;
+
+    public static final int FLAG_BALL_DETECTED = 0x01;
+
+    public static final int HELLO_PAYLOAD_LENGTH = 6;
+
+    // Positions are scaled only in v2 (the scale is agreed by HELLO / HELLO_ACK),
+    // 1000 + 1000 * MAX_POSITION_SCALE must fit into uint16
+    public static final int MIN_POSITION_SCALE = 1;
+    public static final int MAX_POSITION_SCALE = 64;
+    public static final int POSITION_PAYLOAD_LENGTH = 27;
+
+    private static final short[] CRC_TABLE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            CRC_TABLE[i] = (short) crc;
+        }
+    }
+
+    private final byte[] legacyFrame = new byte[16];
+    private final byte[] payload = new byte[POSITION_PAYLOAD_LENGTH];
+    private final byte[] helloFrame = new byte[cobsFrameLength(HELLO_PAYLOAD_LENGTH)];
+    private final byte[] positionFrame = new byte[cobsFrameLength(POSITION_PAYLOAD_LENGTH)];
+
+    private int sequence;
+
+    /**
+     * Builds v1 position packet (positions are not scaled, because the legacy protocol
+     * has no way to agree on the scale)
+     * @param positionContainer position to send
+     * @return 16-byte packet (the same buffer every call)
+     */
+    public byte[] encodePositionV1(@NonNull PositionContainer positionContainer) {
+        // Positions
+        putPosition(legacyFrame, 0, positionContainer.ballVSTableX, 1);
+        putPosition(legacyFrame, 2, positionContainer.ballVSTableY, 1);
+        putPosition(legacyFrame, 4, positionContainer.ballVSTableZ, 1);
+        putPosition(legacyFrame, 6, positionContainer.ballSetpointX, 1);
+        putPosition(legacyFrame, 8, positionContainer.ballSetpointY, 1);
+        putPosition(legacyFrame, 10, positionContainer.ballSetpointZ, 1);
+
+        // System info
+        legacyFrame[12] = (byte) 0;
+
+        // Calculate check byte
+        byte checkByte = 0;
+        for (int i = 0; i <= 12; i++)
+            checkByte = (byte) (checkByte ^ legacyFrame[i]);
+        legacyFrame[13] = checkByte;
+
+        // Suffix
+        legacyFrame[14] = SettingsContainer.suffix1;
+        legacyFrame[15] = SettingsContainer.suffix2;
+        return legacyFrame;
+    }
+
+    /**
+     * Builds v2 HELLO frame (requests protocol v2 from the controller)
+     * @param positionScale requested position scale (MIN_POSITION_SCALE - MAX_POSITION_SCALE)
+     * @return COBS frame (the same buffer every call)
+     */
+    public byte[] encodeHello(int positionScale) {
+        payload[0] = (byte) VERSION_2;
+        payload[1] = (byte) TYPE_HELLO;
+        payload[2] = (byte) VERSION_2;
+        payload[3] = (byte) positionScale;
+        putCrc(payload, 4);
+        cobsEncode(payload, HELLO_PAYLOAD_LENGTH, helloFrame);
+        return helloFrame;
+    }
+
+    /**
+     * Builds v2 position frame. Sequence number is incremented every call
+     * @param positionContainer position to send
+     * @param captureAge time since the capture of the camera frame in nanoseconds
+     * @param positionScale position scale accepted by the controller in HELLO_ACK
+     * @return COBS frame (the same buffer every call)
+     */
+    public byte[] encodePositionV2(@NonNull PositionContainer positionContainer,
+                                   long captureAge, int positionScale) {
+        sequence = (sequence + 1) & 0xFFFF;
+
+        payload[0] = (byte) VERSION_2;
+        payload[1] = (byte) TYPE_POSITION;
+        putUInt16(payload, 2, sequence);
+        putUInt16(payload, 4, (int) Math.max(0, Math.min(0xFFFF, captureAge / 100000)));
+
+        // Positions
+        putPosition(payload, 6, positionContainer.ballVSTableX, positionScale);
+        putPosition(payload, 8, positionContainer.ballVSTableY, positionScale);
+        putPosition(payload, 10, positionContainer.ballVSTableZ, positionScale);
+        putPosition(payload, 12, positionContainer.ballSetpointX, positionScale);
+        putPosition(payload, 14, positionContainer.ballSetpointY, positionScale);
+        putPosition(payload, 16, positionContainer.ballSetpointZ, positionScale);
+
+        // Velocities
+        putVelocity(payload, 18, positionContainer.velocityX);
+        putVelocity(payload, 20, positionContainer.velocityY);
+        putVelocity(payload, 22, positionContainer.velocityZ);
+
+        // Flags
+        payload[24] = (byte) (positionContainer.ballDetected ? FLAG_BALL_DETECTED : 0);
+
+        putCrc(payload, 25);
+        cobsEncode(payload, POSITION_PAYLOAD_LENGTH, positionFrame);
+        return positionFrame;
+    }
+
+    /**
+     * @return sequence number of the last position frame
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Calculates CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF)
+     * @param data data array
+     * @param offset index of the first byte
+     * @param length number of bytes
+     * @return CRC (0 - 0xFFFF)
+     */
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++)
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        return crc;
+    }
+
+    /**
+     * @param payloadLength length of the payload (less than 254 bytes)
+     * @return length of the COBS frame including the 0x00 delimiter
+     */
+    public static int cobsFrameLength(int payloadLength) {
+        return payloadLength + 2;
+    }
+
+    /**
+     * Encodes payload with Consistent Overhead Byte Stuffing and appends 0x00 delimiter
+     * @param source payload (less than 254 bytes)
+     * @param length length of the payload
+     * @param frame output buffer of cobsFrameLength(length) bytes
+     */
+    private static void cobsEncode(byte[] source, int length, byte[] frame) {
+        int codeIndex = 0;
+        int code = 1;
+        int frameIndex = 1;
+        for (int i = 0; i < length; i++) {
+            if (source[i] == 0) {
+                frame[codeIndex] = (byte) code;
+                codeIndex = frameIndex++;
+                code = 1;
+            } else {
+                frame[frameIndex++] = source[i];
+                code++;
+            }
+        }
+        frame[codeIndex] = (byte) code;
+        frame[frameIndex] = 0;
+    }
+
+    /**
+     * Writes CRC of the first index bytes of the buffer at index (big-endian)
+     */
+    private static void putCrc(byte[] buffer, int index) {
+        putUInt16(buffer, index, crc16(buffer, 0, index));
+    }
+
+    /**
+     * Writes position value as big-endian uint16.
+     * The value is scaled around 1000 by positionScale
+     * (1000-2000 becomes 1000-(1000 + 1000 * positionScale)) to keep sub-unit precision
+     * @param buffer output buffer
+     * @param index index of the high byte
+     * @param value position value (1000-2000)
+     * @param positionScale position scale
+     */
+    private static void putPosition(byte[] buffer, int index, double value, int positionScale) {
+        long scaled = Math.round(1000 + (value - 1000) * positionScale);
+        putUInt16(buffer, index, (int) Math.max(0, Math.min(0xFFFF, scaled)));
+    }
+
+    /**
+     * Writes velocity (units per second) as big-endian int16
+     */
+    private static void putVelocity(byte[] buffer, int index, double value) {
+        long rounded = Math.round(value);
+        putUInt16(buffer, index, (int) Math.max(Short.MIN_VALUE,
+                Math.min(Short.MAX_VALUE, rounded)) & 0xFFFF);
+    }
+
+    private static void putUInt16(byte[] buffer, int index, int value) {
+        buffer[index] = (byte) ((value >> 8) & 0xFF);
+        buffer[index + 1] = (byte) (value & 0xFF);
+    }
+}
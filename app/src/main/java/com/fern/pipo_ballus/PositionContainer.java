@@ -31,11 +31,17 @@ package com.fern.pipo_ballus;
 /**
  * This class provides a container for the position of the ball
  * relative to the center of the table.
+ * timestamp is the System.nanoTime() of the camera frame the position was calculated from
+ * and sequence is the number of that frame (see LatencyTracer).
+ * velocityX, velocityY and velocityZ are filtered velocities (units per second, see BallTracker)
  */
 public class PositionContainer {
     public double ballVSTableX, ballVSTableY, ballVSTableZ;
     public double ballSetpointX, ballSetpointY, ballSetpointZ;
+    public double velocityX, velocityY, velocityZ;
     public boolean ballDetected;
+    public long timestamp;
+    public long sequence;
 
     PositionContainer() {
         ballVSTableX = 1500;
@@ -44,6 +50,30 @@ public class PositionContainer {
         ballSetpointX = 1500;
         ballSetpointY = 1500;
         ballSetpointZ = 1500;
+        velocityX = 0;
+        velocityY = 0;
+        velocityZ = 0;
         ballDetected = false;
+        timestamp = 0;
+        sequence = 0;
+    }
+
+    /**
+     * Copies all values from another PositionContainer
+     * @param positionContainer source PositionContainer
+     */
+    public void copyFrom(PositionContainer positionContainer) {
+        ballVSTableX = positionContainer.ballVSTableX;
+        ballVSTableY = positionContainer.ballVSTableY;
+        ballVSTableZ = positionContainer.ballVSTableZ;
+        ballSetpointX = positionContainer.ballSetpointX;
+        ballSetpointY = positionContainer.ballSetpointY;
+        ballSetpointZ = positionContainer.ballSetpointZ;
+        velocityX = positionContainer.velocityX;
+        velocityY = positionContainer.velocityY;
+        velocityZ = positionContainer.velocityZ;
+        ballDetected = positionContainer.ballDetected;
+        timestamp = positionContainer.timestamp;
+        sequence = positionContainer.sequence;
     }
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import androidx.annotation.NonNull;
+
+/**
+ * This class extrapolates the position of the ball between camera frames
+ * (and to the moment the packet reaches the controller) using the last detection,
+ * its capture timestamp and the velocity estimated by BallTracker
+ */
+public class PositionExtrapolator {
+    private final PositionContainer lastPosition;
+    private boolean hasPosition;
+
+    PositionExtrapolator() {
+        this.lastPosition = new PositionContainer();
+        reset();
+    }
+
+    /**
+     * Forgets all previous detections
+     */
+    public void reset() {
+        hasPosition = false;
+    }
+
+    /**
+     * Adds new detection
+     * @param positionContainer new PositionContainer with timestamp and velocity
+     */
+    public void update(@NonNull PositionContainer positionContainer) {
+        // Ignore out-of-order detections
+        if (hasPosition && positionContainer.timestamp <= lastPosition.timestamp)
+            return;
+
+        // Store current detection
+        lastPosition.copyFrom(positionContainer);
+        hasPosition = true;
+    }
+
+    /**
+     * @return timestamp of the last detection
+     */
+    public long getLastTimestamp() {
+        return lastPosition.timestamp;
+    }
+
+    /**
+     * Calculates position of the ball at the specified time
+     * @param time System.nanoTime() of the moment
+     * @param maxHorizon max allowed time since the last detection (in nanoseconds)
+     * @param output PositionContainer to write extrapolated position to
+     * @return true if position is calculated or false if there is no fresh detection
+     */
+    public boolean extrapolate(long time, long maxHorizon, @NonNull PositionContainer output) {
+        if (!hasPosition)
+            return false;
+
+        // Check the age of the last detection
+        long horizon = time - lastPosition.timestamp;
+        if (horizon > maxHorizon)
+            return false;
+        if (horizon < 0)
+            horizon = 0;
+
+        // Copy setpoints and timestamp
+        output.copyFrom(lastPosition);
+
+        // Extrapolate position with constant velocity (units per second)
+        double horizonSeconds = horizon / 1e9;
+        output.ballVSTableX = constrain(lastPosition.ballVSTableX
+                + lastPosition.velocityX * horizonSeconds);
+        output.ballVSTableY = constrain(lastPosition.ballVSTableY
+                + lastPosition.velocityY * horizonSeconds);
+        output.ballVSTableZ = constrain(lastPosition.ballVSTableZ
+                + lastPosition.velocityZ * horizonSeconds);
+        return true;
+    }
+
+    /**
+     * Constrains value to the table range (1000-2000)
+     * @param value position
+     * @return constrained position
+     */
+    private static double constrain(double value) {
+        return Math.max(1000, Math.min(2000, value));
+    }
+}
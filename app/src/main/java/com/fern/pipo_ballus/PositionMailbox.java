@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class provides a single-producer / single-consumer "latest wins" mailbox
+ * for PositionContainer snapshots (lock-free triple buffer).
+ * The producer (camera thread) never blocks and always overwrites the previous unread sample,
+ * the consumer (serial thread) always receives the newest complete snapshot
+ */
+public class PositionMailbox {
+    private static final int INDEX_MASK = 0b011;
+    private static final int DIRTY_FLAG = 0b100;
+
+    // Three preallocated snapshots. One is owned by the producer, one by the consumer
+    // and one is shared (its index is stored in sharedIndex)
+    private final PositionContainer[] snapshots = new PositionContainer[3];
+    private final AtomicInteger sharedIndex;
+    private int producerIndex;
+    private int consumerIndex;
+
+    private final AtomicLong publishedCounter = new AtomicLong();
+    private final AtomicLong overwrittenCounter = new AtomicLong();
+    private final AtomicLong staleCounter = new AtomicLong();
+
+    private volatile Thread consumerThread;
+    private volatile long clearTimestamp = Long.MIN_VALUE;
+
+    PositionMailbox() {
+        for (int i = 0; i < snapshots.length; i++)
+            snapshots[i] = new PositionContainer();
+        this.producerIndex = 0;
+        this.sharedIndex = new AtomicInteger(1);
+        this.consumerIndex = 2;
+    }
+
+    /**
+     * Copies positionContainer into the mailbox. Never blocks.
+     * NOTE: Must be called from the producer thread only
+     * @param positionContainer current position (timestamp must be set)
+     */
+    public void put(@NonNull PositionContainer positionContainer) {
+        // Fill producer's own snapshot
+        snapshots[producerIndex].copyFrom(positionContainer);
+
+        // Swap it with the shared one and mark it as new
+        int previous = sharedIndex.getAndSet(producerIndex | DIRTY_FLAG);
+        producerIndex = previous & INDEX_MASK;
+
+        // Previous sample was never read by consumer
+        if ((previous & DIRTY_FLAG) != 0)
+            overwrittenCounter.incrementAndGet();
+        publishedCounter.incrementAndGet();
+
+        // Wake up consumer
+        Thread consumer = consumerThread;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Returns the newest sample if there is one and it is not older than maxAgeNanos.
+     * Returned object is owned by consumer until the next poll() / take() call
+     * and must not be modified.
+     * NOTE: Must be called from the consumer thread only
+     * @param maxAgeNanos max allowed age of the sample (by PositionContainer.timestamp)
+     * @return newest PositionContainer or null
+     */
+    public PositionContainer poll(long maxAgeNanos) {
+        // Nothing new
+        if ((sharedIndex.get() & DIRTY_FLAG) == 0)
+            return null;
+
+        // Swap consumer's snapshot with the shared one
+        consumerIndex = sharedIndex.getAndSet(consumerIndex) & INDEX_MASK;
+        PositionContainer positionContainer = snapshots[consumerIndex];
+
+        // Drop stale or cleared samples
+        if (isCleared(positionContainer.timestamp)
+                || System.nanoTime() - positionContainer.timestamp > maxAgeNanos) {
+            staleCounter.incrementAndGet();
+            return null;
+        }
+        return positionContainer;
+    }
+
+    /**
+     * Waits for the new sample (see poll())
+     * NOTE: Must be called from the consumer thread only
+     * @param maxAgeNanos max allowed age of the sample
+     * @param timeoutNanos max waiting time
+     * @return newest PositionContainer or null on timeout / interrupt
+     */
+    public PositionContainer take(long maxAgeNanos, long timeoutNanos) {
+        consumerThread = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            PositionContainer positionContainer = poll(maxAgeNanos);
+            if (positionContainer != null)
+                return positionContainer;
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || Thread.currentThread().isInterrupted())
+                return null;
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    /**
+     * Discards all samples captured before this moment. Can be called from any thread
+     */
+    public void clear() {
+        clearTimestamp = System.nanoTime();
+    }
+
+    /**
+     * Checks if the sample with the specified timestamp was discarded by clear()
+     * @param timestamp PositionContainer.timestamp
+     * @return true if clear() was called after the sample was captured
+     */
+    public boolean isCleared(long timestamp) {
+        return timestamp <= clearTimestamp;
+    }
+
+    /**
+     * @return total number of samples put into the mailbox
+     */
+    public long getPublishedCounter() {
+        return publishedCounter.get();
+    }
+
+    /**
+     * @return number of samples that were overwritten before the consumer read them
+     */
+    public long getOverwrittenCounter() {
+        return overwrittenCounter.get();
+    }
+
+    /**
+     * @return number of samples dropped by consumer because of their age
+     */
+    public long getStaleCounter() {
+        return staleCounter.get();
+    }
+}
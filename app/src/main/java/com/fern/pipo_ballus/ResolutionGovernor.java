@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * This class selects the processing resolution of the detection from the measured frame time.
+ * The camera frame is decimated to 100%, 75% or 50% (640 -> 480 -> 320 wide).
+ * Frame times are collected in windows of WINDOW_FRAMES frames. If p90 of the window misses
+ * the frame budget, the resolution is stepped down at once. It's stepped up only after
+ * STEP_UP_WINDOWS windows in a row, in which the cost predicted for the higher resolution
+ * (scaled by the number of pixels) leaves STEP_UP_HEADROOM of the budget free,
+ * so the resolution doesn't oscillate around the budget.
+ * Every decision is logged (to choose SettingsContainer.resolutionLevel for the device)
+ * NOTE: frameProcessed() must be called from a single thread
+ */
+public class ResolutionGovernor {
+    private final String TAG = this.getClass().getName();
+
+    // Frame budget (30 FPS)
+    public static final long FRAME_BUDGET_NS = 33000000L;
+
+    // Processing scales of the camera frame
+    private static final double[] SCALES = {1., 0.75, 0.5};
+    public static final int LEVELS = SCALES.length;
+
+    private static final int WINDOW_FRAMES = 30;
+    private static final double STEP_UP_HEADROOM = 0.3;
+    private static final int STEP_UP_WINDOWS = 3;
+
+    private final LatencyHistogram windowHistogram;
+    private final boolean enabled;
+    private volatile int level;
+    private volatile long changes;
+    private int headroomWindows;
+
+    /**
+     * Creates new governor
+     * @param enabled false to keep the initial level
+     * @param level initial level (0 - full resolution, LEVELS - 1 - the lowest)
+     */
+    ResolutionGovernor(boolean enabled, int level) {
+        this.windowHistogram = new LatencyHistogram();
+        this.enabled = enabled;
+        this.level = Math.max(0, Math.min(LEVELS - 1, level));
+    }
+
+    /**
+     * Adds time of the processed frame and changes the level at the end of the window
+     * @param frameTime processing time of the frame in nanoseconds
+     * @param cameraWidth width of the camera frame (for logs)
+     * @param cameraHeight height of the camera frame (for logs)
+     */
+    public void frameProcessed(long frameTime, int cameraWidth, int cameraHeight) {
+        windowHistogram.record(frameTime);
+        if (windowHistogram.getCount() < WINDOW_FRAMES)
+            return;
+        long windowTime = windowHistogram.getPercentile(90);
+        windowHistogram.reset();
+        if (!enabled)
+            return;
+
+        // Step down as soon as the budget is missed
+        if (windowTime > FRAME_BUDGET_NS) {
+            headroomWindows = 0;
+            if (level < LEVELS - 1)
+                setLevel(level + 1, windowTime, cameraWidth, cameraHeight);
+            return;
+        }
+
+        // Step up if the higher resolution fits into the budget with headroom for a while
+        if (level > 0) {
+            double pixelsRatio = (SCALES[level - 1] * SCALES[level - 1])
+                    / (SCALES[level] * SCALES[level]);
+            if (windowTime * pixelsRatio < FRAME_BUDGET_NS * (1. - STEP_UP_HEADROOM)) {
+                if (++headroomWindows >= STEP_UP_WINDOWS) {
+                    headroomWindows = 0;
+                    setLevel(level - 1, windowTime, cameraWidth, cameraHeight);
+                }
+            } else
+                headroomWindows = 0;
+        }
+    }
+
+    /**
+     * @param cameraSize width or height of the camera frame
+     * @return width or height of the processed frame (even, for YUV frames)
+     */
+    public int getProcessingSize(int cameraSize) {
+        return Math.max(2, (int) Math.round(cameraSize * SCALES[level]) & ~1);
+    }
+
+    /**
+     * @return current scale of the processed frame to the camera frame
+     */
+    public double getScale() {
+        return SCALES[level];
+    }
+
+    /**
+     * @return current level (0 - full resolution)
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @return number of level changes since the start
+     */
+    public long getChanges() {
+        return changes;
+    }
+
+    /**
+     * Changes the level and logs the decision
+     */
+    private void setLevel(int level, long windowTime, int cameraWidth, int cameraHeight) {
+        int widthLast = getProcessingSize(cameraWidth);
+        int heightLast = getProcessingSize(cameraHeight);
+        this.level = level;
+        changes++;
+        Log.i(TAG, String.format(Locale.US,
+                "Processing resolution %dx%d -> %dx%d (level %d): p90 frame time %.1f ms,"
+                        + " budget %.1f ms",
+                widthLast, heightLast, getProcessingSize(cameraWidth),
+                getProcessingSize(cameraHeight), level, windowTime / 1e6,
+                FRAME_BUDGET_NS / 1e6));
+    }
+}
@@ -33,12 +33,17 @@ import android.bluetooth.BluetoothDevice;
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
 
 /**
- * This class stores data about the selected serial port (Bluetooth or USB)
+ * This class stores data about the selected serial port (Bluetooth, USB, network bridge
+ * or a custom Transport)
  */
 public class SerialDevice {
-    private boolean bluetooth = false, usb = false;
+    private boolean bluetooth = false, usb = false, network = false;
     private UsbSerialDriver usbSerialDriver;
     private BluetoothDevice bluetoothDevice;
+    private String networkHost;
+    private int networkPort;
+    private boolean tcp;
+    private Transport transport;
 
     /**
      * Initializes all devices as null
@@ -68,6 +73,43 @@ public class SerialDevice {
         this.bluetooth = bluetoothDevice != null;
     }
 
+    /**
+     * Initializes network bridge only
+     * @param networkHost IP address or host name of the bridge
+     * @param networkPort UDP or TCP port of the bridge
+     * @param tcp true to use TCP, false to use UDP
+     */
+    SerialDevice(String networkHost, int networkPort, boolean tcp) {
+        this.networkHost = networkHost;
+        this.networkPort = networkPort;
+        this.tcp = tcp;
+        this.network = networkHost != null && networkHost.length() > 0;
+    }
+
+    /**
+     * Initializes custom Transport only (for example, LoopbackTransport)
+     * @param transport Transport
+     */
+    SerialDevice(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Copies selected device from another SerialDevice
+     * @param serialDevice source SerialDevice
+     */
+    public void copyFrom(SerialDevice serialDevice) {
+        this.usbSerialDriver = serialDevice.usbSerialDriver;
+        this.bluetoothDevice = serialDevice.bluetoothDevice;
+        this.networkHost = serialDevice.networkHost;
+        this.networkPort = serialDevice.networkPort;
+        this.tcp = serialDevice.tcp;
+        this.transport = serialDevice.transport;
+        this.usb = serialDevice.usb;
+        this.bluetooth = serialDevice.bluetooth;
+        this.network = serialDevice.network;
+    }
+
     /**
      * Sets new UsbSerialDriver
      * @param usbSerialDriver UsbSerialDriver
@@ -100,6 +142,41 @@ public class SerialDevice {
         return bluetooth;
     }
 
+    /**
+     * @return true if the device is a network bridge
+     */
+    public boolean isNetwork() {
+        return network;
+    }
+
+    /**
+     * @return true if the network bridge uses TCP
+     */
+    public boolean isTcp() {
+        return tcp;
+    }
+
+    /**
+     * @return IP address or host name of the network bridge
+     */
+    public String getNetworkHost() {
+        return networkHost;
+    }
+
+    /**
+     * @return port of the network bridge
+     */
+    public int getNetworkPort() {
+        return networkPort;
+    }
+
+    /**
+     * @return custom Transport or null
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
     /**
      * @return current UsbSerialDriver
      */
@@ -122,6 +199,10 @@ public class SerialDevice {
             return usbSerialDriver.getDevice().getProductName();
         if (bluetooth && bluetoothDevice != null)
             return bluetoothDevice.getName();
+        if (network)
+            return (tcp ? "tcp://" : "udp://") + networkHost + ":" + networkPort;
+        if (transport != null)
+            return transport.getName();
         else
             return "";
     }
@@ -28,40 +28,55 @@
 
 package com.fern.pipo_ballus;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothSocket;
-import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import com.hoho.android.usbserial.driver.UsbSerialPort;
-
-import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * This class provides communication over a serial port (Bluetooth or USB)
+ * This class provides communication with the controller over a Transport
+ * (USB, bluetooth, UDP / TCP bridge or loopback, see SerialDevice).
+ * Protocol v2 is negotiated after the device is opened (see PacketEncoder).
+ * If the controller doesn't answer, legacy protocol v1 is used.
+ * Incoming frames are read by TelemetryReader on a separate thread
  */
-public class SerialHandler implements Runnable {
+public class SerialHandler implements Runnable, WriteCompletionListener {
     private final String TAG = this.getClass().getName();
-    private static final UUID BT_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
     private static final int maxLostPackets = 5;
+    private static final long MAX_POSITION_AGE_NS = 100000000L;
+    private static final long TAKE_TIMEOUT_NS = 100000000L;
+
+    // Don't predict the position further than this into the future
+    private static final long MAX_LINK_LATENCY_NS = 50000000L;
+
+    // Protocol negotiation: number of HELLO frames and time to wait for the answer to each one
+    private static final int HELLO_ATTEMPTS = 3;
+    private static final long HELLO_TIMEOUT_NS = 150000000L;
 
     private final UsbManager usbManager;
-    private final BluetoothAdapter bluetoothAdapter;
     private final SerialDevice serialDevice;
-    private final LinkedBlockingQueue<PositionContainer> positionContainers;
+    private final PositionMailbox positionMailbox;
+    private final LatencyTracer latencyTracer;
+    private final PositionExtrapolator positionExtrapolator;
+    private final PositionContainer transmitContainer;
+    private final PacketEncoder packetEncoder;
+    private final TelemetryBuffer telemetryBuffer;
+    private final TelemetryReader telemetryReader;
+    private TransmitScheduler transmitScheduler;
 
     private DeviceLostListener deviceLostListener;
 
-    private UsbSerialPort usbSerialPort;
-    private BluetoothSocket bluetoothSocket;
+    private volatile Transport transport;
+
+    private byte[] serialBuffer;
 
-    private final byte[] serialBuffer = new byte[16];
+    private volatile boolean negotiationRequired = false;
+    private volatile int protocolVersion = PacketEncoder.VERSION_1;
+    private volatile int positionScale = PacketEncoder.MIN_POSITION_SCALE;
 
-    private int dataLossCounter = 0;
+    private final AtomicInteger dataLossCounter = new AtomicInteger();
 
     private volatile boolean handleRunning = false;
 
@@ -74,57 +89,70 @@ public class SerialHandler implements Runnable {
     }
 
     SerialHandler(UsbManager usbManager,
-                  BluetoothAdapter bluetoothAdapter,
                   @NonNull SerialDevice serialDevice,
-                  LinkedBlockingQueue<PositionContainer> positionContainers) {
+                  PositionMailbox positionMailbox,
+                  LatencyTracer latencyTracer,
+                  TelemetryBuffer telemetryBuffer) {
         this.usbManager = usbManager;
-        this.bluetoothAdapter = bluetoothAdapter;
         this.serialDevice = serialDevice;
-        this.positionContainers = positionContainers;
-
-        this.serialBuffer[14] = SettingsContainer.suffix1;
-        this.serialBuffer[15] = SettingsContainer.suffix2;
+        this.positionMailbox = positionMailbox;
+        this.latencyTracer = latencyTracer;
+        this.positionExtrapolator = new PositionExtrapolator();
+        this.transmitContainer = new PositionContainer();
+        this.packetEncoder = new PacketEncoder();
+        this.telemetryBuffer = telemetryBuffer;
+        this.telemetryReader = new TelemetryReader(this, telemetryBuffer);
+        this.serialBuffer = packetEncoder.encodePositionV1(transmitContainer);
     }
 
     /**
-     * Tries to open serial ports
+     * Tries to open the link to serialDevice (blocking, must not be called from the UI thread)
      * @return true if port opened successfully or false if not
      */
     public boolean openDevice() {
-        try {
-            // Open USB serial device
-            if (serialDevice.isUsb()) {
-                UsbDeviceConnection connection = usbManager.openDevice(
-                        serialDevice.getUsbSerialDriver().getDevice());
-                if (connection == null)
-                    return false;
-
-                usbSerialPort = serialDevice.getUsbSerialDriver().getPorts().get(0);
-                try { usbSerialPort.close(); } catch (Exception ignored) { }
-                usbSerialPort.open(connection);
-                usbSerialPort.setParameters(SettingsContainer.baudRate, 8,
-                        UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
-
-                // Check if port is opened
-                if (usbSerialPort.isOpen())
-                    return true;
-            }
+        // Close previous link (the serial thread continues with the new one)
+        closeTransport();
+
+        Transport transport = createTransport();
+        if (transport == null || !transport.open())
+            return false;
+
+        transport.setWriteCompletionListener(this);
+        dataLossCounter.set(0);
+        this.transport = transport;
+        negotiationRequired = true;
+        return true;
+    }
 
-            // Open Bluetooth serial device
-            else if (serialDevice.isBluetooth()) {
-                bluetoothSocket = serialDevice.getBluetoothDevice()
-                        .createInsecureRfcommSocketToServiceRecord(BT_UUID);
-                bluetoothSocket.connect();
+    /**
+     * Creates Transport for the selected serialDevice
+     * @return Transport or null if no device is selected
+     */
+    private Transport createTransport() {
+        if (serialDevice.getTransport() != null)
+            return serialDevice.getTransport();
+        if (serialDevice.isUsb())
+            return new UsbTransport(usbManager, serialDevice.getUsbSerialDriver(),
+                    SettingsContainer.baudRate);
+        if (serialDevice.isBluetooth())
+            return new BluetoothTransport(serialDevice.getBluetoothDevice());
+        if (serialDevice.isNetwork())
+            return new NetworkTransport(serialDevice.getNetworkHost(),
+                    serialDevice.getNetworkPort(), serialDevice.isTcp());
+        return null;
+    }
 
-                // Check if socket is opened
-                if (bluetoothSocket.isConnected())
-                    return true;
-            }
-        } catch (Exception e) {
-            // Show error message
-            Log.e(TAG, "Error opening serial device!", e);
+    /**
+     * Closes current link without stopping the serial thread
+     * (packets are counted as lost until openDevice() is called)
+     */
+    public void closeTransport() {
+        Transport transport = this.transport;
+        this.transport = null;
+        if (transport != null) {
+            transport.close();
+            Log.i(TAG, transport.getName() + " " + transport.getStats());
         }
-        return false;
     }
 
     /**
@@ -132,118 +160,275 @@ public class SerialHandler implements Runnable {
      */
     public void closeDevice() {
         try {
-            // Close ports
-            if (serialDevice.isUsb() && usbSerialPort != null)
-                usbSerialPort.close();
-            if (serialDevice.isBluetooth() && bluetoothAdapter != null && bluetoothSocket != null)
-                bluetoothSocket.close();
-
-            // Stop serial thread
+            // Stop serial and reader threads
             handleRunning = false;
+            telemetryReader.stop();
+
+            // Close the link
+            closeTransport();
+
+            // Log PositionMailbox statistics
+            Log.i(TAG, "Positions published: " + positionMailbox.getPublishedCounter()
+                    + ", overwritten: " + positionMailbox.getOverwrittenCounter()
+                    + ", stale: " + positionMailbox.getStaleCounter());
+
+            // Log TransmitScheduler statistics
+            TransmitScheduler transmitScheduler = this.transmitScheduler;
+            if (transmitScheduler != null) {
+                LatencyHistogram jitter = transmitScheduler.getJitterHistogram();
+                Log.i(TAG, "Transmit rate: " + transmitScheduler.getAchievedRate()
+                        + " Hz, missed slots: " + transmitScheduler.getMissedSlots()
+                        + ", jitter p50: " + jitter.getPercentile(50) / 1000
+                        + " us, p99: " + jitter.getPercentile(99) / 1000
+                        + " us, max: " + jitter.getMax() / 1000 + " us");
+            }
+
+            // Log glass-to-wire latency
+            LatencyHistogram glassToWire = latencyTracer.getGlassToWireHistogram();
+            Log.i(TAG, "Glass-to-wire latency p50: " + glassToWire.getPercentile(50) / 1000
+                    + " us, p95: " + glassToWire.getPercentile(95) / 1000
+                    + " us, p99: " + glassToWire.getPercentile(99) / 1000
+                    + " us, max: " + glassToWire.getMax() / 1000 + " us");
+
+            // Log round trip time
+            LatencyHistogram roundTrip = telemetryBuffer.getRoundTripHistogram();
+            Log.i(TAG, "Round trip time p50: " + roundTrip.getPercentile(50) / 1000
+                    + " us, p99: " + roundTrip.getPercentile(99) / 1000
+                    + " us, max: " + roundTrip.getMax() / 1000
+                    + " us, corrupted frames: " + telemetryReader.getCorruptedFrames());
         } catch (Exception e) {
             Log.e(TAG, "Error closing serial device!", e);
         }
     }
 
     /**
-     * Sends positionContainer from LinkedBlockingQueue to sendPosition() void in a loop
+     * @return current Transport or null if the device is not opened
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return negotiated protocol version (PacketEncoder.VERSION_1 or VERSION_2)
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * @return TransmitScheduler or null if packets are sent on every camera frame
+     */
+    public TransmitScheduler getTransmitScheduler() {
+        return transmitScheduler;
+    }
+
+    /**
+     * Sends positions to sendPosition() void in a loop.
+     * If SettingsContainer.transmitRate > 0, packets are sent at a fixed rate
+     * with the position extrapolated between camera frames.
+     * Otherwise, the newest positionContainer from PositionMailbox is sent on every camera frame.
+     * In both cases the position is predicted to the moment the packet reaches the controller
+     * (see estimateLinkLatency())
      */
     @Override
     public void run() {
         // Set handleRunning flag
         handleRunning = true;
 
-        // Main loop
-        while (handleRunning) {
-            try {
-                sendPosition(positionContainers.take());
-            } catch (InterruptedException e) {
-                Log.e(TAG, "Error getting data from LinkedBlockingQueue!", e);
+        // Start reading incoming frames
+        Thread readerThread = new Thread(telemetryReader);
+        readerThread.setPriority(Thread.NORM_PRIORITY);
+        readerThread.start();
+
+        // Fixed-rate main loop
+        if (SettingsContainer.transmitRate > 0) {
+            transmitScheduler = new TransmitScheduler(SettingsContainer.transmitRate);
+            while (handleRunning) {
+                // Negotiate protocol version with the newly opened device
+                if (negotiationRequired)
+                    negotiateProtocol();
+
+                // Wait for the next slot
+                long slotTime = transmitScheduler.awaitNextSlot();
+
+                // Stop sending after the mailbox is cleared (ball lost)
+                if (positionMailbox.isCleared(positionExtrapolator.getLastTimestamp()))
+                    positionExtrapolator.reset();
+
+                // Pick up new detection if there is one
+                PositionContainer positionContainer = positionMailbox.poll(MAX_POSITION_AGE_NS);
+                if (positionContainer != null) {
+                    latencyTracer.mark(positionContainer.sequence, LatencyTracer.POINT_DEQUEUED,
+                            System.nanoTime());
+                    positionExtrapolator.update(positionContainer);
+                }
+
+                // Send position extrapolated to the arrival time
+                long arrivalTime = slotTime + estimateLinkLatency();
+                if (positionExtrapolator.extrapolate(arrivalTime,
+                        MAX_POSITION_AGE_NS + MAX_LINK_LATENCY_NS, transmitContainer)) {
+                    sendPosition(transmitContainer);
+                    transmitScheduler.packetSent(System.nanoTime());
+                }
+            }
+        }
+
+        // Frame-driven main loop
+        else {
+            while (handleRunning) {
+                // Negotiate protocol version with the newly opened device
+                if (negotiationRequired)
+                    negotiateProtocol();
+
+                PositionContainer positionContainer =
+                        positionMailbox.take(MAX_POSITION_AGE_NS, TAKE_TIMEOUT_NS);
+                if (positionContainer != null) {
+                    long dequeueTime = System.nanoTime();
+                    latencyTracer.mark(positionContainer.sequence, LatencyTracer.POINT_DEQUEUED,
+                            dequeueTime);
+
+                    // Send position predicted to the arrival time
+                    positionExtrapolator.update(positionContainer);
+                    if (positionExtrapolator.extrapolate(dequeueTime + estimateLinkLatency(),
+                            MAX_POSITION_AGE_NS + MAX_LINK_LATENCY_NS, transmitContainer))
+                        sendPosition(transmitContainer);
+                }
             }
         }
     }
 
     /**
-     * Sends data packet over serial port (bluetooth or USB)
-     * @param positionContainer PositionContainer class
+     * Estimates time from the start of the write call to the reception of the packet
+     * by the controller: median write call duration + packet transmission time at baudRate
+     * @return link latency in nanoseconds (0 - MAX_LINK_LATENCY_NS)
      */
-    private void sendPosition(@NonNull PositionContainer positionContainer) {
-        // Build serial packet
-
-        // ballVSTableX
-        serialBuffer[0] = (byte) (((int) positionContainer.ballVSTableX >> 8) & 0xFF);
-        serialBuffer[1] = (byte) ((int) positionContainer.ballVSTableX & 0xFF);
-
-        // ballVSTableY
-        serialBuffer[2] = (byte) (((int) positionContainer.ballVSTableY >> 8) & 0xFF);
-        serialBuffer[3] = (byte) ((int) positionContainer.ballVSTableY & 0xFF);
-
-        // ballVSTableZ (Currently always 1500 (see OpenCVHandler))
-        serialBuffer[4] = (byte) (((int) positionContainer.ballVSTableZ >> 8) & 0xFF);
-        serialBuffer[5] = (byte) ((int) positionContainer.ballVSTableZ & 0xFF);
-
-        // ballSetpointX
-        serialBuffer[6] = (byte) (((int) positionContainer.ballSetpointX >> 8) & 0xFF);
-        serialBuffer[7] = (byte) ((int) positionContainer.ballSetpointX & 0xFF);
-
-        // ballSetpointY
-        serialBuffer[8] = (byte) (((int) positionContainer.ballSetpointY >> 8) & 0xFF);
-        serialBuffer[9] = (byte) ((int) positionContainer.ballSetpointY & 0xFF);
-
-        // ballSetpointZ
-        serialBuffer[10] = (byte) (((int) positionContainer.ballSetpointZ >> 8) & 0xFF);
-        serialBuffer[11] = (byte) ((int) positionContainer.ballSetpointZ & 0xFF);
-
-        // System info
-        serialBuffer[12] = (byte) 0;
-
-        // Calculate check byte
-        byte checkByte = 0;
-        for (int i = 0; i <= 12; i++)
-            checkByte = (byte) (checkByte ^ serialBuffer[i]);
-        serialBuffer[13] = checkByte;
-
-        // Create checking flag
-        boolean isDataSent = false;
-
-        // Send data over serial
-        if (serialDevice.isUsb() && usbSerialPort != null && usbSerialPort.isOpen()) {
-            try {
-                usbSerialPort.write(serialBuffer, 4);
-                isDataSent = true;
-            } catch (Exception e) {
-                Log.e(TAG, "Error sending data over USB serial!", e);
-                //usbSerialPort = null;
-                isDataSent = false;
+    private long estimateLinkLatency() {
+        long latency = latencyTracer.getWriteHistogram().getPercentile(50);
+        if (SettingsContainer.baudRate > 0)
+            latency += serialBuffer.length * 10 * 1000000000L / SettingsContainer.baudRate;
+        return Math.min(latency, MAX_LINK_LATENCY_NS);
+    }
 
+    /**
+     * Sends HELLO frames and waits for HELLO_ACK from the controller.
+     * Sets protocolVersion to VERSION_2 if the controller answered or to VERSION_1 if not.
+     * The position scale is used only if the controller accepted it in HELLO_ACK
+     */
+    private void negotiateProtocol() {
+        negotiationRequired = false;
+        protocolVersion = PacketEncoder.VERSION_1;
+        positionScale = PacketEncoder.MIN_POSITION_SCALE;
+        if (SettingsContainer.protocolVersion < PacketEncoder.VERSION_2)
+            return;
+
+        telemetryReader.clearHelloAcknowledged();
+        for (int attempt = 0; attempt < HELLO_ATTEMPTS && handleRunning; attempt++) {
+            byte[] hello = packetEncoder.encodeHello(SettingsContainer.positionScale);
+            Transport transport = this.transport;
+            if (transport == null || !transport.write(hello, hello.length, -1))
+                break;
+
+            // Wait for the answer (received by TelemetryReader)
+            long deadline = System.nanoTime() + HELLO_TIMEOUT_NS;
+            while (System.nanoTime() < deadline) {
+                if (telemetryReader.isHelloAcknowledged()) {
+                    positionScale = telemetryReader.getAcknowledgedPositionScale();
+                    protocolVersion = PacketEncoder.VERSION_2;
+                    Log.i(TAG, "Using serial protocol v2, position scale: " + positionScale);
+                    return;
+                }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
             }
         }
+        Log.i(TAG, "No answer from the controller. Using legacy serial protocol v1");
+    }
 
-        // Send data over bluetooth
-        if (serialDevice.isBluetooth()
-                && bluetoothSocket != null && bluetoothSocket.isConnected()) {
-            try {
-                bluetoothSocket.getOutputStream().write(serialBuffer);
-                isDataSent = true;
-            } catch (Exception e) {
-                Log.e(TAG, "Error sending data over bluetooth serial!", e);
-                //bluetoothSocket = null;
-                isDataSent = false;
-            }
-        }
+    /**
+     * Reads incoming bytes (called from TelemetryReader thread)
+     * @param buffer buffer to read bytes into
+     * @return number of bytes read or -1 if the device is not opened
+     */
+    public int read(byte[] buffer) {
+        Transport transport = this.transport;
+        return transport != null ? transport.read(buffer) : -1;
+    }
 
-        if (!isDataSent && dataLossCounter < maxLostPackets)
-            dataLossCounter++;
-        else if (dataLossCounter > 0)
-            dataLossCounter--;
+    /**
+     * Traces completed writes of position packets and counts lost packets
+     * (called from the serial thread or from the completion thread of the Transport)
+     * @param tag sequence number of the camera frame or -1 for service frames
+     * @param startTime System.nanoTime() of the write() call
+     * @param completedTime System.nanoTime() of the write completion
+     * @param success true if data is sent
+     */
+    @Override
+    public void writeCompleted(long tag, long startTime, long completedTime, boolean success) {
+        if (tag < 0)
+            return;
+
+        // Trace written packet
+        if (success) {
+            long captureTime = latencyTracer.getFrameArrivalTime(tag);
+            if (captureTime > 0)
+                latencyTracer.packetWritten(tag, captureTime, startTime, completedTime);
+        }
+        countDataLoss(success);
+    }
 
-        if (dataLossCounter >= maxLostPackets) {
-            // Clear LinkedBlockingQueue
-            positionContainers.clear();
+    /**
+     * Sends deviceLost() signal if too many packets were not sent.
+     * Called from the serial thread and from write completion threads of the Transport
+     * @param isDataSent true if the packet is sent
+     */
+    private void countDataLoss(boolean isDataSent) {
+        int counter, updated;
+        do {
+            counter = dataLossCounter.get();
+            if (!isDataSent && counter < maxLostPackets)
+                updated = counter + 1;
+            else if (counter > 0)
+                updated = counter - 1;
+            else
+                updated = counter;
+        } while (!dataLossCounter.compareAndSet(counter, updated));
+
+        if (updated >= maxLostPackets) {
+            // Clear PositionMailbox
+            positionMailbox.clear();
 
             // Send deviceLost signal
             if (deviceLostListener != null)
                 deviceLostListener.deviceLost();
         }
     }
+
+    /**
+     * Sends data packet over the Transport using the negotiated protocol version.
+     * The result is reported to writeCompleted()
+     * @param positionContainer PositionContainer class
+     */
+    private void sendPosition(@NonNull PositionContainer positionContainer) {
+        long writeStartTime = System.nanoTime();
+
+        // Build serial packet (values are rounded, v2 values are scaled by the accepted scale)
+        if (protocolVersion == PacketEncoder.VERSION_2)
+            serialBuffer = packetEncoder.encodePositionV2(positionContainer,
+                    writeStartTime - positionContainer.timestamp, positionScale);
+        else
+            serialBuffer = packetEncoder.encodePositionV1(positionContainer);
+
+        // Remember the time of v2 packet to calculate round trip time from the echo
+        if (protocolVersion == PacketEncoder.VERSION_2)
+            telemetryReader.packetSent(packetEncoder.getSequence(), writeStartTime);
+
+        // Send data
+        Transport transport = this.transport;
+        if (transport == null || !transport.write(serialBuffer, serialBuffer.length,
+                positionContainer.sequence))
+            countDataLoss(false);
+    }
 }
@@ -46,4 +46,18 @@ public class SettingsContainer {
     public static int baudRate = 57600;
     public static byte suffix1 = (byte) 0xEE;
     public static byte suffix2 = (byte) 0xEF;
+    public static int transmitRate = 100;
+    public static boolean matAccounting = false;
+    public static int positionScale = 1;
+    public static int protocolVersion = 2;
+    public static String networkHost = "";
+    public static int networkPort = 8888;
+    public static boolean networkTcp = false;
+    public static int bluetoothPacing = 10;
+    public static int renderMode = OverlayRenderer.RENDER_MODE_FULL;
+    public static int renderInterval = 5;
+    public static boolean camera2 = true;
+    public static int cameraExposure = 0;
+    public static boolean resolutionGovernor = true;
+    public static int resolutionLevel = 0;
 }
@@ -97,6 +97,37 @@ public class SettingsHandler {
             SettingsContainer.suffix1 = (byte)(jsonObject.getInt("suffix_1"));
             SettingsContainer.suffix2 = (byte)(jsonObject.getInt("suffix_2"));
 
+            // Optional settings (missing in files from older versions)
+            SettingsContainer.transmitRate = jsonObject.optInt("transmit_rate",
+                    SettingsContainer.transmitRate);
+            SettingsContainer.matAccounting = jsonObject.optBoolean("mat_accounting",
+                    SettingsContainer.matAccounting);
+            SettingsContainer.positionScale = Math.max(PacketEncoder.MIN_POSITION_SCALE,
+                    Math.min(PacketEncoder.MAX_POSITION_SCALE, jsonObject.optInt("position_scale",
+                            SettingsContainer.positionScale)));
+            SettingsContainer.protocolVersion = jsonObject.optInt("protocol_version",
+                    SettingsContainer.protocolVersion);
+            SettingsContainer.networkHost = jsonObject.optString("network_host",
+                    SettingsContainer.networkHost);
+            SettingsContainer.networkPort = jsonObject.optInt("network_port",
+                    SettingsContainer.networkPort);
+            SettingsContainer.networkTcp = jsonObject.optBoolean("network_tcp",
+                    SettingsContainer.networkTcp);
+            SettingsContainer.bluetoothPacing = jsonObject.optInt("bluetooth_pacing",
+                    SettingsContainer.bluetoothPacing);
+            SettingsContainer.renderMode = jsonObject.optInt("render_mode",
+                    SettingsContainer.renderMode);
+            SettingsContainer.renderInterval = jsonObject.optInt("render_interval",
+                    SettingsContainer.renderInterval);
+            SettingsContainer.camera2 = jsonObject.optBoolean("camera_2",
+                    SettingsContainer.camera2);
+            SettingsContainer.cameraExposure = jsonObject.optInt("camera_exposure",
+                    SettingsContainer.cameraExposure);
+            SettingsContainer.resolutionGovernor = jsonObject.optBoolean("resolution_governor",
+                    SettingsContainer.resolutionGovernor);
+            SettingsContainer.resolutionLevel = jsonObject.optInt("resolution_level",
+                    SettingsContainer.resolutionLevel);
+
         } catch (Exception e) {
             // Show error message
             Toast.makeText(activity, R.string.error_parsing_settings,
@@ -139,6 +170,20 @@ public class SettingsHandler {
             jsonObject.put("baud_rate", SettingsContainer.baudRate);
             jsonObject.put("suffix_1", SettingsContainer.suffix1 & 0xFF);
             jsonObject.put("suffix_2", SettingsContainer.suffix2 & 0xFF);
+            jsonObject.put("transmit_rate", SettingsContainer.transmitRate);
+            jsonObject.put("mat_accounting", SettingsContainer.matAccounting);
+            jsonObject.put("position_scale", SettingsContainer.positionScale);
+            jsonObject.put("protocol_version", SettingsContainer.protocolVersion);
+            jsonObject.put("network_host", SettingsContainer.networkHost);
+            jsonObject.put("network_port", SettingsContainer.networkPort);
+            jsonObject.put("network_tcp", SettingsContainer.networkTcp);
+            jsonObject.put("bluetooth_pacing", SettingsContainer.bluetoothPacing);
+            jsonObject.put("render_mode", SettingsContainer.renderMode);
+            jsonObject.put("render_interval", SettingsContainer.renderInterval);
+            jsonObject.put("camera_2", SettingsContainer.camera2);
+            jsonObject.put("camera_exposure", SettingsContainer.cameraExposure);
+            jsonObject.put("resolution_governor", SettingsContainer.resolutionGovernor);
+            jsonObject.put("resolution_level", SettingsContainer.resolutionLevel);
 
             // Write JSONObject to file
             FileWriter fileWriter = new FileWriter(settingsFile);
@@ -0,0 +1,619 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a Java port of the table controller firmware (Arduino/PiPo-Ballus):
+ * serial_read (protocol v1 and v2), predictor, pid, servo_mapper and serial_write
+ * with the same 4 ms loop and WATCHDOG_LOST_CYCLES watchdog.
+ * The controller is connected to the app through the peer of LoopbackTransport
+ * (see SerialDevice(Transport)), so SerialHandler can be tested on the JVM (see SerialHandlerTest).
+ * Float math, integer truncation and uint16 overflows are reproduced as in the firmware,
+ * so the TELEMETRY frames can be compared sample-for-sample with the real board.
+ * The loop can run in real time (run()) or be stepped with simulated time (loop())
+ * NOTE: This class doesn't use Android APIs
+ */
+public class SimulatedController implements Runnable {
+    // constants.h
+    public static final int LOOP_PERIOD = 4000;
+    private static final int SERIAL_VERSION_2 = 2;
+    private static final int SERIAL_TYPE_HELLO = 0x01;
+    private static final int SERIAL_TYPE_POSITION = 0x02;
+    private static final int SERIAL_TYPE_HELLO_ACK = 0x81;
+    private static final int SERIAL_TYPE_TELEMETRY = 0x82;
+    private static final int SERIAL_HELLO_PAYLOAD_LENGTH = 6;
+    private static final int SERIAL_POSITION_PAYLOAD_LENGTH = 27;
+    private static final int SERIAL_POSITION_SCALE_MAX = 64;
+    private static final int SERIAL_TELEMETRY_PAYLOAD_LENGTH = 27;
+    private static final int SERIAL_FRAME_SIZE = 40;
+    private static final int X_MIN_P = 1500, X_MIN_Q = 1933, X_MIN_R = 1067;
+    private static final int X_MAX_P = 1500, X_MAX_Q = 1067, X_MAX_R = 1933;
+    private static final int Y_MIN_P = 1000, Y_MIN_Q = 1750, Y_MIN_R = 1750;
+    private static final int Y_MAX_P = 2000, Y_MAX_Q = 1250, Y_MAX_R = 1250;
+
+    // config.h
+    private static final int SERIAL_SUFFIX_1 = 0xEE;
+    private static final int SERIAL_SUFFIX_2 = 0xEF;
+    public static final int WATCHDOG_LOST_CYCLES = 125;
+    private static final int TELEMETRY_PERIOD_CYCLES = 5;
+    private static final int SERVO_P_LOWEST = 1900, SERVO_Q_LOWEST = 1900, SERVO_R_LOWEST = 1900;
+    private static final int SERVO_P_HIGHEST = 1300, SERVO_Q_HIGHEST = 1300,
+            SERVO_R_HIGHEST = 1300;
+
+    // pid.h
+    private static final float PID_XY_P = 0.28f;
+    private static final float PID_XY_I = 0.0008f;
+    private static final float PID_XY_D = 40.f;
+    private static final float PID_XY_FILTER = .85f;
+    private static final float PID_XY_MAX = 500.f;
+    private static final float PID_Z_P = 1.f;
+    private static final float PID_Z_I = 0.f;
+    private static final float PID_Z_D = 0.f;
+    private static final float PID_Z_FILTER = 0.f;
+    private static final float PID_Z_MAX = 500.f;
+
+    private final LoopbackTransport transport;
+    private final long startTime;
+    private volatile boolean running;
+
+    // datatypes.h
+    private long loopBusyTime;
+    private final int[] serialBuffer = new int[16];
+    private int serialBufferPosition, serialBytePrevious;
+    private int serialWatchdog = WATCHDOG_LOST_CYCLES;
+    private float serialXLast, serialYLast, serialZLast;
+    private float deltaX, deltaY, deltaZ;
+    private int serialProtocol = 1;
+    private int serialPositionScale = 1;
+    private final byte[] serialFrame = new byte[SERIAL_FRAME_SIZE];
+    private final byte[] serialPayload = new byte[SERIAL_FRAME_SIZE];
+    private int serialFramePosition, serialPayloadLength;
+    private boolean serialFrameOverflow, serialSequenceValid;
+    private int serialSequenceLast;
+    private long serialLostPackets, serialSequenceTime;
+    private final byte[] serialTxPayload = new byte[SERIAL_FRAME_SIZE];
+    private final byte[] serialTxFrame = new byte[SERIAL_FRAME_SIZE];
+    private int telemetryCounter;
+    private float pidInputX, pidInputY, pidInputZ;
+    private float pidXSetpoint, pidYSetpoint, pidZSetpoint;
+    private float pidOutputX, pidOutputY, pidOutputZ;
+    private float pidIMemX, pidLastXDError;
+    private float pidIMemY, pidLastYDError;
+    private float pidIMemZ, pidLastZDError;
+    private int servoXPulse, servoYPulse, servoZPulse;
+    private int servoPPulse, servoQPulse, servoRPulse;
+
+    // Simulated micros() of the current loop
+    private long micros;
+    private long loopCount;
+    private final byte[] receiveBuffer = new byte[64];
+
+    /**
+     * Creates new simulated controller
+     * @param transport controller's endpoint of the LoopbackTransport pair
+     */
+    SimulatedController(LoopbackTransport transport) {
+        this.transport = transport;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Runs the loop in real time (every LOOP_PERIOD us) until stop() is called
+     */
+    @Override
+    public void run() {
+        running = true;
+        long loopTimer = realMicros();
+        while (running) {
+            loop(realMicros());
+
+            // Check loop time
+            loopBusyTime = realMicros() - loopTimer;
+            long deadline = loopTimer + LOOP_PERIOD;
+            long remaining;
+            while ((remaining = deadline - realMicros()) > 0)
+                LockSupport.parkNanos(this, remaining * 1000);
+            loopTimer = realMicros();
+        }
+    }
+
+    /**
+     * Stops run() loop
+     */
+    public void stop() {
+        running = false;
+    }
+
+    /**
+     * Executes one iteration of the firmware loop()
+     * @param micros value of micros() during this iteration
+     */
+    public void loop(long micros) {
+        this.micros = micros;
+
+        // Read new data from serial port
+        serialRead();
+
+        // Predict position to achieve 250Hz
+        predictor();
+
+        // Execute PID controller
+        pid();
+
+        // Reset PID controller if serial connection is lost
+        if (serialWatchdog >= WATCHDOG_LOST_CYCLES) {
+            pidIMemX = 0;
+            pidIMemY = 0;
+            pidIMemZ = 0;
+            pidLastXDError = 0;
+            pidLastYDError = 0;
+            pidLastZDError = 0;
+            pidOutputX = 0;
+            pidOutputY = 0;
+            pidOutputZ = 0;
+        }
+
+        // Subtract PID output from 1500 to convert pid output to servo PDM
+        servoXPulse = (int) (1500. - pidOutputX) & 0xFFFF;
+        servoYPulse = (int) (1500. - pidOutputY) & 0xFFFF;
+        servoZPulse = (int) (1500. - pidOutputZ) & 0xFFFF;
+
+        // Convert from cartesian to delta
+        servoMapper();
+
+        // Send controller state to the app
+        serialWriteTelemetry();
+        loopCount++;
+    }
+
+    /**
+     * Sets loop_busy_time reported in telemetry (for loop() stepped with simulated time)
+     * @param loopBusyTime loop time in microseconds
+     */
+    public void setLoopBusyTime(long loopBusyTime) {
+        this.loopBusyTime = loopBusyTime;
+    }
+
+    /**
+     * @return number of executed loops
+     */
+    public long getLoopCount() {
+        return loopCount;
+    }
+
+    /**
+     * @return serial watchdog (WATCHDOG_LOST_CYCLES or more if the connection is lost)
+     */
+    public int getWatchdog() {
+        return serialWatchdog;
+    }
+
+    /**
+     * @return active protocol version (1 or 2)
+     */
+    public int getProtocol() {
+        return serialProtocol;
+    }
+
+    /**
+     * @return number of lost position packets (protocol v2)
+     */
+    public long getLostPackets() {
+        return serialLostPackets;
+    }
+
+    public float getPidOutputX() {
+        return pidOutputX;
+    }
+
+    public float getPidOutputY() {
+        return pidOutputY;
+    }
+
+    public float getPidOutputZ() {
+        return pidOutputZ;
+    }
+
+    public int getServoP() {
+        return servoPPulse;
+    }
+
+    public int getServoQ() {
+        return servoQPulse;
+    }
+
+    public int getServoR() {
+        return servoRPulse;
+    }
+
+    private long realMicros() {
+        return (System.nanoTime() - startTime) / 1000;
+    }
+
+    /**
+     * serial_read.ino: serial_read()
+     */
+    private void serialRead() {
+        // Count watchdog cycles
+        if (serialWatchdog <= WATCHDOG_LOST_CYCLES) {
+            serialWatchdog++;
+
+            // Accept legacy packets again after the connection is lost
+            if (serialWatchdog == WATCHDOG_LOST_CYCLES)
+                serialProtocol = 1;
+        }
+
+        // Continue loop until all bytes are read
+        while (transport.available() > 0) {
+            int length = transport.read(receiveBuffer);
+            for (int i = 0; i < length; i++) {
+                int serialTempByte = receiveBuffer[i] & 0xFF;
+
+                // Protocol v2 frames are terminated by 0x00
+                if (serialTempByte == 0) {
+                    if (serialFramePosition > 0 && !serialFrameOverflow)
+                        serialReadFrame();
+                    serialFramePosition = 0;
+                    serialFrameOverflow = false;
+                } else if (serialFramePosition < SERIAL_FRAME_SIZE)
+                    serialFrame[serialFramePosition++] = (byte) serialTempByte;
+                else
+                    serialFrameOverflow = true;
+
+                // Legacy protocol v1
+                if (serialProtocol == 1)
+                    serialReadLegacy(serialTempByte);
+            }
+        }
+    }
+
+    /**
+     * serial_read.ino: serial_read_legacy()
+     */
+    private void serialReadLegacy(int serialByte) {
+        serialBuffer[serialBufferPosition] = serialByte;
+
+        if (serialBytePrevious == SERIAL_SUFFIX_1
+                && serialBuffer[serialBufferPosition] == SERIAL_SUFFIX_2) {
+            // Reset buffer position
+            serialBufferPosition = 0;
+
+            // Calculate check sum
+            int serialCheckByte = 0;
+            for (int i = 0; i <= 12; i++)
+                serialCheckByte ^= serialBuffer[i];
+
+            // Check if the check sums are equal
+            if (serialCheckByte == serialBuffer[13]) {
+                // Parse X, Y, Z data
+                pidInputX = parsePosition(serialBuffer[0], serialBuffer[1], 1);
+                deltaX = pidInputX - serialXLast;
+                serialXLast = pidInputX;
+                pidInputY = parsePosition(serialBuffer[2], serialBuffer[3], 1);
+                deltaY = pidInputY - serialYLast;
+                serialYLast = pidInputY;
+                pidInputZ = parsePosition(serialBuffer[4], serialBuffer[5], 1);
+                deltaZ = pidInputZ - serialZLast;
+                serialZLast = pidInputZ;
+
+                // Parse setpoints
+                pidXSetpoint = parsePosition(serialBuffer[6], serialBuffer[7], 1);
+                pidYSetpoint = parsePosition(serialBuffer[8], serialBuffer[9], 1);
+                pidZSetpoint = parsePosition(serialBuffer[10], serialBuffer[11], 1);
+
+                // Calculate the increment in one cycle
+                deltaX /= (float) serialWatchdog;
+                deltaY /= (float) serialWatchdog;
+                deltaZ /= (float) serialWatchdog;
+
+                // Reset watchdog
+                serialWatchdog = 0;
+            }
+        } else {
+            // Store data bytes
+            serialBytePrevious = serialBuffer[serialBufferPosition];
+            serialBufferPosition++;
+
+            // Reset buffer on overflow
+            if (serialBufferPosition >= 16)
+                serialBufferPosition = 0;
+        }
+    }
+
+    /**
+     * serial_read.ino: serial_read_frame()
+     */
+    private void serialReadFrame() {
+        // Decode COBS
+        serialPayloadLength = 0;
+        for (int index = 0; index < serialFramePosition; ) {
+            int code = serialFrame[index++] & 0xFF;
+            if (index + code - 1 > serialFramePosition)
+                return;
+            for (int i = 1; i < code; i++)
+                serialPayload[serialPayloadLength++] = serialFrame[index++];
+            if (code < 0xFF && index < serialFramePosition)
+                serialPayload[serialPayloadLength++] = 0;
+        }
+
+        // Check version and CRC
+        if (serialPayloadLength < 4 || serialPayload[0] != SERIAL_VERSION_2)
+            return;
+        if (PacketEncoder.crc16(serialPayload, 0, serialPayloadLength - 2)
+                != parseUInt16(serialPayload, serialPayloadLength - 2))
+            return;
+
+        int type = serialPayload[1] & 0xFF;
+
+        // Answer to protocol negotiation
+        if (type == SERIAL_TYPE_HELLO && (serialPayload[2] & 0xFF) >= SERIAL_VERSION_2) {
+            serialProtocol = 2;
+
+            // The app restarts the sequence numbers after HELLO (don't count the gap as lost)
+            serialSequenceValid = false;
+            serialPositionScale = serialPayloadLength >= SERIAL_HELLO_PAYLOAD_LENGTH
+                    ? Math.max(1, Math.min(SERIAL_POSITION_SCALE_MAX, serialPayload[3] & 0xFF)) : 1;
+            serialWriteHelloAck();
+        }
+
+        // New position
+        else if (type == SERIAL_TYPE_POSITION
+                && serialPayloadLength == SERIAL_POSITION_PAYLOAD_LENGTH) {
+            // Count lost packets using sequence number
+            int sequence = parseUInt16(serialPayload, 2);
+            if (serialProtocol == 2 && serialSequenceValid
+                    && serialWatchdog < WATCHDOG_LOST_CYCLES)
+                serialLostPackets += (sequence - serialSequenceLast - 1) & 0xFFFF;
+            serialSequenceLast = sequence;
+            serialSequenceValid = true;
+            serialSequenceTime = micros;
+            serialProtocol = 2;
+
+            // Parse positions
+            pidInputX = parsePosition(serialPayload[6], serialPayload[7],
+                    serialPositionScale);
+            pidInputY = parsePosition(serialPayload[8], serialPayload[9],
+                    serialPositionScale);
+            pidInputZ = parsePosition(serialPayload[10], serialPayload[11],
+                    serialPositionScale);
+            serialXLast = pidInputX;
+            serialYLast = pidInputY;
+            serialZLast = pidInputZ;
+
+            // Parse setpoints
+            pidXSetpoint = parsePosition(serialPayload[12], serialPayload[13],
+                    serialPositionScale);
+            pidYSetpoint = parsePosition(serialPayload[14], serialPayload[15],
+                    serialPositionScale);
+            pidZSetpoint = parsePosition(serialPayload[16], serialPayload[17],
+                    serialPositionScale);
+
+            // Calculate the increment in one cycle from the velocity (units per second)
+            deltaX = (float) (short) parseUInt16(serialPayload, 18)
+                    * (float) LOOP_PERIOD / 1000000.f;
+            deltaY = (float) (short) parseUInt16(serialPayload, 20)
+                    * (float) LOOP_PERIOD / 1000000.f;
+            deltaZ = (float) (short) parseUInt16(serialPayload, 22)
+                    * (float) LOOP_PERIOD / 1000000.f;
+
+            // Reset watchdog
+            serialWatchdog = 0;
+        }
+    }
+
+    /**
+     * predictor.ino: predictor()
+     */
+    private void predictor() {
+        // Predict only if serial if working
+        if (serialWatchdog > 0 && serialWatchdog < WATCHDOG_LOST_CYCLES) {
+            if (pidInputX > 1000 && pidInputX < 2000)
+                pidInputX += deltaX;
+            if (pidInputY > 1000 && pidInputY < 2000)
+                pidInputY += deltaY;
+            if (pidInputZ > 1000 && pidInputZ < 2000)
+                pidInputZ += deltaZ;
+        }
+    }
+
+    /**
+     * pid.ino: pid()
+     */
+    private void pid() {
+        // X PID controller
+        float pidErrorTemp = pidInputX - pidXSetpoint;
+        pidIMemX += PID_XY_I * pidErrorTemp;
+        if (pidIMemX > PID_XY_MAX) pidIMemX = PID_XY_MAX;
+        else if (pidIMemX < PID_XY_MAX * -1) pidIMemX = PID_XY_MAX * -1;
+        float pidOutputTemp = PID_XY_P * pidErrorTemp + pidIMemX
+                + PID_XY_D * (pidErrorTemp - pidLastXDError);
+        if (pidOutputTemp > PID_XY_MAX) pidOutputTemp = PID_XY_MAX;
+        else if (pidOutputTemp < PID_XY_MAX * -1) pidOutputTemp = PID_XY_MAX * -1;
+        pidOutputX = (float) (pidOutputX * PID_XY_FILTER + pidOutputTemp * (1.0 - PID_XY_FILTER));
+        pidLastXDError = pidErrorTemp;
+
+        // Y PID controller
+        pidErrorTemp = pidInputY - pidYSetpoint;
+        pidIMemY += PID_XY_I * pidErrorTemp;
+        if (pidIMemY > PID_XY_MAX) pidIMemY = PID_XY_MAX;
+        else if (pidIMemY < PID_XY_MAX * -1) pidIMemY = PID_XY_MAX * -1;
+        pidOutputTemp = PID_XY_P * pidErrorTemp + pidIMemY
+                + PID_XY_D * (pidErrorTemp - pidLastYDError);
+        if (pidOutputTemp > PID_XY_MAX) pidOutputTemp = PID_XY_MAX;
+        else if (pidOutputTemp < PID_XY_MAX * -1) pidOutputTemp = PID_XY_MAX * -1;
+        pidOutputY = (float) (pidOutputY * PID_XY_FILTER + pidOutputTemp * (1.0 - PID_XY_FILTER));
+        pidLastYDError = pidErrorTemp;
+
+        // Z PID controller
+        pidErrorTemp = pidInputZ - pidZSetpoint;
+        pidIMemZ += PID_Z_I * pidErrorTemp;
+        if (pidIMemZ > PID_Z_MAX) pidIMemZ = PID_Z_MAX;
+        else if (pidIMemZ < PID_Z_MAX * -1) pidIMemZ = PID_Z_MAX * -1;
+        pidOutputTemp = PID_Z_P * pidErrorTemp + pidIMemZ
+                + PID_Z_D * (pidErrorTemp - pidLastZDError);
+        if (pidOutputTemp > PID_Z_MAX) pidOutputTemp = PID_Z_MAX;
+        else if (pidOutputTemp < PID_Z_MAX * -1) pidOutputTemp = PID_Z_MAX * -1;
+        pidOutputZ = (float) (pidOutputZ * PID_Z_FILTER + pidOutputTemp * (1.0 - PID_Z_FILTER));
+        pidLastZDError = pidErrorTemp;
+    }
+
+    /**
+     * servo_mapper.ino: servo_mapper() (uint16 variables)
+     */
+    private void servoMapper() {
+        // Convert X from cartesian to delta
+        servoPPulse = (map(servoXPulse, 1000, 2000, X_MIN_P, X_MAX_P) - 1500) & 0xFFFF;
+        servoQPulse = (map(servoXPulse, 1000, 2000, X_MIN_Q, X_MAX_Q) - 1500) & 0xFFFF;
+        servoRPulse = (map(servoXPulse, 1000, 2000, X_MIN_R, X_MAX_R) - 1500) & 0xFFFF;
+
+        // Convert Y from cartesian to delta
+        servoPPulse = (servoPPulse + map(servoYPulse, 1000, 2000, Y_MIN_P, Y_MAX_P) - 1500)
+                & 0xFFFF;
+        servoQPulse = (servoQPulse + map(servoYPulse, 1000, 2000, Y_MIN_Q, Y_MAX_Q) - 1500)
+                & 0xFFFF;
+        servoRPulse = (servoRPulse + map(servoYPulse, 1000, 2000, Y_MIN_R, Y_MAX_R) - 1500)
+                & 0xFFFF;
+
+        // Convert Z from cartesian to delta
+        servoPPulse = (servoPPulse + servoZPulse - 1500) & 0xFFFF;
+        servoQPulse = (servoQPulse + servoZPulse - 1500) & 0xFFFF;
+        servoRPulse = (servoRPulse + servoZPulse - 1500) & 0xFFFF;
+
+        // Add 1500 to convert output to servo PDM
+        servoPPulse = (servoPPulse + 1500) & 0xFFFF;
+        servoQPulse = (servoQPulse + 1500) & 0xFFFF;
+        servoRPulse = (servoRPulse + 1500) & 0xFFFF;
+
+        // Convert to actual servo PDM
+        servoPPulse = map(servoPPulse, 1000, 2000, SERVO_P_LOWEST, SERVO_P_HIGHEST) & 0xFFFF;
+        servoQPulse = map(servoQPulse, 1000, 2000, SERVO_Q_LOWEST, SERVO_Q_HIGHEST) & 0xFFFF;
+        servoRPulse = map(servoRPulse, 1000, 2000, SERVO_R_LOWEST, SERVO_R_HIGHEST) & 0xFFFF;
+
+        // Trim data ranges
+        servoPPulse = Math.max(1000, Math.min(2000, servoPPulse));
+        servoQPulse = Math.max(1000, Math.min(2000, servoQPulse));
+        servoRPulse = Math.max(1000, Math.min(2000, servoRPulse));
+    }
+
+    /**
+     * serial_write.ino: serial_write_telemetry()
+     */
+    private void serialWriteTelemetry() {
+        if (serialProtocol != 2 || ++telemetryCounter < TELEMETRY_PERIOD_CYCLES)
+            return;
+        telemetryCounter = 0;
+
+        serialTxPayload[0] = (byte) SERIAL_VERSION_2;
+        serialTxPayload[1] = (byte) SERIAL_TYPE_TELEMETRY;
+
+        // Echoed sequence and the time since its reception (us)
+        putUInt16(2, serialSequenceLast);
+        putUInt16(4, (int) Math.min((micros - serialSequenceTime) & 0xFFFFFFFFL, 0xFFFF));
+
+        // Loop and connection state
+        putUInt16(6, (int) Math.min(loopBusyTime, 0xFFFF));
+        putUInt16(8, serialWatchdog);
+
+        // Servo pulses
+        putUInt16(10, servoPPulse);
+        putUInt16(12, servoQPulse);
+        putUInt16(14, servoRPulse);
+
+        // PID outputs
+        putUInt16(16, (int) pidOutputX);
+        putUInt16(18, (int) pidOutputY);
+        putUInt16(20, (int) pidOutputZ);
+
+        // Lost packets and flags
+        putUInt16(22, (int) serialLostPackets);
+        serialTxPayload[24] = (byte) ((serialWatchdog >= WATCHDOG_LOST_CYCLES ? 0x01 : 0) | 0x02);
+
+        serialWriteFrame(SERIAL_TELEMETRY_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * serial_write.ino: serial_write_hello_ack()
+     */
+    private void serialWriteHelloAck() {
+        serialTxPayload[0] = (byte) SERIAL_VERSION_2;
+        serialTxPayload[1] = (byte) SERIAL_TYPE_HELLO_ACK;
+        serialTxPayload[2] = (byte) SERIAL_VERSION_2;
+        serialTxPayload[3] = (byte) serialPositionScale;
+        serialWriteFrame(SERIAL_HELLO_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * serial_write.ino: serial_write_frame()
+     */
+    private void serialWriteFrame(int length) {
+        putUInt16(length - 2, PacketEncoder.crc16(serialTxPayload, 0, length - 2));
+
+        // Encode COBS
+        int codeIndex = 0, code = 1, frameIndex = 1;
+        for (int i = 0; i < length; i++) {
+            if (serialTxPayload[i] == 0) {
+                serialTxFrame[codeIndex] = (byte) code;
+                codeIndex = frameIndex++;
+                code = 1;
+            } else {
+                serialTxFrame[frameIndex++] = serialTxPayload[i];
+                code++;
+            }
+        }
+        serialTxFrame[codeIndex] = (byte) code;
+        serialTxFrame[frameIndex++] = 0;
+        transport.write(serialTxFrame, frameIndex, -1);
+    }
+
+    private void putUInt16(int index, int value) {
+        serialTxPayload[index] = (byte) (value >> 8);
+        serialTxPayload[index + 1] = (byte) value;
+    }
+
+    private static int parseUInt16(byte[] buffer, int index) {
+        return ((buffer[index] & 0xFF) << 8) | (buffer[index + 1] & 0xFF);
+    }
+
+    /**
+     * serial_read.ino: serial_parse_position()
+     */
+    private float parsePosition(int highByte, int lowByte, int scale) {
+        int value = ((highByte & 0xFF) << 8) | (lowByte & 0xFF);
+        return 1000.f + ((float) value - 1000.f) / (float) scale;
+    }
+
+    /**
+     * Arduino map() (integer math, truncation towards zero)
+     */
+    private static int map(int value, int fromLow, int fromHigh, int toLow, int toHigh) {
+        return (value - fromLow) * (toHigh - toLow) / (fromHigh - fromLow) + toLow;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class measures the time of each stage of the vision pipeline (OpenCVHandler)
+ * using allocation-free histograms. Statistics are calculated over a rolling window
+ * (the last completed second) and formatted into HUD lines once per window while the HUD
+ * is enabled (see setHudEnabled()).
+ * Stages that run on other threads (see FramePipeline) are reported with recordStage().
+ * The cost of the frame (sum of all stages) is also recorded per render mode
+ * (see OverlayRenderer.RENDER_MODE_) since the start to compare the modes.
+ * NOTE: All methods except getHudLines(), setHudEnabled() and recordStage() must be called
+ * from the detection thread
+ */
+public class StageProfiler {
+    public static final int STAGE_ROTATE = 0;
+    public static final int STAGE_CLASSIFY = 1;
+    public static final int STAGE_TABLE = 2;
+    public static final int STAGE_BALL_CONTOURS = 3;
+    public static final int STAGE_CENTROID = 4;
+    public static final int STAGE_OVERLAY = 5;
+    public static final int STAGE_RESIZE = 6;
+    public static final int STAGE_FRAME = 7;
+    public static final int STAGE_CAPTURE = 8;
+
+    private static final String[] STAGE_NAMES = {
+            "Rotate", "Classify", "Table", "Ball cnt", "Centroid", "Overlay", "Resize", "Frame",
+            "Capture"
+    };
+    private static final int STAGES = STAGE_NAMES.length;
+    private static final String[] RENDER_MODE_NAMES = {"full", "reduced", "headless"};
+    private static final long WINDOW_NS = 1000000000L;
+
+    private final LatencyHistogram[] histograms;
+    private final LatencyHistogram[] windowHistograms;
+    private final long[] frameAccumulators;
+    private final AtomicLongArray externalStages;
+    private final LatencyHistogram[] modeHistograms;
+
+    private long frameStart;
+    private int renderMode;
+    private long windowStart;
+    private int windowFrames;
+    private double fps;
+
+    private volatile boolean hudEnabled;
+    private volatile String[] hudLines;
+
+    StageProfiler() {
+        this.histograms = new LatencyHistogram[STAGES];
+        this.windowHistograms = new LatencyHistogram[STAGES];
+        for (int i = 0; i < STAGES; i++) {
+            histograms[i] = new LatencyHistogram();
+            windowHistograms[i] = new LatencyHistogram();
+        }
+        this.frameAccumulators = new long[STAGES];
+        this.externalStages = new AtomicLongArray(STAGES);
+        this.modeHistograms = new LatencyHistogram[OverlayRenderer.RENDER_MODES];
+        for (int i = 0; i < modeHistograms.length; i++)
+            modeHistograms[i] = new LatencyHistogram();
+        this.hudLines = new String[0];
+    }
+
+    /**
+     * Starts new frame
+     * @return System.nanoTime() of the frame start
+     */
+    public long beginFrame() {
+        frameStart = System.nanoTime();
+        for (int i = 0; i < STAGES; i++)
+            frameAccumulators[i] = 0;
+        return frameStart;
+    }
+
+    /**
+     * Adds time since stageStart to the stage. The stage can be measured multiple times
+     * per frame (for example, overlay drawing)
+     * @param stage one of STAGE_ constants
+     * @param stageStart System.nanoTime() of the stage start
+     * @return current System.nanoTime() (can be used as the start of the next stage)
+     */
+    public long lap(int stage, long stageStart) {
+        long now = System.nanoTime();
+        frameAccumulators[stage] += now - stageStart;
+        return now;
+    }
+
+    /**
+     * Reports the time of the stage that runs on another thread. The last reported time
+     * is recorded with the next endFrame()
+     * @param stage one of STAGE_ constants
+     * @param stageTime time of the stage in nanoseconds
+     */
+    public void recordStage(int stage, long stageTime) {
+        externalStages.set(stage, stageTime);
+    }
+
+    /**
+     * Sets render mode of the current frame (the frame's cost is recorded for this mode)
+     * @param renderMode one of OverlayRenderer.RENDER_MODE_ constants
+     */
+    public void setRenderMode(int renderMode) {
+        this.renderMode = renderMode;
+    }
+
+    /**
+     * @param renderMode one of OverlayRenderer.RENDER_MODE_ constants
+     * @return histogram of the frame cost (sum of all stages) in this mode since the start
+     */
+    public LatencyHistogram getModeHistogram(int renderMode) {
+        return modeHistograms[renderMode];
+    }
+
+    /**
+     * @return System.nanoTime() of the current frame start
+     */
+    public long getFrameStart() {
+        return frameStart;
+    }
+
+    /**
+     * Finishes the frame. Records all measured stages and updates HUD once per window
+     */
+    public void endFrame() {
+        long now = System.nanoTime();
+        frameAccumulators[STAGE_FRAME] = now - frameStart;
+
+        // Add stages of other threads
+        for (int i = 0; i < STAGES; i++) {
+            long stageTime = externalStages.getAndSet(i, 0);
+            if (stageTime > 0)
+                frameAccumulators[i] += stageTime;
+        }
+
+        // Record stages that were executed in this frame and the cost of the frame
+        long frameCost = 0;
+        for (int i = 0; i < STAGES; i++)
+            if (frameAccumulators[i] > 0) {
+                histograms[i].record(frameAccumulators[i]);
+                if (i != STAGE_FRAME)
+                    frameCost += frameAccumulators[i];
+            }
+        modeHistograms[renderMode].record(frameCost);
+        windowFrames++;
+
+        // Start first window
+        if (windowStart == 0) {
+            windowStart = now;
+            return;
+        }
+
+        // Close the window
+        if (now - windowStart >= WINDOW_NS) {
+            fps = windowFrames * 1e9 / (now - windowStart);
+            for (int i = 0; i < STAGES; i++) {
+                windowHistograms[i].copyFrom(histograms[i]);
+                histograms[i].reset();
+            }
+            windowFrames = 0;
+            windowStart = now;
+            if (hudEnabled)
+                updateHudLines();
+        }
+    }
+
+    /**
+     * @param stage one of STAGE_ constants
+     * @return histogram of the stage over the last completed window
+     */
+    public LatencyHistogram getWindowHistogram(int stage) {
+        return windowHistograms[stage];
+    }
+
+    /**
+     * @return frames per second over the last completed window
+     */
+    public double getFps() {
+        return fps;
+    }
+
+    /**
+     * Enables formatting of HUD lines (the lines are cleared while the HUD is disabled)
+     * @param hudEnabled true if the HUD is shown
+     */
+    public void setHudEnabled(boolean hudEnabled) {
+        this.hudEnabled = hudEnabled;
+        if (!hudEnabled)
+            hudLines = new String[0];
+    }
+
+    /**
+     * @return HUD text lines (updated once per window while the HUD is enabled)
+     */
+    public String[] getHudLines() {
+        return hudLines;
+    }
+
+    /**
+     * Formats p50 / p99 of every stage (in milliseconds) into HUD lines
+     */
+    private void updateHudLines() {
+        String[] lines = new String[STAGES + 2];
+        lines[0] = String.format(Locale.US, "FPS: %.1f (%s)", fps, RENDER_MODE_NAMES[renderMode]);
+        for (int i = 0; i < STAGES; i++) {
+            LatencyHistogram histogram = windowHistograms[i];
+            lines[i + 1] = String.format(Locale.US, "%-10s %5.1f %5.1f", STAGE_NAMES[i],
+                    histogram.getPercentile(50) / 1e6, histogram.getPercentile(99) / 1e6);
+        }
+
+        // Cost p50 of each render mode (ms)
+        StringBuilder modeLine = new StringBuilder("Cost:");
+        for (int i = 0; i < modeHistograms.length; i++)
+            if (modeHistograms[i].getCount() > 0)
+                modeLine.append(String.format(Locale.US, " %s %.1f", RENDER_MODE_NAMES[i],
+                        modeHistograms[i].getPercentile(50) / 1e6));
+        lines[STAGES + 1] = modeLine.toString();
+        hudLines = lines;
+    }
+}
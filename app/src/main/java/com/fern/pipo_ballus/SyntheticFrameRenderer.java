@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * This class renders synthetic camera frames of the BallPlateSimulator (table's circle and
+ * the ball in the middle of the color ranges from SettingsContainer) and provides them
+ * to OpenCVHandler as CvCameraViewFrame.
+ * The plate is drawn from above and then distorted with optional perspective (the far side
+ * of the frame is narrowed), lighting (brightness gradient), Gaussian noise and blur.
+ * Tilt of the plate is not rendered (a few degrees don't change the image noticeably).
+ * NOTE: Noise uses OpenCV RNG of the calling thread (see Core.setRNGSeed())
+ */
+public class SyntheticFrameRenderer implements CameraBridgeViewBase.CvCameraViewFrame {
+    // Diameter of the plate relative to the frame height
+    private static final double PLATE_SIZE = 0.85;
+
+    private final int width, height;
+    private final double pixelsPerMM;
+    private final Mat frameRGBA, frameGray, plateRGBA;
+    private final Mat perspectiveTransform, lightingGain, noise, emptyMask;
+    private final Point plateCenter, ballCenter;
+    private final Scalar backgroundColor, tableColor, ballColor;
+    private final Size frameSize;
+
+    private double perspective, lighting, noiseSigma;
+    private int blurSize;
+
+    /**
+     * Creates new renderer. Colors are taken from SettingsContainer
+     * @param width frame width
+     * @param height frame height
+     */
+    SyntheticFrameRenderer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.pixelsPerMM = height * PLATE_SIZE / 2. / BallPlateSimulator.getPlateRadius();
+        this.frameRGBA = new Mat(height, width, CvType.CV_8UC4);
+        this.frameGray = new Mat();
+        this.plateRGBA = new Mat(height, width, CvType.CV_8UC4);
+        this.perspectiveTransform = new Mat();
+        this.lightingGain = new Mat();
+        this.noise = new Mat(height, width, CvType.CV_16SC4);
+        this.emptyMask = new Mat();
+        this.plateCenter = new Point(width / 2., height / 2.);
+        this.ballCenter = new Point();
+        this.frameSize = new Size(width, height);
+
+        this.backgroundColor = new Scalar(40, 40, 40, 255);
+        this.tableColor = toScalar(middleColor(SettingsContainer.tableColorLower,
+                SettingsContainer.tableColorUpper));
+        this.ballColor = toScalar(middleColor(SettingsContainer.ballColorLower,
+                SettingsContainer.ballColorUpper));
+    }
+
+    /**
+     * Sets perspective distortion
+     * @param perspective how much the far (top) side of the frame is narrowed (0 - top view)
+     */
+    public void setPerspective(double perspective) {
+        this.perspective = perspective;
+        if (perspective <= 0)
+            return;
+
+        // The top edge is narrowed and moved down, the bottom edge is kept
+        double shiftX = width * perspective / 2.;
+        double shiftY = height * perspective / 4.;
+        MatOfPoint2f source = new MatOfPoint2f(new Point(0, 0), new Point(width, 0),
+                new Point(width, height), new Point(0, height));
+        MatOfPoint2f destination = new MatOfPoint2f(new Point(shiftX, shiftY),
+                new Point(width - shiftX, shiftY), new Point(width, height),
+                new Point(0, height));
+        Imgproc.getPerspectiveTransform(source, destination).copyTo(perspectiveTransform);
+        source.release();
+        destination.release();
+    }
+
+    /**
+     * Sets uneven lighting
+     * @param lighting brightness loss in the bottom right corner (0 - even lighting, 1 - black)
+     */
+    public void setLighting(double lighting) {
+        this.lighting = lighting;
+        if (lighting <= 0)
+            return;
+
+        // Linear gradient from the top left corner (gain is 0-255, alpha is kept)
+        byte[] gain = new byte[width * height * 4];
+        double diagonal = width + height;
+        int index = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = (int) Math.round(255. * (1. - lighting * (x + y) / diagonal));
+                gain[index++] = (byte) value;
+                gain[index++] = (byte) value;
+                gain[index++] = (byte) value;
+                gain[index++] = (byte) 255;
+            }
+        }
+        lightingGain.create(height, width, CvType.CV_8UC4);
+        lightingGain.put(0, 0, gain);
+    }
+
+    /**
+     * Sets sensor noise
+     * @param noiseSigma standard deviation of Gaussian noise (0-255 levels, 0 - no noise)
+     */
+    public void setNoise(double noiseSigma) {
+        this.noiseSigma = noiseSigma;
+    }
+
+    /**
+     * Sets motion / focus blur
+     * @param blurSize Gaussian kernel size (odd, 0 - no blur)
+     */
+    public void setBlur(int blurSize) {
+        this.blurSize = blurSize > 0 ? blurSize | 1 : 0;
+    }
+
+    /**
+     * Renders the current state of the simulator
+     * @param ballPlateSimulator simulator
+     */
+    public void render(BallPlateSimulator ballPlateSimulator) {
+        // Draw the plate and the ball from above
+        Mat target = perspective > 0 ? plateRGBA : frameRGBA;
+        target.setTo(backgroundColor);
+        Imgproc.circle(target, plateCenter,
+                (int) Math.round(BallPlateSimulator.getPlateRadius() * pixelsPerMM),
+                tableColor, -1, Imgproc.LINE_AA, 0);
+        ballCenter.x = plateCenter.x + ballPlateSimulator.getBallX() * pixelsPerMM;
+        ballCenter.y = plateCenter.y + ballPlateSimulator.getBallY() * pixelsPerMM;
+        Imgproc.circle(target, ballCenter,
+                (int) Math.round(BallPlateSimulator.getBallRadius() * pixelsPerMM),
+                ballColor, -1, Imgproc.LINE_AA, 0);
+
+        // Project to the camera
+        if (perspective > 0)
+            Imgproc.warpPerspective(plateRGBA, frameRGBA, perspectiveTransform, frameSize,
+                    Imgproc.INTER_LINEAR, Core.BORDER_CONSTANT, backgroundColor);
+
+        // Lighting, blur and noise (in the order of the real camera)
+        if (lighting > 0)
+            Core.multiply(frameRGBA, lightingGain, frameRGBA, 1. / 255.);
+        if (blurSize > 0)
+            Imgproc.GaussianBlur(frameRGBA, frameRGBA, new Size(blurSize, blurSize), 0);
+        if (noiseSigma > 0) {
+            Core.randn(noise, 0, noiseSigma);
+            Core.add(frameRGBA, noise, frameRGBA, emptyMask, CvType.CV_8U);
+        }
+    }
+
+    @Override
+    public Mat rgba() {
+        return frameRGBA;
+    }
+
+    @Override
+    public Mat gray() {
+        Imgproc.cvtColor(frameRGBA, frameGray, Imgproc.COLOR_RGBA2GRAY);
+        return frameGray;
+    }
+
+    /**
+     * Releases native memory
+     */
+    public void release() {
+        frameRGBA.release();
+        frameGray.release();
+        plateRGBA.release();
+        perspectiveTransform.release();
+        lightingGain.release();
+        noise.release();
+    }
+
+    /**
+     * Calculates the middle of the HSV range (the same way as ColorClassifier selects colors)
+     * @param lower lower color as Integer
+     * @param upper upper color as Integer
+     * @return middle color as Integer
+     */
+    private static int middleColor(int lower, int upper) {
+        HSVColor lowerHSV = new HSVColor(lower);
+        HSVColor upperHSV = new HSVColor(upper);
+
+        // Range that wraps past red
+        float hue = (lowerHSV.getHue() + upperHSV.getHue()) / 2;
+        if (lowerHSV.getHue() > upperHSV.getHue())
+            hue = (hue + 180) % 360;
+
+        return new HSVColor(hue, (lowerHSV.getSaturation() + upperHSV.getSaturation()) / 2,
+                (lowerHSV.getValue() + upperHSV.getValue()) / 2).getIntColor();
+    }
+
+    /**
+     * @param color color as Integer
+     * @return RGBA Scalar (opaque)
+     */
+    private static Scalar toScalar(int color) {
+        return new Scalar((color >> 16) & 0xFF, (color >> 8) & 0xFF, color & 0xFF, 255);
+    }
+}
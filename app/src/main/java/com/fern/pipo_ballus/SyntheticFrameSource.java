@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.view.Surface;
+
+import org.opencv.android.CameraBridgeViewBase;
+
+/**
+ * This class provides frames of BallPlateSimulator rendered by SyntheticFrameRenderer.
+ * There is no controller, so the plate is tilted in a slowly rotating direction
+ * to keep the ball rolling around the plate
+ */
+public class SyntheticFrameSource extends AbstractFrameSource {
+    // Tilt: amplitude of servo pulses (us) and period of the rotation (ns)
+    private static final double TILT_AMPLITUDE = 15.;
+    private static final long TILT_PERIOD = 4000000000L;
+
+    // Angles of P, Q and R joints in the frame (Y axis is down)
+    private static final double[] JOINT_ANGLES = {Math.toRadians(-90.), Math.toRadians(30.),
+            Math.toRadians(150.)};
+
+    private final SyntheticFrameRenderer renderer;
+    private final long seed;
+    private final long framePeriod;
+    private final long frames;
+    private BallPlateSimulator ballPlateSimulator;
+    private long frameIndex, simulationTime;
+
+    /**
+     * Creates new synthetic source (frames are landscape, Surface.ROTATION_90)
+     * @param renderer renderer with the rendering options
+     * @param seed seed of the initial ball state
+     * @param framePeriod frame period in nanoseconds
+     * @param frames number of frames (0 - until stop() is called)
+     * @param paced true to deliver frames in real time, false - as fast as possible
+     */
+    SyntheticFrameSource(SyntheticFrameRenderer renderer, long seed, long framePeriod,
+                         long frames, boolean paced) {
+        super(paced, Surface.ROTATION_90);
+        this.renderer = renderer;
+        this.seed = seed;
+        this.framePeriod = framePeriod;
+        this.frames = frames;
+    }
+
+    @Override
+    public String getName() {
+        return "Synthetic frames (seed " + seed + ")";
+    }
+
+    @Override
+    protected boolean openSource() {
+        ballPlateSimulator = new BallPlateSimulator(seed);
+        frameIndex = -1;
+        simulationTime = 0;
+        return true;
+    }
+
+    @Override
+    protected void closeSource() {
+
+    }
+
+    @Override
+    protected boolean nextFrame() {
+        if (frames > 0 && frameIndex + 1 >= frames)
+            return false;
+        frameIndex++;
+
+        // Simulate the plate with the firmware's loop period up to the frame time
+        long frameTime = frameIndex * framePeriod;
+        while (simulationTime < frameTime) {
+            double angle = 2. * Math.PI * (simulationTime % TILT_PERIOD) / TILT_PERIOD;
+            ballPlateSimulator.step(tiltPulse(0, angle), tiltPulse(1, angle),
+                    tiltPulse(2, angle), SimulatedController.LOOP_PERIOD);
+            simulationTime += SimulatedController.LOOP_PERIOD * 1000L;
+        }
+
+        renderer.render(ballPlateSimulator);
+        return true;
+    }
+
+    @Override
+    protected CameraBridgeViewBase.CvCameraViewFrame getFrame() {
+        return renderer;
+    }
+
+    @Override
+    protected long getFrameTime() {
+        return frameIndex * framePeriod;
+    }
+
+    /**
+     * @param joint index of the joint (P, Q, R)
+     * @param angle direction of the tilt
+     * @return servo pulse (the middle is 1600 us, see servo_mapper.ino)
+     */
+    private static int tiltPulse(int joint, double angle) {
+        return (int) Math.round(1600 + TILT_AMPLITUDE * Math.cos(angle - JOINT_ANGLES[joint]));
+    }
+}
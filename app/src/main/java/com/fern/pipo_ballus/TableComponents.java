@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * This class finds the largest connected component of the table mask and fits an ellipse
+ * to its outline. Imgproc.connectedComponents() writes labels into a frame-sized Mat
+ * of the MatArena (unlike Imgproc.findContours(), which creates a new MatOfPoint for every
+ * contour, or connectedComponentsWithStats(), which reallocates statistics whenever
+ * the number of components changes). Area and bounding box are counted from the labels.
+ * The outline is sampled from the labels: the outermost pixels of EDGE_SAMPLES rows
+ * and EDGE_SAMPLES columns, so the ellipse is always fitted to the same number of points
+ */
+public class TableComponents {
+    private static final int EDGE_SAMPLES = 48;
+    private static final int EDGE_POINTS = EDGE_SAMPLES * 4;
+
+    private final Mat labels;
+    private final MatOfPoint2f edgePoints;
+    private final float[] edgeBuffer;
+    private int[] labelRow, rowLeft, rowRight, columnTop, columnBottom;
+    private int[] areas, lefts, tops, rights, bottoms;
+
+    private int label, area;
+    private int left, top, width, height;
+
+    /**
+     * Creates new table component finder
+     * @param matArena MatArena to allocate Mats from
+     */
+    TableComponents(MatArena matArena) {
+        this.labels = matArena.newMat();
+        this.edgePoints = matArena.register(new MatOfPoint2f());
+        this.edgeBuffer = new float[EDGE_POINTS * 2];
+        this.areas = new int[0];
+        this.labelRow = new int[0];
+        this.rowLeft = new int[0];
+        this.rowRight = new int[0];
+        this.columnTop = new int[0];
+        this.columnBottom = new int[0];
+    }
+
+    /**
+     * Labels the mask and finds the largest component
+     * @param maskTable table mask (CV_8UC1, 255 - table color)
+     * @return false if there are no components
+     */
+    public boolean findLargest(Mat maskTable) {
+        int components = Imgproc.connectedComponents(maskTable, labels, 8, CvType.CV_32S);
+        if (areas.length < components) {
+            areas = new int[components * 2];
+            lefts = new int[components * 2];
+            tops = new int[components * 2];
+            rights = new int[components * 2];
+            bottoms = new int[components * 2];
+        }
+        for (int i = 0; i < components; i++) {
+            areas[i] = 0;
+            lefts[i] = Integer.MAX_VALUE;
+            tops[i] = -1;
+            rights[i] = -1;
+        }
+
+        // Count area and bounding box of every component (label 0 is the background)
+        int cols = labels.cols();
+        if (labelRow.length != cols)
+            labelRow = new int[cols];
+        for (int y = 0; y < labels.rows(); y++) {
+            labels.get(y, 0, labelRow);
+            for (int x = 0; x < cols; x++) {
+                int component = labelRow[x];
+                if (component == 0)
+                    continue;
+                areas[component]++;
+                if (x < lefts[component])
+                    lefts[component] = x;
+                if (x > rights[component])
+                    rights[component] = x;
+                if (tops[component] < 0)
+                    tops[component] = y;
+                bottoms[component] = y;
+            }
+        }
+
+        // Find the largest component
+        label = -1;
+        area = 0;
+        for (int i = 1; i < components; i++) {
+            if (areas[i] > area) {
+                area = areas[i];
+                label = i;
+            }
+        }
+        if (label < 0)
+            return false;
+
+        left = lefts[label];
+        top = tops[label];
+        width = rights[label] - left + 1;
+        height = bottoms[label] - top + 1;
+        return true;
+    }
+
+    /**
+     * @return number of pixels of the largest component
+     */
+    public int getArea() {
+        return area;
+    }
+
+    /**
+     * Copies bounding rectangle of the largest component
+     * @param boundingRect output Rect
+     */
+    public void getBoundingRect(Rect boundingRect) {
+        boundingRect.x = left;
+        boundingRect.y = top;
+        boundingRect.width = width;
+        boundingRect.height = height;
+    }
+
+    /**
+     * Fits an ellipse to the outline of the largest component
+     * @return ellipse in the frame coordinates
+     */
+    public RotatedRect fitEllipse() {
+        // Find the outermost pixels of every row and column inside the bounding rectangle
+        if (rowLeft.length < height) {
+            rowLeft = new int[height];
+            rowRight = new int[height];
+        }
+        if (columnTop.length < width) {
+            columnTop = new int[width];
+            columnBottom = new int[width];
+        }
+        for (int x = 0; x < width; x++) {
+            columnTop[x] = -1;
+            columnBottom[x] = -1;
+        }
+        for (int y = 0; y < height; y++) {
+            labels.get(top + y, 0, labelRow);
+            rowLeft[y] = -1;
+            for (int x = 0; x < width; x++) {
+                if (labelRow[left + x] != label)
+                    continue;
+                if (rowLeft[y] < 0)
+                    rowLeft[y] = x;
+                rowRight[y] = x;
+                if (columnTop[x] < 0)
+                    columnTop[x] = y;
+                columnBottom[x] = y;
+            }
+        }
+
+        // Sample the same number of points from rows and columns
+        // (every row and column of the bounding rectangle has at least one pixel)
+        int i = 0;
+        for (int sample = 0; sample < EDGE_SAMPLES; sample++) {
+            int y = (int) ((long) sample * (height - 1) / (EDGE_SAMPLES - 1));
+            int x = (int) ((long) sample * (width - 1) / (EDGE_SAMPLES - 1));
+            edgeBuffer[i++] = left + rowLeft[y];
+            edgeBuffer[i++] = top + y;
+            edgeBuffer[i++] = left + rowRight[y];
+            edgeBuffer[i++] = top + y;
+            edgeBuffer[i++] = left + x;
+            edgeBuffer[i++] = top + columnTop[x];
+            edgeBuffer[i++] = left + x;
+            edgeBuffer[i++] = top + columnBottom[x];
+        }
+        edgePoints.create(EDGE_POINTS, 1, CvType.CV_32FC2);
+        edgePoints.put(0, 0, edgeBuffer);
+        return Imgproc.fitEllipse(edgePoints);
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+
+/**
+ * This class caches the geometry of the table (ellipse, bounding rectangle, P / Q / R reference
+ * points and the circle as a span of pixels of every row). After a few consistent detections
+ * the geometry is locked and full table detection runs only every redetectInterval frames.
+ * On other frames only a cheap drift check (color of a few pixels inside and outside
+ * the table's ellipse) is done.
+ * Geometry is in the sensor frame, reference points are placed by the OrientationTransform
+ */
+public class TableGeometry {
+    // Number of consistent detections to lock the geometry
+    private static final int STABLE_DETECTIONS = 3;
+
+    // Max difference between two consistent detections
+    private static final double MAX_CENTER_SHIFT = 3.;
+    private static final double MAX_SIZE_CHANGE = 0.03;
+
+    // Reduce size of the table's ellipse to remove border
+    private static final int BORDER_SIZE = 10;
+
+    // Drift check: pixels on the inner ring must be the table color,
+    // pixels on the outer ring must not
+    private static final int DRIFT_SAMPLES = 32;
+    private static final double INNER_RING = 0.8;
+    private static final double OUTER_RING = 1.15;
+    private static final double MIN_INNER_HITS = 0.75;
+    private static final double MAX_OUTER_HITS = 0.25;
+
+    private final int redetectInterval;
+    private final OrientationTransform orientationTransform;
+    private final RotatedRect detectedEllipse, ellipse, scaledEllipse;
+    private final Rect boundingRect, scaledRect;
+    private final Point pointP, pointQ, pointR;
+    private final int[] innerSamplesX, innerSamplesY, outerSamplesX, outerSamplesY;
+    private int[] circleLeft, circleRight;
+
+    private int frameWidth, frameHeight;
+    private int area, radius;
+    private boolean valid, locked;
+    private int stableDetections;
+    private long lastDetectionFrame;
+    private long detections, rasterizations, driftFailures;
+
+    /**
+     * Creates new table geometry cache
+     * @param redetectInterval number of frames between full detections of the locked table
+     * @param orientationTransform transform from the sensor frame to the upright frame
+     */
+    TableGeometry(int redetectInterval, OrientationTransform orientationTransform) {
+        this.redetectInterval = Math.max(redetectInterval, 1);
+        this.orientationTransform = orientationTransform;
+        this.detectedEllipse = new RotatedRect();
+        this.ellipse = new RotatedRect();
+        this.scaledEllipse = new RotatedRect();
+        this.boundingRect = new Rect();
+        this.scaledRect = new Rect();
+        this.pointP = new Point();
+        this.pointQ = new Point();
+        this.pointR = new Point();
+        this.innerSamplesX = new int[DRIFT_SAMPLES];
+        this.innerSamplesY = new int[DRIFT_SAMPLES];
+        this.outerSamplesX = new int[DRIFT_SAMPLES];
+        this.outerSamplesY = new int[DRIFT_SAMPLES];
+        this.circleLeft = new int[0];
+        this.circleRight = new int[0];
+    }
+
+    /**
+     * @param frame sequence number of the current frame
+     * @return true if full table detection must be performed in this frame
+     */
+    public boolean isDetectionRequired(long frame) {
+        return !locked || frame - lastDetectionFrame >= redetectInterval;
+    }
+
+    /**
+     * Updates geometry with the new table detection.
+     * If the detection is consistent with the current geometry, the geometry is kept
+     * (and the circle is not rasterized again)
+     * @param tableBoundingRect bounding rectangle of the table contour
+     * @param tableEllipse ellipse fitted to the table contour
+     * @param tableArea area of the table contour
+     * @param frameWidth width of the frame
+     * @param frameHeight height of the frame
+     * @param frame sequence number of the frame
+     */
+    public void update(Rect tableBoundingRect, RotatedRect tableEllipse, int tableArea,
+                       int frameWidth, int frameHeight, long frame) {
+        detections++;
+        lastDetectionFrame = frame;
+
+        // Same table
+        if (valid && isConsistent(tableEllipse) && this.frameWidth == frameWidth
+                && this.frameHeight == frameHeight) {
+            if (++stableDetections >= STABLE_DETECTIONS)
+                locked = true;
+            return;
+        }
+
+        // New geometry
+        set(tableBoundingRect, tableEllipse, tableArea, frameWidth, frameHeight);
+        valid = true;
+        locked = false;
+        stableDetections = 1;
+    }
+
+    /**
+     * Scales the geometry to the new frame size (processing resolution change),
+     * so the table doesn't have to be detected again. The lock is kept,
+     * the next drift check verifies the scaled geometry
+     * @param frameWidth new width of the frame
+     * @param frameHeight new height of the frame
+     */
+    public void rescale(int frameWidth, int frameHeight) {
+        if (!valid || (frameWidth == this.frameWidth && frameHeight == this.frameHeight))
+            return;
+        double scaleX = (double) frameWidth / this.frameWidth;
+        double scaleY = (double) frameHeight / this.frameHeight;
+
+        copyRotatedRect(detectedEllipse, scaledEllipse);
+        scaledEllipse.center.x *= scaleX;
+        scaledEllipse.center.y *= scaleY;
+        scaledEllipse.size.width *= (scaleX + scaleY) / 2;
+        scaledEllipse.size.height *= (scaleX + scaleY) / 2;
+        scaledRect.x = (int) (boundingRect.x * scaleX);
+        scaledRect.y = (int) (boundingRect.y * scaleY);
+        scaledRect.width = Math.min((int) Math.round(boundingRect.width * scaleX),
+                frameWidth - scaledRect.x);
+        scaledRect.height = Math.min((int) Math.round(boundingRect.height * scaleY),
+                frameHeight - scaledRect.y);
+        set(scaledRect, scaledEllipse, (int) (area * scaleX * scaleY), frameWidth, frameHeight);
+    }
+
+    /**
+     * Clears the geometry (on table lost)
+     */
+    public void invalidate() {
+        valid = false;
+        locked = false;
+        stableDetections = 0;
+    }
+
+    /**
+     * Checks that the table hasn't moved by classifying the ring samples of the current frame.
+     * Unlocks the geometry if the check fails
+     * @param colorClassifier ColorClassifier with the current color ranges
+     * @param yuvFrame current YUV frame or null
+     * @param rgba current RGBA frame (used if yuvFrame is null)
+     * @return true if the table is still in place
+     */
+    public boolean checkDrift(ColorClassifier colorClassifier, YUVFrame yuvFrame, Mat rgba) {
+        int innerSamples = 0, innerHits = 0, outerSamples = 0, outerHits = 0;
+        for (int i = 0; i < DRIFT_SAMPLES; i++) {
+            // Skip samples outside the frame
+            if (innerSamplesX[i] >= 0) {
+                innerSamples++;
+                if ((colorClassifier.classifyPixel(yuvFrame, rgba,
+                        innerSamplesX[i], innerSamplesY[i])
+                        & ColorClassifier.CLASS_TABLE) != 0)
+                    innerHits++;
+            }
+            if (outerSamplesX[i] >= 0) {
+                outerSamples++;
+                if ((colorClassifier.classifyPixel(yuvFrame, rgba,
+                        outerSamplesX[i], outerSamplesY[i])
+                        & ColorClassifier.CLASS_TABLE) != 0)
+                    outerHits++;
+            }
+        }
+        if (innerHits >= innerSamples * MIN_INNER_HITS
+                && outerHits <= outerSamples * MAX_OUTER_HITS)
+            return true;
+
+        driftFailures++;
+        locked = false;
+        return false;
+    }
+
+    /**
+     * @return true if the table is detected
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return true if the geometry is stable and locked
+     */
+    public boolean isLocked() {
+        return locked;
+    }
+
+    /**
+     * @return table's ellipse (reduced to remove border)
+     */
+    public RotatedRect getEllipse() {
+        return ellipse;
+    }
+
+    /**
+     * @return bounding rectangle of the table contour
+     */
+    public Rect getBoundingRect() {
+        return boundingRect;
+    }
+
+    /**
+     * @param y row of the frame
+     * @return first pixel of the row inside the table's ellipse
+     */
+    public int getCircleLeft(int y) {
+        return y >= 0 && y < frameHeight ? circleLeft[y] : 0;
+    }
+
+    /**
+     * @param y row of the frame
+     * @return pixel after the last pixel of the row inside the table's ellipse
+     *         (not greater than getCircleLeft() if the row is outside the ellipse)
+     */
+    public int getCircleRight(int y) {
+        return y >= 0 && y < frameHeight ? circleRight[y] : 0;
+    }
+
+    /**
+     * @return P reference point (top of the upright frame, in the sensor frame)
+     */
+    public Point getPointP() {
+        return pointP;
+    }
+
+    /**
+     * @return Q reference point (bottom right of the upright frame, in the sensor frame)
+     */
+    public Point getPointQ() {
+        return pointQ;
+    }
+
+    /**
+     * @return R reference point (bottom left of the upright frame, in the sensor frame)
+     */
+    public Point getPointR() {
+        return pointR;
+    }
+
+    /**
+     * @return area of the table contour
+     */
+    public int getArea() {
+        return area;
+    }
+
+    /**
+     * @return average radius of the table
+     */
+    public int getRadius() {
+        return radius;
+    }
+
+    /**
+     * @return number of full table detections
+     */
+    public long getDetections() {
+        return detections;
+    }
+
+    /**
+     * @return number of circle rasterizations (geometry changes)
+     */
+    public long getRasterizations() {
+        return rasterizations;
+    }
+
+    /**
+     * @return number of failed drift checks
+     */
+    public long getDriftFailures() {
+        return driftFailures;
+    }
+
+    /**
+     * @param tableEllipse new detected ellipse
+     * @return true if the ellipse is close to the current one
+     */
+    private boolean isConsistent(RotatedRect tableEllipse) {
+        double shiftX = tableEllipse.center.x - detectedEllipse.center.x;
+        double shiftY = tableEllipse.center.y - detectedEllipse.center.y;
+        return shiftX * shiftX + shiftY * shiftY <= MAX_CENTER_SHIFT * MAX_CENTER_SHIFT
+                && Math.abs(tableEllipse.size.width - detectedEllipse.size.width)
+                <= detectedEllipse.size.width * MAX_SIZE_CHANGE
+                && Math.abs(tableEllipse.size.height - detectedEllipse.size.height)
+                <= detectedEllipse.size.height * MAX_SIZE_CHANGE;
+    }
+
+    /**
+     * Calculates all cached values from the detection
+     */
+    private void set(Rect tableBoundingRect, RotatedRect tableEllipse, int tableArea,
+                     int frameWidth, int frameHeight) {
+        // Copy detection
+        copyRotatedRect(tableEllipse, detectedEllipse);
+        copyRotatedRect(tableEllipse, ellipse);
+        ellipse.size.width -= BORDER_SIZE;
+        ellipse.size.height -= BORDER_SIZE;
+        boundingRect.x = tableBoundingRect.x;
+        boundingRect.y = tableBoundingRect.y;
+        boundingRect.width = tableBoundingRect.width;
+        boundingRect.height = tableBoundingRect.height;
+        area = tableArea;
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+
+        // Calculate table's radius
+        radius = (boundingRect.height + boundingRect.width) / 4;
+
+        // Calculate frame reference points (offsets are in the upright frame)
+        boolean transposed = orientationTransform.isTransposed();
+        int uprightWidth = transposed ? boundingRect.height : boundingRect.width;
+        int uprightHeight = transposed ? boundingRect.width : boundingRect.height;
+        int pqXK = (int) (uprightWidth / 4 * Math.sqrt(3.));
+        int pqYK = uprightHeight / 4;
+        setReferencePoint(pointP, 0, -(uprightHeight / 2));
+        setReferencePoint(pointQ, pqXK, pqYK);
+        setReferencePoint(pointR, -pqXK, pqYK);
+
+        // Calculate drift check samples
+        calculateRing(INNER_RING, innerSamplesX, innerSamplesY, frameWidth, frameHeight);
+        calculateRing(OUTER_RING, outerSamplesX, outerSamplesY, frameWidth, frameHeight);
+
+        // Rasterize the table's circle
+        rasterizeCircle();
+        rasterizations++;
+    }
+
+    /**
+     * Calculates the span of pixels inside the ellipse (pixel centers) for every row of the frame
+     */
+    private void rasterizeCircle() {
+        if (circleLeft.length != frameHeight) {
+            circleLeft = new int[frameHeight];
+            circleRight = new int[frameHeight];
+        }
+        double angle = Math.toRadians(ellipse.angle);
+        double cos = Math.cos(angle), sin = Math.sin(angle);
+        double halfWidth = ellipse.size.width / 2, halfHeight = ellipse.size.height / 2;
+        if (halfWidth <= 0 || halfHeight <= 0) {
+            for (int y = 0; y < frameHeight; y++) {
+                circleLeft[y] = 0;
+                circleRight[y] = 0;
+            }
+            return;
+        }
+
+        // For every row solve quadratic equation of the rotated ellipse: a * dx^2 + b * dx + c = 0
+        double widthK = 1. / (halfWidth * halfWidth), heightK = 1. / (halfHeight * halfHeight);
+        double a = cos * cos * widthK + sin * sin * heightK;
+        for (int y = 0; y < frameHeight; y++) {
+            double dy = y - ellipse.center.y;
+            double b = 2. * dy * cos * sin * (widthK - heightK);
+            double c = dy * dy * (sin * sin * widthK + cos * cos * heightK) - 1.;
+            double discriminant = b * b - 4. * a * c;
+            if (discriminant < 0) {
+                circleLeft[y] = 0;
+                circleRight[y] = 0;
+                continue;
+            }
+            double root = Math.sqrt(discriminant);
+            circleLeft[y] = Math.max((int) Math.ceil(ellipse.center.x + (-b - root) / (2. * a)),
+                    0);
+            circleRight[y] = Math.min((int) Math.floor(ellipse.center.x + (-b + root) / (2. * a))
+                    + 1, frameWidth);
+        }
+    }
+
+    /**
+     * Calculates pixels on the scaled detected ellipse
+     * @param scale scale of the ellipse
+     * @param samplesX output X coordinates (-1 if outside the frame)
+     * @param samplesY output Y coordinates (-1 if outside the frame)
+     */
+    private void calculateRing(double scale, int[] samplesX, int[] samplesY,
+                               int frameWidth, int frameHeight) {
+        double angle = Math.toRadians(detectedEllipse.angle);
+        double halfWidth = detectedEllipse.size.width / 2 * scale;
+        double halfHeight = detectedEllipse.size.height / 2 * scale;
+        for (int i = 0; i < DRIFT_SAMPLES; i++) {
+            double t = 2 * Math.PI * i / DRIFT_SAMPLES;
+            double x = halfWidth * Math.cos(t);
+            double y = halfHeight * Math.sin(t);
+            int sampleX = (int) Math.round(detectedEllipse.center.x
+                    + x * Math.cos(angle) - y * Math.sin(angle));
+            int sampleY = (int) Math.round(detectedEllipse.center.y
+                    + x * Math.sin(angle) + y * Math.cos(angle));
+            if (sampleX >= 0 && sampleX < frameWidth && sampleY >= 0 && sampleY < frameHeight) {
+                samplesX[i] = sampleX;
+                samplesY[i] = sampleY;
+            } else {
+                samplesX[i] = -1;
+                samplesY[i] = -1;
+            }
+        }
+    }
+
+    /**
+     * Copies RotatedRect without allocation
+     */
+    private static void copyRotatedRect(RotatedRect source, RotatedRect destination) {
+        destination.center.x = source.center.x;
+        destination.center.y = source.center.y;
+        destination.size.width = source.size.width;
+        destination.size.height = source.size.height;
+        destination.angle = source.angle;
+    }
+
+    /**
+     * Places the reference point relative to the table's center
+     * @param point reference point (sensor frame)
+     * @param offsetX X offset in the upright frame
+     * @param offsetY Y offset in the upright frame
+     */
+    private void setReferencePoint(Point point, double offsetX, double offsetY) {
+        point.x = ellipse.center.x + orientationTransform.vectorToSensorX(offsetX, offsetY);
+        point.y = ellipse.center.y + orientationTransform.vectorToSensorY(offsetX, offsetY);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * This class stores the controller feedback in a preallocated ring buffer.
+ * NOTE: publish() must be called from a single thread (TelemetryReader).
+ * Other threads copy the samples with getLatest() / getSample(). A sample that is being
+ * overwritten while it is copied can be inconsistent, which is fine for the HUD and the trace
+ */
+public class TelemetryBuffer {
+    private final TelemetryContainer[] samples;
+    private final LatencyHistogram roundTripHistogram;
+    private volatile long count;
+
+    /**
+     * Creates new buffer
+     * @param capacity number of samples to keep
+     */
+    TelemetryBuffer(int capacity) {
+        this.samples = new TelemetryContainer[capacity];
+        for (int i = 0; i < capacity; i++)
+            samples[i] = new TelemetryContainer();
+        this.roundTripHistogram = new LatencyHistogram();
+    }
+
+    /**
+     * Adds new sample (reader thread)
+     * @param telemetryContainer received telemetry
+     */
+    public void publish(TelemetryContainer telemetryContainer) {
+        long count = this.count;
+        samples[(int) (count % samples.length)].copyFrom(telemetryContainer);
+        if (telemetryContainer.roundTripTime >= 0)
+            roundTripHistogram.record(telemetryContainer.roundTripTime);
+        this.count = count + 1;
+    }
+
+    /**
+     * Copies the newest sample
+     * @param output TelemetryContainer to copy the sample to
+     * @return false if nothing is received yet
+     */
+    public boolean getLatest(TelemetryContainer output) {
+        long count = this.count;
+        if (count == 0)
+            return false;
+        output.copyFrom(samples[(int) ((count - 1) % samples.length)]);
+        return true;
+    }
+
+    /**
+     * Copies one of the stored samples
+     * @param index index from 0 (oldest stored) to getStoredCount() - 1 (newest)
+     * @param output TelemetryContainer to copy the sample to
+     */
+    public void getSample(int index, TelemetryContainer output) {
+        long count = this.count;
+        long first = Math.max(count - samples.length, 0);
+        output.copyFrom(samples[(int) ((first + index) % samples.length)]);
+    }
+
+    /**
+     * @return number of samples in the buffer
+     */
+    public int getStoredCount() {
+        return (int) Math.min(count, samples.length);
+    }
+
+    /**
+     * @return number of samples received since the start
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return histogram of the round trip time (packet sent to echo received)
+     */
+    public LatencyHistogram getRoundTripHistogram() {
+        return roundTripHistogram;
+    }
+
+    /**
+     * Writes stored samples as Chrome Trace Event counters
+     * (appended to the trace written by LatencyTracer.exportChromeTrace())
+     * @param writer Writer to write JSON events to
+     * @param origin System.nanoTime() that corresponds to the start of the trace
+     * @throws IOException on write error
+     */
+    public void exportChromeCounters(Writer writer, long origin) throws IOException {
+        TelemetryContainer sample = new TelemetryContainer();
+        int storedCount = getStoredCount();
+        for (int i = 0; i < storedCount; i++) {
+            getSample(i, sample);
+            if (sample.timestamp < origin)
+                continue;
+            double ts = (sample.timestamp - origin) / 1000.;
+            writer.write(",{\"name\":\"Servos\",\"ph\":\"C\",\"pid\":2,\"ts\":" + ts
+                    + ",\"args\":{\"P\":" + sample.servoP + ",\"Q\":" + sample.servoQ
+                    + ",\"R\":" + sample.servoR + "}}");
+            writer.write(",{\"name\":\"PID output\",\"ph\":\"C\",\"pid\":2,\"ts\":" + ts
+                    + ",\"args\":{\"X\":" + sample.pidOutputX + ",\"Y\":" + sample.pidOutputY
+                    + ",\"Z\":" + sample.pidOutputZ + "}}");
+            writer.write(",{\"name\":\"Controller loop (us)\",\"ph\":\"C\",\"pid\":2,\"ts\":"
+                    + ts + ",\"args\":{\"loop\":" + sample.loopTime + "}}");
+            if (sample.roundTripTime >= 0)
+                writer.write(",{\"name\":\"Round trip (ms)\",\"ph\":\"C\",\"pid\":2,\"ts\":"
+                        + ts + ",\"args\":{\"rtt\":" + sample.roundTripTime / 1000000. + "}}");
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+/**
+ * This class provides a container for the controller feedback (protocol v2 TYPE_TELEMETRY frame).
+ * timestamp is the System.nanoTime() of the frame reception,
+ * roundTripTime is the time from sending the position packet echoedSequence to the reception
+ * of this frame without the time the controller held the answer (-1 if unknown)
+ */
+public class TelemetryContainer {
+    public static final int FLAG_CONNECTION_LOST = 0x01;
+    public static final int FLAG_PROTOCOL_V2 = 0x02;
+
+    public long timestamp;
+    public int echoedSequence;
+    public long roundTripTime;
+    public int loopTime, watchdog;
+    public int servoP, servoQ, servoR;
+    public int pidOutputX, pidOutputY, pidOutputZ;
+    public int lostPackets;
+    public int flags;
+
+    TelemetryContainer() {
+        timestamp = 0;
+        echoedSequence = 0;
+        roundTripTime = -1;
+        loopTime = 0;
+        watchdog = 0;
+        servoP = 0;
+        servoQ = 0;
+        servoR = 0;
+        pidOutputX = 0;
+        pidOutputY = 0;
+        pidOutputZ = 0;
+        lostPackets = 0;
+        flags = 0;
+    }
+
+    /**
+     * Copies all values from another TelemetryContainer
+     * @param telemetryContainer source TelemetryContainer
+     */
+    public void copyFrom(TelemetryContainer telemetryContainer) {
+        timestamp = telemetryContainer.timestamp;
+        echoedSequence = telemetryContainer.echoedSequence;
+        roundTripTime = telemetryContainer.roundTripTime;
+        loopTime = telemetryContainer.loopTime;
+        watchdog = telemetryContainer.watchdog;
+        servoP = telemetryContainer.servoP;
+        servoQ = telemetryContainer.servoQ;
+        servoR = telemetryContainer.servoR;
+        pidOutputX = telemetryContainer.pidOutputX;
+        pidOutputY = telemetryContainer.pidOutputY;
+        pidOutputZ = telemetryContainer.pidOutputZ;
+        lostPackets = telemetryContainer.lostPackets;
+        flags = telemetryContainer.flags;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class reads protocol v2 frames from the controller on a dedicated thread,
+ * so the serial (transmit) thread never waits for incoming data.
+ * Telemetry frames are published to TelemetryBuffer. Round trip time is calculated
+ * from the echoed sequence number of the position packet (see packetSent()).
+ * The sent packet slot is published by writing its sequence number after the send time,
+ * so the reader thread reads the sequence number before and after the time
+ */
+public class TelemetryReader implements Runnable {
+    private final String TAG = this.getClass().getName();
+
+    // Number of remembered position packets (sequence number & 0xFF)
+    private static final int SENT_PACKETS = 256;
+
+    // Payload length of TYPE_TELEMETRY frame (including CRC)
+    private static final int TELEMETRY_PAYLOAD_LENGTH = 27;
+
+    private final SerialHandler serialHandler;
+    private final TelemetryBuffer telemetryBuffer;
+    private final PacketDecoder packetDecoder;
+    private final TelemetryContainer telemetryContainer;
+    private final byte[] receiveBuffer = new byte[64];
+
+    private final AtomicLongArray sentSequences;
+    private final AtomicLongArray sentTimes;
+    private int lastEchoedSequence = -1;
+
+    private volatile boolean running = false;
+    private volatile boolean helloAcknowledged = false;
+    private volatile int acknowledgedPositionScale = PacketEncoder.MIN_POSITION_SCALE;
+
+    TelemetryReader(SerialHandler serialHandler, TelemetryBuffer telemetryBuffer) {
+        this.serialHandler = serialHandler;
+        this.telemetryBuffer = telemetryBuffer;
+        this.packetDecoder = new PacketDecoder();
+        this.telemetryContainer = new TelemetryContainer();
+        this.sentSequences = new AtomicLongArray(SENT_PACKETS);
+        this.sentTimes = new AtomicLongArray(SENT_PACKETS);
+        for (int i = 0; i < SENT_PACKETS; i++)
+            sentSequences.set(i, -1);
+    }
+
+    /**
+     * Remembers the time the position packet was sent (serial thread)
+     * @param sequence sequence number of the packet
+     * @param time System.nanoTime() before the write call
+     */
+    public void packetSent(int sequence, long time) {
+        int slot = sequence % SENT_PACKETS;
+        sentSequences.set(slot, -1);
+        sentTimes.set(slot, time);
+        sentSequences.set(slot, sequence);
+    }
+
+    /**
+     * Clears HELLO_ACK flag before the protocol negotiation
+     */
+    public void clearHelloAcknowledged() {
+        helloAcknowledged = false;
+    }
+
+    /**
+     * @return true if HELLO_ACK (protocol v2) was received after clearHelloAcknowledged()
+     */
+    public boolean isHelloAcknowledged() {
+        return helloAcknowledged;
+    }
+
+    /**
+     * @return position scale accepted by the controller in the last HELLO_ACK
+     *         (MIN_POSITION_SCALE if the controller didn't send it)
+     */
+    public int getAcknowledgedPositionScale() {
+        return acknowledgedPositionScale;
+    }
+
+    /**
+     * @return number of received frames dropped because of COBS or CRC errors
+     */
+    public long getCorruptedFrames() {
+        return packetDecoder.getCorruptedFrames();
+    }
+
+    /**
+     * Stops the reader thread
+     */
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        running = true;
+        while (running) {
+            // Wait for new bytes (returns after a short timeout if there are none)
+            int length = serialHandler.read(receiveBuffer);
+            if (length < 0) {
+                // Device is not opened
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+
+            // Decode frames
+            long receiveTime = System.nanoTime();
+            for (int i = 0; i < length; i++)
+                if (packetDecoder.feed(receiveBuffer[i]))
+                    handleFrame(receiveTime);
+        }
+    }
+
+    /**
+     * Handles decoded frame
+     * @param receiveTime System.nanoTime() of the reception
+     */
+    private void handleFrame(long receiveTime) {
+        byte[] payload = packetDecoder.getPayload();
+
+        // Answer to protocol negotiation
+        if (packetDecoder.getType() == PacketEncoder.TYPE_HELLO_ACK) {
+            if (packetDecoder.getPayloadLength() >= 5 && payload[2] == PacketEncoder.VERSION_2) {
+                // Older firmware answers without the position scale
+                int positionScale = PacketEncoder.MIN_POSITION_SCALE;
+                if (packetDecoder.getPayloadLength() >= PacketEncoder.HELLO_PAYLOAD_LENGTH)
+                    positionScale = Math.max(PacketEncoder.MIN_POSITION_SCALE,
+                            Math.min(PacketEncoder.MAX_POSITION_SCALE, payload[3] & 0xFF));
+                acknowledgedPositionScale = positionScale;
+                helloAcknowledged = true;
+            }
+        }
+
+        // Controller feedback
+        else if (packetDecoder.getType() == PacketEncoder.TYPE_TELEMETRY
+                && packetDecoder.getPayloadLength() == TELEMETRY_PAYLOAD_LENGTH) {
+            telemetryContainer.timestamp = receiveTime;
+            telemetryContainer.echoedSequence = packetDecoder.getUInt16(2);
+            telemetryContainer.loopTime = packetDecoder.getUInt16(6);
+            telemetryContainer.watchdog = packetDecoder.getUInt16(8);
+            telemetryContainer.servoP = packetDecoder.getUInt16(10);
+            telemetryContainer.servoQ = packetDecoder.getUInt16(12);
+            telemetryContainer.servoR = packetDecoder.getUInt16(14);
+            telemetryContainer.pidOutputX = (short) packetDecoder.getUInt16(16);
+            telemetryContainer.pidOutputY = (short) packetDecoder.getUInt16(18);
+            telemetryContainer.pidOutputZ = (short) packetDecoder.getUInt16(20);
+            telemetryContainer.lostPackets = packetDecoder.getUInt16(22);
+            telemetryContainer.flags = payload[24] & 0xFF;
+
+            // Round trip time without the time the controller held the answer (ns)
+            telemetryContainer.roundTripTime = -1;
+            int sequence = telemetryContainer.echoedSequence;
+            int slot = sequence % SENT_PACKETS;
+            if (sequence != lastEchoedSequence && sentSequences.get(slot) == sequence) {
+                long sentTime = sentTimes.get(slot);
+                if (sentSequences.get(slot) == sequence) {
+                    long roundTripTime = receiveTime - sentTime
+                            - packetDecoder.getUInt16(4) * 1000L;
+                    telemetryContainer.roundTripTime = Math.max(roundTripTime, 0);
+                }
+            }
+            lastEchoedSequence = sequence;
+
+            telemetryBuffer.publish(telemetryContainer);
+        }
+        else
+            Log.w(TAG, "Unknown frame type: " + packetDecoder.getType());
+    }
+}
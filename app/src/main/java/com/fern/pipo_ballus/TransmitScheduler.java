@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class provides fixed-rate timing for the serial thread.
+ * Slots are calculated from absolute deadlines, so the rate doesn't drift with the
+ * processing time. If the thread falls behind, missed slots are skipped instead of sent in burst
+ */
+public class TransmitScheduler {
+    // Sleep until (deadline - SPIN_THRESHOLD_NS) and yield for the rest of the time
+    private static final long SPIN_THRESHOLD_NS = 200000L;
+    private static final long RATE_WINDOW_NS = 1000000000L;
+
+    private final long periodNanos;
+    private final LatencyHistogram jitterHistogram;
+
+    private long nextSlot;
+    private long slotCounter;
+    private long missedSlots;
+
+    private long lastPacketSlot;
+    private long lastPacketTime;
+
+    private long rateWindowStart;
+    private int rateWindowPackets;
+    private volatile double achievedRate;
+
+    /**
+     * Creates new fixed-rate scheduler
+     * @param rate transmit rate in Hz
+     */
+    TransmitScheduler(int rate) {
+        this.periodNanos = 1000000000L / Math.max(rate, 1);
+        this.jitterHistogram = new LatencyHistogram();
+        this.nextSlot = 0;
+        this.lastPacketTime = 0;
+    }
+
+    /**
+     * Waits for the next transmit slot
+     * @return System.nanoTime() of the moment the slot started
+     */
+    public long awaitNextSlot() {
+        long now = System.nanoTime();
+
+        // First call
+        if (nextSlot == 0)
+            nextSlot = now;
+
+        // Sleep most of the time
+        long remaining = nextSlot - now;
+        if (remaining > SPIN_THRESHOLD_NS)
+            LockSupport.parkNanos(this, remaining - SPIN_THRESHOLD_NS);
+
+        // Yield until the deadline
+        now = System.nanoTime();
+        while (nextSlot - now > 0) {
+            Thread.yield();
+            now = System.nanoTime();
+        }
+
+        // Calculate next deadline. Skip missed slots
+        nextSlot += periodNanos;
+        if (now - nextSlot >= 0) {
+            long missed = (now - nextSlot) / periodNanos + 1;
+            missedSlots += missed;
+            nextSlot += missed * periodNanos;
+        }
+
+        slotCounter++;
+        return now;
+    }
+
+    /**
+     * Counts sent packet for the achieved rate and jitter calculation.
+     * Jitter is recorded only between packets sent in successive slots
+     * (slots with nothing to send are pauses, not jitter)
+     * @param time System.nanoTime() of the moment the packet was sent
+     */
+    public void packetSent(long time) {
+        // Record deviation of the interval between sent packets from the period
+        if (lastPacketTime != 0 && lastPacketSlot == slotCounter - 1)
+            jitterHistogram.record(Math.abs(time - lastPacketTime - periodNanos));
+        lastPacketTime = time;
+        lastPacketSlot = slotCounter;
+
+        if (rateWindowStart == 0)
+            rateWindowStart = time;
+        rateWindowPackets++;
+
+        // Calculate packets per second every RATE_WINDOW_NS
+        long elapsed = time - rateWindowStart;
+        if (elapsed >= RATE_WINDOW_NS) {
+            achievedRate = rateWindowPackets * 1e9 / elapsed;
+            rateWindowPackets = 0;
+            rateWindowStart = time;
+        }
+    }
+
+    /**
+     * @return transmit period in nanoseconds
+     */
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * @return number of sent packets per second (over the last second)
+     */
+    public double getAchievedRate() {
+        return achievedRate;
+    }
+
+    /**
+     * @return number of slots skipped because the thread was late
+     */
+    public long getMissedSlots() {
+        return missedSlots;
+    }
+
+    /**
+     * @return histogram of deviation of the interval between sent packets from the period
+     */
+    public LatencyHistogram getJitterHistogram() {
+        return jitterHistogram;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+/**
+ * This interface provides a byte link to the controller (USB serial, bluetooth RFCOMM,
+ * UDP / TCP bridge or in-memory loopback).
+ * write() copies the data before it returns (the buffer can be reused immediately)
+ * and doesn't wait for the link. The result is reported to WriteCompletionListener.
+ * read() is called from a single reader thread (see TelemetryReader)
+ */
+public interface Transport {
+    /**
+     * Opens the link (blocking, must not be called from the UI thread)
+     * @return true if opened successfully
+     */
+    boolean open();
+
+    /**
+     * Closes the link. Blocked read() returns -1
+     */
+    void close();
+
+    /**
+     * @return true if the link is opened
+     */
+    boolean isOpen();
+
+    /**
+     * Submits data to send
+     * @param buffer data to send
+     * @param length number of bytes from the start of the buffer
+     * @param tag value passed to WriteCompletionListener (for example, packet sequence)
+     * @return false if the data is not accepted (link closed or congested)
+     */
+    boolean write(byte[] buffer, int length, long tag);
+
+    /**
+     * Reads incoming bytes. Waits for the data for a short time (about 100 ms)
+     * @param buffer buffer to read bytes into
+     * @return number of bytes read (0 on timeout) or -1 if the link is closed
+     */
+    int read(byte[] buffer);
+
+    /**
+     * Sets listener of completed writes
+     * @param writeCompletionListener WriteCompletionListener or null
+     */
+    void setWriteCompletionListener(WriteCompletionListener writeCompletionListener);
+
+    /**
+     * @return throughput and error counters
+     */
+    TransportStats getStats();
+
+    /**
+     * @return human readable name of the link
+     */
+    String getName();
+}
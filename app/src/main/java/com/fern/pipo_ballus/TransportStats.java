@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+/**
+ * This class counts written / read bytes and errors of the Transport.
+ * NOTE: Write counters are updated from one thread and read counters from another one
+ */
+public class TransportStats {
+    private volatile long openTime;
+    private volatile long packetsWritten, bytesWritten, writeErrors, droppedPackets;
+    private volatile long bytesRead, readErrors;
+    private final LatencyHistogram writeBlockingHistogram = new LatencyHistogram();
+
+    /**
+     * Resets all counters (on open)
+     */
+    public void reset() {
+        openTime = System.nanoTime();
+        packetsWritten = 0;
+        bytesWritten = 0;
+        writeErrors = 0;
+        droppedPackets = 0;
+        bytesRead = 0;
+        readErrors = 0;
+        writeBlockingHistogram.reset();
+    }
+
+    /**
+     * Counts completed write
+     * @param bytes number of bytes
+     */
+    public void countWrite(int bytes) {
+        packetsWritten++;
+        bytesWritten += bytes;
+    }
+
+    /**
+     * Records time the write call to the link was blocked (link congestion)
+     * NOTE: must be called from a single thread
+     * @param nanos duration of the write call in nanoseconds
+     */
+    public void countWriteBlocking(long nanos) {
+        writeBlockingHistogram.record(nanos);
+    }
+
+    /**
+     * Counts failed write
+     */
+    public void countWriteError() {
+        writeErrors++;
+    }
+
+    /**
+     * Counts packet that was not sent because the link is congested
+     */
+    public void countDropped() {
+        droppedPackets++;
+    }
+
+    /**
+     * Counts received bytes
+     * @param bytes number of bytes
+     */
+    public void countRead(int bytes) {
+        bytesRead += bytes;
+    }
+
+    /**
+     * Counts read error
+     */
+    public void countReadError() {
+        readErrors++;
+    }
+
+    /**
+     * @return number of written packets
+     */
+    public long getPacketsWritten() {
+        return packetsWritten;
+    }
+
+    /**
+     * @return number of written bytes
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return number of failed writes
+     */
+    public long getWriteErrors() {
+        return writeErrors;
+    }
+
+    /**
+     * @return number of packets dropped because the link is congested
+     */
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * @return number of received bytes
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return number of read errors
+     */
+    public long getReadErrors() {
+        return readErrors;
+    }
+
+    /**
+     * @return durations of blocking write calls (empty if the Transport doesn't measure them)
+     */
+    public LatencyHistogram getWriteBlockingHistogram() {
+        return writeBlockingHistogram;
+    }
+
+    /**
+     * @return average written bytes per second since the link was opened
+     */
+    public double getWriteThroughput() {
+        long elapsed = System.nanoTime() - openTime;
+        return elapsed > 0 ? bytesWritten * 1e9 / elapsed : 0;
+    }
+
+    /**
+     * @return average written packets per second since the link was opened
+     */
+    public double getPacketRate() {
+        long elapsed = System.nanoTime() - openTime;
+        return elapsed > 0 ? packetsWritten * 1e9 / elapsed : 0;
+    }
+
+    @Override
+    public String toString() {
+        String result = "packets: " + packetsWritten + " (" + (int) getPacketRate()
+                + "/s), bytes: " + bytesWritten + " (" + (int) getWriteThroughput()
+                + " B/s), errors: " + writeErrors + ", dropped: " + droppedPackets
+                + ", read: " + bytesRead + " bytes, read errors: " + readErrors;
+        if (writeBlockingHistogram.getCount() > 0)
+            result += ", write blocking p50 / p99 / max: "
+                    + writeBlockingHistogram.getPercentile(50) / 1000 + " / "
+                    + writeBlockingHistogram.getPercentile(99) / 1000 + " / "
+                    + writeBlockingHistogram.getMax() / 1000 + " us";
+        return result;
+    }
+}
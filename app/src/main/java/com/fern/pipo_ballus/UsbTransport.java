@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbManager;
+import android.util.Log;
+
+import com.hoho.android.usbserial.driver.CommonUsbSerialPort;
+import com.hoho.android.usbserial.driver.UsbSerialDriver;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.util.Arrays;
+
+/**
+ * This class provides Transport over USB serial adapter (usb-serial-for-android).
+ * Packets are written asynchronously by AsyncUsbWriter. If the driver doesn't expose
+ * the bulk OUT endpoint or the requests fail, writes fall back to synchronous
+ * UsbSerialPort.write() limited by WRITE_TIMEOUT_MS
+ */
+public class UsbTransport extends AbstractTransport {
+    private final String TAG = this.getClass().getName();
+
+    private static final int WRITE_TIMEOUT_MS = 4;
+    private static final int READ_TIMEOUT_MS = 100;
+
+    private final UsbManager usbManager;
+    private final UsbSerialDriver usbSerialDriver;
+    private final int baudRate;
+
+    private volatile UsbSerialPort usbSerialPort;
+    private volatile AsyncUsbWriter asyncUsbWriter;
+
+    UsbTransport(UsbManager usbManager, UsbSerialDriver usbSerialDriver, int baudRate) {
+        this.usbManager = usbManager;
+        this.usbSerialDriver = usbSerialDriver;
+        this.baudRate = baudRate;
+    }
+
+    @Override
+    public boolean open() {
+        try {
+            UsbDeviceConnection connection = usbManager.openDevice(usbSerialDriver.getDevice());
+            if (connection == null)
+                return false;
+
+            UsbSerialPort usbSerialPort = usbSerialDriver.getPorts().get(0);
+            try { usbSerialPort.close(); } catch (Exception ignored) { }
+            usbSerialPort.open(connection);
+            usbSerialPort.setParameters(baudRate, 8,
+                    UsbSerialPort.STOPBITS_1, UsbSerialPort.PARITY_NONE);
+
+            // Check if port is opened
+            if (usbSerialPort.isOpen()) {
+                stats.reset();
+                asyncUsbWriter = openAsyncWriter(usbSerialPort, connection);
+                this.usbSerialPort = usbSerialPort;
+                return true;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error opening USB serial device!", e);
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        UsbSerialPort usbSerialPort = this.usbSerialPort;
+        this.usbSerialPort = null;
+        closeAsyncWriter();
+        try {
+            if (usbSerialPort != null)
+                usbSerialPort.close();
+        } catch (Exception e) {
+            Log.e(TAG, "Error closing USB serial device!", e);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        UsbSerialPort usbSerialPort = this.usbSerialPort;
+        return usbSerialPort != null && usbSerialPort.isOpen();
+    }
+
+    @Override
+    public boolean write(byte[] buffer, int length, long tag) {
+        UsbSerialPort usbSerialPort = this.usbSerialPort;
+        if (usbSerialPort == null || !usbSerialPort.isOpen())
+            return false;
+
+        long startTime = System.nanoTime();
+
+        // Queue the packet without waiting
+        AsyncUsbWriter asyncUsbWriter = this.asyncUsbWriter;
+        if (asyncUsbWriter != null) {
+            if (asyncUsbWriter.write(buffer, length, tag, startTime))
+                return true;
+            Log.w(TAG, "Asynchronous USB writes failed. Using synchronous writes");
+            closeAsyncWriter();
+        }
+
+        try {
+            // usb-serial writes the whole array (packets are built into exact size buffers)
+            usbSerialPort.write(length == buffer.length ? buffer
+                    : Arrays.copyOf(buffer, length), WRITE_TIMEOUT_MS);
+            writeCompleted(tag, length, startTime, true);
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending data over USB serial!", e);
+            writeCompleted(tag, length, startTime, false);
+        }
+        return true;
+    }
+
+    @Override
+    public int read(byte[] buffer) {
+        UsbSerialPort usbSerialPort = this.usbSerialPort;
+        if (usbSerialPort == null || !usbSerialPort.isOpen())
+            return -1;
+        try {
+            int length = Math.max(usbSerialPort.read(buffer, READ_TIMEOUT_MS), 0);
+            stats.countRead(length);
+            return length;
+        } catch (Exception e) {
+            // Port is closed while reading
+            if (this.usbSerialPort != null) {
+                stats.countReadError();
+                Log.e(TAG, "Error reading data from USB serial!", e);
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Starts asynchronous writes to the bulk OUT endpoint of the port
+     * @return AsyncUsbWriter or null if the endpoint is not available
+     */
+    private AsyncUsbWriter openAsyncWriter(UsbSerialPort usbSerialPort,
+                                           UsbDeviceConnection connection) {
+        UsbEndpoint endpoint = null;
+        if (usbSerialPort instanceof CommonUsbSerialPort)
+            endpoint = ((CommonUsbSerialPort) usbSerialPort).getWriteEndpoint();
+        if (endpoint != null) {
+            AsyncUsbWriter asyncUsbWriter = new AsyncUsbWriter(this, connection, endpoint);
+            if (asyncUsbWriter.open())
+                return asyncUsbWriter;
+        }
+        Log.w(TAG, "Asynchronous USB writes are not available. Using synchronous writes");
+        return null;
+    }
+
+    /**
+     * Stops asynchronous writes (must be called before the port is closed)
+     */
+    private void closeAsyncWriter() {
+        AsyncUsbWriter asyncUsbWriter = this.asyncUsbWriter;
+        this.asyncUsbWriter = null;
+        if (asyncUsbWriter != null)
+            asyncUsbWriter.close();
+    }
+
+    @Override
+    public String getName() {
+        return usbSerialDriver.getDevice().getProductName();
+    }
+}
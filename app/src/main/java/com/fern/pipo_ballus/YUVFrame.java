@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2021 Fern H. (aka Pavel Neshumov), PiPo-Ballus Android application
+ *
+ * Licensed under the GNU Affero General Public License, Version 3.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.gnu.org/licenses/agpl-3.0.en.html
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ *
+ * IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR MILITARY PURPOSES. ALSO, IT IS STRICTLY PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE)
+ * FOR ANY PURPOSE THAT MAY LEAD TO INJURY, HUMAN, ANIMAL OR ENVIRONMENTAL DAMAGE.
+ * ALSO, IT IS PROHIBITED TO USE THE PROJECT (OR PARTS OF THE PROJECT / CODE) FOR ANY PURPOSE THAT
+ * VIOLATES INTERNATIONAL HUMAN RIGHTS OR HUMAN FREEDOM.
+ * BY USING THE PROJECT (OR PART OF THE PROJECT / CODE) YOU AGREE TO ALL OF THE ABOVE RULES.
+ */
+
+package com.fern.pipo_ballus;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class provides a YUV 4:2:0 frame (luma plane and half-resolution chroma planes)
+ * as CvCameraViewFrame.
+ * The frame either wraps the planes of the camera's image without copying (see set())
+ * or owns a compact I420 copy of them (see copyTo()).
+ * ColorClassifier reads the planes directly, RGBA and gray Mats are converted only on request
+ * (for display) and cached until the next frame.
+ * NOTE: Planes of the camera's image are valid only until the image is closed
+ */
+public class YUVFrame implements CameraBridgeViewBase.CvCameraViewFrame {
+    private int width, height;
+    private ByteBuffer yPlane, uPlane, vPlane;
+    private int yRowStride, uvRowStride, uvPixelStride;
+    private long timestamp;
+
+    private byte[] i420Buffer, rowBuffer;
+    private boolean compact, rgbaValid, grayValid;
+    private final Mat i420, rgba, gray;
+
+    YUVFrame() {
+        this.i420 = new Mat();
+        this.rgba = new Mat();
+        this.gray = new Mat();
+    }
+
+    /**
+     * Wraps the planes of the frame (without copying)
+     * @param width frame width
+     * @param height frame height
+     * @param yPlane luma plane (full resolution)
+     * @param yRowStride distance between rows of the luma plane in bytes
+     * @param uPlane U (Cb) plane (half resolution)
+     * @param vPlane V (Cr) plane (half resolution)
+     * @param uvRowStride distance between rows of the chroma planes in bytes
+     * @param uvPixelStride distance between pixels of the chroma planes in bytes
+     *                      (2 for interleaved planes)
+     * @param timestamp capture time of the frame (System.nanoTime()) or 0 if unknown
+     */
+    public void set(int width, int height, ByteBuffer yPlane, int yRowStride,
+                    ByteBuffer uPlane, ByteBuffer vPlane, int uvRowStride, int uvPixelStride,
+                    long timestamp) {
+        this.width = width;
+        this.height = height;
+        this.yPlane = yPlane;
+        this.yRowStride = yRowStride;
+        this.uPlane = uPlane;
+        this.vPlane = vPlane;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.timestamp = timestamp;
+        this.compact = false;
+        this.rgbaValid = false;
+        this.grayValid = false;
+    }
+
+    /**
+     * Copies the frame into another frame as compact I420 planes
+     * (the buffer of the destination is reused if the size is the same)
+     * @param yuvFrame destination frame (or this frame to make a compact copy of the planes
+     *                 of the camera's image)
+     */
+    public void copyTo(YUVFrame yuvFrame) {
+        resizeTo(yuvFrame, width, height);
+    }
+
+    /**
+     * Decimates the frame (nearest neighbor) into another frame as compact I420 planes
+     * (the buffer of the destination is reused if the size is the same)
+     * @param yuvFrame destination frame (can be this frame only if the size is the same)
+     * @param width width of the destination frame
+     * @param height height of the destination frame
+     */
+    public void resizeTo(YUVFrame yuvFrame, int width, int height) {
+        int chromaWidth = (width + 1) / 2, chromaHeight = (height + 1) / 2;
+        int lumaSize = width * height, chromaSize = chromaWidth * chromaHeight;
+        int size = lumaSize + chromaSize * 2;
+        if (yuvFrame.i420Buffer == null || yuvFrame.i420Buffer.length != size)
+            yuvFrame.i420Buffer = new byte[size];
+        byte[] buffer = yuvFrame.i420Buffer;
+
+        // Copy luma rows
+        copyPlane(yPlane, this.width, this.height, yRowStride, 1, buffer, 0, width, height);
+
+        // Copy chroma rows (and remove interleaving)
+        copyPlane(uPlane, getChromaWidth(), getChromaHeight(), uvRowStride, uvPixelStride,
+                buffer, lumaSize, chromaWidth, chromaHeight);
+        copyPlane(vPlane, getChromaWidth(), getChromaHeight(), uvRowStride, uvPixelStride,
+                buffer, lumaSize + chromaSize, chromaWidth, chromaHeight);
+
+        yuvFrame.set(width, height, ByteBuffer.wrap(buffer, 0, lumaSize).slice(), width,
+                ByteBuffer.wrap(buffer, lumaSize, chromaSize).slice(),
+                ByteBuffer.wrap(buffer, lumaSize + chromaSize, chromaSize).slice(),
+                chromaWidth, 1, timestamp);
+        yuvFrame.compact = true;
+    }
+
+    /**
+     * @return RGBA frame (converted on the first call)
+     */
+    @Override
+    public Mat rgba() {
+        if (!rgbaValid) {
+            toI420();
+            Imgproc.cvtColor(i420, rgba, Imgproc.COLOR_YUV2RGBA_I420, 4);
+            rgbaValid = true;
+        }
+        return rgba;
+    }
+
+    /**
+     * @return gray frame (copy of the luma plane)
+     */
+    @Override
+    public Mat gray() {
+        if (!grayValid) {
+            toI420();
+            i420.submat(0, height, 0, width).copyTo(gray);
+            grayValid = true;
+        }
+        return gray;
+    }
+
+    /**
+     * Releases cached Mats
+     */
+    public void release() {
+        i420.release();
+        rgba.release();
+        gray.release();
+        rgbaValid = false;
+        grayValid = false;
+    }
+
+    /**
+     * @return frame width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return frame height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return capture time of the frame (System.nanoTime()) or 0 if unknown
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return luma plane
+     */
+    public ByteBuffer getYPlane() {
+        return yPlane;
+    }
+
+    /**
+     * @return distance between rows of the luma plane in bytes
+     */
+    public int getYRowStride() {
+        return yRowStride;
+    }
+
+    /**
+     * @return U (Cb) plane
+     */
+    public ByteBuffer getUPlane() {
+        return uPlane;
+    }
+
+    /**
+     * @return V (Cr) plane
+     */
+    public ByteBuffer getVPlane() {
+        return vPlane;
+    }
+
+    /**
+     * @return distance between rows of the chroma planes in bytes
+     */
+    public int getUVRowStride() {
+        return uvRowStride;
+    }
+
+    /**
+     * @return distance between pixels of the chroma planes in bytes
+     */
+    public int getUVPixelStride() {
+        return uvPixelStride;
+    }
+
+    /**
+     * Puts the planes into the I420 Mat for OpenCV conversions
+     */
+    private void toI420() {
+        if (!compact)
+            copyTo(this);
+        i420.create(height + getChromaHeight(), width, CvType.CV_8UC1);
+        i420.put(0, 0, i420Buffer);
+    }
+
+    /**
+     * Copies (and decimates) the plane into the compact buffer
+     * @param plane plane of this frame
+     * @param planeWidth width of the plane
+     * @param planeHeight height of the plane
+     * @param rowStride distance between rows of the plane
+     * @param pixelStride distance between pixels of the plane
+     * @param buffer destination buffer
+     * @param offset offset of the plane in the buffer
+     * @param width width of the destination plane
+     * @param height height of the destination plane
+     */
+    private void copyPlane(ByteBuffer plane, int planeWidth, int planeHeight, int rowStride,
+                           int pixelStride, byte[] buffer, int offset, int width, int height) {
+        int rowLength = (planeWidth - 1) * pixelStride + 1;
+        if (rowBuffer == null || rowBuffer.length < rowLength)
+            rowBuffer = new byte[rowLength];
+        for (int row = 0; row < height; row++) {
+            plane.position((row * planeHeight / height) * rowStride);
+            int destination = offset + row * width;
+            if (pixelStride == 1 && width == planeWidth) {
+                plane.get(buffer, destination, width);
+                continue;
+            }
+            plane.get(rowBuffer, 0, rowLength);
+            for (int col = 0; col < width; col++)
+                buffer[destination + col] = rowBuffer[(col * planeWidth / width) * pixelStride];
+        }
+    }
+
+    private int getChromaWidth() {
+        return (width + 1) / 2;
+    }
+
+    private int getChromaHeight() {
+        return (height + 1) / 2;
+    }
+}
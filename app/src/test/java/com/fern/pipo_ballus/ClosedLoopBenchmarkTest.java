@@ -0,0 +1,26 @@
+package com.fern.pipo_ballus;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs closed-loop simulations with the ideal sensor (no vision)
+ * and checks that the firmware's PID brings the ball to the center of the plate
+ */
+public class ClosedLoopBenchmarkTest {
+    @Test
+    public void idealSensor_settlesFromRandomStates() throws Exception {
+        ClosedLoopBenchmark closedLoopBenchmark = new ClosedLoopBenchmark(false);
+        closedLoopBenchmark.setDuration(15000000L);
+        List<BenchmarkContainer> results = closedLoopBenchmark.runSweep(1, 16, 0);
+        String summary = ClosedLoopBenchmark.summarize(results);
+        for (BenchmarkContainer benchmarkContainer : results) {
+            assertTrue(benchmarkContainer + "\n" + summary, benchmarkContainer.isSettled());
+            assertEquals(summary, 0, benchmarkContainer.lostPackets);
+            assertEquals(summary, benchmarkContainer.frames, benchmarkContainer.detectedFrames);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.fern.pipo_ballus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Load-tests the send path: positions go through PositionMailbox, TransmitScheduler,
+ * PositionExtrapolator and SerialHandler to LoopbackTransport and are decoded on the other side
+ */
+public class LoopbackTransportTest {
+    private static final int PACKETS = 10000;
+    private static final long TIMEOUT_NS = 30000000000L;
+
+    @Test
+    public void positionFrames_areDecodedInOrder() throws Exception {
+        SettingsContainer.protocolVersion = PacketEncoder.VERSION_2;
+        SettingsContainer.positionScale = 1;
+        SettingsContainer.transmitRate = 5000;
+
+        LoopbackTransport[] pair = LoopbackTransport.createPair(64 * 1024);
+        LoopbackTransport phone = pair[0];
+        LoopbackTransport controller = pair[1];
+        assertTrue(controller.open());
+
+        PositionMailbox positionMailbox = new PositionMailbox();
+        LatencyTracer latencyTracer = new LatencyTracer(1024);
+        SerialHandler serialHandler = new SerialHandler(null, new SerialDevice(phone),
+                positionMailbox, latencyTracer, new TelemetryBuffer(64));
+        int[] devicesLost = new int[1];
+        serialHandler.setDeviceLostListener(() -> devicesLost[0]++);
+        assertTrue(serialHandler.openDevice());
+        Thread serialThread = new Thread(serialHandler);
+        serialThread.start();
+
+        // Simulated controller answers the protocol negotiation
+        SimulatedController simulatedController = new SimulatedController(controller);
+        long micros = 0;
+        while (serialHandler.getProtocolVersion() != PacketEncoder.VERSION_2) {
+            simulatedController.loop(micros += SimulatedController.LOOP_PERIOD);
+            Thread.sleep(1);
+        }
+
+        // Read and decode position frames on a separate thread (as the controller does)
+        int[] decoded = new int[1];
+        int[] lastSequence = {0};
+        boolean[] ordered = {true};
+        Thread reader = new Thread(() -> {
+            PacketDecoder packetDecoder = new PacketDecoder();
+            byte[] buffer = new byte[256];
+            while (true) {
+                int length = controller.read(buffer);
+                if (length < 0)
+                    return;
+                for (int i = 0; i < length; i++) {
+                    if (packetDecoder.feed(buffer[i])
+                            && packetDecoder.getType() == PacketEncoder.TYPE_POSITION) {
+                        int sequence = packetDecoder.getUInt16(2);
+                        if (sequence != ((lastSequence[0] + 1) & 0xFFFF))
+                            ordered[0] = false;
+                        lastSequence[0] = sequence;
+                        decoded[0]++;
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        // Publish camera frames every millisecond until enough packets are sent
+        // (TransmitScheduler sends the extrapolated position at transmitRate)
+        TransportStats phoneStats = phone.getStats();
+        PositionContainer positionContainer = new PositionContainer();
+        positionContainer.ballDetected = true;
+        long frames = 0;
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (phoneStats.getPacketsWritten() < PACKETS && System.nanoTime() < deadline) {
+            long now = System.nanoTime();
+            latencyTracer.frameArrived(frames, now);
+            positionContainer.ballVSTableX = 1000 + frames % 1000;
+            positionContainer.velocityX = 1000;
+            positionContainer.timestamp = now;
+            positionContainer.sequence = frames++;
+            positionMailbox.put(positionContainer);
+            Thread.sleep(1);
+        }
+
+        // Positions get too old and sending stops. Let the reader decode everything
+        Thread.sleep(500);
+        long packetsWritten = phoneStats.getPacketsWritten();
+        while (controller.available() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        controller.close();
+        reader.join(1000);
+
+        // Every packet except HELLO is decoded in order and its write completion is traced
+        assertTrue(packetsWritten >= PACKETS);
+        assertEquals(packetsWritten - 1, decoded[0]);
+        assertTrue(ordered[0]);
+        assertEquals(0, phoneStats.getDroppedPackets());
+        assertEquals(0, phoneStats.getWriteErrors());
+        assertEquals(frames, positionMailbox.getPublishedCounter());
+        assertTrue(latencyTracer.getGlassToWireHistogram().getCount() > 0);
+        assertEquals(0, devicesLost[0]);
+
+        // Controller is disconnected. Failed writes are counted as data loss
+        for (int i = 0; i < 10; i++) {
+            positionContainer.timestamp = System.nanoTime();
+            positionContainer.sequence = frames++;
+            positionMailbox.put(positionContainer);
+            Thread.sleep(1);
+        }
+        assertTrue(devicesLost[0] > 0);
+        assertTrue(phoneStats.getDroppedPackets() > 0);
+
+        serialHandler.closeDevice();
+        serialThread.join(1000);
+        assertEquals(-1, controller.read(new byte[16]));
+    }
+}
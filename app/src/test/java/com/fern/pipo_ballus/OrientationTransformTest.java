@@ -0,0 +1,90 @@
+package com.fern.pipo_ballus;
+
+import android.view.Surface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks OrientationTransform against the pixel rotation of the old pipeline
+ * (Core.transpose and Core.flip of the camera frame)
+ */
+public class OrientationTransformTest {
+    private static final int WIDTH = 5;
+    private static final int HEIGHT = 3;
+
+    @Test
+    public void transform_matchesTransposeAndFlip() {
+        int[] rotations = {Surface.ROTATION_0, Surface.ROTATION_90, Surface.ROTATION_180,
+                Surface.ROTATION_270};
+        for (boolean frontCamera : new boolean[] {false, true}) {
+            for (int rotation : rotations) {
+                OrientationTransform orientationTransform = new OrientationTransform();
+                assertTrue(orientationTransform.update(rotation, frontCamera, WIDTH, HEIGHT));
+                assertFalse(orientationTransform.update(rotation, frontCamera, WIDTH, HEIGHT));
+
+                // Every sensor pixel must land on the same pixel as with transpose and flip
+                int[][] upright = rotatePixels(sensorPixels(), rotation, frontCamera);
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        int uprightX = (int) orientationTransform.toUprightX(x, y);
+                        int uprightY = (int) orientationTransform.toUprightY(x, y);
+                        assertEquals(y * WIDTH + x, upright[uprightY][uprightX]);
+                    }
+                }
+                assertEquals(upright.length != HEIGHT, orientationTransform.isTransposed());
+
+                // Vectors are transformed back with the transpose
+                double vectorX = orientationTransform.vectorToUprightX(3, -2);
+                double vectorY = orientationTransform.vectorToUprightY(3, -2);
+                assertEquals(3, orientationTransform.vectorToSensorX(vectorX, vectorY), 1e-9);
+                assertEquals(-2, orientationTransform.vectorToSensorY(vectorX, vectorY), 1e-9);
+            }
+        }
+    }
+
+    /**
+     * @return frame with the index of each pixel (rows of pixels)
+     */
+    private static int[][] sensorPixels() {
+        int[][] pixels = new int[HEIGHT][WIDTH];
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                pixels[y][x] = y * WIDTH + x;
+        return pixels;
+    }
+
+    /**
+     * Rotates pixels as the old OpenCVHandler did
+     */
+    private static int[][] rotatePixels(int[][] pixels, int rotation, boolean frontCamera) {
+        if (rotation == Surface.ROTATION_0)
+            return flip(transpose(pixels), frontCamera ? 0 : 1);
+        if (rotation == Surface.ROTATION_270)
+            return flip(flip(pixels, 0), 1);
+        if (rotation == Surface.ROTATION_180)
+            return flip(transpose(pixels), frontCamera ? 1 : 0);
+        return pixels;
+    }
+
+    private static int[][] transpose(int[][] pixels) {
+        int[][] result = new int[pixels[0].length][pixels.length];
+        for (int y = 0; y < pixels.length; y++)
+            for (int x = 0; x < pixels[0].length; x++)
+                result[x][y] = pixels[y][x];
+        return result;
+    }
+
+    /**
+     * Same as Core.flip(): 0 - around X axis (vertical flip), 1 - around Y axis
+     */
+    private static int[][] flip(int[][] pixels, int flipCode) {
+        int rows = pixels.length, cols = pixels[0].length;
+        int[][] result = new int[rows][cols];
+        for (int y = 0; y < rows; y++)
+            for (int x = 0; x < cols; x++)
+                result[y][x] = flipCode == 0 ? pixels[rows - 1 - y][x] : pixels[y][cols - 1 - x];
+        return result;
+    }
+}
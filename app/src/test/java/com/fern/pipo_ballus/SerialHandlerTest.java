@@ -0,0 +1,85 @@
+package com.fern.pipo_ballus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs SerialHandler against SimulatedController through LoopbackTransport
+ * (android.util.Log calls return default values, see testOptions in build.gradle)
+ */
+public class SerialHandlerTest {
+    @Test
+    public void serialHandler_negotiatesV2AndSendsWithoutLoss() throws Exception {
+        SettingsContainer.protocolVersion = PacketEncoder.VERSION_2;
+        SettingsContainer.positionScale = 8;
+        SettingsContainer.transmitRate = 100;
+
+        // Controller runs its loop in real time on the peer endpoint
+        LoopbackTransport[] pair = LoopbackTransport.createPair(64 * 1024);
+        LoopbackTransport controllerEnd = pair[1];
+        controllerEnd.open();
+        SimulatedController controller = new SimulatedController(controllerEnd);
+        Thread controllerThread = new Thread(controller);
+        controllerThread.start();
+
+        PositionMailbox positionMailbox = new PositionMailbox();
+        LatencyTracer latencyTracer = new LatencyTracer(1024);
+        TelemetryBuffer telemetryBuffer = new TelemetryBuffer(1024);
+        SerialHandler serialHandler = new SerialHandler(null, new SerialDevice(pair[0]),
+                positionMailbox, latencyTracer, telemetryBuffer);
+        boolean[] deviceLost = {false};
+        serialHandler.setDeviceLostListener(() -> deviceLost[0] = true);
+        assertTrue(serialHandler.openDevice());
+        Thread serialThread = new Thread(serialHandler);
+        serialThread.start();
+
+        // Publish positions at 30 fps for one second (TransmitScheduler sends them at 100 Hz)
+        PositionContainer positionContainer = new PositionContainer();
+        positionContainer.ballDetected = true;
+        positionContainer.ballSetpointX = 1500;
+        positionContainer.ballSetpointY = 1500;
+        positionContainer.ballSetpointZ = 1500;
+        for (int i = 0; i < 30; i++) {
+            long now = System.nanoTime();
+            latencyTracer.frameArrived(i, now);
+            positionContainer.ballVSTableX = 1500 + i * 10;
+            positionContainer.ballVSTableY = 1500;
+            positionContainer.ballVSTableZ = 1500;
+            positionContainer.velocityX = 300;
+            positionContainer.timestamp = now;
+            positionContainer.sequence = i;
+            positionMailbox.put(positionContainer);
+            Thread.sleep(33);
+        }
+
+        // Positions get too old and sending stops. Wait for the last telemetry
+        Thread.sleep(500);
+        Transport transport = serialHandler.getTransport();
+        TransportStats phoneStats = transport.getStats();
+        TelemetryContainer telemetryContainer = new TelemetryContainer();
+        assertTrue(telemetryBuffer.getLatest(telemetryContainer));
+
+        serialHandler.closeDevice();
+        serialThread.join(1000);
+        controller.stop();
+        controllerThread.join(1000);
+
+        // Protocol v2 is negotiated with one HELLO
+        assertEquals(PacketEncoder.VERSION_2, serialHandler.getProtocolVersion());
+        assertEquals(2, controller.getProtocol());
+        assertTrue(phoneStats.getPacketsWritten() > 50);
+
+        // Every written byte reached the controller, without gaps in sequence numbers
+        assertEquals(0, phoneStats.getDroppedPackets());
+        assertEquals(0, phoneStats.getWriteErrors());
+        assertEquals(phoneStats.getBytesWritten(), controllerEnd.getStats().getBytesRead());
+        assertEquals(0, controller.getLostPackets());
+        assertEquals(phoneStats.getPacketsWritten() - 1, telemetryContainer.echoedSequence);
+        assertEquals(0, telemetryContainer.lostPackets);
+        assertFalse(deviceLost[0]);
+
+        // Write completions are traced
+        assertTrue(latencyTracer.getGlassToWireHistogram().getCount() > 0);
+    }
+}
@@ -0,0 +1,99 @@
+package com.fern.pipo_ballus;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives SimulatedController with protocol v2 frames through LoopbackTransport
+ * and checks its telemetry
+ */
+public class SimulatedControllerTest {
+    @Test
+    public void controller_answersHelloAndResetsByWatchdog() {
+        LoopbackTransport[] pair = LoopbackTransport.createPair(64 * 1024);
+        LoopbackTransport phone = pair[0];
+        phone.open();
+        pair[1].open();
+        SimulatedController controller = new SimulatedController(pair[1]);
+        PacketEncoder packetEncoder = new PacketEncoder();
+        PacketDecoder packetDecoder = new PacketDecoder();
+        byte[] buffer = new byte[1024];
+        long micros = 0;
+
+        // Protocol negotiation (the controller accepts the position scale)
+        byte[] hello = packetEncoder.encodeHello(8);
+        phone.write(hello, hello.length, -1);
+        controller.loop(micros += SimulatedController.LOOP_PERIOD);
+        assertEquals(2, controller.getProtocol());
+        assertTrue(decodeLast(phone, packetDecoder, buffer));
+        assertEquals(PacketEncoder.TYPE_HELLO_ACK, packetDecoder.getType());
+        assertEquals(8, packetDecoder.getPayload()[3] & 0xFF);
+
+        // Ball right of the setpoint. Send position every 3 loops (83 Hz)
+        PositionContainer positionContainer = new PositionContainer();
+        positionContainer.ballVSTableX = 1700;
+        positionContainer.ballVSTableY = 1500;
+        positionContainer.ballVSTableZ = 1500;
+        positionContainer.ballSetpointX = 1500;
+        positionContainer.ballSetpointY = 1500;
+        positionContainer.ballSetpointZ = 1500;
+        for (int i = 0; i < 300; i++) {
+            if (i % 3 == 0) {
+                byte[] frame = packetEncoder.encodePositionV2(positionContainer, 0, 8);
+
+                // Lose one packet
+                if (i != 150)
+                    phone.write(frame, frame.length, i);
+            }
+            controller.loop(micros += SimulatedController.LOOP_PERIOD);
+        }
+        assertTrue(controller.getPidOutputX() > 0);
+        assertEquals(1, controller.getLostPackets());
+
+        // Telemetry echoes the last sequence
+        assertTrue(decodeLast(phone, packetDecoder, buffer));
+        assertEquals(PacketEncoder.TYPE_TELEMETRY, packetDecoder.getType());
+        assertEquals(packetEncoder.getSequence(), packetDecoder.getUInt16(2));
+        assertEquals(TelemetryContainer.FLAG_PROTOCOL_V2,
+                packetDecoder.getPayload()[24] & 0xFF);
+
+        // Fast reconnect. The new encoder restarts the sequence numbers after HELLO
+        packetEncoder = new PacketEncoder();
+        hello = packetEncoder.encodeHello(8);
+        phone.write(hello, hello.length, -1);
+        controller.loop(micros += SimulatedController.LOOP_PERIOD);
+        for (int i = 0; i < 30; i++) {
+            if (i % 3 == 0) {
+                byte[] frame = packetEncoder.encodePositionV2(positionContainer, 0, 8);
+                phone.write(frame, frame.length, i);
+            }
+            controller.loop(micros += SimulatedController.LOOP_PERIOD);
+        }
+        assertEquals(1, controller.getLostPackets());
+
+        // No packets for WATCHDOG_LOST_CYCLES loops. PID is reset and telemetry is stopped
+        for (int i = 0; i < SimulatedController.WATCHDOG_LOST_CYCLES; i++)
+            controller.loop(micros += SimulatedController.LOOP_PERIOD);
+        decodeLast(phone, packetDecoder, buffer);
+        assertEquals(0, controller.getPidOutputX(), 0);
+        assertEquals(1, controller.getProtocol());
+        controller.loop(micros + SimulatedController.LOOP_PERIOD * 10);
+        assertEquals(0, phone.available());
+    }
+
+    /**
+     * Decodes all frames received by the phone
+     * @return true if at least one frame was decoded (the last one is in packetDecoder)
+     */
+    private static boolean decodeLast(LoopbackTransport phone, PacketDecoder packetDecoder,
+                                      byte[] buffer) {
+        boolean decoded = false;
+        while (phone.available() > 0) {
+            int length = phone.read(buffer);
+            for (int i = 0; i < length; i++)
+                decoded |= packetDecoder.feed(buffer[i]);
+        }
+        return decoded;
+    }
+}